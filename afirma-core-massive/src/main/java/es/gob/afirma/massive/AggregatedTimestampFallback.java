@@ -0,0 +1,23 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.massive;
+
+/** Tratamiento de las firmas de un lote cuando no se puede obtener su sello de tiempo agregado:
+ * <ul>
+ * <li>INDIVIDUAL_TIMESTAMP: Se solicita un sello de tiempo por cada firma.</li>
+ * <li>UNSTAMPED: Se guardan las firmas sin sello de tiempo.</li>
+ * </ul> */
+public enum AggregatedTimestampFallback {
+    /** Se sella cada firma con su propio sello de tiempo. Las firmas que tampoco puedan sellarse as&iacute; no se guardan. */
+    INDIVIDUAL_TIMESTAMP,
+    /** Se guardan las firmas sin sello de tiempo. */
+    UNSTAMPED
+}
@@ -18,16 +18,25 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.security.KeyStore.PrivateKeyEntry;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import es.gob.afirma.core.AOException;
 import es.gob.afirma.core.AOUnsupportedSignFormatException;
+import es.gob.afirma.core.misc.AOFileUtils;
 import es.gob.afirma.core.misc.AOUtil;
 import es.gob.afirma.core.misc.Base64;
 import es.gob.afirma.core.misc.MimeHelper;
@@ -35,6 +44,7 @@ import es.gob.afirma.core.signers.AOSignConstants;
 import es.gob.afirma.core.signers.AOSigner;
 import es.gob.afirma.core.signers.AOSignerFactory;
 import es.gob.afirma.core.signers.CounterSignTarget;
+import es.gob.afirma.signers.tsp.pkcs7.MerkleTimestamper;
 
 /** M&oacute;dulo para la ejecuci&oacute;n de multifirmas masivas. La firma
  * masiva puede aplicar sobre distintos tipos de elementos (Ficheros en disco o
@@ -48,7 +58,10 @@ public class DirectorySignatureHelper {
 
     private static final String URI_STR = "uri"; //$NON-NLS-1$
 
+    private static final String PRECALCULATED_HASH_ALGORITHM_KEY = "precalculatedHashAlgorithm"; //$NON-NLS-1$
+
     private static final String CADES_SIGNER = "es.gob.afirma.signers.cades.AOCAdESSigner"; //$NON-NLS-1$
+    private static final String CMS_SIGNER = "es.gob.afirma.signers.cms.AOCMSSigner"; //$NON-NLS-1$
     private static final String XADES_SIGNER = "es.gob.afirma.signers.xades.AOXAdESSigner"; //$NON-NLS-1$
     private static final String XMLDSIG_SIGNER = "es.gob.afirma.signers.xmldsig.AOXMLDSigSigner"; //$NON-NLS-1$
     private static final String PDF_SIGNER = "es.gob.afirma.signers.pades.AOPDFSigner"; //$NON-NLS-1$
@@ -57,6 +70,13 @@ public class DirectorySignatureHelper {
 
     private static final String REG_FIELD_SEPARATOR = " - "; //$NON-NLS-1$
 
+    /** Tama&ntilde;o del buffer de lectura de los ficheros que no se cargan en memoria. */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /** Tama&ntilde;o de la cabecera de los ficheros que no se cargan en memoria usada
+     * para detectar su tipo de datos. */
+    private static final int MIME_HEADER_SIZE = 8 * 1024;
+
     /** Objeto para la impresi&oacute;n de los de consola. */
     private static final Logger LOGGER = Logger.getLogger("es.gob.afirma"); //$NON-NLS-1$
 
@@ -106,6 +126,32 @@ public class DirectorySignatureHelper {
     /** Ruta del fichero de log. */
     private String logPath = null;
 
+    /** N&uacute;mero de hilos de trabajo con los que se procesan los ficheros. */
+    private int workerThreads = 1;
+
+    /** M&aacute;ximo n&uacute;mero de bytes de los ficheros que se pueden tener cargados
+     * en memoria a la vez. */
+    private long maxInFlightBytes = Long.MAX_VALUE;
+
+    /** Tama&ntilde;o a partir del cual los ficheros no se cargan en memoria. */
+    private long streamingThreshold = Long.MAX_VALUE;
+
+    /** Estampador de sellos de tiempo agregados para las firmas CAdES y CMS. */
+    private MerkleTimestamper aggregatedTimestamper = null;
+
+    /** N&uacute;mero de firmas que se sellan con cada sello de tiempo agregado. */
+    private int aggregatedTimestampBatchSize = 0;
+
+    /** Tratamiento de las firmas de un lote cuando no se puede obtener su sello de tiempo agregado. */
+    private AggregatedTimestampFallback aggregatedTimestampFallback = AggregatedTimestampFallback.INDIVIDUAL_TIMESTAMP;
+
+    /** Resultado de la tarea en ejecuci&oacute;n en el hilo actual cuando los
+     * ficheros se procesan en paralelo. Mientras est&aacute; establecido, las
+     * entradas de log se acumulan en &eacute;l en lugar de escribirse directamente.
+     * Cada hilo de trabajo pertenece a una &uacute;nica operaci&oacute;n masiva, por lo
+     * que puede compartirse entre todas las instancias. */
+    private static final ThreadLocal<FileTaskResult> CURRENT_TASK_RESULT = new ThreadLocal<FileTaskResult>();
+
 
     /** Contruye un objeto para la firma masiva. Este objeto se
      * configurar&aacute; con un tipo de firma por defecto. Este tipo
@@ -407,23 +453,26 @@ public class DirectorySignatureHelper {
         }
 
         // Realizamos la operacion masiva correspondiente
-        final File[] files = this.getFiles(filenames);
-        if (MassiveType.SIGN.equals(type) || type == null) { // Asumimos que null es el por defecto: MassiveType.SIGN
-            allOK = this.massiveSignOperation(files, od, keyEntry, signConfig);
-        }
-        else if (MassiveType.COSIGN.equals(type)) {
-            allOK = this.massiveCosignOperation(files, od, originalFormat, keyEntry, signConfig);
-        }
-        else if (MassiveType.COUNTERSIGN_ALL.equals(type) || MassiveType.COUNTERSIGN_LEAFS.equals(type)) {
-            allOK = this.massiveCounterSignOperation(type, files, od, originalFormat, keyEntry, signConfig);
+        try {
+            final File[] files = this.getFiles(filenames);
+            if (MassiveType.SIGN.equals(type) || type == null) { // Asumimos que null es el por defecto: MassiveType.SIGN
+                allOK = this.massiveSignOperation(files, od, keyEntry, signConfig);
+            }
+            else if (MassiveType.COSIGN.equals(type)) {
+                allOK = this.massiveCosignOperation(files, od, originalFormat, keyEntry, signConfig);
+            }
+            else if (MassiveType.COUNTERSIGN_ALL.equals(type) || MassiveType.COUNTERSIGN_LEAFS.equals(type)) {
+                allOK = this.massiveCounterSignOperation(type, files, od, originalFormat, keyEntry, signConfig);
+            }
+            else {
+                LOGGER.severe("Operacion masiva no reconocida");  //$NON-NLS-1$
+            }
         }
-        else {
-            LOGGER.severe("Operacion masiva no reconocida");  //$NON-NLS-1$
+        finally {
+            // Cerramos el log de operacion aunque la operacion se interrumpa
+            this.closeLogRegistry();
         }
 
-        // Cerramos el log de operacion
-        this.closeLogRegistry();
-
         return allOK;
     }
 
@@ -469,7 +518,7 @@ public class DirectorySignatureHelper {
         if (!signConfig.containsKey(FORMAT_KEY)) {
             signConfig.setProperty(FORMAT_KEY, this.format);
         }
-        signConfig.setProperty("precalculatedHashAlgorithm", AOSignConstants.getDigestAlgorithmName(this.algorithm)); //$NON-NLS-1$
+        signConfig.setProperty(PRECALCULATED_HASH_ALGORITHM_KEY, AOSignConstants.getDigestAlgorithmName(this.algorithm));
 
         // Introduccion MIMEType "hash/algo", solo para XAdES y XMLDSig
         if (signer.getClass().getName().equals(XADES_SIGNER) || signer.getClass().getName().equals(XMLDSIG_SIGNER)) {
@@ -545,126 +594,285 @@ public class DirectorySignatureHelper {
                                          final File outDir,
                                          final PrivateKeyEntry keyEntry,
                                          final Properties signConfig) throws IOException {
+        return this.processFiles(files, outDir, true, new FileOperation() {
+            @Override
+            public PendingSignature execute(final File file) throws IOException {
+                return DirectorySignatureHelper.this.signFile(file, keyEntry, signConfig);
+            }
+        });
+    }
+
+    /** Firma un fichero dentro de la operaci&oacute;n de firma masiva. La firma
+     * resultante no se guarda en disco.
+     * @param file
+     *        Fichero que se desea firmar.
+     * @param keyEntry
+     *        Clave de firma.
+     * @param config
+     *        Configuraci&oacute;n de firma com&uacute;n a todos los ficheros.
+     * @return Firma pendiente de guardar o {@code null} si no se pudo firmar el fichero.
+     * @throws IOException Cuando ocurre alg&uacute;n error durante el an&aacute;lisis de la firma. */
+    PendingSignature signFile(final File file,
+                              final PrivateKeyEntry keyEntry,
+                              final Properties config) throws IOException {
 
-        boolean allOK = true;
-        InputStream fis = null;
-        byte[] dataToSign = null;
         final AOSigner signer = this.defaultSigner;
-        for (final File file : files) {
 
-            // Comprobamos que el fichero actual se pueda firmar con la
-            // configuracion de firma actual
-            try {
-                if (!this.isValidDataFile(signer, file)) {
-                	LOGGER.warning("El fichero '" + file.getPath() + //$NON-NLS-1$
-                		"' no puede ser firmado con la configuracion de firma actual"); //$NON-NLS-1$
-                    this.addLogRegistry(Level.WARNING, MassiveSignMessages.getString("DirectorySignatureHelper.4") + REG_FIELD_SEPARATOR + file.getPath()); //$NON-NLS-1$
-                    DirectorySignatureHelper.closeStream(fis);
-                    allOK = false;
-                    continue;
-                }
-            }
-            catch (final Exception e) {
-                LOGGER.warning("No se pudo leer fichero '" + file.getPath() + "': " + e);  //$NON-NLS-1$//$NON-NLS-2$
-                this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.5") + REG_FIELD_SEPARATOR + file.getPath()); //$NON-NLS-1$
-                allOK = false;
-                continue;
-            }
+        // Configuramos y ejecutamos la operacion
+        final Properties signConfig = (Properties) config.clone();
+        signConfig.setProperty(URI_STR, file.toURI().toASCIIString());
+
+        // Los ficheros grandes no se cargan en memoria, se firma su huella digital
+        if (!this.isLoadable(file)) {
+        	if (!this.isDigestSignable(signer, signConfig)) {
+        		LOGGER.severe("El fichero '" + file.getPath() + "' supera el tamano maximo para su carga en memoria y el formato de firma no permite firmar su huella digital"); //$NON-NLS-1$ //$NON-NLS-2$
+        		this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.8") + REG_FIELD_SEPARATOR + file.getPath()); //$NON-NLS-1$
+        		return null;
+        	}
+        	return this.signFileDigest(file, signer, keyEntry, signConfig);
+        }
 
-            // Configuramos y ejecutamos la operacion
-            signConfig.setProperty(URI_STR, file.toURI().toASCIIString());
+        InputStream fis = null;
+        final byte[] dataToSign;
+        try {
+            fis = getFileInputStream(file);
+            dataToSign = AOUtil.getDataFromInputStream(fis);
+        }
+        catch (final Exception e) {
+            LOGGER.warning("No se pudo leer fichero '" + file.getPath() + "': " + e); //$NON-NLS-1$ //$NON-NLS-2$
+            this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.5") + REG_FIELD_SEPARATOR + file.getPath()); //$NON-NLS-1$
+            return null;
+        }
+        catch (final OutOfMemoryError e) {
+        	LOGGER.warning("El fichero '" + file.getPath() + "' es demasiado grande: " + e); //$NON-NLS-1$ //$NON-NLS-2$
+        	this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.5") + REG_FIELD_SEPARATOR + file.getPath()); //$NON-NLS-1$
+        	return null;
+        }
+        finally {
+            DirectorySignatureHelper.closeStream(fis);
+        }
 
-            try {
-                fis = getFileInputStream(file);
-                dataToSign = AOUtil.getDataFromInputStream(fis);
-            }
-            catch (final Exception e) {
-                LOGGER.warning("No se pudo leer fichero '" + file.getPath() + "': " + e); //$NON-NLS-1$ //$NON-NLS-2$
-                this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.5") + REG_FIELD_SEPARATOR + file.getPath()); //$NON-NLS-1$
-                dataToSign = null;
-                allOK = false;
-                continue;
-            }
-            finally {
-                DirectorySignatureHelper.closeStream(fis);
+        // Comprobamos que el fichero actual se pueda firmar con la
+        // configuracion de firma actual
+        try {
+            if (!signer.isValidDataFile(dataToSign)) {
+            	LOGGER.warning("El fichero '" + file.getPath() + //$NON-NLS-1$
+            		"' no puede ser firmado con la configuracion de firma actual"); //$NON-NLS-1$
+                this.addLogRegistry(Level.WARNING, MassiveSignMessages.getString("DirectorySignatureHelper.4") + REG_FIELD_SEPARATOR + file.getPath()); //$NON-NLS-1$
+                return null;
             }
+        }
+        catch (final Exception e) {
+            LOGGER.warning("No se pudo leer fichero '" + file.getPath() + "': " + e);  //$NON-NLS-1$//$NON-NLS-2$
+            this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.5") + REG_FIELD_SEPARATOR + file.getPath()); //$NON-NLS-1$
+            return null;
+        }
+
+        // Deteccion del MIMEType y Oid de los datos, solo para CAdES, XAdES y XMLDSig
+        final String signerClassName = signer.getClass().getName();
+        if (CADES_SIGNER.equals(signerClassName) ||
+        		XADES_SIGNER.equals(signerClassName) ||
+        		XMLDSIG_SIGNER.equals(signerClassName)) {
+        	setMimeTypeConfig(dataToSign, signConfig);
+        }
+
+        final byte[] signData = this.signData(signer, dataToSign, file, keyEntry, signConfig);
+        if (signData == null) {
+        	return null;
+        }
+
+    	// Para los formatos PDF, ODF y OOXML, en los que la firma de un documento firmado es
+    	// una cofirma, se agrega la particula "cosign" en lugar de "signed" si los datos estaban
+        // firmados
+        String textAux = ".signed"; //$NON-NLS-1$
+    	if ((PDF_SIGNER.equals(signerClassName) ||
+    			ODF_SIGNER.equals(signerClassName) ||
+    			OOXML_SIGNER.equals(signerClassName)) &&
+    			signer.isSign(dataToSign)) {
+    		textAux = ".cosign"; //$NON-NLS-1$
+    	}
+
+        return new PendingSignature(
+    		file,
+    		signData,
+    		signer,
+    		textAux,
+    		"El fichero '" + file.getPath() + "' se ha firmado correctamente", //$NON-NLS-1$ //$NON-NLS-2$
+    		MassiveSignMessages.getString("DirectorySignatureHelper.3") + REG_FIELD_SEPARATOR + file.getPath() //$NON-NLS-1$
+		);
+    }
 
-            // Deteccion del MIMEType y Oid de los datos, solo para CAdES, XAdES y XMLDSig
-            final String signerClassName = signer.getClass().getName();
-            if (CADES_SIGNER.equals(signerClassName) ||
-            		XADES_SIGNER.equals(signerClassName) ||
-            		XMLDSIG_SIGNER.equals(signerClassName)) {
-                final MimeHelper mimeHelper = new MimeHelper(dataToSign);
-                final String mimeType = mimeHelper.getMimeType();
-                if (mimeType != null) {
-                	signConfig.setProperty("mimeType", mimeType); //$NON-NLS-1$
-                	final String dataOid = MimeHelper.transformMimeTypeToOid(mimeType);
-                	if (dataOid != null) {
-                		signConfig.setProperty("contentTypeOid", dataOid); //$NON-NLS-1$
-                	}
+    /** Firma la huella digital de un fichero, calculada a medida que se lee de disco,
+     * sin cargar su contenido completo en memoria. Solo es aplicable a las firmas
+     * CAdES y CMS expl&iacute;citas.
+     * @param file
+     *        Fichero que se desea firmar.
+     * @param signer
+     *        Manejador de firma.
+     * @param keyEntry
+     *        Clave de firma.
+     * @param signConfig
+     *        Configuraci&oacute;n de firma del fichero.
+     * @return Firma pendiente de guardar o {@code null} si no se pudo firmar el fichero.
+     * @throws IOException Cuando no se puede cargar la tabla de correspondencias entre MIMEType y OID. */
+    private PendingSignature signFileDigest(final File file,
+                                            final AOSigner signer,
+                                            final PrivateKeyEntry keyEntry,
+                                            final Properties signConfig) throws IOException {
+
+    	final String digestAlgorithm = AOSignConstants.getDigestAlgorithmName(this.algorithm);
+        final byte[] header = new byte[MIME_HEADER_SIZE];
+        int headerLength = 0;
+        final byte[] digest;
+        InputStream fis = null;
+        try {
+            final MessageDigest md = MessageDigest.getInstance(digestAlgorithm);
+            fis = getFileInputStream(file);
+            final byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int n;
+            while ((n = fis.read(buffer)) > 0) {
+                md.update(buffer, 0, n);
+                if (headerLength < header.length) {
+                	final int copy = Math.min(n, header.length - headerLength);
+                	System.arraycopy(buffer, 0, header, headerLength, copy);
+                	headerLength += copy;
                 }
             }
+            digest = md.digest();
+        }
+        catch (final Exception e) {
+            LOGGER.warning("No se pudo leer fichero '" + file.getPath() + "': " + e); //$NON-NLS-1$ //$NON-NLS-2$
+            this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.5") + REG_FIELD_SEPARATOR + file.getPath()); //$NON-NLS-1$
+            return null;
+        }
+        finally {
+            DirectorySignatureHelper.closeStream(fis);
+        }
 
-            byte[] signData = null;
-            try {
-                signData = signer.sign(
-            		dataToSign,
-            		this.algorithm,
-            		keyEntry.getPrivateKey(),
-            		keyEntry.getCertificateChain(),
-            		signConfig
-        		);
-            }
-            catch(final UnsupportedOperationException e) {
-                LOGGER.severe("No ha sido posible firmar el fichero '" + file + "': " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
-                this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.7") + REG_FIELD_SEPARATOR + file + REG_FIELD_SEPARATOR + e.getMessage()); //$NON-NLS-1$
-                DirectorySignatureHelper.closeStream(fis);
-                allOK = false;
-                continue;
-            }
-            catch (final Exception e) {
-            	// Esta excepcion se comprueba por nombre para no acoplar los proyectos
-            	if ("es.gob.afirma.signers.xades.EFacturaAlreadySignedException".equals(e.getClass().getName())) { //$NON-NLS-1$
-                	LOGGER.warning("La factura ya estaba firmada y no admite firmas adicionales '" + file + "': " + e);   //$NON-NLS-1$//$NON-NLS-2$
-                	this.addLogRegistry(Level.WARNING, MassiveSignMessages.getString("DirectorySignatureHelper.27") + REG_FIELD_SEPARATOR + file); //$NON-NLS-1$
-                	DirectorySignatureHelper.closeStream(fis);
-                    allOK = false;
-                    continue;
-            	}
-                LOGGER.severe("No ha sido posible firmar el fichero '" + file + "': " + e);   //$NON-NLS-1$//$NON-NLS-2$
-                this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.7") + REG_FIELD_SEPARATOR + file); //$NON-NLS-1$
-                DirectorySignatureHelper.closeStream(fis);
-                allOK = false;
-                continue;
-            }
-			catch (final OutOfMemoryError e) {
-				LOGGER.severe("Error de falta de memoria durante la firma: " + e); //$NON-NLS-1$
-				this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.8")); //$NON-NLS-1$
-                DirectorySignatureHelper.closeStream(fis);
-                allOK = false;
-                continue;
-			}
-
-        	// Para los formatos PDF, ODF y OOXML, en los que la firma de un documento firmado es
-        	// una cofirma, se agrega la particula "cosign" en lugar de "signed" si los datos estaban
-            // firmados
-            String textAux = ".signed"; //$NON-NLS-1$
-        	if ((PDF_SIGNER.equals(signerClassName) ||
-        			ODF_SIGNER.equals(signerClassName) ||
-        			OOXML_SIGNER.equals(signerClassName)) &&
-        			signer.isSign(dataToSign)) {
-        		textAux = ".cosign"; //$NON-NLS-1$
+        // El tipo de datos se detecta a partir de la cabecera del fichero
+        if (headerLength > 0) {
+        	final byte[] headerData = new byte[headerLength];
+        	System.arraycopy(header, 0, headerData, 0, headerLength);
+        	setMimeTypeConfig(headerData, signConfig);
+        }
+        signConfig.setProperty(PRECALCULATED_HASH_ALGORITHM_KEY, digestAlgorithm);
+
+        final byte[] signData = this.signData(signer, digest, file, keyEntry, signConfig);
+        if (signData == null) {
+        	return null;
+        }
+        return new PendingSignature(
+    		file,
+    		signData,
+    		signer,
+    		".signed", //$NON-NLS-1$
+    		"El fichero '" + file.getPath() + "' se ha firmado correctamente", //$NON-NLS-1$ //$NON-NLS-2$
+    		MassiveSignMessages.getString("DirectorySignatureHelper.3") + REG_FIELD_SEPARATOR + file.getPath() //$NON-NLS-1$
+		);
+    }
+
+    /** Indica si con un manejador y configuraci&oacute;n de firma es posible firmar
+     * la huella digital de los datos en lugar de los propios datos obteniendo una
+     * firma equivalente. Esto ocurre en las firmas CAdES y CMS expl&iacute;citas.
+     * @param signer
+     *        Manejador de firma.
+     * @param signConfig
+     *        Configuraci&oacute;n de firma.
+     * @return {@code true} si puede firmarse la huella digital de los datos,
+     *         {@code false} en caso contrario. */
+    private static boolean isDigestSignable(final AOSigner signer, final Properties signConfig) {
+    	final String signerClassName = signer.getClass().getName();
+    	return (CADES_SIGNER.equals(signerClassName) || CMS_SIGNER.equals(signerClassName)) &&
+    			AOSignConstants.SIGN_MODE_EXPLICIT.equals(signConfig.getProperty(MODE_KEY, AOSignConstants.DEFAULT_SIGN_MODE));
+    }
+
+    /** Indica si un fichero puede cargarse completo en memoria, es decir, si no supera
+     * el tama&ntilde;o a partir del cual los ficheros no se cargan en memoria ni el
+     * m&aacute;ximo de bytes en proceso.
+     * @param file
+     *        Fichero a comprobar.
+     * @return {@code true} si el fichero puede cargarse en memoria, {@code false} en
+     *         caso contrario. */
+    private boolean isLoadable(final File file) {
+    	final long length = file.length();
+    	return length <= this.streamingThreshold && length <= this.maxInFlightBytes;
+    }
+
+    /** Registra que no se ha operado sobre un fichero porque no puede cargarse en memoria
+     * y la operaci&oacute;n no puede realizarse sin cargarlo.
+     * @param file
+     *        Fichero que no se ha procesado. */
+    private void logTooLarge(final File file) {
+    	LOGGER.severe("El fichero '" + file.getPath() + "' supera el tamano maximo para su carga en memoria"); //$NON-NLS-1$ //$NON-NLS-2$
+    	this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.8") + REG_FIELD_SEPARATOR + file.getPath()); //$NON-NLS-1$
+    }
+
+    /** Establece en la configuraci&oacute;n de firma el MIMEType y el OID del tipo
+     * de los datos.
+     * @param data
+     *        Datos (o cabecera de los datos) de los que detectar el tipo.
+     * @param signConfig
+     *        Configuraci&oacute;n de firma.
+     * @throws IOException Cuando no se puede cargar la tabla de correspondencias entre MIMEType y OID. */
+    private static void setMimeTypeConfig(final byte[] data, final Properties signConfig) throws IOException {
+        final MimeHelper mimeHelper = new MimeHelper(data);
+        final String mimeType = mimeHelper.getMimeType();
+        if (mimeType != null) {
+        	signConfig.setProperty("mimeType", mimeType); //$NON-NLS-1$
+        	final String dataOid = MimeHelper.transformMimeTypeToOid(mimeType);
+        	if (dataOid != null) {
+        		signConfig.setProperty("contentTypeOid", dataOid); //$NON-NLS-1$
         	}
+        }
+    }
 
-            // Guardamos la firma en disco
-            if (!this.saveSignToDirectory(file.getPath(), signData, outDir, signer, textAux)) {
-                allOK = false;
-                continue;
-            }
-            LOGGER.info("El fichero '" + file.getPath() + "' se ha firmado correctamente");  //$NON-NLS-1$//$NON-NLS-2$
-            this.addLogRegistry(Level.INFO, MassiveSignMessages.getString("DirectorySignatureHelper.3") + REG_FIELD_SEPARATOR + file.getPath()); //$NON-NLS-1$
+    /** Firma unos datos registrando en el log los errores que se produzcan.
+     * @param signer
+     *        Manejador de firma.
+     * @param data
+     *        Datos a firmar.
+     * @param file
+     *        Fichero del que se obtuvieron los datos.
+     * @param keyEntry
+     *        Clave de firma.
+     * @param signConfig
+     *        Configuraci&oacute;n de firma.
+     * @return Firma generada o {@code null} si no se pudo firmar. */
+    private byte[] signData(final AOSigner signer,
+                            final byte[] data,
+                            final File file,
+                            final PrivateKeyEntry keyEntry,
+                            final Properties signConfig) {
+        try {
+            return signer.sign(
+        		data,
+        		this.algorithm,
+        		keyEntry.getPrivateKey(),
+        		keyEntry.getCertificateChain(),
+        		signConfig
+    		);
         }
-        return allOK;
+        catch(final UnsupportedOperationException e) {
+            LOGGER.severe("No ha sido posible firmar el fichero '" + file + "': " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+            this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.7") + REG_FIELD_SEPARATOR + file + REG_FIELD_SEPARATOR + e.getMessage()); //$NON-NLS-1$
+            return null;
+        }
+        catch (final Exception e) {
+        	// Esta excepcion se comprueba por nombre para no acoplar los proyectos
+        	if ("es.gob.afirma.signers.xades.EFacturaAlreadySignedException".equals(e.getClass().getName())) { //$NON-NLS-1$
+            	LOGGER.warning("La factura ya estaba firmada y no admite firmas adicionales '" + file + "': " + e);   //$NON-NLS-1$//$NON-NLS-2$
+            	this.addLogRegistry(Level.WARNING, MassiveSignMessages.getString("DirectorySignatureHelper.27") + REG_FIELD_SEPARATOR + file); //$NON-NLS-1$
+                return null;
+        	}
+            LOGGER.severe("No ha sido posible firmar el fichero '" + file + "': " + e);   //$NON-NLS-1$//$NON-NLS-2$
+            this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.7") + REG_FIELD_SEPARATOR + file); //$NON-NLS-1$
+            return null;
+        }
+		catch (final OutOfMemoryError e) {
+			LOGGER.severe("Error de falta de memoria durante la firma: " + e); //$NON-NLS-1$
+			this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.8")); //$NON-NLS-1$
+            return null;
+		}
     }
 
     /** Realiza la operaci&oacute;n de cofirma masiva. La cofirma se encarga de
@@ -691,11 +899,33 @@ public class DirectorySignatureHelper {
                                            final boolean originalFormat,
                                            final PrivateKeyEntry keyEntry,
                                            final Properties signConfig) throws IOException {
+        return this.processFiles(files, outDir, false, new FileOperation() {
+            @Override
+            public PendingSignature execute(final File file) throws IOException {
+                return DirectorySignatureHelper.this.cosignFile(file, originalFormat, keyEntry, signConfig);
+            }
+        });
+    }
 
-        boolean allOK = true;
+    /** Cofirma (o firma, si no es un fichero de firma) un fichero dentro de la
+     * operaci&oacute;n de cofirma masiva. La firma resultante no se guarda en disco.
+     * @param file
+     *        Fichero de firma o de datos.
+     * @param originalFormat
+     *        Respectar formato de firma original
+     * @param keyEntry
+     *        Clave de firma.
+     * @param config
+     *        Configuraci&oacute;n de firma com&uacute;n a todos los ficheros.
+     * @return Firma pendiente de guardar o {@code null} si no se pudo operar sobre el fichero.
+     * @throws IOException Cuando ocurre alg&uacute;n error durante la lectura de
+     * 		   los datos. */
+    PendingSignature cosignFile(final File file,
+                                final boolean originalFormat,
+                                final PrivateKeyEntry keyEntry,
+                                final Properties config) throws IOException {
 
-        // Leemos cada uno de los ficheros del directorio y procedemos segun la
-        // siguiente especificacion:
+        // Leemos el fichero y procedemos segun la siguiente especificacion:
         // - Comprobamos que el fichero sea una firma con el formato indicado
         // - SI: Cofirmamos
         // - NO: Comprobamos si debemos respetar el formato de firma original
@@ -707,69 +937,75 @@ public class DirectorySignatureHelper {
         // 					 - SI: Cofirmamos en ese formato
         // 					 - NO: Es un fichero de datos (o firma no soportada), asi que se firmara en el formato indicado
         // 		 - NO: Lo consideramos un fichero de datos, as&iacute; que se firmara en el formato indicado
-        String textAux;
-        byte[] signedData;
-        byte[] originalData;
-        AOSigner signer;
-        for (final File file : files) {
-            try {
-                originalData = AOUtil.getDataFromInputStream(getFileInputStream(file));
-            }
-            catch (final Exception e) {
-                allOK = false;
-                continue;
-            }
-
-            signConfig.setProperty(URI_STR, file.toURI().toASCIIString());
+        if (!this.isLoadable(file)) {
+        	this.logTooLarge(file);
+        	return null;
+        }
+        InputStream fis = null;
+        final byte[] originalData;
+        try {
+        	fis = getFileInputStream(file);
+            originalData = AOUtil.getDataFromInputStream(fis);
+        }
+        catch (final Exception e) {
+            return null;
+        }
+        finally {
+        	DirectorySignatureHelper.closeStream(fis);
+        }
 
-            // Indica si se debe realizar una cofirma o una firma de los datos
-            boolean cosignOperation;
+        final Properties signConfig = (Properties) config.clone();
+        signConfig.setProperty(URI_STR, file.toURI().toASCIIString());
 
-            if (this.defaultSigner.isSign(originalData)) {
-                cosignOperation = true;
-                signer = this.defaultSigner;
-            } else if (originalFormat) {
-            	signer = getSpecificSigner(originalData);
-            	if (signer != null) {
-            		cosignOperation = signer.isSign(originalData);
-            	} else {
-            		signer = AOSignerFactory.getSigner(originalData);
-            		if (signer != null) {
-            			cosignOperation = true;
-            		} else {
-            			cosignOperation = false;
-            			signer = this.defaultSigner;
-            		}
-            	}
-            } else {
-    			cosignOperation = false;
-                signer = this.defaultSigner;
-            }
+        // Indica si se debe realizar una cofirma o una firma de los datos
+        boolean cosignOperation;
+        AOSigner signer;
 
-            // Operamos segun los condicionales definidos
-            if (cosignOperation) {
-            	textAux = "cosign"; //$NON-NLS-1$
-            	signedData = this.cosign(signer, originalData, this.algorithm, keyEntry, signConfig);
-            } else {
-            	textAux = "sign"; //$NON-NLS-1$
-            	signedData = this.sign(signer, originalData, this.algorithm, keyEntry, signConfig);
-            }
+        if (this.defaultSigner.isSign(originalData)) {
+            cosignOperation = true;
+            signer = this.defaultSigner;
+        } else if (originalFormat) {
+        	signer = getSpecificSigner(originalData);
+        	if (signer != null) {
+        		cosignOperation = signer.isSign(originalData);
+        	} else {
+        		signer = AOSignerFactory.getSigner(originalData);
+        		if (signer != null) {
+        			cosignOperation = true;
+        		} else {
+        			cosignOperation = false;
+        			signer = this.defaultSigner;
+        		}
+        	}
+        } else {
+			cosignOperation = false;
+            signer = this.defaultSigner;
+        }
 
-            // Comprobamos si la operacion ha finalizado correctamente
-            if (signedData == null) {
-                allOK = false;
-                continue;
-            }
+        // Operamos segun los condicionales definidos
+        final String textAux;
+        final byte[] signedData;
+        if (cosignOperation) {
+        	textAux = "cosign"; //$NON-NLS-1$
+        	signedData = this.cosign(signer, originalData, this.algorithm, keyEntry, signConfig);
+        } else {
+        	textAux = "sign"; //$NON-NLS-1$
+        	signedData = this.sign(signer, originalData, this.algorithm, keyEntry, signConfig);
+        }
 
-            // Guardamos los datos de la firma
-            if (!this.saveSignToDirectory(file.getPath(), signedData, outDir, signer, "." + textAux)) { //$NON-NLS-1$
-                allOK = false;
-                continue;
-            }
-            LOGGER.info("Se ha operado (" + textAux + ") correctamente sobre el fichero '" + file.getPath() + "'");   //$NON-NLS-1$//$NON-NLS-2$//$NON-NLS-3$
-            this.addLogRegistry(Level.INFO, MassiveSignMessages.getString("DirectorySignatureHelper.10") + REG_FIELD_SEPARATOR + file.getPath() + REG_FIELD_SEPARATOR + textAux); //$NON-NLS-1$
+        // Comprobamos si la operacion ha finalizado correctamente
+        if (signedData == null) {
+            return null;
         }
-        return allOK;
+
+        return new PendingSignature(
+    		file,
+    		signedData,
+    		signer,
+    		"." + textAux, //$NON-NLS-1$
+    		"Se ha operado (" + textAux + ") correctamente sobre el fichero '" + file.getPath() + "'", //$NON-NLS-1$//$NON-NLS-2$//$NON-NLS-3$
+    		MassiveSignMessages.getString("DirectorySignatureHelper.10") + REG_FIELD_SEPARATOR + file.getPath() + REG_FIELD_SEPARATOR + textAux //$NON-NLS-1$
+		);
     }
 
     /** Cofirma datos con el manejador y la configuracion indicados.
@@ -838,15 +1074,7 @@ public class DirectorySignatureHelper {
         if (CADES_SIGNER.equals(signerClassName) ||
         		XADES_SIGNER.equals(signerClassName) ||
         		XMLDSIG_SIGNER.equals(signerClassName)) {
-            final MimeHelper mimeHelper = new MimeHelper(data);
-            final String mimeType = mimeHelper.getMimeType();
-            if (mimeType != null) {
-            	signConfig.setProperty("mimeType", mimeType); //$NON-NLS-1$
-            	final String dataOid = MimeHelper.transformMimeTypeToOid(mimeType);
-            	if (dataOid != null) {
-            		signConfig.setProperty("contentTypeOid", dataOid); //$NON-NLS-1$
-            	}
-            }
+        	setMimeTypeConfig(data, signConfig);
         }
 
         // Configuramos y ejecutamos la operacion
@@ -891,85 +1119,433 @@ public class DirectorySignatureHelper {
                                                 final boolean originalFormat,
                                                 final PrivateKeyEntry keyEntry,
                                                 final Properties signConfig) throws IOException {
-        boolean allOK = true;
-        InputStream fis = null;
         final CounterSignTarget target = type == MassiveType.COUNTERSIGN_ALL ? CounterSignTarget.TREE : CounterSignTarget.LEAFS;
+        return this.processFiles(files, outDir, false, new FileOperation() {
+            @Override
+            public PendingSignature execute(final File file) throws IOException {
+                return DirectorySignatureHelper.this.counterSignFile(file, target, originalFormat, keyEntry, signConfig);
+            }
+        });
+    }
+
+    /** Contrafirma un fichero de firma dentro de la operaci&oacute;n de contrafirma
+     * masiva. La firma resultante no se guarda en disco.
+     * @param file
+     *        Fichero a contrafirmar.
+     * @param target
+     *        Nodos que se desean contrafirmar.
+     * @param originalFormat
+     *        Respetar formato de firma original.
+     * @param keyEntry
+     *        Clave de firma.
+     * @param signConfig
+     *        Configuraci&oacute;n de firma.
+     * @return Firma pendiente de guardar o {@code null} si no se pudo contrafirmar el fichero.
+     * @throws IOException Cuando ocurre alg&uacute;n error durante la lectura de
+     * 		   los datos. */
+    PendingSignature counterSignFile(final File file,
+                                     final CounterSignTarget target,
+                                     final boolean originalFormat,
+                                     final PrivateKeyEntry keyEntry,
+                                     final Properties signConfig) throws IOException {
+
+        // La contrafirma necesita la firma completa en memoria
+        if (!this.isLoadable(file)) {
+        	this.logTooLarge(file);
+        	return null;
+        }
+
+        // Si se nos pide que respetemos el formato original el signer
+        // puede cambiar de un fichero a otro. Si no es necesario respetar
+        // el formato, el signer siempre sera el por defecto establecido.
         AOSigner signer = this.defaultSigner;
-        for (final File file : files) {
-            if (originalFormat) {
-                try {
-                    signer = DirectorySignatureHelper.getAppropiatedSigner(file);
-                }
-                catch (final Exception e) {
-                    this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.15") + REG_FIELD_SEPARATOR + file + REG_FIELD_SEPARATOR + e.getMessage()); //$NON-NLS-1$
+        if (originalFormat) {
+            try {
+                signer = DirectorySignatureHelper.getAppropiatedSigner(file);
+            }
+            catch (final Exception e) {
+                this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.15") + REG_FIELD_SEPARATOR + file + REG_FIELD_SEPARATOR + e.getMessage()); //$NON-NLS-1$
+                return null;
+            }
+        }
+
+        // Solo podemos contrafirmar un fichero de firma en el mismo formato
+        // en el que este
+        if (!this.isSign(signer, file)) {
+            LOGGER.severe("El fichero '" + file //$NON-NLS-1$
+                                                     + "' no es un fichero de firma en formato '" //$NON-NLS-1$
+                                                     + signConfig.getProperty(FORMAT_KEY)
+                                                     + "'"); //$NON-NLS-1$
+            this.addLogRegistry(Level.SEVERE,
+                MassiveSignMessages.getString("DirectorySignatureHelper.16") + REG_FIELD_SEPARATOR + file + REG_FIELD_SEPARATOR + signConfig.getProperty(FORMAT_KEY) //$NON-NLS-1$
+            );
+            return null;
+        }
+
+        InputStream fis = null;
+        final byte[] signData;
+        try {
+            if ((fis = this.getFileInputStream(file)) == null) {
+                return null;
+            }
+            signData = signer.countersign(
+        		AOUtil.getDataFromInputStream(fis),
+        		this.algorithm,
+        		target,
+        		null,
+        		keyEntry.getPrivateKey(),
+        		keyEntry.getCertificateChain(),
+        		signConfig
+    		);
+        }
+        catch (final Exception e) {
+            LOGGER.severe("No ha sido posible contrafirmar el fichero '" + file.getPath() + "': " + e);  //$NON-NLS-1$//$NON-NLS-2$
+            this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.15") + REG_FIELD_SEPARATOR + file.getPath()); //$NON-NLS-1$
+            return null;
+        }
+		catch (final OutOfMemoryError e) {
+			LOGGER.severe("Error de falta de memoria durante la firma: " + e); //$NON-NLS-1$
+			this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.8")); //$NON-NLS-1$
+            return null;
+		}
+        finally {
+            DirectorySignatureHelper.closeStream(fis);
+        }
+
+        return new PendingSignature(
+    		file,
+    		signData,
+    		signer,
+    		".countersign", //$NON-NLS-1$
+    		"El fichero '" + file.getPath() + "' se ha contrafirmado correctamente", //$NON-NLS-1$ //$NON-NLS-2$
+    		MassiveSignMessages.getString("DirectorySignatureHelper.20") + REG_FIELD_SEPARATOR + file.getPath() //$NON-NLS-1$
+		);
+    }
+
+    /** Ejecuta una operaci&oacute;n sobre cada uno de los ficheros indicados y
+     * guarda en disco las firmas resultantes. Si se ha configurado m&aacute;s
+     * de un hilo de trabajo, los ficheros se procesan en paralelo, pero las firmas
+     * se guardan y el log se escribe en el mismo orden en el que se proporcionaron
+     * los ficheros, de forma que el resultado es id&eacute;ntico al de la
+     * ejecuci&oacute;n secuencial.
+     * @param files
+     *        Ficheros sobre los que operar.
+     * @param outDir
+     *        Directorio de salida.
+     * @param streamLargeFiles
+     *        Indica si la operaci&oacute;n lee por bloques los ficheros que no pueden
+     *        cargarse en memoria en lugar de descartarlos.
+     * @param operation
+     *        Operaci&oacute;n a realizar sobre cada fichero.
+     * @return Devuelve <code>true</code> si toda la operaci&oacute;n
+     *         finaliz&oacute; correctamente, <code>false</code> en caso
+     *         contrario.
+     * @throws IOException Cuando ocurre alg&uacute;n error durante la lectura de
+     * 		   los datos. */
+    private boolean processFiles(final File[] files,
+                                 final File outDir,
+                                 final boolean streamLargeFiles,
+                                 final FileOperation operation) throws IOException {
+
+        boolean allOK = true;
+
+        // Firmas pendientes de recibir el sello de tiempo agregado
+        final List<PendingSignature> timestampBatch = new ArrayList<PendingSignature>();
+
+        if (this.workerThreads <= 1 || files.length <= 1) {
+            for (final File file : files) {
+                final PendingSignature pending = operation.execute(file);
+                if (pending == null || !this.commitOrBatchSignature(pending, timestampBatch, outDir)) {
                     allOK = false;
-                    continue;
                 }
             }
+            return this.flushTimestampBatch(timestampBatch, outDir) && allOK;
+        }
 
-            // Solo podemos contrafirmar un fichero de firma en el mismo formato
-            // en el que este
-            byte[] signData;
-            if (this.isSign(signer, file)) {
-                try {
-
-                    // Si se nos pide que respetemos el formato original el
-                    // signer puede cambiar de una iteracion
-                    // a otra. Si no es necesario respetar el formato, el signer
-                    // siempre sera el por defecto establecido.
-                    if ((fis = this.getFileInputStream(file)) == null) {
-                        allOK = false;
-                        continue;
+        // Limitamos el numero de ficheros y de bytes procesados por adelantado para
+        // que los datos y las firmas pendientes de guardar no se acumulen en memoria
+        final int maxPending = this.workerThreads * 2;
+        final ExecutorService executor = Executors.newFixedThreadPool(this.workerThreads);
+        final LinkedList<Future<FileTaskResult>> pendingTasks = new LinkedList<Future<FileTaskResult>>();
+        final LinkedList<Long> pendingSizes = new LinkedList<Long>();
+        long inFlightBytes = 0;
+        try {
+            int next = 0;
+            while (next < files.length || !pendingTasks.isEmpty()) {
+                while (next < files.length && pendingTasks.size() < maxPending) {
+                    final long size = this.getInMemorySize(files[next], streamLargeFiles);
+                    // Siempre se admite un fichero en proceso, aunque su buffer de lectura supere el limite
+                    if (!pendingTasks.isEmpty() && inFlightBytes + size > this.maxInFlightBytes) {
+                        break;
                     }
-                    signData = signer.countersign(
-                		AOUtil.getDataFromInputStream(fis),
-                		this.algorithm,
-                		target,
-                		null,
-                		keyEntry.getPrivateKey(),
-                		keyEntry.getCertificateChain(),
-                		signConfig
-            		);
+                    pendingTasks.add(executor.submit(new FileTask(operation, files[next++])));
+                    pendingSizes.add(Long.valueOf(size));
+                    inFlightBytes += size;
                 }
-                catch (final Exception e) {
-                    LOGGER.severe("No ha sido posible contrafirmar el fichero '" + file.getPath() + "': " + e);  //$NON-NLS-1$//$NON-NLS-2$
-                    this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.15") + REG_FIELD_SEPARATOR + file.getPath()); //$NON-NLS-1$
-                    allOK = false;
-                    continue;
+                final FileTaskResult result = getTaskResult(pendingTasks.removeFirst());
+                inFlightBytes -= pendingSizes.removeFirst().longValue();
+                for (int i = 0; i < result.logLevels.size(); i++) {
+                    this.addLogRegistry(result.logLevels.get(i), result.logRegistries.get(i));
                 }
-    			catch (final OutOfMemoryError e) {
-    				LOGGER.severe("Error de falta de memoria durante la firma: " + e); //$NON-NLS-1$
-    				this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.8")); //$NON-NLS-1$
+                if (result.pending == null || !this.commitOrBatchSignature(result.pending, timestampBatch, outDir)) {
                     allOK = false;
-                    continue;
-    			}
-                finally {
-                    DirectorySignatureHelper.closeStream(fis);
                 }
             }
-            else {
-                LOGGER.severe("El fichero '" + file //$NON-NLS-1$
-                                                         + "' no es un fichero de firma en formato '" //$NON-NLS-1$
-                                                         + signConfig.getProperty(FORMAT_KEY)
-                                                         + "'"); //$NON-NLS-1$
-                this.addLogRegistry(Level.SEVERE,
-                    MassiveSignMessages.getString("DirectorySignatureHelper.16") + REG_FIELD_SEPARATOR + file + REG_FIELD_SEPARATOR + signConfig.getProperty(FORMAT_KEY) //$NON-NLS-1$
-                );
-                allOK = false;
-                continue;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return this.flushTimestampBatch(timestampBatch, outDir) && allOK;
+    }
+
+    /** Obtiene la memoria que ocupar&aacute;n los datos de un fichero mientras se opera
+     * sobre &eacute;l.
+     * @param file
+     *        Fichero sobre el que operar.
+     * @param streamLargeFiles
+     *        Indica si los ficheros que no pueden cargarse en memoria se leen por bloques.
+     * @return Tama&ntilde;o del fichero si se carga en memoria, el del buffer de lectura
+     *         si se lee por bloques o cero si se descarta sin leerlo. */
+    private long getInMemorySize(final File file, final boolean streamLargeFiles) {
+        if (this.isLoadable(file)) {
+            return file.length();
+        }
+        return streamLargeFiles ? STREAM_BUFFER_SIZE : 0;
+    }
+
+    /** Espera a que finalice la tarea de firma de un fichero y obtiene su resultado.
+     * @param task
+     *        Tarea de firma.
+     * @return Resultado de la tarea.
+     * @throws IOException Cuando la tarea finaliz&oacute; con un error de lectura de
+     *         los datos o se interrumpi&oacute; la espera. */
+    private static FileTaskResult getTaskResult(final Future<FileTaskResult> task) throws IOException {
+        try {
+            return task.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Se interrumpio la operacion de firma masiva"); //$NON-NLS-1$
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
             }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Error durante la operacion de firma masiva: " + cause, cause); //$NON-NLS-1$
+        }
+    }
 
-            // Guardamos la firma en disco
-            if (!this.saveSignToDirectory(file.getPath(), signData, outDir, signer, ".countersign")) { //$NON-NLS-1$
-                allOK = false;
-                continue;
+    /** Guarda en disco una firma generada y registra el resultado de la operaci&oacute;n.
+     * @param pending
+     *        Firma pendiente de guardar.
+     * @param outDir
+     *        Directorio de salida.
+     * @return Devuelve <code>true</code> si la firma se guard&oacute; correctamente,
+     *         <code>false</code> en caso contrario. */
+    private boolean commitSignature(final PendingSignature pending, final File outDir) {
+        if (!this.saveSignToDirectory(pending.file.getPath(), pending.signData, outDir, pending.signer, pending.inText)) {
+            return false;
+        }
+        LOGGER.info(pending.successMessage);
+        this.addLogRegistry(Level.INFO, pending.successRegistry);
+        return true;
+    }
+
+    /** Guarda en disco una firma generada o, si est&aacute; activo el sellado de tiempo
+     * agregado, la a&ntilde;ade al lote de firmas pendientes de sellar, sell&aacute;ndolas
+     * y guard&aacute;ndolas todas cuando el lote se completa.
+     * @param pending
+     *        Firma pendiente de guardar.
+     * @param timestampBatch
+     *        Lote de firmas pendientes de sellar.
+     * @param outDir
+     *        Directorio de salida.
+     * @return Devuelve <code>false</code> si alguna de las firmas guardadas no se pudo
+     *         sellar o guardar, <code>true</code> en caso contrario. */
+    private boolean commitOrBatchSignature(final PendingSignature pending,
+                                           final List<PendingSignature> timestampBatch,
+                                           final File outDir) {
+        if (this.aggregatedTimestamper == null) {
+            return this.commitSignature(pending, outDir);
+        }
+        timestampBatch.add(pending);
+        if (timestampBatch.size() >= this.aggregatedTimestampBatchSize) {
+            return this.flushTimestampBatch(timestampBatch, outDir);
+        }
+        return true;
+    }
+
+    /** Sella con un &uacute;nico sello de tiempo agregado las firmas CAdES y CMS del lote
+     * y guarda en disco, en orden, todas las firmas del lote. Si no se puede obtener el
+     * sello agregado, las firmas se tratan seg&uacute;n el {@link AggregatedTimestampFallback}
+     * configurado: se sellan de una en una o se guardan sin sello.
+     * @param timestampBatch
+     *        Lote de firmas pendientes de sellar. Se vac&iacute;a al terminar.
+     * @param outDir
+     *        Directorio de salida.
+     * @return Devuelve <code>true</code> si todas las firmas del lote se sellaron y
+     *         guardaron correctamente, <code>false</code> en caso contrario. */
+    private boolean flushTimestampBatch(final List<PendingSignature> timestampBatch, final File outDir) {
+        if (timestampBatch.isEmpty()) {
+            return true;
+        }
+
+        final List<byte[]> toStamp = new ArrayList<byte[]>();
+        for (final PendingSignature pending : timestampBatch) {
+            if (isAggregatedTimestampSupported(pending.signer)) {
+                toStamp.add(pending.signData);
+            }
+        }
+
+        List<byte[]> stamped = null;
+        if (!toStamp.isEmpty()) {
+            try {
+                stamped = this.aggregatedTimestamper.addTimestamp(toStamp);
+            }
+            catch (final Exception e) {
+                LOGGER.severe("No se ha podido obtener el sello de tiempo agregado: " + e); //$NON-NLS-1$
+            }
+        }
+
+        boolean allOK = true;
+        int stampedIndex = 0;
+        for (final PendingSignature pending : timestampBatch) {
+            if (!isAggregatedTimestampSupported(pending.signer)) {
+                allOK = this.commitSignature(pending, outDir) && allOK;
+            }
+            else if (stamped != null) {
+                allOK = this.commitSignature(pending.withSignData(stamped.get(stampedIndex++)), outDir) && allOK;
+            }
+            else if (this.aggregatedTimestampFallback == AggregatedTimestampFallback.UNSTAMPED) {
+                this.addLogRegistry(Level.WARNING, MassiveSignMessages.getString("DirectorySignatureHelper.29") + REG_FIELD_SEPARATOR + pending.file.getPath()); //$NON-NLS-1$
+                allOK = this.commitSignature(pending, outDir) && allOK;
+            }
+            else {
+                final byte[] individuallyStamped;
+                try {
+                    individuallyStamped = this.aggregatedTimestamper.addIndividualTimestamp(pending.signData);
+                }
+                catch (final Exception e) {
+                    LOGGER.severe("No se ha podido obtener el sello de tiempo de la firma del fichero '" + pending.file.getPath() + "': " + e); //$NON-NLS-1$ //$NON-NLS-2$
+                    this.addLogRegistry(Level.SEVERE, MassiveSignMessages.getString("DirectorySignatureHelper.28") + REG_FIELD_SEPARATOR + pending.file.getPath()); //$NON-NLS-1$
+                    allOK = false;
+                    continue;
+                }
+                allOK = this.commitSignature(pending.withSignData(individuallyStamped), outDir) && allOK;
             }
-            LOGGER.info("El fichero '" + file.getPath() + "' se ha contrafirmado correctamente"); //$NON-NLS-1$ //$NON-NLS-2$
-            this.addLogRegistry(Level.INFO, MassiveSignMessages.getString("DirectorySignatureHelper.20") + REG_FIELD_SEPARATOR + file.getPath()); //$NON-NLS-1$
         }
+        timestampBatch.clear();
         return allOK;
     }
 
+    /** Indica si las firmas de un manejador de firma admiten el sello de tiempo agregado.
+     * @param signer
+     *        Manejador de firma.
+     * @return Devuelve <code>true</code> si el manejador genera firmas CAdES o CMS. */
+    private static boolean isAggregatedTimestampSupported(final AOSigner signer) {
+        final String signerClassName = signer.getClass().getName();
+        return CADES_SIGNER.equals(signerClassName) || CMS_SIGNER.equals(signerClassName);
+    }
+
+    /** Operaci&oacute;n de firma, cofirma o contrafirma sobre un &uacute;nico fichero. */
+    private interface FileOperation {
+
+        /** Opera sobre el fichero indicado sin guardar el resultado en disco.
+         * @param file
+         *        Fichero sobre el que operar.
+         * @return Firma pendiente de guardar o {@code null} si no se pudo operar
+         *         sobre el fichero.
+         * @throws IOException Cuando ocurre alg&uacute;n error durante la lectura de
+         * 		   los datos. */
+        PendingSignature execute(File file) throws IOException;
+    }
+
+    /** Firma generada sobre un fichero y pendiente de guardarse en disco. */
+    static final class PendingSignature {
+
+        final File file;
+        final byte[] signData;
+        final AOSigner signer;
+        final String inText;
+        final String successMessage;
+        final String successRegistry;
+
+        PendingSignature(final File file,
+                         final byte[] signData,
+                         final AOSigner signer,
+                         final String inText,
+                         final String successMessage,
+                         final String successRegistry) {
+            this.file = file;
+            this.signData = signData;
+            this.signer = signer;
+            this.inText = inText;
+            this.successMessage = successMessage;
+            this.successRegistry = successRegistry;
+        }
+
+        /** Obtiene la misma firma pendiente con otro contenido, como la firma ya sellada.
+         * @param newSignData
+         *        Nuevo contenido de la firma.
+         * @return Firma pendiente de guardar con el nuevo contenido. */
+        PendingSignature withSignData(final byte[] newSignData) {
+            return new PendingSignature(
+                this.file,
+                newSignData,
+                this.signer,
+                this.inText,
+                this.successMessage,
+                this.successRegistry
+            );
+        }
+    }
+
+    /** Resultado de la operaci&oacute;n sobre un fichero ejecutada en paralelo, con
+     * las entradas de log que gener&oacute; pendientes de volcar al fichero de log. */
+    static final class FileTaskResult {
+
+        final List<Level> logLevels = new ArrayList<Level>();
+        final List<String> logRegistries = new ArrayList<String>();
+        PendingSignature pending;
+
+        void addLogRegistry(final Level typeLog, final String logRegistry) {
+            this.logLevels.add(typeLog);
+            this.logRegistries.add(logRegistry);
+        }
+    }
+
+    /** Tarea que ejecuta la operaci&oacute;n sobre un fichero en un hilo de trabajo. */
+    private final class FileTask implements Callable<FileTaskResult> {
+
+        private final FileOperation operation;
+        private final File file;
+
+        FileTask(final FileOperation operation, final File file) {
+            this.operation = operation;
+            this.file = file;
+        }
+
+        @Override
+        public FileTaskResult call() throws IOException {
+            final FileTaskResult result = new FileTaskResult();
+            CURRENT_TASK_RESULT.set(result);
+            try {
+                result.pending = this.operation.execute(this.file);
+            }
+            finally {
+                CURRENT_TASK_RESULT.remove();
+            }
+            return result;
+        }
+    }
+
     /** Salva un fichero de firma en un directorio. El fichero ser&aacute;
      * salvado con el mismo nombre que el fichero original m&aacute;s la
      * extensi&oacute;n que le corresponda segun el tipo de firma. <br/>
@@ -1089,33 +1665,6 @@ public class DirectorySignatureHelper {
         return isSignFile;
     }
 
-    /** Comprueba si el fichero <code>file</code> es un fichero v&aacute;lido
-     * para su firma mediante el manejador <code>signer</code>. En caso de no
-     * encontrar el fichero, agrega una entrada al logger indic&aacute;ndolo y
-     * se lanza una excepci&oacute;n.
-     * @param signer
-     *        Manejador de firma.
-     * @param file
-     *        Fichero a analizar.
-     * @return Devuelve <code>true</code> si el fichero puede firmarse con el
-     *         signer indicado, <code>false</code> en caso contrario.
-     * @throws IOException
-     *         Cuando no se pudo leer el fichero. */
-    private boolean isValidDataFile(final AOSigner signer, final File file) throws IOException {
-        final InputStream is = this.getFileInputStream(file);
-        final boolean isValidDataFile;
-        try {
-        	isValidDataFile = signer.isValidDataFile(AOUtil.getDataFromInputStream(is));
-        }
-        catch(final OutOfMemoryError e) {
-        	throw new IOException("El fichero es demasiado grande: " + e, e); //$NON-NLS-1$
-        }
-        finally {
-        	is.close();
-        }
-        return isValidDataFile;
-    }
-
     /** Permite activar y desactivar la generaci&oacute;n del fichero de log.
      * @param activeLog
      *        Si es <code>true</code> activa el log, <code>false</code> lo
@@ -1235,6 +1784,101 @@ public class DirectorySignatureHelper {
         this.overwriteFiles = overwirte;
     }
 
+    /** Establece el n&uacute;mero de hilos de trabajo con los que se firmar&aacute;n
+     * los ficheros de las operaciones de firma, cofirma y contrafirma masiva. Con un
+     * &uacute;nico hilo (el valor por defecto) los ficheros se procesan de uno en uno.
+     * Con varios hilos, los ficheros se leen y firman en paralelo, pero las firmas se
+     * guardan y se registran en el log en el mismo orden que en el proceso secuencial.
+     * Los manejadores de firma y las claves utilizadas deben admitir su uso
+     * concurrente desde varios hilos.
+     * @param threads
+     *        N&uacute;mero de hilos de trabajo. */
+    public void setWorkerThreads(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("El numero de hilos de trabajo debe ser mayor que cero"); //$NON-NLS-1$
+        }
+        this.workerThreads = threads;
+    }
+
+    /** Obtiene el n&uacute;mero de hilos de trabajo con los que se procesan los ficheros.
+     * @return N&uacute;mero de hilos de trabajo. */
+    public int getWorkerThreads() {
+        return this.workerThreads;
+    }
+
+    /** Establece el m&aacute;ximo n&uacute;mero de bytes de ficheros que pueden estar
+     * cargados en memoria a la vez, tanto en el proceso secuencial como en el paralelo.
+     * Los ficheros que superan este tama&ntilde;o nunca se cargan en memoria: se firma su
+     * huella digital en las mismas condiciones que los que superan el tama&ntilde;o
+     * establecido con {@link #setStreamingThreshold(long)} y, en cualquier otro caso,
+     * como en las cofirmas y contrafirmas, no se procesan y se registra el error. En el
+     * proceso en paralelo, no se empezar&aacute; a procesar un nuevo fichero hasta que se
+     * hayan guardado los anteriores necesarios para no superar este l&iacute;mite. Por
+     * defecto no hay l&iacute;mite.
+     * @param maxBytes
+     *        M&aacute;ximo n&uacute;mero de bytes en proceso. */
+    public void setMaxInFlightBytes(final long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("El numero maximo de bytes en proceso debe ser mayor que cero"); //$NON-NLS-1$
+        }
+        this.maxInFlightBytes = maxBytes;
+    }
+
+    /** Activa el sellado de tiempo agregado de las firmas CAdES y CMS. En lugar de solicitar
+     * un sello de tiempo por firma, las firmas se agrupan en lotes y se solicita un
+     * &uacute;nico sello por lote sobre la ra&iacute;z del &aacute;rbol de Merkle de sus
+     * valores de firma. Las firmas de cada lote se guardan cuando se obtiene su sello.
+     * Las firmas en otros formatos se guardan sin modificar. Si no se puede obtener el
+     * sello de un lote, sus firmas se sellan de una en una
+     * ({@link AggregatedTimestampFallback#INDIVIDUAL_TIMESTAMP}).
+     * @param timestamper
+     *        Estampador de sellos de tiempo agregados o {@code null} para desactivar el
+     *        sellado agregado.
+     * @param batchSize
+     *        N&uacute;mero m&aacute;ximo de firmas de cada lote. */
+    public void setAggregatedTimestamper(final MerkleTimestamper timestamper, final int batchSize) {
+        this.setAggregatedTimestamper(timestamper, batchSize, AggregatedTimestampFallback.INDIVIDUAL_TIMESTAMP);
+    }
+
+    /** Activa el sellado de tiempo agregado de las firmas CAdES y CMS indicando qu&eacute;
+     * hacer con las firmas de un lote cuando no se puede obtener su sello de tiempo agregado.
+     * @param timestamper
+     *        Estampador de sellos de tiempo agregados o {@code null} para desactivar el
+     *        sellado agregado.
+     * @param batchSize
+     *        N&uacute;mero m&aacute;ximo de firmas de cada lote.
+     * @param fallback
+     *        Tratamiento de las firmas de un lote cuyo sello agregado no se puede obtener.
+     * @see #setAggregatedTimestamper(MerkleTimestamper, int) */
+    public void setAggregatedTimestamper(final MerkleTimestamper timestamper,
+                                         final int batchSize,
+                                         final AggregatedTimestampFallback fallback) {
+        if (timestamper != null && batchSize < 1) {
+            throw new IllegalArgumentException("El tamano de los lotes de sellado debe ser mayor que cero"); //$NON-NLS-1$
+        }
+        if (fallback == null) {
+            throw new IllegalArgumentException("Es obligatorio indicar el tratamiento de los lotes que no se pueden sellar"); //$NON-NLS-1$
+        }
+        this.aggregatedTimestamper = timestamper;
+        this.aggregatedTimestampBatchSize = batchSize;
+        this.aggregatedTimestampFallback = fallback;
+    }
+
+    /** Establece el tama&ntilde;o a partir del cual los ficheros no se cargan en memoria.
+     * De los ficheros a firmar se calcula su huella digital a medida que se leen de disco
+     * y se firma esta. Solo es posible en las firmas CAdES y CMS expl&iacute;citas; con
+     * cualquier otra configuraci&oacute;n, y en las cofirmas y contrafirmas, que necesitan
+     * la firma completa, los ficheros que superen este tama&ntilde;o no se procesar&aacute;n
+     * y se registrar&aacute; el error. Por defecto, todos los ficheros se cargan en memoria.
+     * @param threshold
+     *        Tama&ntilde;o en bytes a partir del cual no se cargan los ficheros en memoria. */
+    public void setStreamingThreshold(final long threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("El tamano a partir del cual no se cargan los ficheros en memoria no puede ser negativo"); //$NON-NLS-1$
+        }
+        this.streamingThreshold = threshold;
+    }
+
     /** Agrega un registro a un fichero de log. Si es nulo el registro de log se
      * muestra un mensaje por consola.
      * @param typeLog
@@ -1247,6 +1891,11 @@ public class DirectorySignatureHelper {
                 LOGGER.warning("Se ha intentado insertar un registro nulo en el log"); //$NON-NLS-1$
                 return;
             }
+            final FileTaskResult taskResult = CURRENT_TASK_RESULT.get();
+            if (taskResult != null) {
+                taskResult.addLogRegistry(typeLog, logRegistry);
+                return;
+            }
             if (this.logHandler != null) {
                 try {
                     this.logHandler.write(("\r\n" + typeLog.getName() + ": " + logRegistry).getBytes()); //$NON-NLS-1$ //$NON-NLS-2$
@@ -1350,8 +1999,15 @@ public class DirectorySignatureHelper {
     			AOSignConstants.SIGN_FORMAT_OOXML
     	};
 
+    	// Los formatos ODF y OOXML son siempre ficheros ZIP, asi que evitamos
+    	// analizarlos si los datos no comienzan como tales
+    	final boolean zipData = AOFileUtils.isZipData(data);
+
     	AOSigner signer;
     	for (final String specificFormat : specificFormats) {
+    		if (!zipData && !AOSignConstants.SIGN_FORMAT_PDF.equals(specificFormat)) {
+    			continue;
+    		}
     		signer = AOSignerFactory.getSigner(specificFormat);
     		if (signer != null && signer.isValidDataFile(data)) {
     			return signer;
@@ -22,6 +22,7 @@ import java.util.logging.Logger;
 
 import es.gob.afirma.core.AOException;
 import es.gob.afirma.core.AOFormatFileException;
+import es.gob.afirma.core.misc.AOFileUtils;
 import es.gob.afirma.core.misc.AOUtil;
 import es.gob.afirma.core.misc.MimeHelper;
 import es.gob.afirma.core.signers.AOSignConstants;
@@ -642,8 +643,15 @@ public final class MassiveSignatureHelper {
     			AOSignConstants.SIGN_FORMAT_OOXML
     	};
 
+    	// Los formatos ODF y OOXML son siempre ficheros ZIP, asi que evitamos
+    	// analizarlos si los datos no comienzan como tales
+    	final boolean zipData = AOFileUtils.isZipData(data);
+
     	AOSigner signer;
     	for (final String specificFormat : specificFormats) {
+    		if (!zipData && !AOSignConstants.SIGN_FORMAT_PDF.equals(specificFormat)) {
+    			continue;
+    		}
     		signer = AOSignerFactory.getSigner(specificFormat);
     		if (signer != null && signer.isValidDataFile(data)) {
     			return signer;
@@ -0,0 +1,327 @@
+package es.gob.afirma.massive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.security.KeyStore.PrivateKeyEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import es.gob.afirma.core.misc.AOUtil;
+import es.gob.afirma.core.signers.AOSignConstants;
+import es.gob.afirma.core.signers.AOSigner;
+import es.gob.afirma.core.signers.AOSignerFactory;
+
+/** Pruebas de las operaciones masivas sobre directorios. Comprueban que el procesado en
+ * paralelo obtiene los mismos ficheros de firma, entradas de log, contadores y listado
+ * de ficheros firmados que el procesado secuencial, y que en ambos casos ning&uacute;n
+ * fichero mayor que el m&aacute;ximo de bytes en proceso se carga en memoria. */
+public final class TestDirectorySignatureHelper {
+
+	private static final String CERT_PATH = "ANF_PF_Activo.pfx"; //$NON-NLS-1$
+	private static final String CERT_PASS = "12341234"; //$NON-NLS-1$
+	private static final String CERT_ALIAS = "anf usuario activo"; //$NON-NLS-1$
+
+	private static final int FILES = 12;
+
+	private static final int WORKER_THREADS = 4;
+
+	private static final int MAX_IN_FLIGHT_BYTES = 1024;
+
+	private static final int[] THREADS = { 1, WORKER_THREADS };
+
+	private static PrivateKeyEntry pke;
+
+	private File workDir;
+
+	/** Carga la clave de firma.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@BeforeClass
+	public static void loadKey() throws Exception {
+		final KeyStore ks = KeyStore.getInstance("PKCS12"); //$NON-NLS-1$
+		ks.load(ClassLoader.getSystemResourceAsStream(CERT_PATH), CERT_PASS.toCharArray());
+		pke = (PrivateKeyEntry) ks.getEntry(CERT_ALIAS, new KeyStore.PasswordProtection(CERT_PASS.toCharArray()));
+	}
+
+	/** Crea el directorio de trabajo de la prueba.
+	 * @throws IOException Si no se puede crear el directorio. */
+	@Before
+	public void createWorkDir() throws IOException {
+		this.workDir = File.createTempFile("massive", null); //$NON-NLS-1$
+		Assert.assertTrue(this.workDir.delete());
+		Assert.assertTrue(this.workDir.mkdirs());
+	}
+
+	/** Elimina el directorio de trabajo de la prueba. */
+	@After
+	public void deleteWorkDir() {
+		delete(this.workDir);
+	}
+
+	/** Comprueba que la firma en paralelo obtiene el mismo resultado que la secuencial,
+	 * incluidos los ficheros que no se pueden firmar por superar el tama&ntilde;o
+	 * m&aacute;ximo de carga en memoria.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@Test
+	public void testParallelSignMatchesSequential() throws Exception {
+		final File inDir = createDataFiles(new File(this.workDir, "in")); //$NON-NLS-1$
+		final Result result = assertSameResult(inDir, MassiveType.SIGN, AOSignConstants.SIGN_MODE_IMPLICIT);
+		Assert.assertFalse(result.allOK);
+		Assert.assertTrue(result.log, result.log.contains("SEVERE")); //$NON-NLS-1$
+	}
+
+	/** Comprueba que la cofirma en paralelo de un directorio con ficheros de datos y de
+	 * firma obtiene el mismo resultado que la secuencial.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@Test
+	public void testParallelCosignMatchesSequential() throws Exception {
+		final File inDir = createSignedFiles();
+		assertSameResult(inDir, MassiveType.COSIGN, AOSignConstants.SIGN_MODE_IMPLICIT);
+	}
+
+	/** Comprueba que la contrafirma en paralelo de un directorio con ficheros de datos y
+	 * de firma obtiene el mismo resultado que la secuencial, incluidos los errores de los
+	 * ficheros que no son firmas.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@Test
+	public void testParallelCounterSignMatchesSequential() throws Exception {
+		final File inDir = createSignedFiles();
+		final Result result = assertSameResult(inDir, MassiveType.COUNTERSIGN_ALL, AOSignConstants.SIGN_MODE_IMPLICIT);
+		Assert.assertFalse(result.allOK);
+	}
+
+	/** Comprueba que los ficheros mayores que el m&aacute;ximo de bytes en proceso se firman
+	 * sin cargarlos en memoria cuando el formato permite firmar su huella digital.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@Test
+	public void testSignFilesLargerThanBudget() throws Exception {
+		final File inDir = createDataFiles(new File(this.workDir, "in")); //$NON-NLS-1$
+		for (final int threads : THREADS) {
+			final DirectorySignatureHelper helper = createHelper(AOSignConstants.SIGN_MODE_EXPLICIT, threads);
+			helper.setMaxInFlightBytes(MAX_IN_FLIGHT_BYTES);
+			final Result result = run(helper, inDir, new File(this.workDir, "out" + threads), MassiveType.SIGN, AOSignConstants.SIGN_MODE_EXPLICIT); //$NON-NLS-1$
+			Assert.assertTrue(result.log, result.allOK);
+			Assert.assertEquals(FILES, result.signedFilenames.size());
+			final AOSigner signer = AOSignerFactory.getSigner(AOSignConstants.SIGN_FORMAT_CADES);
+			for (final String filename : result.signedFilenames) {
+				Assert.assertTrue(filename, signer.isSign(read(new File(result.outDir, filename))));
+			}
+		}
+	}
+
+	/** Comprueba que los ficheros mayores que el m&aacute;ximo de bytes en proceso no se
+	 * procesan y se registran como error cuando la operaci&oacute;n necesita cargarlos en
+	 * memoria: firmas impl&iacute;citas, cofirmas y contrafirmas.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@Test
+	public void testOperationsRejectFilesLargerThanBudget() throws Exception {
+		final File inDir = createSignedFiles();
+
+		// Limite que solo superan algunas de las firmas
+		final List<File> inFiles = new ArrayList<File>();
+		listFiles(inDir, inFiles);
+		final List<Long> sizes = new ArrayList<Long>();
+		for (final File file : inFiles) {
+			sizes.add(Long.valueOf(file.length()));
+		}
+		Collections.sort(sizes);
+		final long maxBytes = sizes.get(sizes.size() / 2).longValue();
+		int tooLarge = 0;
+		for (final File file : inFiles) {
+			if (file.length() > maxBytes) {
+				tooLarge++;
+			}
+		}
+		Assert.assertTrue(tooLarge > 0);
+
+		final MassiveType[] types = { MassiveType.SIGN, MassiveType.COSIGN, MassiveType.COUNTERSIGN_ALL };
+		for (final MassiveType type : types) {
+			for (final int threads : THREADS) {
+				final DirectorySignatureHelper helper = createHelper(AOSignConstants.SIGN_MODE_IMPLICIT, threads);
+				helper.setMaxInFlightBytes(maxBytes);
+				final Result result = run(helper, inDir, new File(this.workDir, type + "-" + threads), type, AOSignConstants.SIGN_MODE_IMPLICIT); //$NON-NLS-1$
+				Assert.assertFalse(result.allOK);
+				Assert.assertEquals(
+					type + " con " + threads + " hilos", //$NON-NLS-1$ //$NON-NLS-2$
+					tooLarge,
+					count(result.log, MassiveSignMessages.getString("DirectorySignatureHelper.8")) //$NON-NLS-1$
+				);
+				for (final File file : inFiles) {
+					if (file.length() > maxBytes) {
+						Assert.assertTrue(result.log.contains(file.getPath()));
+					}
+				}
+			}
+		}
+	}
+
+	private Result assertSameResult(final File inDir, final MassiveType type, final String mode) throws Exception {
+		final Result sequential = run(inDir, new File(this.workDir, "seq"), type, mode, 1); //$NON-NLS-1$
+		final Result parallel = run(inDir, new File(this.workDir, "par"), type, mode, WORKER_THREADS); //$NON-NLS-1$
+
+		Assert.assertEquals(sequential.allOK, parallel.allOK);
+		Assert.assertEquals(sequential.log, parallel.log);
+		Assert.assertEquals(sequential.signedFilenames, parallel.signedFilenames);
+		Assert.assertFalse(sequential.signedFilenames.isEmpty());
+
+		// Las firmas no son identicas byte a byte porque incluyen la hora de firma, pero
+		// deben ser firmas de los mismos datos
+		final AOSigner signer = AOSignerFactory.getSigner(AOSignConstants.SIGN_FORMAT_CADES);
+		for (final String filename : sequential.signedFilenames) {
+			final byte[] seqSign = read(new File(sequential.outDir, filename));
+			final byte[] parSign = read(new File(parallel.outDir, filename));
+			Assert.assertTrue(filename, signer.isSign(parSign));
+			Assert.assertArrayEquals(filename, signer.getData(seqSign), signer.getData(parSign));
+		}
+		return sequential;
+	}
+
+	private static DirectorySignatureHelper createHelper(final String mode, final int threads) throws Exception {
+		final DirectorySignatureHelper helper = new DirectorySignatureHelper(
+			AOSignConstants.SIGN_ALGORITHM_SHA256WITHRSA,
+			AOSignConstants.SIGN_FORMAT_CADES,
+			mode
+		);
+		helper.setWorkerThreads(threads);
+		return helper;
+	}
+
+	private static Result run(final File inDir,
+			                  final File outDir,
+			                  final MassiveType type,
+			                  final String mode,
+			                  final int threads) throws Exception {
+		final DirectorySignatureHelper helper = createHelper(mode, threads);
+		// Los ficheros mayores no se pueden firmar en modo implicito sin cargarlos en memoria
+		helper.setStreamingThreshold(8192);
+		return run(helper, inDir, outDir, type, mode);
+	}
+
+	private static Result run(final DirectorySignatureHelper helper,
+			                  final File inDir,
+			                  final File outDir,
+			                  final MassiveType type,
+			                  final String mode) throws Exception {
+		final Properties config = new Properties();
+		config.setProperty("format", AOSignConstants.SIGN_FORMAT_CADES); //$NON-NLS-1$
+		config.setProperty("mode", mode); //$NON-NLS-1$
+
+		final File logFile = new File(outDir.getParentFile(), outDir.getName() + ".log"); //$NON-NLS-1$
+		helper.setLogPath(logFile.getAbsolutePath());
+
+		final boolean allOK = helper.massiveSign(type, inDir.getAbsolutePath(), true, outDir.getAbsolutePath(), true, false, pke, config);
+
+		final List<String> signedFilenames = new ArrayList<String>();
+		for (final String signedFilename : helper.getSignedFilenames()) {
+			Assert.assertTrue(signedFilename.startsWith(outDir.getAbsolutePath()));
+			signedFilenames.add(signedFilename.substring(outDir.getAbsolutePath().length()));
+		}
+		return new Result(outDir, allOK, new String(read(logFile), "UTF-8"), signedFilenames); //$NON-NLS-1$
+	}
+
+	/** Crea ficheros de datos de distintos tama&ntilde;os, en el directorio indicado y en un
+	 * subdirectorio. */
+	private static File createDataFiles(final File dir) throws IOException {
+		final File subDir = new File(dir, "sub"); //$NON-NLS-1$
+		Assert.assertTrue(subDir.mkdirs());
+		final Random random = new Random(FILES);
+		for (int i = 0; i < FILES; i++) {
+			final byte[] data = new byte[i % 4 == 3 ? 16384 : 100 + i * 50];
+			random.nextBytes(data);
+			write(new File(i % 3 == 0 ? subDir : dir, "fichero" + i + ".bin"), data); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		return dir;
+	}
+
+	/** Crea un directorio con firmas CAdES y con ficheros de datos. */
+	private File createSignedFiles() throws Exception {
+		final File dataDir = createDataFiles(new File(this.workDir, "data")); //$NON-NLS-1$
+		final File inDir = new File(this.workDir, "in"); //$NON-NLS-1$
+		run(dataDir, inDir, MassiveType.SIGN, AOSignConstants.SIGN_MODE_IMPLICIT, 1);
+		Assert.assertTrue(inDir.listFiles().length > 0);
+		final byte[] data = "Datos sin firmar".getBytes("UTF-8"); //$NON-NLS-1$ //$NON-NLS-2$
+		write(new File(inDir, "datos1.txt"), data); //$NON-NLS-1$
+		write(new File(inDir, "sub" + File.separator + "datos2.txt"), data); //$NON-NLS-1$ //$NON-NLS-2$
+		return inDir;
+	}
+
+	private static void listFiles(final File dir, final List<File> files) {
+		for (final File file : dir.listFiles()) {
+			if (file.isDirectory()) {
+				listFiles(file, files);
+			}
+			else {
+				files.add(file);
+			}
+		}
+	}
+
+	private static int count(final String text, final String fragment) {
+		int count = 0;
+		int index = text.indexOf(fragment);
+		while (index != -1) {
+			count++;
+			index = text.indexOf(fragment, index + fragment.length());
+		}
+		return count;
+	}
+
+	private static byte[] read(final File file) throws IOException {
+		final InputStream is = new FileInputStream(file);
+		try {
+			return AOUtil.getDataFromInputStream(is);
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	private static void write(final File file, final byte[] data) throws IOException {
+		final OutputStream os = new FileOutputStream(file);
+		try {
+			os.write(data);
+		}
+		finally {
+			os.close();
+		}
+	}
+
+	private static void delete(final File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (final File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/** Resultado de una operaci&oacute;n masiva. */
+	private static final class Result {
+
+		final File outDir;
+		final boolean allOK;
+		final String log;
+		final List<String> signedFilenames;
+
+		Result(final File outDir, final boolean allOK, final String log, final List<String> signedFilenames) {
+			this.outDir = outDir;
+			this.allOK = allOK;
+			this.log = log;
+			this.signedFilenames = signedFilenames;
+		}
+	}
+}
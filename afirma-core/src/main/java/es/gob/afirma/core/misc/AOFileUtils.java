@@ -42,4 +42,26 @@ public final class AOFileUtils {
         tempFile.deleteOnExit();
         return new ZipFile(tempFile);
     }
+
+    /** Cabecera de los ficheros ZIP (firma de la cabecera local del primer fichero). */
+    private static final byte[] ZIP_HEADER = new byte[] { 0x50, 0x4b, 0x03, 0x04 };
+
+    /** Indica si unos datos comienzan con la cabecera de un fichero ZIP. Solo se
+     * comprueban los primeros bytes, por lo que no se garantiza que el ZIP sea
+     * v&aacute;lido.
+     * @param data
+     *        Datos a comprobar.
+     * @return {@code true} si los datos comienzan como un fichero ZIP,
+     *         {@code false} en caso contrario. */
+    public static boolean isZipData(final byte[] data) {
+        if (data == null || data.length < ZIP_HEADER.length) {
+            return false;
+        }
+        for (int i = 0; i < ZIP_HEADER.length; i++) {
+            if (data[i] != ZIP_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -21,6 +21,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.logging.Logger;
@@ -39,6 +40,12 @@ public final class AOUtil {
 
     private static final int BUFFER_SIZE = 4096;
 
+    private static final int DIGEST_BUFFER_SIZE = 65536;
+
+    /** Tama&ntilde;o de cada uno de los bloques de fichero que se proyectan en memoria
+     * para el c&aacute;lculo de huellas digitales. */
+    private static final long DIGEST_MAPPED_BLOCK_SIZE = 32L * 1024L * 1024L;
+
     private static final Logger LOGGER = Logger.getLogger("es.gob.afirma"); //$NON-NLS-1$
 
     private static final String[] SUPPORTED_URI_SCHEMES = new String[] {
@@ -127,13 +134,7 @@ public final class AOUtil {
         if (uri.getScheme().equals("file")) { //$NON-NLS-1$
             // Es un fichero en disco. Las URL de Java no soportan file://, con
             // lo que hay que diferenciarlo a mano
-
-            // Retiramos el "file://" de la uri
-            String path = uri.getSchemeSpecificPart();
-            if (path.startsWith("//")) { //$NON-NLS-1$
-                path = path.substring(2);
-            }
-            return new FileInputStream(new File(path));
+            return new FileInputStream(getFile(uri));
         }
 
         // Es una URL
@@ -147,6 +148,71 @@ public final class AOUtil {
         return new java.io.ByteArrayInputStream(tmpBuffer);
     }
 
+    /** Obtiene el fichero local de una URI de tipo <code>file</code>, retirando el "file://" de la URI.
+     * @param uri URI del fichero.
+     * @return Fichero local. */
+    private static File getFile(final URI uri) {
+        String path = uri.getSchemeSpecificPart();
+        if (path.startsWith("//")) { //$NON-NLS-1$
+            path = path.substring(2);
+        }
+        return new File(path);
+    }
+
+    /** Calcula la huella digital del contenido de una URI ley&eacute;ndolo por bloques, de forma
+     * que la memoria usada no depende de su tama&ntilde;o.
+     * <p>A diferencia de {@link #loadFile(URI)}, el contenido de las URL remotas tampoco se descarga
+     * completo antes de procesarlo. Un contenido vac&iacute;o no es un error: se devuelve la huella
+     * digital de unos datos vac&iacute;os.</p>
+     * @param md
+     *        Huella digital que se actualiza con los datos.
+     * @param uri
+     *        URI del contenido.
+     * @param useMemoryMapping
+     *        Si se indica <code>true</code> y la URI es de tipo <code>file</code>, el fichero se
+     *        proyecta en memoria por bloques en lugar de leerse a trav&eacute;s de un flujo, lo que
+     *        evita copiar los datos al espacio de memoria de Java. Las proyecciones se hacen por bloques
+     *        de tama&ntilde;o fijo y se liberan en la recolecci&oacute;n de memoria, por lo que en
+     *        algunos sistemas (como Windows) el fichero puede no poder borrarse hasta entonces.
+     * @return Huella digital del contenido.
+     * @throws IOException
+     *         Cuando ocurre un problema durante la lectura */
+    public static byte[] digestUri(final MessageDigest md, final URI uri, final boolean useMemoryMapping) throws IOException {
+
+        if (uri == null) {
+            throw new IllegalArgumentException("Se ha pedido la huella digital de una URI nula"); //$NON-NLS-1$
+        }
+
+        final InputStream is;
+        if (uri.getScheme().equals("file")) { //$NON-NLS-1$
+            final FileInputStream fis = new FileInputStream(getFile(uri));
+            if (useMemoryMapping) {
+                try {
+                    final FileChannel channel = fis.getChannel();
+                    final long size = channel.size();
+                    for (long pos = 0; pos < size; pos += DIGEST_MAPPED_BLOCK_SIZE) {
+                        md.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(DIGEST_MAPPED_BLOCK_SIZE, size - pos)));
+                    }
+                    return md.digest();
+                }
+                finally {
+                    fis.close();
+                }
+            }
+            is = fis;
+        }
+        else {
+            is = uri.toURL().openStream();
+        }
+
+        try {
+            return digestInputStream(md, is);
+        }
+        finally {
+            is.close();
+        }
+    }
+
     /** Lee un flujo de datos de entrada y los recupera en forma de array de
      * bytes. Este m&eacute;todo consume pero no cierra el flujo de datos de
      * entrada.
@@ -168,6 +234,27 @@ public final class AOUtil {
         return baos.toByteArray();
     }
 
+    /** Lee un flujo de datos de entrada y actualiza con ellos una huella digital,
+     * sin llegar a cargar los datos completos en memoria. Este m&eacute;todo consume
+     * pero no cierra el flujo de datos de entrada.
+     * @param md
+     *        Huella digital que se actualiza con los datos.
+     * @param input
+     *        Flujo de donde se toman los datos.
+     * @return Huella digital de los datos le&iacute;dos.
+     * @throws IOException
+     *         Cuando ocurre un problema durante la lectura */
+    public static byte[] digestInputStream(final MessageDigest md, final InputStream input) throws IOException {
+        if (input != null) {
+            int nBytes = 0;
+            final byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+            while ((nBytes = input.read(buffer)) != -1) {
+                md.update(buffer, 0, nBytes);
+            }
+        }
+        return md.digest();
+    }
+
     /** Obtiene el nombre com&uacute;n (Common Name, CN) del titular de un
      * certificado X.509. Si no se encuentra el CN, se devuelve la unidad organizativa
      * (Organization Unit, OU).
@@ -30,6 +30,10 @@ package es.gob.afirma.core.misc;
  * <p>Also...</p>
  * <code>String encoded = Base64.encodeBytes( crazyString.getBytes() );</code>
  *
+ * <p>Large data sets can be encoded and decoded without holding them in memory with
+ * {@link Base64.InputStream} and {@link Base64.OutputStream}, or encoded into a caller
+ * supplied buffer with {@link #encode(byte[], int, int, byte[], int, int)}.</p>
+ *
  * <p>
  * I am placing this code in the Public Domain. Do with it as you will.
  * This software comes with no guarantees or warranties but with
@@ -50,6 +54,12 @@ public final class Base64 {
     /** No options specified. Value is zero. */
     public static final int NO_OPTIONS = 0;
 
+    /** Specify encoding in first bit. Value is one. */
+    public static final int ENCODE = 1;
+
+    /** Specify decoding in first bit. Value is zero. */
+    public static final int DECODE = 0;
+
     /** Do break lines when encoding. Value is 8. */
     public static final int DO_BREAK_LINES = 8;
 
@@ -78,6 +88,14 @@ public final class Base64 {
     /** The new line character (\n) as a byte. */
     private static final byte NEW_LINE = (byte)'\n';
 
+    /** Raw bytes encoded at once by the streams. It is a whole number of lines
+     * so that chunks can be encoded independently and still break lines
+     * exactly as when encoding the whole array. */
+    private static final int ENCODE_CHUNK_SIZE = MAX_LINE_LENGTH / 4 * 3 * 64;
+
+    /** Base64 bytes decoded at once by the streams. */
+    private static final int DECODE_CHUNK_SIZE = 4096;
+
     /** Preferred encoding. */
     private static final String PREFERRED_ENCODING = "US-ASCII"; //$NON-NLS-1$
 
@@ -419,77 +437,130 @@ public final class Base64 {
      */
     private static byte[] encodeBytesToBytes(final byte[] source, final int off, final int len, final int options) throws java.io.IOException {
 
-        if( source == null ){
-            throw new IllegalArgumentException("Cannot serialize a null array"); //$NON-NLS-1$
-        }   // end if: null
+        checkEncodeArguments( source, off, len );
 
-        if( off < 0 ){
-            throw new IllegalArgumentException("Cannot have negative offset: " + off ); //$NON-NLS-1$
-        }   // end if: off < 0
+        // The exact size is known in advance, so the output never needs to be resized
+        final byte[] outBuff = new byte[ getEncodedLength( len, options ) ];
+        encode( source, off, len, outBuff, 0, options );
+        return outBuff;
 
-        if( len < 0 ){
-            throw new IllegalArgumentException("Cannot have length offset: " + len ); //$NON-NLS-1$
-        }   // end if: len < 0
+    }   // end encodeBytesToBytes
 
-        if( off + len > source.length  ){
+    /**
+     * Returns the exact number of bytes that encoding <var>len</var> bytes
+     * with the given options produces, including padding and, if
+     * {@link #DO_BREAK_LINES} is set, new line characters.
+     *
+     * @param len Length of data to convert
+     * @param options Specified options
+     * @return Length of the Base64-encoded data
+     */
+    public static int getEncodedLength( final int len, final int options ) {
+        int encLen = (len + 2) / 3 * 4; // Bytes needed for actual encoding
+        if( (options & DO_BREAK_LINES) != 0 ){
+            encLen += len / 3 / (MAX_LINE_LENGTH / 4); // Plus a newline after every full line
+        }
+        return encLen;
+    }
+
+    /**
+     * Encodes a byte array into Base64 notation, writing the result to a caller
+     * supplied array instead of allocating a new one. The output is the same as
+     * {@link #encodeBytes(byte[], int)} would return.
+     * The destination must have room for {@link #getEncodedLength(int, int)} bytes
+     * from <var>destOff</var>.
+     *
+     * @param source The data to convert
+     * @param off Offset in array where conversion should begin
+     * @param len Length of data to convert
+     * @param destination The array to hold the Base64-encoded data
+     * @param destOff Offset in <var>destination</var> where output will be put
+     * @param options Specified options
+     * @return Number of bytes written to <var>destination</var>
+     * @throws IllegalArgumentException if source array, offset, or length are invalid,
+     *         or there is not enough room in the destination array
+     */
+    public static int encode( final byte[] source,
+    		                  final int off,
+    		                  final int len,
+    		                  final byte[] destination,
+    		                  final int destOff,
+    		                  final int options ) {
+
+        checkEncodeArguments( source, off, len );
+
+        if( destination == null ){
+            throw new IllegalArgumentException("Destination array was null"); //$NON-NLS-1$
+        }   // end if
+        final int encLen = getEncodedLength( len, options );
+        if( destOff < 0 || destOff + encLen > destination.length ){
             throw new IllegalArgumentException(
         		String.format(
-    				"Cannot have offset of %d and length of %d with array of length %d",  //$NON-NLS-1$
-    				Integer.valueOf(off),
-    				Integer.valueOf(len),
-					Integer.valueOf(source.length)
+    				"Destination array with length %d cannot have offset of %d and still store %d bytes", //$NON-NLS-1$
+    				Integer.valueOf(destination.length),
+    				Integer.valueOf(destOff),
+    				Integer.valueOf(encLen)
 				)
 			);
-        }   // end if: off < 0
+        }   // end if
 
+        final byte[] alphabet = getAlphabet( options );
         final boolean breakLines = (options & DO_BREAK_LINES) != 0;
 
-        // Try to determine more precisely how big the array needs to be.
-        // If we get it right, we don't have to do an array copy, and
-        // we save a bunch of memory.
-        int encLen = len / 3 * 4 + ( len % 3 > 0 ? 4 : 0 ); // Bytes needed for actual encoding
-        if( breakLines ){
-            encLen += encLen / MAX_LINE_LENGTH; // Plus extra newline characters
-        }
-        final byte[] outBuff = new byte[ encLen ];
-
-
-        int d = 0;
-        int e = 0;
-        final int len2 = len - 2;
+        int d = off;
+        int e = destOff;
+        final int end2 = off + len - 2;
         int lineLength = 0;
-        for( ; d < len2; d+=3, e+=4 ) {
-            encode3to4( source, d+off, 3, outBuff, e, options );
+        for( ; d < end2; d+=3, e+=4 ) {
+            final int inBuff = ( source[ d ] & 0xFF ) << 16
+                             | ( source[ d + 1 ] & 0xFF ) << 8
+                             | source[ d + 2 ] & 0xFF;
+            destination[ e     ] = alphabet[ inBuff >>> 18        ];
+            destination[ e + 1 ] = alphabet[ inBuff >>> 12 & 0x3f ];
+            destination[ e + 2 ] = alphabet[ inBuff >>>  6 & 0x3f ];
+            destination[ e + 3 ] = alphabet[ inBuff        & 0x3f ];
 
             lineLength += 4;
             if( breakLines && lineLength >= MAX_LINE_LENGTH ) {
-                outBuff[e+4] = NEW_LINE;
+                destination[e+4] = NEW_LINE;
                 e++;
                 lineLength = 0;
             }   // end if: end of line
-        }   // en dfor: each piece of array
+        }   // end for: each piece of array
 
-        if( d < len ) {
-            encode3to4( source, d+off, len - d, outBuff, e, options );
+        if( d < off + len ) {
+            encode3to4( source, d, off + len - d, destination, e, options );
             e += 4;
         }   // end if: some padding needed
 
+        return e - destOff;
+    }   // end encode
 
-        // Only resize array if we didn't guess it right.
-        if( e <= outBuff.length - 1 ){
-            // If breaking lines and the last byte falls right at
-            // the line length (76 bytes per line), there will be
-            // one extra byte, and the array will need to be resized.
-            // Not too bad of an estimate on array size, I'd say.
-            final byte[] finalOut = new byte[e];
-            System.arraycopy(outBuff,0, finalOut,0,e);
-            return finalOut;
-        }
-        return outBuff;
+    private static void checkEncodeArguments( final byte[] source, final int off, final int len ) {
 
-        // end else: don't compress
+        if( source == null ){
+            throw new IllegalArgumentException("Cannot serialize a null array"); //$NON-NLS-1$
+        }   // end if: null
 
-    }   // end encodeBytesToBytes
+        if( off < 0 ){
+            throw new IllegalArgumentException("Cannot have negative offset: " + off ); //$NON-NLS-1$
+        }   // end if: off < 0
+
+        if( len < 0 ){
+            throw new IllegalArgumentException("Cannot have length offset: " + len ); //$NON-NLS-1$
+        }   // end if: len < 0
+
+        if( off + len > source.length  ){
+            throw new IllegalArgumentException(
+        		String.format(
+    				"Cannot have offset of %d and length of %d with array of length %d",  //$NON-NLS-1$
+    				Integer.valueOf(off),
+    				Integer.valueOf(len),
+					Integer.valueOf(source.length)
+				)
+			);
+        }   // end if: off < 0
+    }
 
 
 
@@ -727,4 +798,423 @@ public final class Base64 {
     }   // end decode
 
 
+/* ********  I N N E R   C L A S S   D E C O D E R  ******** */
+
+    /**
+     * Incremental Base64 decoder shared by the streams. It keeps the
+     * quartet being built between calls, skips white space and stops
+     * after the first padded quartet, as {@link #decode(byte[], int, int, int)} does.
+     */
+    private static final class Decoder {
+
+        private final int options;
+        private final byte[] decodabet;
+        private final byte[] b4 = new byte[4];
+        private int b4Posn = 0;
+        private boolean finished = false;
+        private long position = 0;
+
+        Decoder( final int options ) {
+            this.options = options;
+            this.decodabet = getDecodabet( options );
+        }
+
+        /**
+         * Returns the maximum number of bytes decoded from <var>len</var> bytes
+         * of input, plus the room <code>decode4to3</code> needs to check its bounds.
+         */
+        static int getMaxDecodedLength( final int len ) {
+            return (len + 3) / 4 * 3 + 3;
+        }
+
+        /**
+         * Decodes Base64 bytes, writing the result to <var>destination</var>,
+         * which must have room for {@link #getMaxDecodedLength(int)} bytes.
+         * @return Number of decoded bytes
+         */
+        int decode( final byte[] source, final int off, final int len,
+                    final byte[] destination, final int destOff ) throws java.io.IOException {
+            int e = destOff;
+            for( int i = off; i < off + len && !this.finished; i++ ) {
+                final byte sbiDecode = this.decodabet[ source[i]&0xFF ];
+                if( sbiDecode >= WHITE_SPACE_ENC )  {
+                    if( sbiDecode >= EQUALS_SIGN_ENC ) {
+                        this.b4[ this.b4Posn++ ] = source[i];   // Save non-whitespace
+                        if( this.b4Posn > 3 ) {                 // Time to decode?
+                            e += decode4to3( this.b4, 0, destination, e, this.options );
+                            this.b4Posn = 0;
+                            // If that was the equals sign, ignore the rest of the input
+                            if( source[i] == EQUALS_SIGN ) {
+                                this.finished = true;
+                            }   // end if: equals sign
+                        }   // end if: quartet built
+                    }   // end if: equals sign or better
+                }   // end if: white space, equals sign or better
+                else {
+                    throw new java.io.IOException(
+                		String.format(
+            				"Bad Base64 input character decimal %d in stream position %d", //$NON-NLS-1$
+            				Integer.valueOf(source[i]&0xFF),
+            				Long.valueOf(this.position + i - off)
+        				)
+    				);
+                }   // end else
+            }   // each input character
+            this.position += len;
+            return e - destOff;
+        }
+
+        boolean isFinished() {
+            return this.finished;
+        }
+
+        /** Checks that the input did not end in the middle of a quartet. */
+        void finish() throws java.io.IOException {
+            if( this.b4Posn != 0 ) {
+                throw new java.io.IOException("Improperly padded Base64 input"); //$NON-NLS-1$
+            }
+        }
+    }   // end inner class Decoder
+
+
+
+/* ********  I N N E R   C L A S S   I N P U T S T R E A M  ******** */
+
+    /**
+     * A {@link Base64.InputStream} will read data from another
+     * <tt>java.io.InputStream</tt>, given in the constructor,
+     * and encode/decode to/from Base64 notation on the fly.
+     * Data is processed in blocks, so the whole input is never held in memory,
+     * and the result is the same as encoding or decoding the whole array.
+     * Mark and reset are not supported.
+     *
+     * @see Base64
+     */
+    public static final class InputStream extends java.io.FilterInputStream {
+
+        private final boolean encode;
+        private final int options;
+        private final byte[] raw;
+        private final byte[] buffer;
+        private final Decoder decoder;
+        private int position = 0;
+        private int limit = 0;
+        private boolean eof = false;
+
+        /**
+         * Constructs a {@link Base64.InputStream} in DECODE mode.
+         *
+         * @param in the <tt>java.io.InputStream</tt> from which to read data.
+         */
+        public InputStream( final java.io.InputStream in ) {
+            this( in, DECODE );
+        }   // end constructor
+
+        /**
+         * Constructs a {@link Base64.InputStream} in
+         * either ENCODE or DECODE mode.
+         * <p>
+         * Valid options:<pre>
+         *   ENCODE or DECODE: Encode or Decode as data is read.
+         *   DO_BREAK_LINES: break lines at 76 characters
+         *     (only meaningful when encoding)
+         *   URL_SAFE: use the URL- and Filename-safe alphabet
+         * </pre>
+         * <p>
+         * Example: <code>new Base64.InputStream( in, Base64.DECODE )</code>
+         *
+         * @param in the <tt>java.io.InputStream</tt> from which to read data.
+         * @param options Specified options
+         * @see Base64#ENCODE
+         * @see Base64#DECODE
+         * @see Base64#DO_BREAK_LINES
+         */
+        public InputStream( final java.io.InputStream in, final int options ) {
+            super( in );
+            this.options = options;
+            this.encode = (options & ENCODE) != 0;
+            if( this.encode ) {
+                this.raw = new byte[ ENCODE_CHUNK_SIZE ];
+                this.buffer = new byte[ getEncodedLength( ENCODE_CHUNK_SIZE, options ) ];
+                this.decoder = null;
+            }
+            else {
+                this.raw = new byte[ DECODE_CHUNK_SIZE ];
+                this.buffer = new byte[ Decoder.getMaxDecodedLength( DECODE_CHUNK_SIZE ) ];
+                this.decoder = new Decoder( options );
+            }
+        }   // end constructor
+
+        /**
+         * Reads enough of the input stream to convert
+         * to/from Base64 and returns the next byte.
+         *
+         * @return next byte
+         */
+        @Override
+        public int read() throws java.io.IOException {
+            if( this.position >= this.limit && !fill() ) {
+                return -1;
+            }
+            return this.buffer[ this.position++ ] & 0xFF;
+        }   // end read
+
+        /**
+         * Calls {@link #read()} repeatedly until the end of stream
+         * is reached or <var>len</var> bytes are read.
+         * Returns number of bytes read into array or -1 if
+         * end of stream is encountered.
+         *
+         * @param dest array to hold values
+         * @param off offset for array
+         * @param len max number of bytes to read into array
+         * @return bytes read into array or -1 if end of stream is encountered.
+         */
+        @Override
+        public int read( final byte[] dest, final int off, final int len ) throws java.io.IOException {
+            if( len == 0 ) {
+                return 0;
+            }
+            if( this.position >= this.limit && !fill() ) {
+                return -1;
+            }
+            final int n = Math.min( len, this.limit - this.position );
+            System.arraycopy( this.buffer, this.position, dest, off, n );
+            this.position += n;
+            return n;
+        }   // end read
+
+        @Override
+        public long skip( final long n ) throws java.io.IOException {
+            long skipped = 0;
+            while( skipped < n && ( this.position < this.limit || fill() ) ) {
+                final int k = (int) Math.min( n - skipped, this.limit - this.position );
+                this.position += k;
+                skipped += k;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return this.limit - this.position;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public synchronized void mark( final int readlimit ) {
+            // Not supported
+        }
+
+        @Override
+        public synchronized void reset() throws java.io.IOException {
+            throw new java.io.IOException("Base64.InputStream does not support mark/reset"); //$NON-NLS-1$
+        }
+
+        /** Converts the next block of the input stream.
+         * @return <code>false</code> if there is no more data */
+        private boolean fill() throws java.io.IOException {
+            while( !this.eof ) {
+                this.position = 0;
+                if( this.encode ) {
+                    // Every block but the last one must be full to keep the line breaks
+                    int n = 0;
+                    int r = 0;
+                    while( n < this.raw.length && ( r = this.in.read( this.raw, n, this.raw.length - n ) ) != -1 ) {
+                        n += r;
+                    }
+                    if( r == -1 ) {
+                        this.eof = true;
+                    }
+                    this.limit = encode( this.raw, 0, n, this.buffer, 0, this.options );
+                }
+                else {
+                    final int n = this.in.read( this.raw );
+                    if( n == -1 ) {
+                        this.eof = true;
+                        this.limit = 0;
+                        this.decoder.finish();
+                    }
+                    else {
+                        this.limit = this.decoder.decode( this.raw, 0, n, this.buffer, 0 );
+                        if( this.decoder.isFinished() ) {
+                            this.eof = true;
+                        }
+                    }
+                }
+                if( this.limit > 0 ) {
+                    return true;
+                }
+            }
+            return false;
+        }   // end fill
+
+    }   // end inner class InputStream
+
+
+
+/* ********  I N N E R   C L A S S   O U T P U T S T R E A M  ******** */
+
+    /**
+     * A {@link Base64.OutputStream} will write data to another
+     * <tt>java.io.OutputStream</tt>, given in the constructor,
+     * and encode/decode to/from Base64 notation on the fly.
+     * Data is processed in blocks, so the whole input is never held in memory,
+     * and the result is the same as encoding or decoding the whole array.
+     * The padding is written when the stream is closed or
+     * {@link #flushBase64()} is called.
+     *
+     * @see Base64
+     */
+    public static final class OutputStream extends java.io.FilterOutputStream {
+
+        private final boolean encode;
+        private final int options;
+        private final byte[] pending;
+        private int pendingLength = 0;
+        private final byte[] buffer;
+        private final Decoder decoder;
+        private final byte[] singleByte = new byte[1];
+        private boolean closed = false;
+
+        /**
+         * Constructs a {@link Base64.OutputStream} in ENCODE mode.
+         *
+         * @param out the <tt>java.io.OutputStream</tt> to which data will be written.
+         */
+        public OutputStream( final java.io.OutputStream out ) {
+            this( out, ENCODE );
+        }   // end constructor
+
+        /**
+         * Constructs a {@link Base64.OutputStream} in
+         * either ENCODE or DECODE mode.
+         * <p>
+         * Valid options:<pre>
+         *   ENCODE or DECODE: Encode or Decode as data is written.
+         *   DO_BREAK_LINES: break lines at 76 characters
+         *     (only meaningful when encoding)
+         *   URL_SAFE: use the URL- and Filename-safe alphabet
+         * </pre>
+         * <p>
+         * Example: <code>new Base64.OutputStream( out, Base64.ENCODE )</code>
+         *
+         * @param out the <tt>java.io.OutputStream</tt> to which data will be written.
+         * @param options Specified options.
+         * @see Base64#ENCODE
+         * @see Base64#DECODE
+         * @see Base64#DO_BREAK_LINES
+         */
+        public OutputStream( final java.io.OutputStream out, final int options ) {
+            super( out );
+            this.options = options;
+            this.encode = (options & ENCODE) != 0;
+            if( this.encode ) {
+                this.pending = new byte[ ENCODE_CHUNK_SIZE ];
+                this.buffer = new byte[ getEncodedLength( ENCODE_CHUNK_SIZE, options ) ];
+                this.decoder = null;
+            }
+            else {
+                this.pending = null;
+                this.buffer = new byte[ Decoder.getMaxDecodedLength( DECODE_CHUNK_SIZE ) ];
+                this.decoder = new Decoder( options );
+            }
+        }   // end constructor
+
+        /**
+         * Writes the byte to the output stream after
+         * converting to/from Base64 notation.
+         *
+         * @param theByte the byte to write
+         */
+        @Override
+        public void write( final int theByte ) throws java.io.IOException {
+            this.singleByte[0] = (byte) theByte;
+            write( this.singleByte, 0, 1 );
+        }   // end write
+
+        /**
+         * Converts <var>len</var> bytes of <var>theBytes</var>
+         * starting at <var>off</var> and writes them to the output stream.
+         *
+         * @param theBytes array from which to read bytes
+         * @param off offset for array
+         * @param len max number of bytes to read into array
+         */
+        @Override
+        public void write( final byte[] theBytes, final int off, final int len ) throws java.io.IOException {
+            if( this.closed ) {
+                throw new java.io.IOException("Base64.OutputStream is closed"); //$NON-NLS-1$
+            }
+            int o = off;
+            int l = len;
+            if( this.encode ) {
+                while( l > 0 ) {
+                    if( this.pendingLength == 0 && l >= this.pending.length ) {
+                        // Full blocks are encoded straight from the caller's array
+                        this.out.write( this.buffer, 0, encode( theBytes, o, this.pending.length, this.buffer, 0, this.options ) );
+                        o += this.pending.length;
+                        l -= this.pending.length;
+                        continue;
+                    }
+                    final int n = Math.min( l, this.pending.length - this.pendingLength );
+                    System.arraycopy( theBytes, o, this.pending, this.pendingLength, n );
+                    this.pendingLength += n;
+                    o += n;
+                    l -= n;
+                    if( this.pendingLength == this.pending.length ) {
+                        this.out.write( this.buffer, 0, encode( this.pending, 0, this.pendingLength, this.buffer, 0, this.options ) );
+                        this.pendingLength = 0;
+                    }
+                }
+            }
+            else {
+                while( l > 0 ) {
+                    final int n = Math.min( l, DECODE_CHUNK_SIZE );
+                    final int decoded = this.decoder.decode( theBytes, o, n, this.buffer, 0 );
+                    if( decoded > 0 ) {
+                        this.out.write( this.buffer, 0, decoded );
+                    }
+                    o += n;
+                    l -= n;
+                }
+            }
+        }   // end write
+
+        /**
+         * Encodes and pads the pending bytes without closing the stream.
+         * Data written afterwards starts a new Base64 block.
+         * @throws java.io.IOException  if there's an error.
+         */
+        public void flushBase64() throws java.io.IOException {
+            if( this.encode && this.pendingLength > 0 ) {
+                this.out.write( this.buffer, 0, encode( this.pending, 0, this.pendingLength, this.buffer, 0, this.options ) );
+                this.pendingLength = 0;
+            }
+        }   // end flushBase64
+
+        /**
+         * Writes the pending bytes with their padding and closes the
+         * underlying stream.
+         */
+        @Override
+        public void close() throws java.io.IOException {
+            if( this.closed ) {
+                return;
+            }
+            this.closed = true;
+            flushBase64();
+            if( this.decoder != null ) {
+                this.decoder.finish();
+            }
+            super.close();
+        }   // end close
+
+    }   // end inner class OutputStream
+
+
 }   // end class Base64
@@ -0,0 +1,184 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.core.misc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Lector de mensajes binarios escritos con {@link BinaryFieldsWriter}.
+ * <p>Los campos se recorren en orden con {@link #nextField()} y su contenido se lee como un
+ * flujo de datos, sin necesidad de cargarlo completo en memoria. Los campos que se leen
+ * completos en memoria con {@link #readFieldContent()} tienen un tama&ntilde;o m&aacute;ximo,
+ * para que un mensaje malicioso no pueda agotar la memoria de quien lo lee.</p> */
+public final class BinaryFieldsReader {
+
+	/** Tama&ntilde;o m&aacute;ximo por defecto, en octetos, del contenido de un campo que se lee completo en memoria. */
+	public static final int DEFAULT_MAX_FIELD_SIZE = 16 * 1024 * 1024;
+
+	private final DataInputStream in;
+
+	private final int maxFieldSize;
+
+	private FieldInputStream currentField = null;
+
+	private boolean finished = false;
+
+	/** Crea un lector de mensajes binarios que lee en memoria campos de hasta
+	 * {@link #DEFAULT_MAX_FIELD_SIZE} octetos.
+	 * @param is Flujo del que se lee el mensaje. */
+	public BinaryFieldsReader(final InputStream is) {
+		this(is, DEFAULT_MAX_FIELD_SIZE);
+	}
+
+	/** Crea un lector de mensajes binarios.
+	 * @param is Flujo del que se lee el mensaje.
+	 * @param maxSize Tama&ntilde;o m&aacute;ximo, en octetos, del contenido de los campos que se leen
+	 *                completos en memoria con {@link #readFieldContent()}. */
+	public BinaryFieldsReader(final InputStream is, final int maxSize) {
+		if (is == null) {
+			throw new IllegalArgumentException("El flujo de entrada no puede ser nulo"); //$NON-NLS-1$
+		}
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("El tamano maximo de los campos no puede ser negativo: " + maxSize); //$NON-NLS-1$
+		}
+		this.in = new DataInputStream(is);
+		this.maxFieldSize = maxSize;
+	}
+
+	/** Avanza hasta el siguiente campo del mensaje, descartando lo que quede sin leer del actual.
+	 * @return Nombre del siguiente campo o {@code null} si no hay m&aacute;s campos.
+	 * @throws IOException Si ocurre un error en la lectura o el mensaje est&aacute; mal formado. */
+	public String nextField() throws IOException {
+		if (this.finished) {
+			return null;
+		}
+		if (this.currentField != null) {
+			this.currentField.skipToEnd();
+			this.currentField = null;
+		}
+		final int mark = this.in.readByte();
+		if (mark == BinaryFieldsWriter.END_MARK) {
+			this.finished = true;
+			return null;
+		}
+		if (mark != BinaryFieldsWriter.FIELD_MARK) {
+			throw new IOException("Marca de campo no valida en el mensaje binario: " + mark); //$NON-NLS-1$
+		}
+		final String name = this.in.readUTF();
+		this.currentField = new FieldInputStream();
+		return name;
+	}
+
+	/** Obtiene el contenido del campo actual como flujo de datos. El flujo deja de ser
+	 * v&aacute;lido al avanzar al siguiente campo.
+	 * @return Contenido del campo actual. */
+	public InputStream getFieldContent() {
+		if (this.currentField == null) {
+			throw new IllegalStateException("No se ha posicionado el lector en ningun campo"); //$NON-NLS-1$
+		}
+		return this.currentField;
+	}
+
+	/** Lee completo el contenido del campo actual, que no puede superar el tama&ntilde;o
+	 * m&aacute;ximo de campo del lector.
+	 * @return Contenido del campo actual.
+	 * @throws IOException Si ocurre un error en la lectura o el campo supera el tama&ntilde;o m&aacute;ximo. */
+	public byte[] readFieldContent() throws IOException {
+		return readFieldContent(this.maxFieldSize);
+	}
+
+	/** Lee completo el contenido del campo actual, que no puede superar el tama&ntilde;o indicado.
+	 * @param maxSize Tama&ntilde;o m&aacute;ximo, en octetos, del contenido del campo.
+	 * @return Contenido del campo actual.
+	 * @throws IOException Si ocurre un error en la lectura o el campo supera el tama&ntilde;o indicado. */
+	public byte[] readFieldContent(final int maxSize) throws IOException {
+		final InputStream content = getFieldContent();
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+		int n;
+		while ((n = content.read(buffer, 0, buffer.length)) != -1) {
+			if ((long) baos.size() + n > maxSize) {
+				throw new IOException("El campo del mensaje binario supera el tamano maximo de " + maxSize + " octetos"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			baos.write(buffer, 0, n);
+		}
+		return baos.toByteArray();
+	}
+
+	/** Flujo de lectura del contenido de un campo, que se compone de bloques precedidos de su longitud. */
+	private final class FieldInputStream extends InputStream {
+
+		private int remaining = 0;
+
+		private boolean end = false;
+
+		FieldInputStream() {
+			// Constructor por defecto
+		}
+
+		private boolean nextChunk() throws IOException {
+			while (!this.end && this.remaining == 0) {
+				final int len = BinaryFieldsReader.this.in.readInt();
+				if (len < 0) {
+					throw new IOException("Longitud de bloque no valida en el mensaje binario: " + len); //$NON-NLS-1$
+				}
+				if (len == 0) {
+					this.end = true;
+				}
+				this.remaining = len;
+			}
+			return !this.end;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!nextChunk()) {
+				return -1;
+			}
+			final int b = BinaryFieldsReader.this.in.read();
+			if (b == -1) {
+				throw new IOException("Fin inesperado del mensaje binario"); //$NON-NLS-1$
+			}
+			this.remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!nextChunk()) {
+				return -1;
+			}
+			final int n = BinaryFieldsReader.this.in.read(b, off, Math.min(len, this.remaining));
+			if (n == -1) {
+				throw new IOException("Fin inesperado del mensaje binario"); //$NON-NLS-1$
+			}
+			this.remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return this.end ? 0 : Math.min(this.remaining, BinaryFieldsReader.this.in.available());
+		}
+
+		void skipToEnd() throws IOException {
+			final byte[] buffer = new byte[4096];
+			while (read(buffer, 0, buffer.length) != -1) {
+				// Descartamos el contenido
+			}
+		}
+	}
+}
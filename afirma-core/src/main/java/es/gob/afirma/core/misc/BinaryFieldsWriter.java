@@ -0,0 +1,99 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.core.misc;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/** Escritor de mensajes binarios formados por una secuencia de campos con nombre.
+ * <p>Cada campo se escribe como una marca de campo, su nombre (en UTF-8 modificado, seg&uacute;n
+ * {@link java.io.DataOutput#writeUTF(String)}) y su contenido dividido en bloques, cada uno
+ * precedido de su longitud como entero de 4 octetos. El contenido termina con un bloque de
+ * longitud 0 y el mensaje con una marca de fin. Al no necesitar conocer de antemano la longitud
+ * de los contenidos, estos pueden copiarse directamente desde un flujo de datos.</p>
+ * <p>Los mensajes se leen con {@link BinaryFieldsReader}.</p> */
+public final class BinaryFieldsWriter {
+
+	/** Marca de inicio de campo. */
+	static final int FIELD_MARK = 1;
+
+	/** Marca de fin de mensaje. */
+	static final int END_MARK = 0;
+
+	/** Tama&ntilde;o m&aacute;ximo de los bloques de contenido. */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final DataOutputStream out;
+
+	/** Crea un escritor de mensajes binarios.
+	 * @param os Flujo en el que se escribe el mensaje. */
+	public BinaryFieldsWriter(final OutputStream os) {
+		if (os == null) {
+			throw new IllegalArgumentException("El flujo de salida no puede ser nulo"); //$NON-NLS-1$
+		}
+		this.out = new DataOutputStream(os);
+	}
+
+	/** Escribe un campo del mensaje.
+	 * @param name Nombre del campo.
+	 * @param value Contenido del campo.
+	 * @throws IOException Si ocurre un error en la escritura. */
+	public void writeField(final String name, final byte[] value) throws IOException {
+		if (value == null) {
+			throw new IllegalArgumentException("El contenido del campo no puede ser nulo"); //$NON-NLS-1$
+		}
+		writeFieldName(name);
+		for (int offset = 0; offset < value.length; offset += CHUNK_SIZE) {
+			final int len = Math.min(CHUNK_SIZE, value.length - offset);
+			this.out.writeInt(len);
+			this.out.write(value, offset, len);
+		}
+		this.out.writeInt(0);
+	}
+
+	/** Escribe un campo del mensaje copiando su contenido desde un flujo de datos, que
+	 * se lee hasta el final pero no se cierra.
+	 * @param name Nombre del campo.
+	 * @param value Flujo con el contenido del campo.
+	 * @throws IOException Si ocurre un error en la lectura o en la escritura. */
+	public void writeField(final String name, final InputStream value) throws IOException {
+		if (value == null) {
+			throw new IllegalArgumentException("El contenido del campo no puede ser nulo"); //$NON-NLS-1$
+		}
+		writeFieldName(name);
+		final byte[] buffer = new byte[CHUNK_SIZE];
+		int n;
+		while ((n = value.read(buffer)) > -1) {
+			if (n > 0) {
+				this.out.writeInt(n);
+				this.out.write(buffer, 0, n);
+			}
+		}
+		this.out.writeInt(0);
+	}
+
+	/** Termina el mensaje y vac&iacute;a el flujo de salida, que no se cierra.
+	 * @throws IOException Si ocurre un error en la escritura. */
+	public void finish() throws IOException {
+		this.out.writeByte(END_MARK);
+		this.out.flush();
+	}
+
+	private void writeFieldName(final String name) throws IOException {
+		if (name == null || name.length() == 0) {
+			throw new IllegalArgumentException("El nombre del campo no puede ser nulo ni vacio"); //$NON-NLS-1$
+		}
+		this.out.writeByte(FIELD_MARK);
+		this.out.writeUTF(name);
+	}
+}
@@ -64,7 +64,8 @@ public final class MimeHelper {
             throw new IllegalArgumentException("No se han indicado los datos que se desean analizar"); //$NON-NLS-1$
         }
 
-        this.data = data.clone();
+        // Los datos nunca se modifican, asi que no es necesario copiarlos
+        this.data = data;
         this.mimeInfo = new MimeInfo();
 
         try {
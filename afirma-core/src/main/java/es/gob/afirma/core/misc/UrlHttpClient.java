@@ -0,0 +1,346 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.core.misc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/** Cliente HTTP y HTTPS reutilizable.
+ * <p>Cada instancia tiene su propia configuraci&oacute;n SSL, que se aplica a cada conexi&oacute;n sin
+ * modificar la configuraci&oacute;n por defecto de {@link HttpsURLConnection}, por lo que distintas
+ * instancias pueden usarse a la vez desde varios hilos. Al usar siempre la misma factor&iacute;a de
+ * <i>sockets</i> SSL, las sesiones TLS se reutilizan entre peticiones y las conexiones persistentes
+ * (<i>keep-alive</i>) de Java pueden volver a usarse.</p>
+ * <p>El n&uacute;mero de peticiones simult&aacute;neas puede limitarse por instancia, de forma que el
+ * l&iacute;mite de un cliente no afecta a las peticiones de otros. El l&iacute;mite se aplica a todas las
+ * peticiones del cliente, incluido el cliente compartido {@link #getTrustAllInstance()}. Las conexiones de
+ * {@link #openConnection(URL)} y {@link #openPostConnection(String, String, int)} ocupan una de las peticiones
+ * simult&aacute;neas hasta que quien las usa llama a {@link #releaseConnection(URLConnection)}. Las conexiones persistentes libres
+ * las mantiene la cach&eacute; de Java, cuyo tama&ntilde;o por servidor se configura con la propiedad de
+ * sistema <code>http.maxConnections</code>.</p> */
+public final class UrlHttpClient {
+
+	/** Valor de tiempo m&aacute;ximo de espera con el que se usa el por defecto de Java. */
+	public static final int DEFAULT_TIMEOUT = -1;
+
+	/** N&uacute;mero m&aacute;ximo por defecto de peticiones simult&aacute;neas. */
+	public static final int DEFAULT_MAX_CONNECTIONS = 10;
+
+	/** Valor del n&uacute;mero m&aacute;ximo de peticiones simult&aacute;neas que indica que no hay l&iacute;mite. */
+	public static final int UNLIMITED_CONNECTIONS = 0;
+
+	private static final TrustManager[] DUMMY_TRUST_MANAGER = new TrustManager[] {
+		new X509TrustManager() {
+			@Override
+			public java.security.cert.X509Certificate[] getAcceptedIssuers() {
+				return null;
+			}
+			@Override
+			public void checkClientTrusted(final X509Certificate[] certs, final String authType) { /* No hacemos nada */ }
+			@Override
+			public void checkServerTrusted(final X509Certificate[] certs, final String authType) {  /* No hacemos nada */  }
+
+		}
+	};
+
+	private static final HostnameVerifier DUMMY_HOSTNAME_VERIFIER = new HostnameVerifier() {
+		@Override
+		public boolean verify(final String hostname, final SSLSession session) {
+			return true;
+		}
+	};
+
+	private static UrlHttpClient trustAllInstance = null;
+
+	private final SSLSocketFactory sslSocketFactory;
+	private final HostnameVerifier hostnameVerifier;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final Semaphore connections;
+
+	/** Conexiones abiertas por quienes usan el cliente que ocupan una de sus peticiones
+	 * simult&aacute;neas y a&uacute;n no se han liberado. */
+	private final Set<URLConnection> openConnections =
+			Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<URLConnection, Boolean>()));
+
+	/** Crea un cliente HTTP que usa la configuraci&oacute;n SSL y los tiempos de espera por defecto de Java. */
+	public UrlHttpClient() {
+		this(null, null, DEFAULT_TIMEOUT, DEFAULT_TIMEOUT, DEFAULT_MAX_CONNECTIONS);
+	}
+
+	/** Crea un cliente HTTP.
+	 * @param sslContext Contexto SSL de las conexiones HTTPS o <code>null</code> para usar el de Java por defecto.
+	 * @param verifier Verificador del nombre del servidor en las conexiones HTTPS o <code>null</code> para
+	 *                 usar el de Java por defecto.
+	 * @param connectTimeout Tiempo m&aacute;ximo en milisegundos para establecer la conexi&oacute;n. Un valor
+	 *                       de 0 se interpreta como infinito y {@link #DEFAULT_TIMEOUT} usa el de Java por defecto.
+	 * @param readTimeout Tiempo m&aacute;ximo en milisegundos que se espera por la respuesta. Un valor
+	 *                    de 0 se interpreta como infinito y {@link #DEFAULT_TIMEOUT} usa el de Java por defecto.
+	 * @param maxConnections N&uacute;mero m&aacute;ximo de peticiones simult&aacute;neas de este cliente o
+	 *                       {@link #UNLIMITED_CONNECTIONS} para no limitarlas. */
+	public UrlHttpClient(final SSLContext sslContext,
+			final HostnameVerifier verifier,
+			final int connectTimeout,
+			final int readTimeout,
+			final int maxConnections) {
+		if (maxConnections < 0) {
+			throw new IllegalArgumentException("El numero maximo de conexiones no puede ser negativo: " + maxConnections); //$NON-NLS-1$
+		}
+		this.sslSocketFactory = sslContext != null ? sslContext.getSocketFactory() : null;
+		this.hostnameVerifier = verifier;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.connections = maxConnections != UNLIMITED_CONNECTIONS ? new Semaphore(maxConnections, true) : null;
+	}
+
+	/** Obtiene el cliente HTTP compartido que no hace comprobaciones del certificado del servidor en HTTPS.
+	 * Admite hasta {@link #DEFAULT_MAX_CONNECTIONS} peticiones simult&aacute;neas entre todos sus usuarios.
+	 * Quien necesite otro l&iacute;mite debe crear su propio cliente.
+	 * @return Cliente HTTP sin comprobaciones SSL. */
+	public static synchronized UrlHttpClient getTrustAllInstance() {
+		if (trustAllInstance == null) {
+			SSLContext sc;
+			try {
+				sc = SSLContext.getInstance("SSL"); //$NON-NLS-1$
+				sc.init(null, DUMMY_TRUST_MANAGER, new java.security.SecureRandom());
+			}
+			catch (final Exception e) {
+				Logger.getLogger("es.gob.afirma").warning( //$NON-NLS-1$
+						"No se ha podido ajustar la confianza SSL, es posible que no se pueda completar la conexion: " + e //$NON-NLS-1$
+						);
+				sc = null;
+			}
+			trustAllInstance = new UrlHttpClient(sc, DUMMY_HOSTNAME_VERIFIER, DEFAULT_TIMEOUT, DEFAULT_TIMEOUT, DEFAULT_MAX_CONNECTIONS);
+		}
+		return trustAllInstance;
+	}
+
+	/** Abre una conexi&oacute;n con la configuraci&oacute;n SSL y los tiempos de espera de este cliente.
+	 * La conexi&oacute;n ocupa una de las peticiones simult&aacute;neas del cliente, esperando si es
+	 * necesario a que quede una libre, hasta que se llama a {@link #releaseConnection(URLConnection)}.
+	 * Esa llamada debe hacerse siempre, normalmente en un bloque <code>finally</code>.
+	 * @param url URL a la que conectar.
+	 * @return Conexi&oacute;n sin establecer, para que se configure la petici&oacute;n.
+	 * @throws IOException Si no se puede abrir la conexi&oacute;n. */
+	public URLConnection openConnection(final URL url) throws IOException {
+		acquire();
+		boolean opened = false;
+		try {
+			final URLConnection conn = openConnection(url, this.connectTimeout, this.readTimeout);
+			track(conn);
+			opened = true;
+			return conn;
+		}
+		finally {
+			if (!opened) {
+				release();
+			}
+		}
+	}
+
+	/** Abre una conexi&oacute;n en la que el tiempo de espera indicado, si no es el por defecto, sustituye
+	 * a los de este cliente tanto para establecer la conexi&oacute;n como para leer la respuesta. */
+	private URLConnection openConnection(final URL url, final int timeout) throws IOException {
+		if (timeout != DEFAULT_TIMEOUT) {
+			return openConnection(url, timeout, timeout);
+		}
+		return openConnection(url, this.connectTimeout, this.readTimeout);
+	}
+
+	private URLConnection openConnection(final URL url, final int connTimeout, final int rTimeout) throws IOException {
+		final URLConnection conn = url.openConnection();
+		if (conn instanceof HttpsURLConnection) {
+			if (this.sslSocketFactory != null) {
+				((HttpsURLConnection) conn).setSSLSocketFactory(this.sslSocketFactory);
+			}
+			if (this.hostnameVerifier != null) {
+				((HttpsURLConnection) conn).setHostnameVerifier(this.hostnameVerifier);
+			}
+		}
+		if (connTimeout != DEFAULT_TIMEOUT) {
+			conn.setConnectTimeout(connTimeout);
+		}
+		if (rTimeout != DEFAULT_TIMEOUT) {
+			conn.setReadTimeout(rTimeout);
+		}
+		return conn;
+	}
+
+	/** Lee una URL HTTP o HTTPS por POST si se indican par&aacute;metros en la URL y por GET en caso contrario.
+	 * @param url URL a leer
+	 * @return Contenido de la URL
+	 * @throws IOException Si no se puede leer la URL */
+	public byte[] readUrlByPost(final String url) throws IOException {
+		return readUrlByPost(url, DEFAULT_TIMEOUT);
+	}
+
+	/** Lee una URL HTTP o HTTPS por POST si se indican par&aacute;metros en la URL y por GET en caso contrario.
+	 * @param url URL a leer
+	 * @param timeout Tiempo m&aacute;ximo en milisegundos que se debe esperar por la respuesta. Un timeout de 0
+	 * se interpreta como un timeout infinito. Si se indica -1, se usar&aacute; el de este cliente.
+	 * @return Contenido de la URL
+	 * @throws IOException Si no se puede leer la URL */
+	public byte[] readUrlByPost(final String url, final int timeout) throws IOException {
+		if (url == null) {
+			throw new IllegalArgumentException("La URL a leer no puede ser nula"); //$NON-NLS-1$
+		}
+
+		// Si la URL no tiene parametros la leemos por GET
+		final int paramsPos = url.indexOf('?');
+		if (paramsPos == -1) {
+			return readUrlByGet(url);
+		}
+
+		final URL uri = new URL(url.substring(0, paramsPos));
+		final String urlParameters = url.substring(paramsPos + 1);
+
+		acquire();
+		try {
+			final HttpURLConnection conn = (HttpURLConnection) openConnection(uri, timeout);
+			conn.setRequestMethod("POST"); //$NON-NLS-1$
+			conn.setDoOutput(true);
+
+			final OutputStreamWriter writer = new OutputStreamWriter(conn.getOutputStream());
+			writer.write(urlParameters);
+			writer.close();
+
+			// Leemos la respuesta completa y cerramos el flujo para que la conexion pueda reutilizarse
+			final InputStream is = conn.getInputStream();
+			try {
+				return AOUtil.getDataFromInputStream(is);
+			}
+			finally {
+				is.close();
+			}
+		}
+		finally {
+			release();
+		}
+	}
+
+	/** Lee una URL HTTP o HTTPS por GET.
+	 * @param url URL a leer
+	 * @return Contenido de la URL
+	 * @throws IOException Si no se puede leer la URL */
+	public byte[] readUrlByGet(final String url) throws IOException {
+		acquire();
+		try {
+			final InputStream is = openConnection(new URL(url), DEFAULT_TIMEOUT).getInputStream();
+			try {
+				return AOUtil.getDataFromInputStream(is);
+			}
+			finally {
+				is.close();
+			}
+		}
+		finally {
+			release();
+		}
+	}
+
+	/** Abre una conexi&oacute;n HTTP o HTTPS por POST en la que el cuerpo de la petici&oacute;n se env&iacute;a
+	 * por bloques seg&uacute;n se escribe en el flujo de salida de la conexi&oacute;n, sin cargarlo antes en memoria.
+	 * La respuesta se lee del flujo de entrada de la conexi&oacute;n, que debe leerse completo y cerrarse para
+	 * que la conexi&oacute;n pueda reutilizarse.
+	 * <p>La conexi&oacute;n ocupa una de las peticiones simult&aacute;neas del cliente, esperando si es
+	 * necesario a que quede una libre, hasta que se llama a {@link #releaseConnection(URLConnection)}.
+	 * Esa llamada debe hacerse siempre, normalmente en un bloque <code>finally</code>.</p>
+	 * @param url URL a la que conectar, incluyendo los par&aacute;metros de la URL si los hubiese
+	 * @param contentType Tipo de contenido del cuerpo de la petici&oacute;n
+	 * @param timeout Tiempo m&aacute;ximo en milisegundos que se debe esperar por la respuesta. Un timeout de 0
+	 * se interpreta como un timeout infinito. Si se indica -1, se usar&aacute; el de este cliente.
+	 * @return Conexi&oacute;n abierta
+	 * @throws IOException Si no se puede abrir la conexi&oacute;n */
+	public HttpURLConnection openPostConnection(final String url, final String contentType, final int timeout) throws IOException {
+		if (url == null) {
+			throw new IllegalArgumentException("La URL a leer no puede ser nula"); //$NON-NLS-1$
+		}
+
+		acquire();
+		boolean opened = false;
+		try {
+			final HttpURLConnection conn = (HttpURLConnection) openConnection(new URL(url), timeout);
+			conn.setRequestMethod("POST"); //$NON-NLS-1$
+			if (contentType != null) {
+				conn.setRequestProperty("Content-Type", contentType); //$NON-NLS-1$
+			}
+			conn.setChunkedStreamingMode(0);
+			conn.setDoOutput(true);
+
+			track(conn);
+			opened = true;
+			return conn;
+		}
+		finally {
+			if (!opened) {
+				release();
+			}
+		}
+	}
+
+	/** Libera la petici&oacute;n simult&aacute;nea que ocupa una conexi&oacute;n abierta con
+	 * {@link #openConnection(URL)} o {@link #openPostConnection(String, String, int)}. No cierra la
+	 * conexi&oacute;n, para que Java pueda reutilizarla si se ha le&iacute;do la respuesta completa.
+	 * Liberar varias veces la misma conexi&oacute;n no tiene efecto.
+	 * @param conn Conexi&oacute;n abierta por este cliente. */
+	public void releaseConnection(final URLConnection conn) {
+		if (conn != null && this.openConnections.remove(conn)) {
+			release();
+		}
+	}
+
+	/** Registra una conexi&oacute;n que ocupa una de las peticiones simult&aacute;neas del cliente hasta
+	 * que se libere.
+	 * @param conn Conexi&oacute;n abierta. */
+	private void track(final URLConnection conn) {
+		if (this.connections != null) {
+			this.openConnections.add(conn);
+		}
+	}
+
+	private void acquire() throws InterruptedIOException {
+		if (this.connections == null) {
+			return;
+		}
+		try {
+			this.connections.acquire();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Se ha interrumpido la espera de una conexion libre"); //$NON-NLS-1$
+		}
+	}
+
+	private void release() {
+		if (this.connections != null) {
+			this.connections.release();
+		}
+	}
+}
@@ -11,53 +11,23 @@
 package es.gob.afirma.core.misc;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.X509Certificate;
-import java.util.StringTokenizer;
-import java.util.logging.Logger;
-
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
+import java.net.URLConnection;
 
 /** Implementacion de ua clase para la lectura del contenido de una URL.
+ * <p>Las conexiones se realizan mediante el cliente compartido {@link UrlHttpClient#getTrustAllInstance()},
+ * que desactiva las comprobaciones SSL &uacute;nicamente en sus propias conexiones, sin modificar la
+ * configuraci&oacute;n por defecto de Java del resto de la aplicaci&oacute;n, y que limita el n&uacute;mero
+ * de peticiones simult&aacute;neas.</p>
  * @author Carlos Gamuci */
 public final class UrlHttpManagerImpl {
 
-	private static final int DEFAULT_TIMEOUT = -1;
+	private static final int DEFAULT_TIMEOUT = UrlHttpClient.DEFAULT_TIMEOUT;
 	
 	private UrlHttpManagerImpl() {
 		// No permitimos la instanciacion
 	}
 
-	private static final String HTTPS = "https"; //$NON-NLS-1$
-
-	private static final HostnameVerifier DEFAULT_HOSTNAME_VERIFIER = HttpsURLConnection.getDefaultHostnameVerifier();
-	private static final SSLSocketFactory DEFAULT_SSL_SOCKET_FACTORY = HttpsURLConnection.getDefaultSSLSocketFactory();
-
-	private static final TrustManager[] DUMMY_TRUST_MANAGER = new TrustManager[] {
-		new X509TrustManager() {
-			@Override
-			public java.security.cert.X509Certificate[] getAcceptedIssuers() {
-				return null;
-			}
-			@Override
-			public void checkClientTrusted(final X509Certificate[] certs, final String authType) { /* No hacemos nada */ }
-			@Override
-			public void checkServerTrusted(final X509Certificate[] certs, final String authType) {  /* No hacemos nada */  }
-
-		}
-	};
-
 	/** Lee una URL HTTP o HTTPS por POST si se indican par&aacute;metros en la URL y por GET en caso contrario.
 	 * En HTTPS no se hacen comprobaciones del certificado servidor.
 	 * @param url URL a leer
@@ -75,98 +45,50 @@ public final class UrlHttpManagerImpl {
 	 * @return Contenido de la URL
 	 * @throws IOException Si no se puede leer la URL */
 	public static byte[] readUrlByPost(final String url, final int timeout) throws IOException {
-		if (url == null) {
-			throw new IllegalArgumentException("La URL a leer no puede ser nula"); //$NON-NLS-1$
-		}
-
-		// Si la URL no tiene parametros la leemos por GET
-		if (!url.contains("?")) { //$NON-NLS-1$
-			return readUrlByGet(url);
-		}
-
-		final StringTokenizer st = new StringTokenizer(url, "?"); //$NON-NLS-1$
-		final String request = st.nextToken();
-		final String urlParameters = st.nextToken();
-
-		final URL uri = new URL(request);
-
-		if (uri.getProtocol().equals(HTTPS)) {
-			try {
-				disableSslChecks();
-			}
-			catch(final Exception e) {
-				Logger.getLogger("es.gob.afirma").warning( //$NON-NLS-1$
-						"No se ha podido ajustar la confianza SSL, es posible que no se pueda completar la conexion: " + e //$NON-NLS-1$
-						);
-			}
-		}
-
-		final HttpURLConnection conn = (HttpURLConnection) uri.openConnection();
-		conn.setRequestMethod("POST"); //$NON-NLS-1$
-		if (timeout != DEFAULT_TIMEOUT) {
-			conn.setConnectTimeout(timeout);
-			conn.setReadTimeout(timeout);
-		}
-
-		conn.setDoOutput(true);
-
-		final OutputStreamWriter writer = new OutputStreamWriter(conn.getOutputStream());
-
-		writer.write(urlParameters);
-		writer.flush();
-
-		final InputStream is = conn.getInputStream();
-		final byte[] data = AOUtil.getDataFromInputStream(is);
-		is.close();
+		return UrlHttpClient.getTrustAllInstance().readUrlByPost(url, timeout);
+	}
+	
+	/** Abre una conexi&oacute;n HTTP o HTTPS por POST en la que el cuerpo de la petici&oacute;n se env&iacute;a
+	 * por bloques seg&uacute;n se escribe en el flujo de salida de la conexi&oacute;n, sin cargarlo antes en memoria.
+	 * La respuesta se lee del flujo de entrada de la conexi&oacute;n.
+	 * En HTTPS no se hacen comprobaciones del certificado servidor.
+	 * La conexi&oacute;n debe liberarse siempre con {@link #releaseConnection(URLConnection)}.
+	 * @param url URL a la que conectar, incluyendo los par&aacute;metros de la URL si los hubiese
+	 * @param contentType Tipo de contenido del cuerpo de la petici&oacute;n
+	 * @return Conexi&oacute;n abierta
+	 * @throws IOException Si no se puede abrir la conexi&oacute;n */
+	public static HttpURLConnection openPostConnection(final String url, final String contentType) throws IOException {
+		return openPostConnection(url, contentType, DEFAULT_TIMEOUT);
+	}
 
-		if (uri.getProtocol().equals(HTTPS)) {
-			enableSslChecks();
-		}
+	/** Abre una conexi&oacute;n HTTP o HTTPS por POST en la que el cuerpo de la petici&oacute;n se env&iacute;a
+	 * por bloques seg&uacute;n se escribe en el flujo de salida de la conexi&oacute;n, sin cargarlo antes en memoria.
+	 * La respuesta se lee del flujo de entrada de la conexi&oacute;n.
+	 * En HTTPS no se hacen comprobaciones del certificado servidor.
+	 * La conexi&oacute;n debe liberarse siempre con {@link #releaseConnection(URLConnection)}.
+	 * @param url URL a la que conectar, incluyendo los par&aacute;metros de la URL si los hubiese
+	 * @param contentType Tipo de contenido del cuerpo de la petici&oacute;n
+	 * @param timeout Tiempo m&aacute;ximo en milisegundos que se debe esperar por la respuesta. Un timeout de 0
+	 * se interpreta como un timeout infinito. Si se indica -1, se usar&aacute; el por defecto de Java.
+	 * @return Conexi&oacute;n abierta
+	 * @throws IOException Si no se puede abrir la conexi&oacute;n */
+	public static HttpURLConnection openPostConnection(final String url, final String contentType, final int timeout) throws IOException {
+		return UrlHttpClient.getTrustAllInstance().openPostConnection(url, contentType, timeout);
+	}
 
-		return data;
+	/** Libera la petici&oacute;n simult&aacute;nea que ocupa una conexi&oacute;n abierta con
+	 * {@link #openPostConnection(String, String, int)}.
+	 * @param conn Conexi&oacute;n a liberar. */
+	public static void releaseConnection(final URLConnection conn) {
+		UrlHttpClient.getTrustAllInstance().releaseConnection(conn);
 	}
-	
+
 	/** Lee una URL HTTP o HTTPS por GET. En HTTPS no se hacen comprobaciones del certificado servidor.
 	 * @param url URL a leer
 	 * @return Contenido de la URL
 	 * @throws IOException Si no se puede leer la URL */
 	public static byte[] readUrlByGet(final String url) throws IOException {
-		final URL uri = new URL(url);
-		if (uri.getProtocol().equals("https")) { //$NON-NLS-1$
-			try {
-				disableSslChecks();
-			}
-			catch(final Exception e) {
-				Logger.getLogger("es.gob.afirma").warning( //$NON-NLS-1$
-						"No se ha podido ajustar la confianza SSL, es posible que no se pueda completar la conexion: " + e //$NON-NLS-1$
-						);
-			}
-		}
-		final InputStream is = uri.openStream();
-		final byte[] data = AOUtil.getDataFromInputStream(is);
-		is.close();
-		if (uri.getProtocol().equals("https")) { //$NON-NLS-1$
-			enableSslChecks();
-		}
-		return data;
-	}
-
-	private static void enableSslChecks() {
-		HttpsURLConnection.setDefaultSSLSocketFactory(DEFAULT_SSL_SOCKET_FACTORY);
-		HttpsURLConnection.setDefaultHostnameVerifier(DEFAULT_HOSTNAME_VERIFIER);
+		return UrlHttpClient.getTrustAllInstance().readUrlByGet(url);
 	}
 
-	private static void disableSslChecks() throws KeyManagementException, NoSuchAlgorithmException {
-		final SSLContext sc = SSLContext.getInstance("SSL"); //$NON-NLS-1$
-		sc.init(null, DUMMY_TRUST_MANAGER, new java.security.SecureRandom());
-		HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
-		HttpsURLConnection.setDefaultHostnameVerifier(new HostnameVerifier() {
-			@Override
-			public boolean verify(final String hostname, final SSLSession session) {
-				return true;
-			}
-		});
-	}
-
-
 }
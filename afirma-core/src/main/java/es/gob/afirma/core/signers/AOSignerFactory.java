@@ -11,17 +11,22 @@
 package es.gob.afirma.core.signers;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
+import es.gob.afirma.core.misc.AOFileUtils;
+
 /** Factor&iacute;a que gestiona todos los formatos de firma disponibles en cada
  * momento en el cliente. */
 public final class AOSignerFactory {
 
 	private static final Logger LOGGER = Logger.getLogger("es.gob.afirma"); //$NON-NLS-1$
 
-	private static final Map<String, AOSigner> SIGNERS = new HashMap<String, AOSigner>(20);
+	/** Manejadores de firma ya instanciados, indexados por el nombre de su clase. */
+	private static final ConcurrentMap<String, AOSigner> SIGNERS = new ConcurrentHashMap<String, AOSigner>(20);
 
 	/* Listado de los manejador de firma soportados y los identificadores de formato de firma asociados. */
 	private static final String SIGNER_CLASS_CADES = "es.gob.afirma.signers.cades.AOCAdESSigner"; //$NON-NLS-1$
@@ -36,33 +41,65 @@ public final class AOSignerFactory {
 	private static final String SIGNER_CLASS_ODF = "es.gob.afirma.signers.odf.AOODFSigner"; //$NON-NLS-1$
 	private static final String SIGNER_CLASS_OOXML = "es.gob.afirma.signers.ooxml.AOOOXMLSigner"; //$NON-NLS-1$
 
+	/* Familias de codificacion de las firmas, detectables sin analizar la firma. */
+	static final String FAMILY_ASN1 = "ASN.1"; //$NON-NLS-1$
+	static final String FAMILY_XML = "XML"; //$NON-NLS-1$
+	static final String FAMILY_PDF = "PDF"; //$NON-NLS-1$
+	static final String FAMILY_ODF = "ODF"; //$NON-NLS-1$
+	static final String FAMILY_OOXML = "OOXML"; //$NON-NLS-1$
+
+	/** Cabecera de los ficheros PDF. */
+	private static final String PDF_HEADER = "%PDF-"; //$NON-NLS-1$
+
+	/** N&uacute;mero m&aacute;ximo de bytes iniciales en los que se busca el comienzo de un XML. */
+	private static final int XML_HEADER_SEARCH_LENGTH = 1024;
+
+	/** Entrada de los documentos ODF con su tipo MIME. */
+	private static final String ODF_MIMETYPE_ENTRY = "mimetype"; //$NON-NLS-1$
+
+	/** Firma del registro de fin del directorio central de un ZIP. */
+	private static final int ZIP_END_SIGNATURE = 0x06054b50;
+
+	/** Firma de las entradas del directorio central de un ZIP. */
+	private static final int ZIP_CENTRAL_ENTRY_SIGNATURE = 0x02014b50;
+
+	/** Tama&ntilde;o m&iacute;nimo del registro de fin del directorio central de un ZIP. */
+	private static final int ZIP_END_LENGTH = 22;
+
+	/** Tama&ntilde;o m&aacute;ximo del comentario de un ZIP, que sigue al registro de fin del directorio central. */
+	private static final int ZIP_MAX_COMMENT_LENGTH = 0xFFFF;
+
+	/** Tama&ntilde;o de la parte fija de las entradas del directorio central de un ZIP. */
+	private static final int ZIP_CENTRAL_ENTRY_LENGTH = 46;
+
 	// Listado los formatos con la siguiente informacion:
 	// 0.- Nombre
 	// 1.- Clase manejadora
 	// 2.- Soporte de identificacion de firmas
+	// 3.- Familia de codificacion de las firmas
 	private static final String[][] SIGNERS_CLASSES = new String[][] {
-		{AOSignConstants.SIGN_FORMAT_CADES, SIGNER_CLASS_CADES, Boolean.TRUE.toString()},
-		{AOSignConstants.SIGN_FORMAT_CADES_TRI, SIGNER_CLASS_CADES_TRI, Boolean.FALSE.toString()},
-		{AOSignConstants.SIGN_FORMAT_CMS, SIGNER_CLASS_CMS, Boolean.TRUE.toString()},
-		{AOSignConstants.SIGN_FORMAT_FACTURAE, SIGNER_CLASS_FACTURAE, Boolean.TRUE.toString()},
-		{AOSignConstants.SIGN_FORMAT_FACTURAE_ALT1, SIGNER_CLASS_FACTURAE, Boolean.FALSE.toString()},
-		{AOSignConstants.SIGN_FORMAT_XADES, SIGNER_CLASS_XADES, Boolean.TRUE.toString()},
-		{AOSignConstants.SIGN_FORMAT_XADES_TRI, SIGNER_CLASS_XADES_TRI, Boolean.FALSE.toString()},
-		{AOSignConstants.SIGN_FORMAT_XADES_DETACHED, SIGNER_CLASS_XADES, Boolean.FALSE.toString()},
-		{AOSignConstants.SIGN_FORMAT_XADES_ENVELOPED, SIGNER_CLASS_XADES, Boolean.FALSE.toString()},
-		{AOSignConstants.SIGN_FORMAT_XADES_ENVELOPING, SIGNER_CLASS_XADES, Boolean.FALSE.toString()},
-		{AOSignConstants.SIGN_FORMAT_XMLDSIG, SIGNER_CLASS_XMLDSIG, Boolean.TRUE.toString()},
-		{AOSignConstants.SIGN_FORMAT_XMLDSIG_DETACHED, SIGNER_CLASS_XMLDSIG, Boolean.FALSE.toString()},
-		{AOSignConstants.SIGN_FORMAT_XMLDSIG_ENVELOPED, SIGNER_CLASS_XMLDSIG, Boolean.FALSE.toString()},
-		{AOSignConstants.SIGN_FORMAT_XMLDSIG_ENVELOPING, SIGNER_CLASS_XMLDSIG, Boolean.FALSE.toString()},
-		{AOSignConstants.SIGN_FORMAT_PDF, SIGNER_CLASS_PADES, Boolean.FALSE.toString()},
-		{AOSignConstants.SIGN_FORMAT_PDF_TRI, SIGNER_CLASS_PADES_TRI, Boolean.FALSE.toString()},
-		{AOSignConstants.SIGN_FORMAT_PADES, SIGNER_CLASS_PADES, Boolean.TRUE.toString()},
-		{AOSignConstants.SIGN_FORMAT_PADES_TRI, SIGNER_CLASS_PADES_TRI, Boolean.FALSE.toString()},
-		{AOSignConstants.SIGN_FORMAT_ODF, SIGNER_CLASS_ODF, Boolean.TRUE.toString()},
-		{AOSignConstants.SIGN_FORMAT_ODF_ALT1, SIGNER_CLASS_ODF, Boolean.FALSE.toString()},
-		{AOSignConstants.SIGN_FORMAT_OOXML, SIGNER_CLASS_OOXML, Boolean.TRUE.toString()},
-		{AOSignConstants.SIGN_FORMAT_OOXML_ALT1, SIGNER_CLASS_OOXML, Boolean.FALSE.toString()}
+		{AOSignConstants.SIGN_FORMAT_CADES, SIGNER_CLASS_CADES, Boolean.TRUE.toString(), FAMILY_ASN1},
+		{AOSignConstants.SIGN_FORMAT_CADES_TRI, SIGNER_CLASS_CADES_TRI, Boolean.FALSE.toString(), FAMILY_ASN1},
+		{AOSignConstants.SIGN_FORMAT_CMS, SIGNER_CLASS_CMS, Boolean.TRUE.toString(), FAMILY_ASN1},
+		{AOSignConstants.SIGN_FORMAT_FACTURAE, SIGNER_CLASS_FACTURAE, Boolean.TRUE.toString(), FAMILY_XML},
+		{AOSignConstants.SIGN_FORMAT_FACTURAE_ALT1, SIGNER_CLASS_FACTURAE, Boolean.FALSE.toString(), FAMILY_XML},
+		{AOSignConstants.SIGN_FORMAT_XADES, SIGNER_CLASS_XADES, Boolean.TRUE.toString(), FAMILY_XML},
+		{AOSignConstants.SIGN_FORMAT_XADES_TRI, SIGNER_CLASS_XADES_TRI, Boolean.FALSE.toString(), FAMILY_XML},
+		{AOSignConstants.SIGN_FORMAT_XADES_DETACHED, SIGNER_CLASS_XADES, Boolean.FALSE.toString(), FAMILY_XML},
+		{AOSignConstants.SIGN_FORMAT_XADES_ENVELOPED, SIGNER_CLASS_XADES, Boolean.FALSE.toString(), FAMILY_XML},
+		{AOSignConstants.SIGN_FORMAT_XADES_ENVELOPING, SIGNER_CLASS_XADES, Boolean.FALSE.toString(), FAMILY_XML},
+		{AOSignConstants.SIGN_FORMAT_XMLDSIG, SIGNER_CLASS_XMLDSIG, Boolean.TRUE.toString(), FAMILY_XML},
+		{AOSignConstants.SIGN_FORMAT_XMLDSIG_DETACHED, SIGNER_CLASS_XMLDSIG, Boolean.FALSE.toString(), FAMILY_XML},
+		{AOSignConstants.SIGN_FORMAT_XMLDSIG_ENVELOPED, SIGNER_CLASS_XMLDSIG, Boolean.FALSE.toString(), FAMILY_XML},
+		{AOSignConstants.SIGN_FORMAT_XMLDSIG_ENVELOPING, SIGNER_CLASS_XMLDSIG, Boolean.FALSE.toString(), FAMILY_XML},
+		{AOSignConstants.SIGN_FORMAT_PDF, SIGNER_CLASS_PADES, Boolean.FALSE.toString(), FAMILY_PDF},
+		{AOSignConstants.SIGN_FORMAT_PDF_TRI, SIGNER_CLASS_PADES_TRI, Boolean.FALSE.toString(), FAMILY_PDF},
+		{AOSignConstants.SIGN_FORMAT_PADES, SIGNER_CLASS_PADES, Boolean.TRUE.toString(), FAMILY_PDF},
+		{AOSignConstants.SIGN_FORMAT_PADES_TRI, SIGNER_CLASS_PADES_TRI, Boolean.FALSE.toString(), FAMILY_PDF},
+		{AOSignConstants.SIGN_FORMAT_ODF, SIGNER_CLASS_ODF, Boolean.TRUE.toString(), FAMILY_ODF},
+		{AOSignConstants.SIGN_FORMAT_ODF_ALT1, SIGNER_CLASS_ODF, Boolean.FALSE.toString(), FAMILY_ODF},
+		{AOSignConstants.SIGN_FORMAT_OOXML, SIGNER_CLASS_OOXML, Boolean.TRUE.toString(), FAMILY_OOXML},
+		{AOSignConstants.SIGN_FORMAT_OOXML_ALT1, SIGNER_CLASS_OOXML, Boolean.FALSE.toString(), FAMILY_OOXML}
 	};
 
 	private AOSignerFactory() {
@@ -78,23 +115,23 @@ public final class AOSignerFactory {
 		if (signData == null) {
 			throw new IllegalArgumentException("No se han indicado datos de firma"); //$NON-NLS-1$
 		}
+
+		// Identificamos por los primeros bytes la codificacion de la firma para no
+		// tener que analizarla por completo con los manejadores que no la soportan
+		final String family = getSignFamily(signData);
+		if (family == null) {
+			return null;
+		}
+
 		for (final String format[] : SIGNERS_CLASSES) {
 
 			// Solo buscaremos el signer compatible entre los que soportan la identificacion
-			if (!Boolean.parseBoolean(format[2])) {
+			// y la codificacion de la firma
+			if (!Boolean.parseBoolean(format[2]) || !family.equals(format[3])) {
 				continue;
 			}
 
-			if (SIGNERS.get(format[0]) == null) {
-				try {
-					SIGNERS.put(format[0], (AOSigner) Class.forName(format[1]).newInstance());
-				}
-				catch(final Exception e) {
-					LOGGER.warning("No se ha podido instanciar un manejador para el formato de firma '" + format[0] + "': " + e); //$NON-NLS-1$ //$NON-NLS-2$
-					continue;
-				}
-			}
-			final AOSigner signer = SIGNERS.get(format[0]);
+			final AOSigner signer = getSignerInstance(format[0], format[1]);
 			if (signer != null && signer.isSign(signData)) {
 				return signer;
 			}
@@ -118,15 +155,187 @@ public final class AOSignerFactory {
 			LOGGER.warning("El formato de firma '" + signFormat + "' no esta soportado, se devolvera null"); //$NON-NLS-1$ //$NON-NLS-2$
 			return null;
 		}
-		if (SIGNERS.get(signFormat) == null) {
-			try {
-				SIGNERS.put(signFormat, (AOSigner) Class.forName(signerClass).newInstance());
+		return getSignerInstance(signFormat, signerClass);
+	}
+
+	/** Identifica la familia de codificaci&oacute;n (ASN.1, XML, PDF, ODF u OOXML) de una firma
+	 * a partir de sus primeros bytes o, en el caso de los ZIP, de los nombres de sus entradas,
+	 * sin llegar a analizarla.
+	 * @param signData Firma electr&oacute;nica
+	 * @return Familia de codificaci&oacute;n de la firma o <code>null</code> si los datos no
+	 * pueden ser una firma de ninguno de los formatos soportados. */
+	static String getSignFamily(final byte[] signData) {
+		if (signData.length == 0) {
+			return null;
+		}
+		// Estructura SEQUENCE de ASN.1 (CMS o CAdES)
+		if (signData[0] == 0x30) {
+			return FAMILY_ASN1;
+		}
+		if (AOFileUtils.isZipData(signData)) {
+			// Los documentos ODF declaran su tipo en la entrada "mimetype", que no tienen los OOXML
+			final Boolean odf = hasZipEntry(signData, ODF_MIMETYPE_ENTRY);
+			if (odf == null) {
+				return null;
+			}
+			return odf.booleanValue() ? FAMILY_ODF : FAMILY_OOXML;
+		}
+		if (startsWith(signData, PDF_HEADER)) {
+			return FAMILY_PDF;
+		}
+
+		// XML en UTF-16, con marca de orden de bytes o con los bytes nulos de los caracteres ASCII
+		if (signData.length >= 2) {
+			if (signData[0] == (byte) 0xFE && signData[1] == (byte) 0xFF) {
+				return isXmlStart(signData, 3, 2) ? FAMILY_XML : null;
+			}
+			if (signData[0] == (byte) 0xFF && signData[1] == (byte) 0xFE) {
+				return isXmlStart(signData, 2, 2) ? FAMILY_XML : null;
+			}
+			if (signData[0] == 0 && signData[1] != 0) {
+				return isXmlStart(signData, 1, 2) ? FAMILY_XML : null;
+			}
+			if (signData[0] != 0 && signData[1] == 0) {
+				return isXmlStart(signData, 0, 2) ? FAMILY_XML : null;
+			}
+		}
+
+		// XML con codificacion compatible con ASCII, posiblemente precedido de la marca de UTF-8
+		if (signData.length >= 3 && signData[0] == (byte) 0xEF && signData[1] == (byte) 0xBB && signData[2] == (byte) 0xBF) {
+			return isXmlStart(signData, 3, 1) ? FAMILY_XML : null;
+		}
+		return isXmlStart(signData, 0, 1) ? FAMILY_XML : null;
+	}
+
+	/** Comprueba si el primer car&aacute;cter distinto de espacio de unos datos es el comienzo de
+	 * una etiqueta XML. Solo se analizan los bytes de los caracteres ASCII, a los que se llega
+	 * avanzando de <code>step</code> en <code>step</code> bytes.
+	 * @param data Datos.
+	 * @param start Posici&oacute;n del primer byte ASCII.
+	 * @param step Tama&ntilde;o en bytes de cada car&aacute;cter.
+	 * @return <code>true</code> si los datos pueden ser un XML, <code>false</code> en caso contrario. */
+	private static boolean isXmlStart(final byte[] data, final int start, final int step) {
+		final int limit = Math.min(data.length, XML_HEADER_SEARCH_LENGTH);
+		int i = start;
+		while (i < limit && (data[i] == ' ' || data[i] == '\t' || data[i] == '\r' || data[i] == '\n')) {
+			i += step;
+		}
+		return i < limit && data[i] == '<';
+	}
+
+	/** Comprueba si un ZIP contiene una entrada consultando su directorio central, sin
+	 * descomprimir ninguna entrada.
+	 * @param zipData ZIP.
+	 * @param entryName Nombre de la entrada.
+	 * @return <code>Boolean.TRUE</code> si el ZIP contiene la entrada, <code>Boolean.FALSE</code> si
+	 * no la contiene o <code>null</code> si no se encuentra un directorio central v&aacute;lido. */
+	private static Boolean hasZipEntry(final byte[] zipData, final String entryName) {
+		// El registro de fin del directorio central esta al final, seguido solo del comentario del ZIP
+		int end = zipData.length - ZIP_END_LENGTH;
+		final int minEnd = Math.max(0, end - ZIP_MAX_COMMENT_LENGTH);
+		while (end >= minEnd && readInt(zipData, end) != ZIP_END_SIGNATURE) {
+			end--;
+		}
+		if (end < minEnd) {
+			return null;
+		}
+		final int entries = readShort(zipData, end + 10);
+		int pos = readInt(zipData, end + 16);
+		for (int i = 0; i < entries; i++) {
+			if (pos < 0 || pos + ZIP_CENTRAL_ENTRY_LENGTH > zipData.length || readInt(zipData, pos) != ZIP_CENTRAL_ENTRY_SIGNATURE) {
+				return null;
 			}
-			catch(final Exception e) {
-				LOGGER.severe("No se ha podido instanciar un manejador para el formato de firma '" + signFormat + "', se devolvera null: " + e); //$NON-NLS-1$ //$NON-NLS-2$
+			final int nameLength = readShort(zipData, pos + 28);
+			final int extraLength = readShort(zipData, pos + 30);
+			final int commentLength = readShort(zipData, pos + 32);
+			final int nameStart = pos + ZIP_CENTRAL_ENTRY_LENGTH;
+			if (nameStart + nameLength > zipData.length) {
+				return null;
+			}
+			if (nameLength == entryName.length() && startsWith(zipData, nameStart, entryName)) {
+				return Boolean.TRUE;
+			}
+			pos = nameStart + nameLength + extraLength + commentLength;
+		}
+		return Boolean.FALSE;
+	}
+
+	/** Lee un entero de 2 bytes en orden <i>little-endian</i>. */
+	private static int readShort(final byte[] data, final int pos) {
+		return data[pos] & 0xFF | (data[pos + 1] & 0xFF) << 8;
+	}
+
+	/** Lee un entero de 4 bytes en orden <i>little-endian</i>. */
+	private static int readInt(final byte[] data, final int pos) {
+		return readShort(data, pos) | readShort(data, pos + 2) << 16;
+	}
+
+	/** Comprueba si unos datos comienzan por una cadena ASCII.
+	 * @param data Datos.
+	 * @param prefix Cadena ASCII.
+	 * @return <code>true</code> si los datos comienzan por la cadena, <code>false</code> en caso contrario. */
+	private static boolean startsWith(final byte[] data, final String prefix) {
+		return startsWith(data, 0, prefix);
+	}
+
+	/** Comprueba si unos datos contienen una cadena ASCII en una posici&oacute;n.
+	 * @param data Datos.
+	 * @param offset Posici&oacute;n en la que debe comenzar la cadena.
+	 * @param prefix Cadena ASCII.
+	 * @return <code>true</code> si los datos contienen la cadena en la posici&oacute;n indicada,
+	 * <code>false</code> en caso contrario. */
+	private static boolean startsWith(final byte[] data, final int offset, final String prefix) {
+		if (data.length - offset < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (data[offset + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Instancia y carga todos los manejadores de firma disponibles, de forma que las
+	 * posteriores peticiones de manejadores no tengan que cargar e inicializar sus clases.
+	 * Este m&eacute;todo puede llamarse en el arranque de la aplicaci&oacute;n.
+	 * @return Listado de los formatos de firma cuyo manejador est&aacute; disponible. */
+	public static String[] preloadSigners() {
+		final List<String> formats = new ArrayList<String>(SIGNERS_CLASSES.length);
+		for (final String[] format : SIGNERS_CLASSES) {
+			if (getSignerInstance(format[0], format[1]) != null) {
+				formats.add(format[0]);
+			}
+		}
+		return formats.toArray(new String[formats.size()]);
+	}
+
+	/** Obtiene la instancia compartida de un manejador de firma, cre&aacute;ndola si es
+	 * la primera vez que se solicita. Cada clase de manejador se instancia una &uacute;nica
+	 * vez aunque se solicite simult&aacute;neamente desde varios hilos o para varios formatos.
+	 * Si la instanciaci&oacute;n falla no se recuerda el error, y se volver&aacute; a intentar en
+	 * la siguiente petici&oacute;n.
+	 * @param signFormat Formato de firma para el que se solicita el manejador.
+	 * @param signerClass Nombre de la clase del manejador.
+	 * @return Manejador de firma o <code>null</code> si no se pudo instanciar. */
+	private static AOSigner getSignerInstance(final String signFormat, final String signerClass) {
+		AOSigner signer = SIGNERS.get(signerClass);
+		if (signer != null) {
+			return signer;
+		}
+		synchronized (SIGNERS) {
+			signer = SIGNERS.get(signerClass);
+			if (signer == null) {
+				try {
+					signer = (AOSigner) Class.forName(signerClass).newInstance();
+					SIGNERS.put(signerClass, signer);
+				}
+				catch(final Exception e) {
+					LOGGER.warning("No se ha podido instanciar un manejador para el formato de firma '" + signFormat + "': " + e); //$NON-NLS-1$ //$NON-NLS-2$
+				}
 			}
 		}
-		return SIGNERS.get(signFormat);
+		return signer;
 	}
 
 	/**
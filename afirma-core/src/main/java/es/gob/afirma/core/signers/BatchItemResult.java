@@ -0,0 +1,64 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.core.signers;
+
+/** Resultado de la operaci&oacute;n sobre uno de los elementos de un lote, que puede
+ * haber terminado correctamente o con error sin afectar al resto de elementos.
+ * @param <T> Tipo del resultado de la operaci&oacute;n. */
+public final class BatchItemResult<T> {
+
+	private final T result;
+	private final String error;
+
+	private BatchItemResult(final T res, final String err) {
+		this.result = res;
+		this.error = err;
+	}
+
+	/** Crea el resultado de un elemento procesado correctamente.
+	 * @param <T> Tipo del resultado de la operaci&oacute;n.
+	 * @param result Resultado de la operaci&oacute;n.
+	 * @return Resultado del elemento. */
+	public static <T> BatchItemResult<T> success(final T result) {
+		return new BatchItemResult<T>(result, null);
+	}
+
+	/** Crea el resultado de un elemento cuyo proceso ha fallado.
+	 * @param <T> Tipo del resultado de la operaci&oacute;n.
+	 * @param error Descripci&oacute;n del error.
+	 * @return Resultado del elemento. */
+	public static <T> BatchItemResult<T> failure(final String error) {
+		return new BatchItemResult<T>(null, error != null ? error : "Error desconocido"); //$NON-NLS-1$
+	}
+
+	/** Indica si el elemento se ha procesado correctamente.
+	 * @return <code>true</code> si no hubo error, <code>false</code> en caso contrario. */
+	public boolean isOk() {
+		return this.error == null;
+	}
+
+	/** Obtiene el resultado de la operaci&oacute;n.
+	 * @return Resultado de la operaci&oacute;n o <code>null</code> si hubo un error. */
+	public T getResult() {
+		return this.result;
+	}
+
+	/** Obtiene la descripci&oacute;n del error ocurrido en el proceso del elemento.
+	 * @return Descripci&oacute;n del error o <code>null</code> si no hubo error. */
+	public String getError() {
+		return this.error;
+	}
+
+	@Override
+	public String toString() {
+		return isOk() ? "OK" : "ERROR: " + this.error; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
@@ -0,0 +1,285 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.core.signers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import es.gob.afirma.core.misc.BinaryFieldsReader;
+import es.gob.afirma.core.misc.BinaryFieldsWriter;
+
+/** Parte servidora del protocolo de firma trif&aacute;sica por lotes descrito en {@link TriPhaseBatchSigner}.
+ * <p>El servicio de firma delega en esta clase la lectura de las peticiones de lote y la escritura de
+ * las respuestas, y proporciona la operaci&oacute;n de prefirma o postfirma de un documento, normalmente
+ * mediante las clases <code>*TriPhaseSignerServerSide</code> de cada formato. Los errores en un documento
+ * se devuelven en su posici&oacute;n del lote sin interrumpir el proceso del resto.</p>
+ * <p>La petici&oacute;n se lee completa antes de empezar a responder, para que el cliente nunca quede
+ * bloqueado escribiendo mientras el servidor escribe la respuesta. Por ello, el n&uacute;mero de documentos
+ * y el tama&ntilde;o total de la petici&oacute;n est&aacute;n limitados (por defecto, a
+ * {@link #DEFAULT_MAX_DOCUMENTS} documentos y {@link #DEFAULT_MAX_REQUEST_SIZE} octetos), y las peticiones
+ * que los superan se rechazan sin llegar a cargarlas en memoria. Los lotes de documentos grandes deben
+ * enviar identificadores de documento en lugar de sus datos. El resultado de cada documento se env&iacute;a
+ * en cuanto est&aacute; disponible, de forma que el cliente puede ir firmando las prefirmas recibidas
+ * mientras se preparan las siguientes.</p>
+ * <p>Las clases <code>CAdESTriPhaseBatchServerSide</code>, <code>PAdESTriPhaseBatchServerSide</code> y
+ * <code>XAdESTriPhaseBatchServerSide</code> proporcionan las operaciones de cada formato.</p> */
+public final class TriPhaseBatchProcessor {
+
+	private static final Logger LOGGER = Logger.getLogger("es.gob.afirma"); //$NON-NLS-1$
+
+	/** N&uacute;mero m&aacute;ximo por defecto de documentos de un lote. */
+	public static final int DEFAULT_MAX_DOCUMENTS = 1000;
+
+	/** Tama&ntilde;o m&aacute;ximo por defecto, en octetos, de una petici&oacute;n de lote. */
+	public static final long DEFAULT_MAX_REQUEST_SIZE = 64L * 1024 * 1024;
+
+	/** Operaci&oacute;n de prefirma de un documento del lote. */
+	public interface PreSigner {
+
+		/** Prefirma un documento.
+		 * @param cert Certificado del firmante codificado.
+		 * @param extraParams Par&aacute;metros de la firma, comunes a todo el lote.
+		 * @param doc Datos o identificador del documento.
+		 * @return Datos de sesi&oacute;n de la prefirma (<code>SIGN_COUNT</code>, <code>PRE.n</code>,
+		 *         <code>NEED_PRE</code>, <code>NEED_DATA</code>...).
+		 * @throws Exception Cuando no se puede prefirmar el documento. */
+		Properties preSign(byte[] cert, Properties extraParams, byte[] doc) throws Exception;
+	}
+
+	/** Operaci&oacute;n de postfirma de un documento del lote. */
+	public interface PostSigner {
+
+		/** Postfirma un documento.
+		 * @param cert Certificado del firmante codificado.
+		 * @param extraParams Par&aacute;metros de la firma, comunes a todo el lote.
+		 * @param session Datos de sesi&oacute;n de la prefirma con las firmas PKCS#1 (<code>PK1.n</code>).
+		 * @param doc Datos o identificador del documento, o <code>null</code> si no se indic&oacute;
+		 *            <code>NEED_DATA</code> en la prefirma.
+		 * @return Resultado de la firma (normalmente, el identificador del documento firmado).
+		 * @throws Exception Cuando no se puede completar la firma del documento. */
+		byte[] postSign(byte[] cert, Properties extraParams, Properties session, byte[] doc) throws Exception;
+	}
+
+	private TriPhaseBatchProcessor() {
+		// No permitimos la instanciacion
+	}
+
+	/** Atiende una petici&oacute;n de prefirma de un lote con los l&iacute;mites por defecto.
+	 * @param request Cuerpo de la petici&oacute;n.
+	 * @param response Flujo en el que escribir la respuesta. No se cierra.
+	 * @param preSigner Operaci&oacute;n de prefirma de cada documento.
+	 * @throws IOException Si la petici&oacute;n est&aacute; mal formada, supera los l&iacute;mites
+	 *                     o falla la comunicaci&oacute;n. */
+	public static void preSign(final InputStream request,
+			final OutputStream response,
+			final PreSigner preSigner) throws IOException {
+		preSign(request, response, preSigner, DEFAULT_MAX_DOCUMENTS, DEFAULT_MAX_REQUEST_SIZE);
+	}
+
+	/** Atiende una petici&oacute;n de prefirma de un lote.
+	 * @param request Cuerpo de la petici&oacute;n.
+	 * @param response Flujo en el que escribir la respuesta. No se cierra.
+	 * @param preSigner Operaci&oacute;n de prefirma de cada documento.
+	 * @param maxDocuments N&uacute;mero m&aacute;ximo de documentos del lote.
+	 * @param maxRequestSize Tama&ntilde;o m&aacute;ximo, en octetos, del contenido de la petici&oacute;n.
+	 * @throws IOException Si la petici&oacute;n est&aacute; mal formada, supera los l&iacute;mites
+	 *                     o falla la comunicaci&oacute;n. */
+	public static void preSign(final InputStream request,
+			final OutputStream response,
+			final PreSigner preSigner,
+			final int maxDocuments,
+			final long maxRequestSize) throws IOException {
+
+		final BatchRequest batch = readRequest(request, maxDocuments, maxRequestSize);
+
+		final BinaryFieldsWriter writer = new BinaryFieldsWriter(response);
+		for (int i = 0; i < batch.getDocs().size(); i++) {
+			final Properties session;
+			try {
+				session = preSigner.preSign(batch.getCert(), batch.getExtraParams(), batch.getDocs().get(i));
+			}
+			catch (final Exception e) {
+				writeError(writer, i, e);
+				response.flush();
+				continue;
+			}
+			writer.writeField(TriPhaseBatchSigner.FIELD_NAME_SESSION, TriPhaseBatchSigner.properties2Bytes(session));
+			response.flush();
+		}
+		writer.finish();
+	}
+
+	/** Atiende una petici&oacute;n de postfirma de un lote con los l&iacute;mites por defecto.
+	 * @param request Cuerpo de la petici&oacute;n.
+	 * @param response Flujo en el que escribir la respuesta. No se cierra.
+	 * @param postSigner Operaci&oacute;n de postfirma de cada documento.
+	 * @throws IOException Si la petici&oacute;n est&aacute; mal formada, supera los l&iacute;mites
+	 *                     o falla la comunicaci&oacute;n. */
+	public static void postSign(final InputStream request,
+			final OutputStream response,
+			final PostSigner postSigner) throws IOException {
+		postSign(request, response, postSigner, DEFAULT_MAX_DOCUMENTS, DEFAULT_MAX_REQUEST_SIZE);
+	}
+
+	/** Atiende una petici&oacute;n de postfirma de un lote.
+	 * @param request Cuerpo de la petici&oacute;n.
+	 * @param response Flujo en el que escribir la respuesta. No se cierra.
+	 * @param postSigner Operaci&oacute;n de postfirma de cada documento.
+	 * @param maxDocuments N&uacute;mero m&aacute;ximo de documentos del lote.
+	 * @param maxRequestSize Tama&ntilde;o m&aacute;ximo, en octetos, del contenido de la petici&oacute;n.
+	 * @throws IOException Si la petici&oacute;n est&aacute; mal formada, supera los l&iacute;mites
+	 *                     o falla la comunicaci&oacute;n. */
+	public static void postSign(final InputStream request,
+			final OutputStream response,
+			final PostSigner postSigner,
+			final int maxDocuments,
+			final long maxRequestSize) throws IOException {
+
+		final BatchRequest batch = readRequest(request, maxDocuments, maxRequestSize);
+
+		final BinaryFieldsWriter writer = new BinaryFieldsWriter(response);
+		for (int i = 0; i < batch.getSessions().size(); i++) {
+			final Properties session = batch.getSessions().get(i);
+			if (session == null) {
+				writer.writeField(TriPhaseBatchSigner.FIELD_NAME_SKIP, new byte[0]);
+				continue;
+			}
+			final byte[] result;
+			try {
+				result = postSigner.postSign(batch.getCert(), batch.getExtraParams(), session, batch.getDocs().get(i));
+			}
+			catch (final Exception e) {
+				writeError(writer, i, e);
+				response.flush();
+				continue;
+			}
+			writer.writeField(TriPhaseBatchSigner.FIELD_NAME_RESULT, result);
+			response.flush();
+		}
+		writer.finish();
+	}
+
+	private static void writeError(final BinaryFieldsWriter writer, final int index, final Exception e) throws IOException {
+		LOGGER.warning("Error en el documento " + index + " del lote: " + e); //$NON-NLS-1$ //$NON-NLS-2$
+		writer.writeField(TriPhaseBatchSigner.FIELD_NAME_ERROR, e.toString().getBytes("UTF-8")); //$NON-NLS-1$
+	}
+
+	/** Lee una petici&oacute;n de lote completa. En las peticiones de postfirma cada documento empieza
+	 * por un campo de sesi&oacute;n o de documento omitido, y el documento es opcional.
+	 * @param request Cuerpo de la petici&oacute;n.
+	 * @param maxDocuments N&uacute;mero m&aacute;ximo de documentos del lote.
+	 * @param maxRequestSize Tama&ntilde;o m&aacute;ximo, en octetos, del contenido de la petici&oacute;n.
+	 * @return Petici&oacute;n le&iacute;da.
+	 * @throws IOException Si la petici&oacute;n est&aacute; mal formada o supera los l&iacute;mites. */
+	private static BatchRequest readRequest(final InputStream request,
+			final int maxDocuments,
+			final long maxRequestSize) throws IOException {
+		final BatchRequest batch = new BatchRequest(maxDocuments, maxRequestSize);
+		final BinaryFieldsReader reader = new BinaryFieldsReader(request);
+		boolean postSignItems = false;
+		String name;
+		while ((name = reader.nextField()) != null) {
+			if (TriPhaseBatchSigner.FIELD_NAME_CERT.equals(name)) {
+				batch.setCert(batch.readField(reader));
+			}
+			else if (TriPhaseBatchSigner.FIELD_NAME_EXTRA_PARAM.equals(name)) {
+				batch.getExtraParams().putAll(TriPhaseBatchSigner.bytes2Properties(batch.readField(reader)));
+			}
+			else if (TriPhaseBatchSigner.FIELD_NAME_SESSION.equals(name)) {
+				postSignItems = true;
+				batch.addItem(TriPhaseBatchSigner.bytes2Properties(batch.readField(reader)), null);
+			}
+			else if (TriPhaseBatchSigner.FIELD_NAME_SKIP.equals(name)) {
+				postSignItems = true;
+				batch.addItem(null, null);
+			}
+			else if (TriPhaseBatchSigner.FIELD_NAME_DOC.equals(name)) {
+				if (postSignItems) {
+					if (batch.getDocs().isEmpty() || batch.getDocs().get(batch.getDocs().size() - 1) != null) {
+						throw new IOException("Documento sin datos de sesion en la peticion de postfirma del lote"); //$NON-NLS-1$
+					}
+					batch.getDocs().set(batch.getDocs().size() - 1, batch.readField(reader));
+				}
+				else {
+					batch.addItem(null, batch.readField(reader));
+				}
+			}
+		}
+		if (batch.getCert() == null) {
+			throw new IOException("La peticion del lote no contiene el certificado del firmante"); //$NON-NLS-1$
+		}
+		return batch;
+	}
+
+	/** Contenido de una petici&oacute;n de lote. */
+	private static final class BatchRequest {
+
+		private final int maxDocuments;
+		private long remainingSize;
+		private byte[] cert = null;
+		private final Properties extraParams = new Properties();
+		private final List<byte[]> docs = new ArrayList<byte[]>();
+		private final List<Properties> sessions = new ArrayList<Properties>();
+
+		BatchRequest(final int maxDocs, final long maxRequestSize) {
+			this.maxDocuments = maxDocs;
+			this.remainingSize = maxRequestSize;
+		}
+
+		/** Lee el contenido del campo actual, descont&aacute;ndolo del tama&ntilde;o restante de la petici&oacute;n.
+		 * @param reader Lector de la petici&oacute;n.
+		 * @return Contenido del campo.
+		 * @throws IOException Si falla la lectura o se supera el tama&ntilde;o m&aacute;ximo de la petici&oacute;n. */
+		byte[] readField(final BinaryFieldsReader reader) throws IOException {
+			// El tamano maximo del campo es lo que queda disponible de la peticion
+			final byte[] content = reader.readFieldContent((int) Math.min(this.remainingSize, Integer.MAX_VALUE));
+			this.remainingSize -= content.length;
+			return content;
+		}
+
+		/** Agrega un documento al lote.
+		 * @param session Datos de sesi&oacute;n del documento o <code>null</code>.
+		 * @param doc Datos o identificador del documento o <code>null</code>.
+		 * @throws IOException Si se supera el n&uacute;mero m&aacute;ximo de documentos. */
+		void addItem(final Properties session, final byte[] doc) throws IOException {
+			if (this.docs.size() >= this.maxDocuments) {
+				throw new IOException("El lote supera el numero maximo de " + this.maxDocuments + " documentos"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			this.sessions.add(session);
+			this.docs.add(doc);
+		}
+
+		byte[] getCert() {
+			return this.cert;
+		}
+
+		void setCert(final byte[] c) {
+			this.cert = c;
+		}
+
+		Properties getExtraParams() {
+			return this.extraParams;
+		}
+
+		List<byte[]> getDocs() {
+			return this.docs;
+		}
+
+		List<Properties> getSessions() {
+			return this.sessions;
+		}
+	}
+}
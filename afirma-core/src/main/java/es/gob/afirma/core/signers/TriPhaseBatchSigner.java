@@ -0,0 +1,400 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.core.signers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import es.gob.afirma.core.AOException;
+import es.gob.afirma.core.misc.Base64;
+import es.gob.afirma.core.misc.BinaryFieldsReader;
+import es.gob.afirma.core.misc.BinaryFieldsWriter;
+import es.gob.afirma.core.misc.UrlHttpManagerImpl;
+
+/** Cliente del protocolo de firma trif&aacute;sica por lotes, com&uacute;n a todos los formatos.
+ * <p>En lugar de realizar dos llamadas al servidor por documento, se realiza una &uacute;nica llamada de
+ * prefirma con todos los documentos y una &uacute;nica llamada de postfirma que completa todas las firmas.
+ * Los mensajes usan el protocolo binario de campos ({@link BinaryFieldsWriter}):</p>
+ * <ul>
+ *  <li>
+ *   Petici&oacute;n de prefirma: campos <code>cert</code> y <code>params</code> comunes y un campo
+ *   <code>doc</code> por documento. La respuesta contiene, por cada documento y en el mismo orden,
+ *   un campo <code>session</code> con sus datos de prefirma o un campo <code>error</code>.
+ *  </li>
+ *  <li>
+ *   Petici&oacute;n de postfirma: campos <code>cert</code> y <code>params</code> comunes y, por cada
+ *   documento, un campo <code>session</code> (seguido de <code>doc</code> si el servidor necesita de nuevo
+ *   los datos) o un campo <code>skip</code> si el documento fall&oacute; en la prefirma o en la firma.
+ *   La respuesta contiene por cada documento un campo <code>result</code>, <code>error</code> o
+ *   <code>skip</code>.
+ *  </li>
+ * </ul>
+ * <p>Las firmas PKCS#1 de cada documento se generan seg&uacute;n se recibe su prefirma, mientras el
+ * servidor sigue preparando las de los documentos siguientes.</p>
+ * <p>La parte servidora del protocolo la implementa {@link TriPhaseBatchProcessor}.</p> */
+public final class TriPhaseBatchSigner {
+
+	private static final Logger LOGGER = Logger.getLogger("es.gob.afirma"); //$NON-NLS-1$
+
+	/** Nombre de la propiedad de URL del servidor de firma trif&aacute;sica. */
+	private static final String PROPERTY_NAME_SIGN_SERVER_URL = "serverUrl"; //$NON-NLS-1$
+
+	/** Identificador de la operaci&oacute;n de prefirma en servidor. */
+	private static final String OPERATION_PRESIGN = "pre"; //$NON-NLS-1$
+
+	/** Identificador de la operaci&oacute;n de postfirma en servidor. */
+	private static final String OPERATION_POSTSIGN = "post"; //$NON-NLS-1$
+
+	private static final String HTTP_CGI = "?"; //$NON-NLS-1$
+	private static final String HTTP_EQUALS = "="; //$NON-NLS-1$
+	private static final String HTTP_AND = "&"; //$NON-NLS-1$
+
+	// Parametros de la URL de las llamadas al servidor de firma
+	private static final String PARAMETER_NAME_OPERATION = "op"; //$NON-NLS-1$
+	private static final String PARAMETER_NAME_CRYPTO_OPERATION = "cop"; //$NON-NLS-1$
+	private static final String PARAMETER_NAME_FORMAT = "format"; //$NON-NLS-1$
+	private static final String PARAMETER_NAME_ALGORITHM = "algo"; //$NON-NLS-1$
+	private static final String PARAMETER_NAME_PROTOCOL = "proto"; //$NON-NLS-1$
+	private static final String PROTOCOL_BINARY = "bin"; //$NON-NLS-1$
+
+	/** Nombre del par&aacute;metro de la URL que indica que la petici&oacute;n es un lote. */
+	public static final String PARAMETER_NAME_BATCH = "batch"; //$NON-NLS-1$
+
+	/** Tipo de contenido de los mensajes del protocolo binario. */
+	private static final String BINARY_CONTENT_TYPE = "application/octet-stream"; //$NON-NLS-1$
+
+	// Campos de los mensajes binarios
+	static final String FIELD_NAME_CERT = "cert"; //$NON-NLS-1$
+	static final String FIELD_NAME_EXTRA_PARAM = "params"; //$NON-NLS-1$
+	static final String FIELD_NAME_DOC = "doc"; //$NON-NLS-1$
+	static final String FIELD_NAME_SESSION = "session"; //$NON-NLS-1$
+	static final String FIELD_NAME_RESULT = "result"; //$NON-NLS-1$
+	static final String FIELD_NAME_ERROR = "error"; //$NON-NLS-1$
+	static final String FIELD_NAME_SKIP = "skip"; //$NON-NLS-1$
+
+	// Nombres de las propiedades intercambiadas con el servidor como Properties
+	private static final String PROPERTY_NAME_PRESIGN_PREFIX = "PRE."; //$NON-NLS-1$
+	private static final String PROPERTY_NAME_SIGN_COUNT = "SIGN_COUNT"; //$NON-NLS-1$
+	private static final String PROPERTY_NAME_PKCS1_SIGN_PREFIX = "PK1."; //$NON-NLS-1$
+	private static final String PROPERTY_NAME_NEED_PRE = "NEED_PRE"; //$NON-NLS-1$
+	private static final String PROPERTY_NAME_NEED_DATA = "NEED_DATA"; //$NON-NLS-1$
+
+	private TriPhaseBatchSigner() {
+		// No permitimos la instanciacion
+	}
+
+	/** Ejecuta en tres fases una misma operaci&oacute;n de firma sobre un lote de documentos.
+	 * Un error en uno de los documentos no interrumpe el proceso del resto.
+	 * @param format Formato de firma que se indica al servidor.
+	 * @param cryptoOperation Operaci&oacute;n criptogr&aacute;fica (firma, cofirma o contrafirma).
+	 * @param data Datos o identificadores de los documentos a firmar.
+	 * @param algorithm Algoritmo de firma.
+	 * @param key Clave privada del certificado de firma.
+	 * @param certChain Cadena de certificaci&oacute;n.
+	 * @param extraParams Par&aacute;metros para la configuraci&oacute;n de la operaci&oacute;n, comunes
+	 *                    a todos los documentos. Debe incluir la URL del servidor en <code>serverUrl</code>.
+	 * @return Resultado de la operaci&oacute;n para cada documento, en el mismo orden.
+	 * @throws AOException Cuando falla la comunicaci&oacute;n con el servidor. */
+	public static List<BatchItemResult<byte[]>> sign(final String format,
+			final String cryptoOperation,
+			final List<byte[]> data,
+			final String algorithm,
+			final PrivateKey key,
+			final Certificate[] certChain,
+			final Properties extraParams) throws AOException {
+
+		if (extraParams == null) {
+			throw new IllegalArgumentException("Se necesitan parametros adicionales"); //$NON-NLS-1$
+		}
+		if (key == null) {
+			throw new IllegalArgumentException("Es necesario proporcionar la clave privada de firma"); //$NON-NLS-1$
+		}
+		if (certChain == null || certChain.length == 0) {
+			throw new IllegalArgumentException("Es necesario proporcionar el certificado de firma"); //$NON-NLS-1$
+		}
+		if (data == null || data.isEmpty()) {
+			throw new IllegalArgumentException("No se han proporcionado los documentos a firmar"); //$NON-NLS-1$
+		}
+		for (final byte[] doc : data) {
+			if (doc == null) {
+				throw new IllegalArgumentException("No se ha proporcionado el identificador de alguno de los documentos a firmar"); //$NON-NLS-1$
+			}
+		}
+
+		final URL signServerUrl;
+		try {
+			signServerUrl = new URL(extraParams.getProperty(PROPERTY_NAME_SIGN_SERVER_URL));
+		}
+		catch (final Exception e) {
+			throw new IllegalArgumentException("No se ha proporcionado una URL valida para el servidor de firma: " + extraParams.getProperty(PROPERTY_NAME_SIGN_SERVER_URL), e); //$NON-NLS-1$
+		}
+
+		final byte[] encodedCert;
+		final byte[] encodedParams;
+		try {
+			encodedCert = certChain[0].getEncoded();
+			encodedParams = extraParams.size() > 0 ? properties2Bytes(extraParams) : null;
+		}
+		catch (final CertificateEncodingException e) {
+			throw new AOException("Error decodificando el certificado del firmante: " + e, e); //$NON-NLS-1$
+		}
+		catch (final IOException e) {
+			throw new AOException("Error codificando los parametros de la firma: " + e, e); //$NON-NLS-1$
+		}
+
+		// ---------
+		// PREFIRMA Y FIRMA
+		// ---------
+
+		// Las sesiones de los documentos que fallan se quedan a null y su error en la lista de resultados
+		final List<Properties> sessions = new ArrayList<Properties>(data.size());
+		final List<BatchItemResult<byte[]>> results = new ArrayList<BatchItemResult<byte[]>>(data.size());
+		try {
+			final HttpURLConnection conn = UrlHttpManagerImpl.openPostConnection(
+				getBatchUrl(signServerUrl, OPERATION_PRESIGN, cryptoOperation, format, algorithm),
+				BINARY_CONTENT_TYPE
+			);
+			try {
+				final OutputStream os = conn.getOutputStream();
+				final BinaryFieldsWriter writer = new BinaryFieldsWriter(os);
+				writeCommonFields(writer, encodedCert, encodedParams);
+				for (final byte[] doc : data) {
+					writer.writeField(FIELD_NAME_DOC, doc);
+				}
+				writer.finish();
+				os.close();
+
+				// Firmamos cada prefirma segun llega, mientras el servidor prepara las siguientes
+				final InputStream is = conn.getInputStream();
+				try {
+					final BinaryFieldsReader reader = new BinaryFieldsReader(is);
+					String name;
+					while ((name = reader.nextField()) != null) {
+						if (FIELD_NAME_SESSION.equals(name)) {
+							final Properties session = new Properties();
+							session.load(reader.getFieldContent());
+							try {
+								signPreSigns(session, algorithm, key, certChain);
+								sessions.add(session);
+								results.add(null);
+							}
+							catch (final AOException e) {
+								LOGGER.warning("Error en la firma del documento " + results.size() + " del lote: " + e); //$NON-NLS-1$ //$NON-NLS-2$
+								sessions.add(null);
+								results.add(BatchItemResult.<byte[]>failure(e.getMessage()));
+							}
+						}
+						else if (FIELD_NAME_ERROR.equals(name)) {
+							sessions.add(null);
+							results.add(BatchItemResult.<byte[]>failure(new String(reader.readFieldContent(), "UTF-8"))); //$NON-NLS-1$
+						}
+					}
+				}
+				finally {
+					is.close();
+				}
+			}
+			finally {
+				UrlHttpManagerImpl.releaseConnection(conn);
+			}
+		}
+		catch (final IOException e) {
+			throw new AOException("Error en la llamada de prefirma del lote al servidor: " + e, e); //$NON-NLS-1$
+		}
+
+		if (results.size() != data.size()) {
+			throw new AOException(
+				"El servidor ha devuelto " + results.size() + " prefirmas para un lote de " + data.size() + " documentos" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			);
+		}
+
+		// Si han fallado todos los documentos no es necesaria la postfirma
+		if (countNotNull(sessions) == 0) {
+			return results;
+		}
+
+		// ---------
+		// POSTFIRMA
+		// ---------
+
+		try {
+			final HttpURLConnection conn = UrlHttpManagerImpl.openPostConnection(
+				getBatchUrl(signServerUrl, OPERATION_POSTSIGN, cryptoOperation, format, algorithm),
+				BINARY_CONTENT_TYPE
+			);
+			try {
+				final OutputStream os = conn.getOutputStream();
+				final BinaryFieldsWriter writer = new BinaryFieldsWriter(os);
+				writeCommonFields(writer, encodedCert, encodedParams);
+				for (int i = 0; i < sessions.size(); i++) {
+					final Properties session = sessions.get(i);
+					if (session == null) {
+						writer.writeField(FIELD_NAME_SKIP, new byte[0]);
+						continue;
+					}
+					final boolean needData = Boolean.parseBoolean(session.getProperty(PROPERTY_NAME_NEED_DATA));
+					writer.writeField(FIELD_NAME_SESSION, properties2Bytes(session));
+					if (needData) {
+						writer.writeField(FIELD_NAME_DOC, data.get(i));
+					}
+				}
+				writer.finish();
+				os.close();
+
+				final InputStream is = conn.getInputStream();
+				try {
+					final BinaryFieldsReader reader = new BinaryFieldsReader(is);
+					int i = 0;
+					String name;
+					while ((name = reader.nextField()) != null) {
+						if (i >= results.size()) {
+							throw new AOException("El servidor ha devuelto mas resultados que documentos tiene el lote"); //$NON-NLS-1$
+						}
+						if (FIELD_NAME_RESULT.equals(name)) {
+							// Las firmas implicitas pueden ser tan grandes como los documentos
+							results.set(i, BatchItemResult.success(reader.readFieldContent(Integer.MAX_VALUE)));
+						}
+						else if (FIELD_NAME_ERROR.equals(name)) {
+							results.set(i, BatchItemResult.<byte[]>failure(new String(reader.readFieldContent(), "UTF-8"))); //$NON-NLS-1$
+						}
+						else if (!FIELD_NAME_SKIP.equals(name)) {
+							continue;
+						}
+						i++;
+					}
+					if (i != results.size()) {
+						throw new AOException(
+							"El servidor ha devuelto " + i + " resultados para un lote de " + results.size() + " documentos" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+						);
+					}
+				}
+				finally {
+					is.close();
+				}
+			}
+			finally {
+				UrlHttpManagerImpl.releaseConnection(conn);
+			}
+		}
+		catch (final IOException e) {
+			throw new AOException("Error en la llamada de postfirma del lote al servidor: " + e, e); //$NON-NLS-1$
+		}
+
+		return results;
+	}
+
+	private static void writeCommonFields(final BinaryFieldsWriter writer,
+			final byte[] encodedCert,
+			final byte[] encodedParams) throws IOException {
+		writer.writeField(FIELD_NAME_CERT, encodedCert);
+		if (encodedParams != null) {
+			writer.writeField(FIELD_NAME_EXTRA_PARAM, encodedParams);
+		}
+	}
+
+	/** Genera las firmas PKCS#1 de las prefirmas de un documento y las agrega a sus datos de sesi&oacute;n
+	 * (<code>PK1.n</code>), eliminando las prefirmas si el servidor no las necesita en la postfirma.
+	 * Es el paso de firma en cliente com&uacute;n a la firma trif&aacute;sica de un documento y de un lote.
+	 * @param session Datos de sesi&oacute;n devueltos por el servidor en la prefirma.
+	 * @param algorithm Algoritmo de firma.
+	 * @param key Clave privada del certificado de firma.
+	 * @param certChain Cadena de certificaci&oacute;n.
+	 * @throws AOException Cuando se produce un error durante la firma. */
+	public static void signPreSigns(final Properties session,
+			final String algorithm,
+			final PrivateKey key,
+			final Certificate[] certChain) throws AOException {
+
+		final boolean needPre = Boolean.parseBoolean(session.getProperty(PROPERTY_NAME_NEED_PRE));
+
+		int signCount = 1;
+		if (session.containsKey(PROPERTY_NAME_SIGN_COUNT)) {
+			signCount = Integer.parseInt(session.getProperty(PROPERTY_NAME_SIGN_COUNT));
+		}
+
+		// Es posible que se ejecute mas de una firma como resultado de haber proporcionado varios
+		// identificadores de datos o en una operacion de contrafirma.
+		for (int i = 0; i < signCount; i++) {
+			final String base64PreSign = session.getProperty(PROPERTY_NAME_PRESIGN_PREFIX + i);
+			if (base64PreSign == null) {
+				throw new AOException("El servidor no ha devuelto la prefirma numero " + i); //$NON-NLS-1$
+			}
+
+			final byte[] preSign;
+			try {
+				preSign = Base64.decode(base64PreSign);
+			}
+			catch (final IOException e) {
+				throw new AOException("Error decodificando la prefirma: " + e, e); //$NON-NLS-1$
+			}
+
+			session.setProperty(
+				PROPERTY_NAME_PKCS1_SIGN_PREFIX + i,
+				Base64.encode(new AOPkcs1Signer().sign(preSign, algorithm, key, certChain, null))
+			);
+
+			// Si no es necesaria la prefirma para completar la postfirma, la eliminamos
+			if (!needPre) {
+				session.remove(PROPERTY_NAME_PRESIGN_PREFIX + i);
+			}
+		}
+	}
+
+	private static int countNotNull(final List<?> list) {
+		int n = 0;
+		for (final Object o : list) {
+			if (o != null) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	private static String getBatchUrl(final URL signServerUrl,
+			final String operation,
+			final String cryptoOperation,
+			final String format,
+			final String algorithm) {
+		final StringBuffer urlBuffer = new StringBuffer();
+		urlBuffer.append(signServerUrl).append(HTTP_CGI).
+		append(PARAMETER_NAME_PROTOCOL).append(HTTP_EQUALS).append(PROTOCOL_BINARY).append(HTTP_AND).
+		append(PARAMETER_NAME_BATCH).append(HTTP_EQUALS).append(Boolean.TRUE.toString()).append(HTTP_AND).
+		append(PARAMETER_NAME_OPERATION).append(HTTP_EQUALS).append(operation).append(HTTP_AND).
+		append(PARAMETER_NAME_CRYPTO_OPERATION).append(HTTP_EQUALS).append(cryptoOperation).append(HTTP_AND).
+		append(PARAMETER_NAME_FORMAT).append(HTTP_EQUALS).append(format).append(HTTP_AND).
+		append(PARAMETER_NAME_ALGORITHM).append(HTTP_EQUALS).append(algorithm);
+		return urlBuffer.toString();
+	}
+
+	static byte[] properties2Bytes(final Properties p) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		p.store(baos, ""); //$NON-NLS-1$
+		return baos.toByteArray();
+	}
+
+	static Properties bytes2Properties(final byte[] b) throws IOException {
+		final Properties p = new Properties();
+		p.load(new ByteArrayInputStream(b));
+		return p;
+	}
+}
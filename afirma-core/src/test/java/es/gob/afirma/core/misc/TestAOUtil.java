@@ -10,10 +10,24 @@
 
 package es.gob.afirma.core.misc;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
 import org.junit.Assert;
 
 import org.junit.Test;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 /** M&eacute;todos generales de utilidad para toda la aplicaci&oacute;n.
  * @version 0.3
  */
@@ -79,5 +93,95 @@ public final class TestAOUtil {
             Assert.assertEquals("El metodo getCN() no devuelve el resultado correcto para " + principal[0], AOUtil.getCN(principal[0]), principal[1]); //$NON-NLS-1$
         }
     }
-}
 
+    /** Prueba que la huella digital calculada sobre un flujo coincide con la calculada
+     * sobre los datos completos.
+     * @throws Exception */
+    @SuppressWarnings("static-method")
+	@Test
+    public void testDigestInputStream() throws Exception {
+        final byte[] data = new byte[200000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        final byte[] expected = MessageDigest.getInstance("SHA-256").digest(data); //$NON-NLS-1$
+        final byte[] digest = AOUtil.digestInputStream(MessageDigest.getInstance("SHA-256"), new ByteArrayInputStream(data)); //$NON-NLS-1$
+        Assert.assertTrue("La huella digital del flujo no coincide con la de los datos", Arrays.equals(expected, digest)); //$NON-NLS-1$
+    }
+
+    /** Prueba la huella digital de ficheros locales leyendo el fichero por flujo y proyect&aacute;ndolo
+     * en memoria, incluidos un fichero vac&iacute;o y uno mayor que un bloque de lectura.
+     * @throws Exception */
+    @SuppressWarnings("static-method")
+	@Test
+    public void testDigestUriFile() throws Exception {
+        final byte[][] contents = new byte[][] { new byte[0], createData(200000) };
+        for (final byte[] data : contents) {
+            final File file = File.createTempFile("afirma", ".dat"); //$NON-NLS-1$ //$NON-NLS-2$
+            try {
+                final FileOutputStream fos = new FileOutputStream(file);
+                fos.write(data);
+                fos.close();
+
+                final byte[] expected = MessageDigest.getInstance("SHA-256").digest(data); //$NON-NLS-1$
+                Assert.assertTrue(
+                    "La huella digital del fichero leido por flujo no coincide con la de los datos", //$NON-NLS-1$
+                    Arrays.equals(expected, AOUtil.digestUri(MessageDigest.getInstance("SHA-256"), file.toURI(), false)) //$NON-NLS-1$
+                );
+                Assert.assertTrue(
+                    "La huella digital del fichero proyectado en memoria no coincide con la de los datos", //$NON-NLS-1$
+                    Arrays.equals(expected, AOUtil.digestUri(MessageDigest.getInstance("SHA-256"), file.toURI(), true)) //$NON-NLS-1$
+                );
+            }
+            finally {
+                // La proyeccion en memoria puede mantener el fichero bloqueado hasta la recoleccion de memoria
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    /** Prueba la huella digital de una URL remota, para la que no se usa la proyecci&oacute;n en memoria.
+     * @throws Exception */
+    @SuppressWarnings("static-method")
+	@Test
+    public void testDigestUriUrl() throws Exception {
+        final byte[] data = createData(200000);
+        final HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0); //$NON-NLS-1$
+        server.createContext("/datos", new HttpHandler() { //$NON-NLS-1$
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, data.length);
+                final OutputStream os = exchange.getResponseBody();
+                os.write(data);
+                os.close();
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            final URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/datos"); //$NON-NLS-1$ //$NON-NLS-2$
+            final byte[] expected = MessageDigest.getInstance("SHA-256").digest(data); //$NON-NLS-1$
+            Assert.assertTrue(
+                "La huella digital de la URL no coincide con la de los datos", //$NON-NLS-1$
+                Arrays.equals(expected, AOUtil.digestUri(MessageDigest.getInstance("SHA-256"), uri, false)) //$NON-NLS-1$
+            );
+            Assert.assertTrue(
+                "La huella digital de la URL no coincide con la de los datos", //$NON-NLS-1$
+                Arrays.equals(expected, AOUtil.digestUri(MessageDigest.getInstance("SHA-256"), uri, true)) //$NON-NLS-1$
+            );
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    private static byte[] createData(final int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,198 @@
+package es.gob.afirma.core.misc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/** Pruebas de codificaci&oacute;n y descodificaci&oacute;n Base64 por flujos y sobre
+ * buffers proporcionados por el llamante, comparando con la conversi&oacute;n de arrays completos. */
+public final class TestBase64 {
+
+    /** Tama&ntilde;os de prueba, incluyendo los l&iacute;mites de l&iacute;nea (57 octetos) y de bloque. */
+    private static final int[] SIZES = {
+        0, 1, 2, 3, 56, 57, 58, 114, 1000, 3647, 3648, 3649, 7296, 100000
+    };
+
+    private static final int[] OPTIONS = {
+        Base64.NO_OPTIONS,
+        Base64.DO_BREAK_LINES,
+        Base64.URL_SAFE,
+        Base64.URL_SAFE | Base64.DO_BREAK_LINES
+    };
+
+    private static final int BENCHMARK_SIZE = 16 * 1024 * 1024;
+
+    /** Propiedad del sistema que activa la prueba de rendimiento. */
+    private static final String PERFORMANCE_PROPERTY = "afirma.test.performance"; //$NON-NLS-1$
+
+    /** M&aacute;ximo factor de tiempo admitido respecto a la codificaci&oacute;n de arrays completos. */
+    private static final long MAX_SLOWDOWN = 2;
+
+    /** Comprueba que la codificaci&oacute;n sobre un buffer del llamante coincide con la de arrays.
+     * @throws Exception Cuando ocurre cualquier error. */
+    @SuppressWarnings("static-method")
+    @Test
+    public void testEncodeToBuffer() throws Exception {
+        for (final int options : OPTIONS) {
+            for (final int size : SIZES) {
+                final byte[] data = randomData(size);
+                final byte[] expected = Base64.encodeBytes(data, options).getBytes("US-ASCII"); //$NON-NLS-1$
+                Assert.assertEquals(expected.length, Base64.getEncodedLength(size, options));
+
+                final byte[] dest = new byte[expected.length + 10];
+                final int written = Base64.encode(data, 0, size, dest, 5, options);
+                Assert.assertEquals(expected.length, written);
+                Assert.assertArrayEquals(expected, Arrays.copyOfRange(dest, 5, 5 + written));
+            }
+        }
+    }
+
+    /** Comprueba que los flujos de codificaci&oacute;n y descodificaci&oacute;n dan el mismo
+     * resultado que la conversi&oacute;n de arrays, escribiendo y leyendo en bloques irregulares.
+     * @throws Exception Cuando ocurre cualquier error. */
+    @SuppressWarnings("static-method")
+    @Test
+    public void testStreams() throws Exception {
+        for (final int options : OPTIONS) {
+            for (final int size : SIZES) {
+                final byte[] data = randomData(size);
+                final byte[] encoded = Base64.encodeBytes(data, options).getBytes("US-ASCII"); //$NON-NLS-1$
+
+                Assert.assertArrayEquals(encoded, read(new Base64.InputStream(new ByteArrayInputStream(data), options | Base64.ENCODE)));
+                Assert.assertArrayEquals(data, read(new Base64.InputStream(new ByteArrayInputStream(encoded), options | Base64.DECODE)));
+
+                Assert.assertArrayEquals(encoded, write(data, options | Base64.ENCODE));
+                Assert.assertArrayEquals(data, write(encoded, options | Base64.DECODE));
+            }
+        }
+    }
+
+    /** Comprueba que se detectan los datos Base64 no v&aacute;lidos o incompletos.
+     * @throws Exception Cuando ocurre cualquier error. */
+    @SuppressWarnings("static-method")
+    @Test
+    public void testInvalidInput() throws Exception {
+        try {
+            read(new Base64.InputStream(new ByteArrayInputStream("QUJD*EVG".getBytes("US-ASCII")))); //$NON-NLS-1$ //$NON-NLS-2$
+            Assert.fail("Se esperaba un error por caracter no valido"); //$NON-NLS-1$
+        }
+        catch (final IOException e) {
+            // Correcto
+        }
+        try {
+            write("QUJDRE".getBytes("US-ASCII"), Base64.DECODE); //$NON-NLS-1$ //$NON-NLS-2$
+            Assert.fail("Se esperaba un error por relleno incorrecto"); //$NON-NLS-1$
+        }
+        catch (final IOException e) {
+            // Correcto
+        }
+    }
+
+    /** Comprueba que la codificaci&oacute;n sobre un buffer reutilizado y por flujos no es
+     * significativamente m&aacute;s lenta que la codificaci&oacute;n de arrays completos. Al depender
+     * del tiempo de ejecuci&oacute;n es una prueba opcional, que solo se ejecuta si se establece
+     * la propiedad del sistema <code>afirma.test.performance</code> a <code>true</code>.
+     * @throws Exception Cuando ocurre cualquier error. */
+    @SuppressWarnings("static-method")
+    @Test
+    public void testPerformance() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean(PERFORMANCE_PROPERTY));
+
+        final byte[] data = randomData(BENCHMARK_SIZE);
+        final byte[] dest = new byte[Base64.getEncodedLength(data.length, Base64.NO_OPTIONS)];
+
+        // Calentamiento
+        for (int i = 0; i < 3; i++) {
+            Base64.encode(data);
+            Base64.encode(data, 0, data.length, dest, 0, Base64.NO_OPTIONS);
+            write(data, Base64.ENCODE);
+        }
+
+        long start = System.nanoTime();
+        final String encoded = Base64.encode(data);
+        final long arrayTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        Base64.encode(data, 0, data.length, dest, 0, Base64.NO_OPTIONS);
+        final long bufferTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        final OutputStream os = new Base64.OutputStream(new NullOutputStream());
+        os.write(data);
+        os.close();
+        final long streamTime = System.nanoTime() - start;
+
+        Assert.assertEquals(encoded, new String(dest, "US-ASCII")); //$NON-NLS-1$
+        Assert.assertTrue(
+            "La codificacion sobre buffer es mas lenta que la de arrays completos", //$NON-NLS-1$
+            bufferTime <= arrayTime * MAX_SLOWDOWN
+        );
+        Assert.assertTrue(
+            "La codificacion por flujos es mas lenta que la de arrays completos", //$NON-NLS-1$
+            streamTime <= arrayTime * MAX_SLOWDOWN
+        );
+    }
+
+    private static byte[] randomData(final int size) {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    /** Lee un flujo completo en bloques de tama&ntilde;o variable. */
+    private static byte[] read(final InputStream is) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[5000];
+        int chunk = 1;
+        int n;
+        while ((n = is.read(buffer, 0, chunk)) != -1) {
+            baos.write(buffer, 0, n);
+            chunk = chunk * 7 % buffer.length + 1;
+        }
+        is.close();
+        return baos.toByteArray();
+    }
+
+    /** Escribe los datos en un flujo Base64 en bloques de tama&ntilde;o variable. */
+    private static byte[] write(final byte[] data, final int options) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final OutputStream os = new Base64.OutputStream(baos, options);
+        int off = 0;
+        int chunk = 1;
+        while (off < data.length) {
+            final int n = Math.min(chunk, data.length - off);
+            if (n == 1) {
+                os.write(data[off]);
+            }
+            else {
+                os.write(data, off, n);
+            }
+            off += n;
+            chunk = chunk * 7 % 5000 + 1;
+        }
+        os.close();
+        return baos.toByteArray();
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+        NullOutputStream() {
+            // Vacio
+        }
+        @Override
+        public void write(final int b) {
+            // Se descartan los datos
+        }
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            // Se descartan los datos
+        }
+    }
+}
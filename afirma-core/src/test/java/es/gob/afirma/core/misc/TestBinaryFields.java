@@ -0,0 +1,81 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.core.misc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Pruebas de los mensajes binarios de campos. */
+public final class TestBinaryFields {
+
+	/** Comprueba que los campos se leen tal como se escribieron, incluidos los mayores que un bloque.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testRoundTrip() throws Exception {
+		final byte[] large = new byte[3 * 1024 * 1024 + 7];
+		for (int i = 0; i < large.length; i++) {
+			large[i] = (byte) (i * 13);
+		}
+
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final BinaryFieldsWriter writer = new BinaryFieldsWriter(baos);
+		writer.writeField("vacio", new byte[0]); //$NON-NLS-1$
+		writer.writeField("grande", new ByteArrayInputStream(large)); //$NON-NLS-1$
+		writer.writeField("corto", "Hola".getBytes()); //$NON-NLS-1$ //$NON-NLS-2$
+		writer.finish();
+
+		final BinaryFieldsReader reader = new BinaryFieldsReader(new ByteArrayInputStream(baos.toByteArray()));
+		Assert.assertEquals("vacio", reader.nextField()); //$NON-NLS-1$
+		Assert.assertEquals(0, reader.readFieldContent().length);
+		Assert.assertEquals("grande", reader.nextField()); //$NON-NLS-1$
+		Assert.assertTrue(Arrays.equals(large, reader.readFieldContent()));
+		Assert.assertEquals("corto", reader.nextField()); //$NON-NLS-1$
+		Assert.assertEquals("Hola", new String(reader.readFieldContent())); //$NON-NLS-1$
+		Assert.assertNull(reader.nextField());
+	}
+
+	/** Comprueba que no se leen en memoria campos mayores que el tama&ntilde;o m&aacute;ximo, pero
+	 * s&iacute; se pueden recorrer como flujo y saltar.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testMaxFieldSize() throws Exception {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final BinaryFieldsWriter writer = new BinaryFieldsWriter(baos);
+		writer.writeField("limite", new byte[100]); //$NON-NLS-1$
+		writer.writeField("grande", new byte[101]); //$NON-NLS-1$
+		writer.writeField("saltado", new byte[5000]); //$NON-NLS-1$
+		writer.writeField("flujo", new byte[5000]); //$NON-NLS-1$
+		writer.finish();
+
+		final BinaryFieldsReader reader = new BinaryFieldsReader(new ByteArrayInputStream(baos.toByteArray()), 100);
+		Assert.assertEquals("limite", reader.nextField()); //$NON-NLS-1$
+		Assert.assertEquals(100, reader.readFieldContent().length);
+		Assert.assertEquals("grande", reader.nextField()); //$NON-NLS-1$
+		try {
+			reader.readFieldContent();
+			Assert.fail("Se ha leido un campo mayor que el tamano maximo"); //$NON-NLS-1$
+		}
+		catch (final IOException e) {
+			// Se esperaba
+		}
+		Assert.assertEquals("saltado", reader.nextField()); //$NON-NLS-1$
+		Assert.assertEquals("flujo", reader.nextField()); //$NON-NLS-1$
+		Assert.assertEquals(5000, reader.readFieldContent(Integer.MAX_VALUE).length);
+		Assert.assertNull(reader.nextField());
+	}
+}
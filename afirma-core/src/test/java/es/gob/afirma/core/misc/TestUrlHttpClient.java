@@ -0,0 +1,284 @@
+package es.gob.afirma.core.misc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/** Pruebas del cliente HTTP contra un servidor local. */
+public final class TestUrlHttpClient {
+
+	private static final String PATH = "/prueba"; //$NON-NLS-1$
+
+	private static final byte[] RESPONSE = "Respuesta".getBytes(); //$NON-NLS-1$
+
+	private static final int MAX_CONNECTIONS = 2;
+
+	private static final int REQUESTS = 6;
+
+	private HttpServer server;
+	private ExecutorService serverExecutor;
+	private String url;
+
+	/** Peticiones que est&aacute; atendiendo el servidor en cada momento. */
+	private final AtomicInteger active = new AtomicInteger();
+
+	/** M&aacute;ximo de peticiones atendidas a la vez por el servidor. */
+	private final AtomicInteger maxActive = new AtomicInteger();
+
+	/** Las peticiones no se responden hasta que se libera este cerrojo. */
+	private CountDownLatch release;
+
+	/** Arranca el servidor local.
+	 * @throws IOException Si no se puede arrancar el servidor. */
+	@Before
+	public void startServer() throws IOException {
+		this.release = new CountDownLatch(1);
+		this.serverExecutor = Executors.newCachedThreadPool();
+		this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0); //$NON-NLS-1$
+		this.server.createContext(PATH, new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				handleRequest(exchange);
+			}
+		});
+		this.server.setExecutor(this.serverExecutor);
+		this.server.start();
+		this.url = "http://localhost:" + this.server.getAddress().getPort() + PATH; //$NON-NLS-1$
+	}
+
+	/** Detiene el servidor local. */
+	@After
+	public void stopServer() {
+		this.release.countDown();
+		this.server.stop(0);
+		this.serverExecutor.shutdownNow();
+	}
+
+	/** Comprueba que cada cliente aplica su propia configuraci&oacute;n SSL a sus conexiones sin
+	 * modificar la configuraci&oacute;n por defecto de Java.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testPerInstanceSslConfiguration() throws Exception {
+		final SSLSocketFactory defaultFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+		final HostnameVerifier defaultVerifier = HttpsURLConnection.getDefaultHostnameVerifier();
+
+		final SSLContext sslContext = SSLContext.getInstance("TLS"); //$NON-NLS-1$
+		sslContext.init(null, new TrustManager[] {
+			new X509TrustManager() {
+				@Override
+				public X509Certificate[] getAcceptedIssuers() {
+					return new X509Certificate[0];
+				}
+				@Override
+				public void checkClientTrusted(final X509Certificate[] certs, final String authType) { /* No hacemos nada */ }
+				@Override
+				public void checkServerTrusted(final X509Certificate[] certs, final String authType) { /* No hacemos nada */ }
+			}
+		}, null);
+		final HostnameVerifier verifier = new HostnameVerifier() {
+			@Override
+			public boolean verify(final String hostname, final SSLSession session) {
+				return true;
+			}
+		};
+
+		final UrlHttpClient client = new UrlHttpClient(sslContext, verifier, 1000, 2000, MAX_CONNECTIONS);
+		final HttpsURLConnection conn = (HttpsURLConnection) client.openConnection(new URL("https://localhost/")); //$NON-NLS-1$
+		Assert.assertNotSame(defaultFactory, conn.getSSLSocketFactory());
+		Assert.assertNotSame(trustAllFactory(), conn.getSSLSocketFactory());
+		Assert.assertSame(verifier, conn.getHostnameVerifier());
+		Assert.assertEquals(1000, conn.getConnectTimeout());
+		Assert.assertEquals(2000, conn.getReadTimeout());
+
+		// La misma factoria en todas las conexiones, para reutilizar las sesiones TLS
+		final HttpsURLConnection conn2 = (HttpsURLConnection) client.openConnection(new URL("https://localhost/")); //$NON-NLS-1$
+		Assert.assertSame(conn.getSSLSocketFactory(), conn2.getSSLSocketFactory());
+		client.releaseConnection(conn);
+		client.releaseConnection(conn2);
+
+		// Ni este cliente ni el compartido modifican la configuracion de Java
+		Assert.assertNotSame(defaultFactory, trustAllFactory());
+		Assert.assertSame(defaultFactory, HttpsURLConnection.getDefaultSSLSocketFactory());
+		Assert.assertSame(defaultVerifier, HttpsURLConnection.getDefaultHostnameVerifier());
+		Assert.assertSame(defaultFactory, ((HttpsURLConnection) new URL("https://localhost/").openConnection()).getSSLSocketFactory()); //$NON-NLS-1$
+	}
+
+	/** Comprueba que las lecturas de un cliente no superan su n&uacute;mero m&aacute;ximo de peticiones
+	 * simult&aacute;neas.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@Test
+	public void testReadLimit() throws Exception {
+		final UrlHttpClient client = new UrlHttpClient(null, null, UrlHttpClient.DEFAULT_TIMEOUT, UrlHttpClient.DEFAULT_TIMEOUT, MAX_CONNECTIONS);
+		final ExecutorService executor = Executors.newFixedThreadPool(REQUESTS);
+		try {
+			final Future<?>[] results = new Future<?>[REQUESTS];
+			for (int i = 0; i < REQUESTS; i++) {
+				final String requestUrl = i % 2 == 0 ? this.url : this.url + "?param=" + i; //$NON-NLS-1$
+				results[i] = executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						return client.readUrlByPost(requestUrl);
+					}
+				});
+			}
+
+			// Esperamos a que el servidor reciba las peticiones permitidas y comprobamos que no llegan mas
+			waitForActive(MAX_CONNECTIONS);
+			Thread.sleep(300);
+			Assert.assertEquals(MAX_CONNECTIONS, this.active.get());
+
+			this.release.countDown();
+			for (final Future<?> result : results) {
+				Assert.assertArrayEquals(RESPONSE, (byte[]) result.get(30, TimeUnit.SECONDS));
+			}
+			Assert.assertEquals(MAX_CONNECTIONS, this.maxActive.get());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/** Comprueba que las conexiones abiertas para que las use el llamante, incluidas las de POST en las que
+	 * la petici&oacute;n se escribe por bloques, ocupan una de las peticiones simult&aacute;neas del cliente
+	 * hasta que se liberan.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@Test
+	public void testPostConnectionLimit() throws Exception {
+		this.release.countDown();
+
+		final UrlHttpClient client = new UrlHttpClient(null, null, UrlHttpClient.DEFAULT_TIMEOUT, UrlHttpClient.DEFAULT_TIMEOUT, MAX_CONNECTIONS);
+		final HttpURLConnection[] conns = new HttpURLConnection[MAX_CONNECTIONS];
+		conns[0] = client.openPostConnection(this.url, "application/octet-stream", UrlHttpClient.DEFAULT_TIMEOUT); //$NON-NLS-1$
+		conns[1] = (HttpURLConnection) client.openConnection(new URL(this.url));
+
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final Future<byte[]> blocked = executor.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return client.readUrlByGet(TestUrlHttpClient.this.url);
+				}
+			});
+			try {
+				blocked.get(300, TimeUnit.MILLISECONDS);
+				Assert.fail("Se ha superado el numero maximo de peticiones simultaneas"); //$NON-NLS-1$
+			}
+			catch (final TimeoutException e) {
+				// Se esperaba
+			}
+
+			// Completamos y liberamos una de las conexiones, dos veces para comprobar que solo cuenta una
+			Assert.assertArrayEquals(RESPONSE, post(conns[0]));
+			client.releaseConnection(conns[0]);
+			client.releaseConnection(conns[0]);
+			Assert.assertArrayEquals(RESPONSE, blocked.get(30, TimeUnit.SECONDS));
+
+			// Sigue ocupada la otra conexion, por lo que solo queda una peticion libre
+			final HttpURLConnection conn = client.openPostConnection(this.url, null, UrlHttpClient.DEFAULT_TIMEOUT);
+			final Future<HttpURLConnection> blockedPost = executor.submit(new Callable<HttpURLConnection>() {
+				@Override
+				public HttpURLConnection call() throws Exception {
+					return client.openPostConnection(TestUrlHttpClient.this.url, null, UrlHttpClient.DEFAULT_TIMEOUT);
+				}
+			});
+			try {
+				blockedPost.get(300, TimeUnit.MILLISECONDS);
+				Assert.fail("Se ha superado el numero maximo de conexiones simultaneas"); //$NON-NLS-1$
+			}
+			catch (final TimeoutException e) {
+				// Se esperaba
+			}
+			client.releaseConnection(conns[1]);
+			client.releaseConnection(blockedPost.get(30, TimeUnit.SECONDS));
+			client.releaseConnection(conn);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static SSLSocketFactory trustAllFactory() throws IOException {
+		final UrlHttpClient trustAll = UrlHttpClient.getTrustAllInstance();
+		final HttpsURLConnection conn = (HttpsURLConnection) trustAll.openConnection(new URL("https://localhost/")); //$NON-NLS-1$
+		trustAll.releaseConnection(conn);
+		return conn.getSSLSocketFactory();
+	}
+
+	private static byte[] post(final HttpURLConnection conn) throws IOException {
+		final OutputStream os = conn.getOutputStream();
+		os.write("Datos".getBytes()); //$NON-NLS-1$
+		os.close();
+		final InputStream is = conn.getInputStream();
+		try {
+			return AOUtil.getDataFromInputStream(is);
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	private void waitForActive(final int expected) throws InterruptedException {
+		final long limit = System.currentTimeMillis() + 30000;
+		while (this.active.get() < expected && System.currentTimeMillis() < limit) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(expected, this.active.get());
+	}
+
+	void handleRequest(final HttpExchange exchange) throws IOException {
+		final int current = this.active.incrementAndGet();
+		int max;
+		while ((max = this.maxActive.get()) < current && !this.maxActive.compareAndSet(max, current)) {
+			// Reintentamos hasta actualizar el maximo
+		}
+		try {
+			final InputStream is = exchange.getRequestBody();
+			AOUtil.getDataFromInputStream(is);
+			is.close();
+			this.release.await(30, TimeUnit.SECONDS);
+			// La peticion deja de contar antes de responder, cuando el cliente aun no puede lanzar otra
+			this.active.decrementAndGet();
+			exchange.sendResponseHeaders(200, RESPONSE.length);
+			final OutputStream os = exchange.getResponseBody();
+			os.write(RESPONSE);
+			os.close();
+		}
+		catch (final InterruptedException e) {
+			this.active.decrementAndGet();
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			exchange.close();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.core.signers;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Pruebas de la identificaci&oacute;n de la familia de codificaci&oacute;n de las firmas
+ * con la que la factor&iacute;a preselecciona los manejadores de firma. */
+public final class TestAOSignerFactory {
+
+	private static final String XML = "<?xml version=\"1.0\"?><AFIRMA/>"; //$NON-NLS-1$
+
+	/** Comprueba la identificaci&oacute;n de estructuras ASN.1.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testAsn1() throws Exception {
+		Assert.assertEquals(AOSignerFactory.FAMILY_ASN1, AOSignerFactory.getSignFamily(new byte[] { 0x30, (byte) 0x80, 0x06, 0x09 }));
+	}
+
+	/** Comprueba la identificaci&oacute;n de documentos PDF.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testPdf() throws Exception {
+		Assert.assertEquals(AOSignerFactory.FAMILY_PDF, AOSignerFactory.getSignFamily("%PDF-1.4\n%\u00e2\u00e3".getBytes("ISO-8859-1"))); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/** Comprueba la identificaci&oacute;n de XML en distintas codificaciones, con y sin marca de
+	 * orden de bytes y con espacios iniciales.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testXml() throws Exception {
+		final String[] xmls = { XML, " \r\n\t" + XML }; //$NON-NLS-1$
+		for (final String xml : xmls) {
+			Assert.assertEquals(AOSignerFactory.FAMILY_XML, AOSignerFactory.getSignFamily(xml.getBytes("UTF-8"))); //$NON-NLS-1$
+			Assert.assertEquals(AOSignerFactory.FAMILY_XML, AOSignerFactory.getSignFamily(("\uFEFF" + xml).getBytes("UTF-8"))); //$NON-NLS-1$ //$NON-NLS-2$
+			// Con marca de orden de bytes
+			Assert.assertEquals(AOSignerFactory.FAMILY_XML, AOSignerFactory.getSignFamily(xml.getBytes("UTF-16"))); //$NON-NLS-1$
+			Assert.assertEquals(AOSignerFactory.FAMILY_XML, AOSignerFactory.getSignFamily(("\uFEFF" + xml).getBytes("UTF-16LE"))); //$NON-NLS-1$ //$NON-NLS-2$
+			// Sin marca de orden de bytes
+			Assert.assertEquals(AOSignerFactory.FAMILY_XML, AOSignerFactory.getSignFamily(xml.getBytes("UTF-16BE"))); //$NON-NLS-1$
+			Assert.assertEquals(AOSignerFactory.FAMILY_XML, AOSignerFactory.getSignFamily(xml.getBytes("UTF-16LE"))); //$NON-NLS-1$
+		}
+	}
+
+	/** Comprueba que los ZIP con entrada <code>mimetype</code> se identifican como ODF y el
+	 * resto como OOXML.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testZip() throws Exception {
+		Assert.assertEquals(
+			AOSignerFactory.FAMILY_ODF,
+			AOSignerFactory.getSignFamily(createZip(new String[] { "mimetype", "content.xml", "META-INF/manifest.xml" }, null)) //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		);
+		// La entrada mimetype no es la primera y el ZIP tiene comentario
+		Assert.assertEquals(
+			AOSignerFactory.FAMILY_ODF,
+			AOSignerFactory.getSignFamily(createZip(new String[] { "content.xml", "mimetype" }, "Comentario")) //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		);
+		Assert.assertEquals(
+			AOSignerFactory.FAMILY_OOXML,
+			AOSignerFactory.getSignFamily(createZip(new String[] { "[Content_Types].xml", "_rels/.rels", "word/document.xml" }, null)) //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		);
+		// Entrada cuyo nombre empieza por mimetype
+		Assert.assertEquals(
+			AOSignerFactory.FAMILY_OOXML,
+			AOSignerFactory.getSignFamily(createZip(new String[] { "mimetypes.xml" }, null)) //$NON-NLS-1$
+		);
+
+		// ZIP truncado, sin directorio central
+		final byte[] zip = createZip(new String[] { "mimetype" }, null); //$NON-NLS-1$
+		final byte[] truncated = new byte[zip.length / 2];
+		System.arraycopy(zip, 0, truncated, 0, truncated.length);
+		Assert.assertNull(AOSignerFactory.getSignFamily(truncated));
+	}
+
+	/** Comprueba que los datos de formatos desconocidos no se asignan a ninguna familia y
+	 * que para ellos no se obtiene manejador.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testUnknown() throws Exception {
+		final byte[][] unknown = {
+			new byte[0],
+			"Texto plano".getBytes("UTF-8"), //$NON-NLS-1$ //$NON-NLS-2$
+			"   Texto plano".getBytes("UTF-16BE"), //$NON-NLS-1$ //$NON-NLS-2$
+			"Texto plano".getBytes("UTF-16"), //$NON-NLS-1$ //$NON-NLS-2$
+			new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0 }
+		};
+		for (final byte[] data : unknown) {
+			Assert.assertNull(AOSignerFactory.getSignFamily(data));
+			Assert.assertNull(AOSignerFactory.getSigner(data));
+		}
+	}
+
+	private static byte[] createZip(final String[] entries, final String comment) throws Exception {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final ZipOutputStream zos = new ZipOutputStream(baos);
+		if (comment != null) {
+			zos.setComment(comment);
+		}
+		for (final String name : entries) {
+			final byte[] content = name.getBytes("UTF-8"); //$NON-NLS-1$
+			final ZipEntry entry = new ZipEntry(name);
+			// Como en los ODF, la entrada mimetype se almacena sin comprimir
+			if ("mimetype".equals(name)) { //$NON-NLS-1$
+				final CRC32 crc = new CRC32();
+				crc.update(content);
+				entry.setMethod(ZipEntry.STORED);
+				entry.setSize(content.length);
+				entry.setCrc(crc.getValue());
+			}
+			zos.putNextEntry(entry);
+			zos.write(content);
+			zos.closeEntry();
+		}
+		zos.close();
+		return baos.toByteArray();
+	}
+}
@@ -0,0 +1,121 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.core.signers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import es.gob.afirma.core.misc.BinaryFieldsReader;
+import es.gob.afirma.core.misc.BinaryFieldsWriter;
+
+/** Pruebas de la parte servidora del protocolo de firma trif&aacute;sica por lotes. */
+public final class TestTriPhaseBatchProcessor {
+
+	/** Prefirma que devuelve como prefirma el propio documento. */
+	private static final TriPhaseBatchProcessor.PreSigner ECHO_PRESIGNER = new TriPhaseBatchProcessor.PreSigner() {
+		@Override
+		public Properties preSign(final byte[] cert, final Properties extraParams, final byte[] doc) throws Exception {
+			if (doc.length == 0) {
+				throw new IllegalArgumentException("Documento vacio"); //$NON-NLS-1$
+			}
+			final Properties session = new Properties();
+			session.setProperty("PRE.0", new String(doc, "UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+			return session;
+		}
+	};
+
+	/** Comprueba que se devuelve un resultado por documento y que el error de un documento no
+	 * impide procesar el resto.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testPreSign() throws Exception {
+		final ByteArrayOutputStream response = new ByteArrayOutputStream();
+		TriPhaseBatchProcessor.preSign(
+			new ByteArrayInputStream(createRequest(new byte[][] { "a".getBytes(), new byte[0], "c".getBytes() })), //$NON-NLS-1$ //$NON-NLS-2$
+			response,
+			ECHO_PRESIGNER
+		);
+
+		final BinaryFieldsReader reader = new BinaryFieldsReader(new ByteArrayInputStream(response.toByteArray()));
+		Assert.assertEquals(TriPhaseBatchSigner.FIELD_NAME_SESSION, reader.nextField());
+		Assert.assertEquals("a", TriPhaseBatchSigner.bytes2Properties(reader.readFieldContent()).getProperty("PRE.0")); //$NON-NLS-1$ //$NON-NLS-2$
+		Assert.assertEquals(TriPhaseBatchSigner.FIELD_NAME_ERROR, reader.nextField());
+		Assert.assertTrue(new String(reader.readFieldContent(), "UTF-8").contains("Documento vacio")); //$NON-NLS-1$ //$NON-NLS-2$
+		Assert.assertEquals(TriPhaseBatchSigner.FIELD_NAME_SESSION, reader.nextField());
+		Assert.assertEquals("c", TriPhaseBatchSigner.bytes2Properties(reader.readFieldContent()).getProperty("PRE.0")); //$NON-NLS-1$ //$NON-NLS-2$
+		Assert.assertNull(reader.nextField());
+	}
+
+	/** Comprueba que se rechazan los lotes con m&aacute;s documentos de los permitidos.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testMaxDocuments() throws Exception {
+		final byte[][] docs = new byte[][] { "a".getBytes(), "b".getBytes(), "c".getBytes() }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+		TriPhaseBatchProcessor.preSign(
+			new ByteArrayInputStream(createRequest(docs)), new ByteArrayOutputStream(), ECHO_PRESIGNER, 3, Long.MAX_VALUE
+		);
+
+		final ByteArrayOutputStream response = new ByteArrayOutputStream();
+		try {
+			TriPhaseBatchProcessor.preSign(
+				new ByteArrayInputStream(createRequest(docs)), response, ECHO_PRESIGNER, 2, Long.MAX_VALUE
+			);
+			Assert.fail("Se ha aceptado un lote con mas documentos de los permitidos"); //$NON-NLS-1$
+		}
+		catch (final IOException e) {
+			// Se esperaba
+		}
+		Assert.assertEquals("Se ha respondido a un lote no valido", 0, response.size()); //$NON-NLS-1$
+	}
+
+	/** Comprueba que se rechazan las peticiones mayores que el tama&ntilde;o m&aacute;ximo.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testMaxRequestSize() throws Exception {
+		final byte[][] docs = new byte[][] { new byte[1000], new byte[1000] };
+		final long requestSize = 2000 + "CERT".length(); //$NON-NLS-1$
+
+		TriPhaseBatchProcessor.preSign(
+			new ByteArrayInputStream(createRequest(docs)), new ByteArrayOutputStream(), ECHO_PRESIGNER, 10, requestSize
+		);
+
+		try {
+			TriPhaseBatchProcessor.preSign(
+				new ByteArrayInputStream(createRequest(docs)), new ByteArrayOutputStream(), ECHO_PRESIGNER, 10, requestSize - 1
+			);
+			Assert.fail("Se ha aceptado una peticion mayor que el tamano maximo"); //$NON-NLS-1$
+		}
+		catch (final IOException e) {
+			// Se esperaba
+		}
+	}
+
+	private static byte[] createRequest(final byte[][] docs) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final BinaryFieldsWriter writer = new BinaryFieldsWriter(baos);
+		writer.writeField(TriPhaseBatchSigner.FIELD_NAME_CERT, "CERT".getBytes()); //$NON-NLS-1$
+		writer.writeField(TriPhaseBatchSigner.FIELD_NAME_EXTRA_PARAM, new byte[0]);
+		for (final byte[] doc : docs) {
+			writer.writeField(TriPhaseBatchSigner.FIELD_NAME_DOC, doc);
+		}
+		writer.finish();
+		return baos.toByteArray();
+	}
+}
@@ -51,6 +51,10 @@ public class AOCAdESCounterSigner implements AOCounterSigner {
         	signingCertificateV2 = !"SHA1".equals(AOSignConstants.getDigestAlgorithmName(algorithm));	 //$NON-NLS-1$
         }
 
+        final boolean parallelCounterSign = Boolean.parseBoolean(
+    		extraParams.getProperty(CAdESParallelCounterSigner.PARALLEL_COUNTERSIGN_PARAM)
+		);
+
         final P7ContentSignerParameters csp = new P7ContentSignerParameters(
     		sign,
     		algorithm
@@ -76,7 +80,7 @@ public class AOCAdESCounterSigner implements AOCounterSigner {
                         0
                     };
 
-                    dataSigned = new CAdESCounterSigner().counterSigner(
+                    dataSigned = new CAdESCounterSigner(parallelCounterSign).counterSigner(
                     	   csp,
 	                       sign,
 	                       CounterSignTarget.TREE,
@@ -95,7 +99,7 @@ public class AOCAdESCounterSigner implements AOCounterSigner {
                         0
                     };
                     dataSigned =
-                            new CAdESCounterSigner().counterSigner(
+                            new CAdESCounterSigner(parallelCounterSign).counterSigner(
                         		csp,
                                 sign,
                                 CounterSignTarget.LEAFS,
@@ -172,7 +176,7 @@ public class AOCAdESCounterSigner implements AOCounterSigner {
                 };
 
                 dataSigned =
-                        new CAdESCounterSignerEnveloped().counterSigner(
+                        new CAdESCounterSignerEnveloped(parallelCounterSign).counterSigner(
                     		csp,
                             sign,
                             CounterSignTarget.TREE,
@@ -191,7 +195,7 @@ public class AOCAdESCounterSigner implements AOCounterSigner {
                     0
                 };
                 dataSigned =
-                        new CAdESCounterSignerEnveloped().counterSigner(
+                        new CAdESCounterSignerEnveloped(parallelCounterSign).counterSigner(
                     		csp,
                             sign,
                             CounterSignTarget.LEAFS,
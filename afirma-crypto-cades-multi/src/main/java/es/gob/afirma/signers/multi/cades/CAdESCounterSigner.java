@@ -19,7 +19,11 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.ASN1EncodableVector;
@@ -66,6 +70,24 @@ final class CAdESCounterSigner {
     /* Propiedades de la clase */
     private int actualIndex = 0;
 
+    private final boolean parallelSigning;
+
+    /** Contrafirmas generadas de antemano, indexadas por el valor de la firma que contrafirman. */
+    private Map<ASN1OctetString, SignerInfo> precalculatedSigners = new HashMap<ASN1OctetString, SignerInfo>(0);
+
+    /** Crea un contrafirmante que genera las contrafirmas secuencialmente. */
+    CAdESCounterSigner() {
+        this(false);
+    }
+
+    /** Crea un contrafirmante.
+     * @param parallel <code>true</code> para generar en paralelo las contrafirmas del &aacute;rbol
+     *                 completo o de sus hojas cuando la clave lo permita, <code>false</code> para
+     *                 generarlas secuencialmente. */
+    CAdESCounterSigner(final boolean parallel) {
+        this.parallelSigning = parallel;
+    }
+
     /** Crea una contrafirma a partir de los datos
      * del firmante, el archivo que se firma y del archivo que contiene las
      * firmas.<br>
@@ -157,6 +179,24 @@ final class CAdESCounterSigner {
         // raiz de la secuencia de SignerInfo
         ASN1EncodableVector signerInfos = new ASN1EncodableVector();
 
+        // Si se ha pedido y la clave lo permite, generamos en paralelo las contrafirmas
+        // del arbol o de las hojas, que despues se insertan al recorrer el arbol
+        if (this.parallelSigning &&
+    		(targetType.equals(CounterSignTarget.TREE) || targetType.equals(CounterSignTarget.LEAFS)) &&
+    		CAdESParallelCounterSigner.isParallelizable(key)) {
+            this.precalculatedSigners = CAdESParallelCounterSigner.counterSign(
+        			signerInfosSd,
+        			targetType.equals(CounterSignTarget.LEAFS),
+        			parameters.getSignatureAlgorithm(),
+        			key,
+        			certChain,
+        			contentType,
+        			contentDescription,
+        			policy,
+        			signingCertificateV2
+    			);
+        }
+
         // FIRMA EN ARBOL
         if (targetType.equals(CounterSignTarget.TREE)) {
             signerInfos = counterTree(
@@ -183,76 +223,20 @@ final class CAdESCounterSigner {
                 signingCertificateV2
             );
         }
-        // FIRMA DE NODOS
-        else if (targetType.equals(CounterSignTarget.NODES)) {
-            // Firma de Nodos
-            SignedData sigDat;
-            SignedData aux = sd;
-
-            int nodo = 0;
-            for (int i = targets.length - 1; i >= 0; i--) {
-                nodo = targets[i];
-                signerInfos = counterNode(
-            		aux,
-            		parameters,
-            		key,
-            		certChain,
-                    contentType,
-                    contentDescription,
-                    nodo,
-                    policy,
-                    signingCertificateV2
-                );
-                sigDat = new SignedData(
-            		sd.getDigestAlgorithms(),
-            		sd.getEncapContentInfo(),
-            		certificates,
-            		certrevlist,
-            		new DERSet(signerInfos)
-        		);
-
-                // Esto se realiza asi por problemas con los casting.
-                final ASN1InputStream sd2 = new ASN1InputStream(sigDat.getEncoded(ASN1Encoding.DER));
-                final ASN1Sequence contentSignedData2 = (ASN1Sequence) sd2.readObject();// contenido del SignedData
-                sd2.close();
-                aux = SignedData.getInstance(contentSignedData2);
-            }
-
-            // construimos el Signed Data y lo devolvemos
-            return new ContentInfo(PKCSObjectIdentifiers.signedData, aux).getEncoded(ASN1Encoding.DER);
-        }
-        // FIRMA DE LOS SIGNERS
-        else if (targetType.equals(CounterSignTarget.SIGNERS)) {
-            // Firma de Nodos
-            SignedData sigDat;
-            SignedData aux = sd;
-
-            int nodo = 0;
-            for (int i = targets.length - 1; i >= 0; i--) {
-                nodo = targets[i];
-                signerInfos = counterNode(
-            		aux,
-            		parameters,
-            		key,
-            		certChain,
-                    contentType,
-                    contentDescription,
-                    nodo,
-                    policy,
-                    signingCertificateV2
-                );
-                sigDat = new SignedData(sd.getDigestAlgorithms(), sd.getEncapContentInfo(), certificates, certrevlist, new DERSet(signerInfos));
-
-                // Esto se realiza as&iacute; por problemas con los casting.
-                final ASN1InputStream sd2 = new ASN1InputStream(sigDat.getEncoded(ASN1Encoding.DER));
-                final ASN1Sequence contentSignedData2 = (ASN1Sequence) sd2.readObject();// contenido del SignedData
-                sd2.close();
-
-                aux = SignedData.getInstance(contentSignedData2);
-            }
-
-            // construimos el Signed Data y lo devolvemos
-            return new ContentInfo(PKCSObjectIdentifiers.signedData, aux).getEncoded(ASN1Encoding.DER);
+        // FIRMA DE NODOS O DE LOS SIGNERS
+        else if (targetType.equals(CounterSignTarget.NODES) || targetType.equals(CounterSignTarget.SIGNERS)) {
+            // Contrafirmamos todos los nodos en un unico recorrido del arbol
+            signerInfos = counterNodes(
+        		signerInfosSd,
+        		parameters,
+        		key,
+        		certChain,
+                contentType,
+                contentDescription,
+                targets,
+                policy,
+                signingCertificateV2
+            );
         }
 
         // construimos el Signed Data y lo devolvemos
@@ -354,77 +338,61 @@ final class CAdESCounterSigner {
         return counterSigners;
     }
 
-    /** Contrafirma un nodo determinado del &aacute;rbol busc&aacute;ndolo de
-     * forma recursiva.<br>
-     * @param sd
-     *        SignedData que contiene el Nodo ra&iacute;z.
+    /** Contrafirma un conjunto de nodos del &aacute;rbol recorri&eacute;ndolo una &uacute;nica
+     * vez. Los nodos se identifican por su posici&oacute;n en el recorrido en preorden del
+     * &aacute;rbol de firmas original, por lo que el orden de los objetivos es indiferente.<br>
+     * @param signerInfosRaiz
+     *        Nodo ra&iacute; que contiene todos los signerInfos.
      * @param parameters
      *        Par&aacute;metros necesarios para firmar un determinado
-     *        SignerInfo hoja.
+     *        SignerInfo.
      * @param key Clave privada a usar para firmar
      * @param contentType Tipo de contenido definido por su OID.
      * @param contentDescription Descripci&oacute;n textual del tipo de contenido firmado.
-     * @param nodo
-     *        Nodo signerInfo a firmar.
-     * @return El SignerInfo ra&iacute;z con todos sus nodos Contrafirmados.
+     * @param nodes
+     *        Nodos signerInfo a firmar.
+     * @return El SignerInfo ra&iacute;z con los nodos indicados contrafirmados.
      * @throws java.security.NoSuchAlgorithmException
      * @throws java.io.IOException
-     * @throws java.security.cert.CertificateException
-     * @throws es.map.es.map.afirma.exceptions.AOException */
-    private ASN1EncodableVector counterNode(final SignedData sd,
-                                            final P7ContentSignerParameters parameters,
-                                            final PrivateKey key,
-                                            final java.security.cert.Certificate[] certChain,
-                                            final String contentType,
-                                            final String contentDescription,
-                                            final int nodo,
-                                            final AdESPolicy policy,
-                                            final boolean signingCertificateV2) throws NoSuchAlgorithmException, IOException, CertificateException, AOException {
-
-        final ASN1Set signerInfosRaiz = sd.getSignerInfos();
+     * @throws java.security.cert.CertificateException */
+    private ASN1EncodableVector counterNodes(final ASN1Set signerInfosRaiz,
+                                             final P7ContentSignerParameters parameters,
+                                             final PrivateKey key,
+                                             final java.security.cert.Certificate[] certChain,
+                                             final String contentType,
+                                             final String contentDescription,
+                                             final int[] nodes,
+                                             final AdESPolicy policy,
+                                             final boolean signingCertificateV2) throws NoSuchAlgorithmException, IOException, CertificateException {
+
+        final Set<Integer> targetNodes = new HashSet<Integer>(nodes.length);
+        int lastNode = -1;
+        for (final int node : nodes) {
+            targetNodes.add(Integer.valueOf(node));
+            lastNode = Math.max(lastNode, node);
+        }
 
         final ASN1EncodableVector counterSigners = new ASN1EncodableVector();
-        ASN1Set auxSignerRaiz;
-
-        auxSignerRaiz = signerInfosRaiz;
         this.actualIndex = 0;
-
-        for (int i = 0; i < auxSignerRaiz.size(); i++) {
-            final SignerInfo si = new SignerInfo((ASN1Sequence) auxSignerRaiz.getObjectAt(i));
-            SignerInfo counterSigner = null;
-            if (this.actualIndex == nodo) {
-                counterSigner = getNodeSignerInfo(
+        for (int i = 0; i < signerInfosRaiz.size(); i++) {
+            final SignerInfo si = new SignerInfo((ASN1Sequence) signerInfosRaiz.getObjectAt(i));
+            counterSigners.add(
+        		getNodeSignerInfo(
             		si,
             		parameters,
             		key,
             		certChain,
                     contentType,
                     contentDescription,
+                    targetNodes,
+                    lastNode,
                     policy,
                     signingCertificateV2
-                );
-            }
-            else {
-                if (this.actualIndex != nodo) {
-                    counterSigner = getNodeSignerInfo(
-                		si,
-                		parameters,
-                		key,
-                		certChain,
-                        contentType,
-                        contentDescription,
-                        nodo,
-                        policy,
-                        signingCertificateV2
-                    );
-                }
-            }
+                )
+            );
             this.actualIndex++;
-            counterSigners.add(counterSigner);
         }
-
         return counterSigners;
-
     }
 
     /** Obtiene la contrafirma de los signerInfo de forma recursiva.<br>
@@ -762,9 +730,10 @@ final class CAdESCounterSigner {
         return counterSigner;
     }
 
-    /** Obtiene la contrafirma de los signerInfo sin ser recursivo. Esto es por
-     * el caso especial de que puede ser el nodo raiz el nodo a firmar, por lo
-     * que no ser&iacute;a necesario usar la recursividad.</br>
+    /** Obtiene la contrafirma de los signerInfo que se encuentran entre los nodos indicados,
+     * recorriendo el &aacute;rbol en preorden. Los nodos de cada rama se contrafirman antes
+     * que su nodo padre, de forma que las contrafirmas nuevas no alteran la numeraci&oacute;n
+     * de los nodos pendientes de recorrer.</br>
      * @param signerInfo
      *        Nodo ra&iacute; que contiene todos los signerInfos que se
      *        deben firmar.
@@ -776,23 +745,38 @@ final class CAdESCounterSigner {
      * 		  Tipo de contenido definido por su OID.
      * @param contentDescription
      * 		  Descripci&oacute;n textual del tipo de contenido firmado.
-     * @return El SignerInfo ra&iacute;z parcial con todos sus nodos
-     *         Contrafirmados.
+     * @param nodes
+     *        Nodos espec&iacute;ficos a firmar.
+     * @param lastNode
+     *        Mayor de los nodos a firmar, a partir del cual no es necesario seguir recorriendo el &aacute;rbol.
+     * @return El SignerInfo ra&iacute;z parcial con los nodos indicados
+     *         contrafirmados o el mismo SignerInfo de entrada si ninguno
+     *         de sus nodos se ha contrafirmado.
      * @throws java.security.NoSuchAlgorithmException
      * @throws java.io.IOException
      * @throws java.security.cert.CertificateException */
-    private static SignerInfo getNodeSignerInfo(final SignerInfo signerInfo,
-                                                       final P7ContentSignerParameters parameters,
-                                                       final PrivateKey key,
-                                                       final java.security.cert.Certificate[] certChain,
-                                                       final String contentType,
-                                                       final String contentDescription,
-                                                       final AdESPolicy policy,
-                                                       final boolean signingCertificateV2) throws NoSuchAlgorithmException, IOException, CertificateException {
+    private SignerInfo getNodeSignerInfo(final SignerInfo signerInfo,
+                                         final P7ContentSignerParameters parameters,
+                                         final PrivateKey key,
+                                         final java.security.cert.Certificate[] certChain,
+                                         final String contentType,
+                                         final String contentDescription,
+                                         final Set<Integer> nodes,
+                                         final int lastNode,
+                                         final AdESPolicy policy,
+                                         final boolean signingCertificateV2) throws NoSuchAlgorithmException,
+                                                                IOException,
+                                                                CertificateException {
+
+        // Los nodos posteriores al ultimo objetivo se mantienen sin cambios
+        if (this.actualIndex > lastNode) {
+            return signerInfo;
+        }
+
+        final boolean isTarget = nodes.contains(Integer.valueOf(this.actualIndex));
+        boolean modified = isTarget;
 
         final ASN1EncodableVector signerInfosU = new ASN1EncodableVector();
-        final ASN1EncodableVector signerInfosU2 = new ASN1EncodableVector();
-        SignerInfo counterSigner = null;
         if (signerInfo.getUnauthenticatedAttributes() != null) {
             final Enumeration<?> eAtributes = signerInfo.getUnauthenticatedAttributes().getObjects();
             while (eAtributes.hasMoreElements()) {
@@ -801,99 +785,38 @@ final class CAdESCounterSigner {
                     final ASN1Set setInto = data.getAttrValues();
                     final Enumeration<?> eAtributesData = setInto.getObjects();
                     while (eAtributesData.hasMoreElements()) {
-                        signerInfosU.add(new SignerInfo((ASN1Sequence) eAtributesData.nextElement()));
+                        final SignerInfo si = new SignerInfo((ASN1Sequence) eAtributesData.nextElement());
+                        this.actualIndex++;
+                        final SignerInfo obtained = getNodeSignerInfo(
+                    		si,
+                    		parameters,
+                    		key,
+                    		certChain,
+                            contentType,
+                            contentDescription,
+                            nodes,
+                            lastNode,
+                            policy,
+                            signingCertificateV2
+                        );
+                        modified = modified || obtained != si;
+                        signerInfosU.add(obtained);
                     }
                 }
                 else {
                     signerInfosU.add(data);
                 }
-
             }
-            // FIRMA DEL NODO ACTUAL
-            signerInfosU.add(
-        		generateSignerInfo(
-            		parameters.getSignatureAlgorithm(),
-            		signerInfo,
-            		key,
-            		certChain,
-            		contentType,
-            		contentDescription,
-            		policy,
-            		signingCertificateV2
-        		)
-    		);
-
-            // FIRMA DE CADA UNO DE LOS HIJOS
-            ASN1Set a1;
-            final ASN1EncodableVector contexExpecific = new ASN1EncodableVector();
-            if (signerInfosU.size() > 1) {
-                for (int i = 0; i < signerInfosU.size(); i++) {
-                    if (signerInfosU.get(i) instanceof Attribute) {
-                        contexExpecific.add(signerInfosU.get(i));
-                    }
-                    else {
-                        contexExpecific.add(new Attribute(CMSAttributes.counterSignature, new DERSet(signerInfosU.get(i))));
-                    }
-                }
-                a1 = SigUtils.getAttributeSet(new AttributeTable(contexExpecific));
-                counterSigner = new SignerInfo(signerInfo.getSID(),
-                   signerInfo.getDigestAlgorithm(),
-                   signerInfo.getAuthenticatedAttributes(),
-                   signerInfo.getDigestEncryptionAlgorithm(),
-                   signerInfo.getEncryptedDigest(),
-                   a1 // unsignedAttr
-                );
-
-            }
-            else {
-                if (signerInfosU.size() == 1) {
-                    if (signerInfosU.get(0) instanceof Attribute) {
-                        // anadimos el que hay
-                        contexExpecific.add(signerInfosU.get(0));
-                        // creamos el de la contrafirma.
-                        signerInfosU2.add(
-                    		generateSignerInfo(
-                        		parameters.getSignatureAlgorithm(),
-                        		signerInfo,
-                        		key,
-                        		certChain,
-                        		contentType,
-                        		contentDescription,
-                        		policy,
-                        		signingCertificateV2
-                    		)
-                		);
-                        final Attribute uAtrib = new Attribute(CMSAttributes.counterSignature, new DERSet(signerInfosU2));
-                        contexExpecific.add(uAtrib);
+        }
 
-                    }
-                    else {
-                        contexExpecific.add(new Attribute(CMSAttributes.counterSignature, new DERSet(signerInfosU.get(0))));
-                    }
-                    a1 = SigUtils.getAttributeSet(new AttributeTable(contexExpecific));
-                    counterSigner =
-                            new SignerInfo(signerInfo.getSID(),
-                                           signerInfo.getDigestAlgorithm(),
-                                           signerInfo.getAuthenticatedAttributes(),
-                                           signerInfo.getDigestEncryptionAlgorithm(),
-                                           signerInfo.getEncryptedDigest(),
-                                           a1 // unsignedAttr
-                            );
-                }
-                else {
-                    final Attribute uAtrib = new Attribute(CMSAttributes.counterSignature, new DERSet(signerInfosU));
-                    counterSigner = new SignerInfo(signerInfo.getSID(),
-                           signerInfo.getDigestAlgorithm(),
-                           signerInfo.getAuthenticatedAttributes(),
-                           signerInfo.getDigestEncryptionAlgorithm(),
-                           signerInfo.getEncryptedDigest(),
-                           new DERSet(uAtrib) // unsignedAttr
-                    );
-                }
-            }
+        // Si no hay que firmar ni este nodo ni ninguno de sus hijos, se devuelve tal cual
+        if (!modified) {
+            return signerInfo;
         }
-        else {
-            signerInfosU2.add(
+
+        // FIRMA DEL NODO ACTUAL
+        if (isTarget) {
+            signerInfosU.add(
         		generateSignerInfo(
             		parameters.getSignatureAlgorithm(),
             		signerInfo,
@@ -905,173 +828,26 @@ final class CAdESCounterSigner {
             		signingCertificateV2
         		)
     		);
-            final Attribute uAtrib = new Attribute(CMSAttributes.counterSignature, new DERSet(signerInfosU2));
-            counterSigner = new SignerInfo(
-        		signerInfo.getSID(),
-                signerInfo.getDigestAlgorithm(),
-                signerInfo.getAuthenticatedAttributes(),
-                signerInfo.getDigestEncryptionAlgorithm(),
-                signerInfo.getEncryptedDigest(),
-                new DERSet(uAtrib) // unsignedAttr
-            );
         }
-        return counterSigner;
-    }
-
-    /** Obtiene la contrafirma de los signerInfo buscando el nodo de forma
-     * recursiva.</br>
-     * @param signerInfo
-     *        Nodo ra&iacute; que contiene todos los signerInfos que se
-     *        deben firmar.
-     * @param parameters
-     *        Par&aacute;metros necesarios para firmar un determinado
-     *        SignerInfo hoja.
-     * @param key Clave privada a usar para firmar
-     * @param node
-     *        Nodo espec&iacute;fico a firmar.
-     * @param contentType
-     * 		  Tipo de contenido definido por su OID.
-     * @param contentDescription
-     * 		  Descripci&oacute;n textual del tipo de contenido firmado.
-     * @return El SignerInfo ra&iacute;z parcial con todos sus nodos
-     *         Contrafirmados.
-     * @throws java.security.NoSuchAlgorithmException
-     * @throws java.io.IOException
-     * @throws java.security.cert.CertificateException
-     * @throws es.map.es.map.afirma.exceptions.AOException */
-    private SignerInfo getNodeSignerInfo(final SignerInfo signerInfo,
-                                         final P7ContentSignerParameters parameters,
-                                         final PrivateKey key,
-                                         final java.security.cert.Certificate[] certChain,
-                                         final String contentType,
-                                         final String contentDescription,
-                                         final int node,
-                                         final AdESPolicy policy,
-                                         final boolean signingCertificateV2) throws NoSuchAlgorithmException,
-                                                                IOException,
-                                                                CertificateException,
-                                                                AOException {
-
-        final ASN1EncodableVector signerInfosU = new ASN1EncodableVector();
-        SignerInfo counterSigner = null;
-        if (signerInfo.getUnauthenticatedAttributes() != null) {
-            final Enumeration<?> eAtributes = signerInfo.getUnauthenticatedAttributes().getObjects();
-            while (eAtributes.hasMoreElements()) {
-                final Attribute data = Attribute.getInstance(eAtributes.nextElement());
-                if (!data.getAttrType().equals(PKCSObjectIdentifiers.id_aa_signatureTimeStampToken)) {
-                    final ASN1Set setInto = data.getAttrValues();
-                    final Enumeration<?> eAtributesData = setInto.getObjects();
-                    while (eAtributesData.hasMoreElements()) {
-                        final SignerInfo si = new SignerInfo((ASN1Sequence) eAtributesData.nextElement());
-                        this.actualIndex++;
-                        if (this.actualIndex != node) {
-                            if (this.actualIndex < node) {
-                                signerInfosU.add(
-                            		getNodeSignerInfo(
-                                		si,
-                                		parameters,
-                                		key,
-                                		certChain,
-                                        contentType,
-                                        contentDescription,
-                                        node,
-                                        policy,
-                                        signingCertificateV2
-                                    )
-                                );
-                            }
-                            else {
-                                signerInfosU.add(si);
-                            }
-                        }
-                        else {
-                            final SignerInfo obtained = getNodeSignerInfo(
-                        		si,
-                        		parameters,
-                        		key,
-                        		certChain,
-                        		contentType,
-                        		contentDescription,
-                        		policy,
-                        		signingCertificateV2
-                    		);
-                            signerInfosU.add(obtained);
-                        }
-                    }
-                }
-                else {
-                    signerInfosU.add(data);
-                }
-
-            }
-            // FIRMA DE CADA UNO DE LOS HIJOS
-            final ASN1Set a1;
-            final ASN1EncodableVector contexExpecific = new ASN1EncodableVector();
-            if (signerInfosU.size() > 1) {
-                for (int i = 0; i < signerInfosU.size(); i++) {
-                    if (signerInfosU.get(i) instanceof Attribute) {
-                        contexExpecific.add(signerInfosU.get(i));
-                    }
-                    else {
-                        contexExpecific.add(new Attribute(CMSAttributes.counterSignature, new DERSet(signerInfosU.get(i))));
-                    }
-                }
-                a1 = SigUtils.getAttributeSet(new AttributeTable(contexExpecific));
-                counterSigner =
-                        new SignerInfo(signerInfo.getSID(),
-                                       signerInfo.getDigestAlgorithm(),
-                                       signerInfo.getAuthenticatedAttributes(),
-                                       signerInfo.getDigestEncryptionAlgorithm(),
-                                       signerInfo.getEncryptedDigest(),
-                                       a1 // unsignedAttr
-                        );
 
+        // FIRMA DE CADA UNO DE LOS HIJOS
+        final ASN1EncodableVector contexExpecific = new ASN1EncodableVector();
+        for (int i = 0; i < signerInfosU.size(); i++) {
+            if (signerInfosU.get(i) instanceof Attribute) {
+                contexExpecific.add(signerInfosU.get(i));
             }
             else {
-                if (signerInfosU.size() == 1) {
-                    if (signerInfosU.get(0) instanceof Attribute) {
-                        // anadimos el que hay
-                        contexExpecific.add(signerInfosU.get(0));
-
-                    }
-                    else {
-                        contexExpecific.add(new Attribute(CMSAttributes.counterSignature, new DERSet(signerInfosU.get(0))));
-                    }
-                    a1 = SigUtils.getAttributeSet(new AttributeTable(contexExpecific));
-                    counterSigner =
-                            new SignerInfo(signerInfo.getSID(),
-                                           signerInfo.getDigestAlgorithm(),
-                                           signerInfo.getAuthenticatedAttributes(),
-                                           signerInfo.getDigestEncryptionAlgorithm(),
-                                           signerInfo.getEncryptedDigest(),
-                                           a1 // unsignedAttr
-                            );
-                }
-                else {
-                    final Attribute uAtrib = new Attribute(CMSAttributes.counterSignature, new DERSet(signerInfosU));
-                    counterSigner =
-                            new SignerInfo(signerInfo.getSID(),
-                                           signerInfo.getDigestAlgorithm(),
-                                           signerInfo.getAuthenticatedAttributes(),
-                                           signerInfo.getDigestEncryptionAlgorithm(),
-                                           signerInfo.getEncryptedDigest(),
-                                           new DERSet(uAtrib) // unsignedAttr
-                            );
-                }
+                contexExpecific.add(new Attribute(CMSAttributes.counterSignature, new DERSet(signerInfosU.get(i))));
             }
         }
-        else {
-            counterSigner =
-                    new SignerInfo(signerInfo.getSID(),
-                                   signerInfo.getDigestAlgorithm(),
-                                   signerInfo.getAuthenticatedAttributes(),
-                                   signerInfo.getDigestEncryptionAlgorithm(),
-                                   signerInfo.getEncryptedDigest(),
-                                   null // unsignedAttr
-                    );
-
-        }
-        return counterSigner;
+        return new SignerInfo(
+    		signerInfo.getSID(),
+            signerInfo.getDigestAlgorithm(),
+            signerInfo.getAuthenticatedAttributes(),
+            signerInfo.getDigestEncryptionAlgorithm(),
+            signerInfo.getEncryptedDigest(),
+            SigUtils.getAttributeSet(new AttributeTable(contexExpecific)) // unsignedAttr
+        );
     }
 
     /** Genera un signerInfo espec&iacute;fico utilizando los
@@ -1091,7 +867,7 @@ final class CAdESCounterSigner {
      * @throws java.security.NoSuchAlgorithmException
      * @throws java.io.IOException
      * @throws java.security.cert.CertificateException */
-    private static SignerInfo generateSignerInfo(final String signatureAlgorithm,
+    private SignerInfo generateSignerInfo(final String signatureAlgorithm,
                                           final SignerInfo si,
                                           final PrivateKey key,
                                           final java.security.cert.Certificate[] certChain,
@@ -1101,6 +877,13 @@ final class CAdESCounterSigner {
                                           final boolean signingCertificateV2) throws NoSuchAlgorithmException,
                                                                                   IOException,
                                                                                   CertificateException {
+
+        // Si la contrafirma se genero de antemano, la usamos
+        final SignerInfo precalculated = this.precalculatedSigners.remove(si.getEncryptedDigest());
+        if (precalculated != null) {
+            return precalculated;
+        }
+
         // buscamos que timo de algoritmo es y lo codificamos con su OID
         final String digestAlgorithm = AOSignConstants.getDigestAlgorithmName(signatureAlgorithm);
 
@@ -18,7 +18,9 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.ASN1EncodableVector;
@@ -66,9 +68,27 @@ final class CAdESCounterSignerEnveloped {
     private int actualIndex = 0;
     private ASN1Set signedAttr2;
 
+    private final boolean parallelSigning;
+
+    /** Contrafirmas generadas de antemano, indexadas por el valor de la firma que contrafirman. */
+    private Map<ASN1OctetString, SignerInfo> precalculatedSigners = new HashMap<ASN1OctetString, SignerInfo>(0);
+
     private AdESPolicy globalPolicy;
     private boolean globalSigningCertificateV2;
 
+    /** Crea un contrafirmante que genera las contrafirmas secuencialmente. */
+    CAdESCounterSignerEnveloped() {
+        this(false);
+    }
+
+    /** Crea un contrafirmante.
+     * @param parallel <code>true</code> para generar en paralelo las contrafirmas del &aacute;rbol
+     *                 completo o de sus hojas cuando la clave lo permita, <code>false</code> para
+     *                 generarlas secuencialmente. */
+    CAdESCounterSignerEnveloped(final boolean parallel) {
+        this.parallelSigning = parallel;
+    }
+
     /** Establece la pol&iacute;tica de firma. */
     private void setGlobalPolicy(final AdESPolicy pol) {
         this.globalPolicy = pol;
@@ -189,6 +209,24 @@ final class CAdESCounterSignerEnveloped {
         // raiz de la secuencia de SignerInfo
         ASN1EncodableVector signerInfos = new ASN1EncodableVector();
 
+        // Si se ha pedido y la clave lo permite, generamos en paralelo las contrafirmas
+        // del arbol o de las hojas, que despues se insertan al recorrer el arbol
+        if (this.parallelSigning &&
+    		(targetType.equals(CounterSignTarget.TREE) || targetType.equals(CounterSignTarget.LEAFS)) &&
+    		CAdESParallelCounterSigner.isParallelizable(key)) {
+            this.precalculatedSigners = CAdESParallelCounterSigner.counterSign(
+        			signerInfosSd,
+        			targetType.equals(CounterSignTarget.LEAFS),
+        			parameters.getSignatureAlgorithm(),
+        			key,
+        			certChain,
+        			contentType,
+        			contentDescription,
+        			policy,
+        			signingCertificateV2
+    			);
+        }
+
         // FIRMA EN ARBOL
         if (targetType.equals(CounterSignTarget.TREE)) {
             signerInfos = counterTree(
@@ -1061,6 +1099,13 @@ final class CAdESCounterSignerEnveloped {
                                          final String contentDescription) throws NoSuchAlgorithmException,
                                                                                                                                              IOException,
                                                                                                                                              CertificateException {
+
+        // Si la contrafirma se genero de antemano, la usamos
+        final SignerInfo precalculated = this.precalculatedSigners.remove(si.getEncryptedDigest());
+        if (precalculated != null) {
+            return precalculated;
+        }
+
         // // UNAUTHENTICATEDATTRIBUTES
 
         // buscamos que timo de algoritmo es y lo codificamos con su OID
@@ -0,0 +1,275 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.signers.multi.cades;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.cms.SignerIdentifier;
+import org.bouncycastle.asn1.cms.SignerInfo;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.TBSCertificateStructure;
+
+import es.gob.afirma.core.AOException;
+import es.gob.afirma.core.signers.AOPkcs1Signer;
+import es.gob.afirma.core.signers.AOSignConstants;
+import es.gob.afirma.core.signers.AdESPolicy;
+import es.gob.afirma.signers.cades.CAdESUtils;
+import es.gob.afirma.signers.pkcs7.AOAlgorithmID;
+import es.gob.afirma.signers.pkcs7.SigUtils;
+
+/** Generaci&oacute;n en paralelo de las contrafirmas CAdES de todos los nodos o de las hojas de
+ * un &aacute;rbol de firmas.
+ * <p>Primero se obtienen los atributos firmados de todas las contrafirmas, despu&eacute;s se
+ * firman en paralelo y finalmente se construyen los <code>SignerInfo</code> resultantes, que los
+ * contrafirmantes insertan en el &aacute;rbol en lugar de generarlos uno a uno.</p>
+ * <p>Solo se admiten claves en software (por ejemplo, de almacenes PKCS#12), cuyos proveedores
+ * permiten su uso concurrente. Las claves de PKCS#11, CAPI o tarjetas inteligentes deben usarse
+ * secuencialmente.</p> */
+final class CAdESParallelCounterSigner {
+
+    /** Par&aacute;metro adicional que activa la firma en paralelo de las contrafirmas. */
+    static final String PARALLEL_COUNTERSIGN_PARAM = "parallelCounterSign"; //$NON-NLS-1$
+
+    private static final Logger LOGGER = Logger.getLogger("es.gob.afirma"); //$NON-NLS-1$
+
+    private static final String[] HARDWARE_KEY_PACKAGES = new String[] {
+        "sun.security.pkcs11.", //$NON-NLS-1$
+        "sun.security.mscapi.", //$NON-NLS-1$
+        "es.gob.jmulticard." //$NON-NLS-1$
+    };
+
+    private CAdESParallelCounterSigner() {
+        // No permitimos la instanciacion
+    }
+
+    /** Indica si puede usarse una clave privada para firmar desde varios hilos a la vez. Solo
+     * se consideran como tales las claves en software, cuyo contenido es exportable.
+     * @param key Clave privada.
+     * @return <code>true</code> si la clave puede usarse concurrentemente, <code>false</code> en caso contrario. */
+    static boolean isParallelizable(final PrivateKey key) {
+        if (key == null || !"PKCS#8".equals(key.getFormat())) { //$NON-NLS-1$
+            return false;
+        }
+        final String className = key.getClass().getName();
+        for (final String hardwarePackage : HARDWARE_KEY_PACKAGES) {
+            if (className.startsWith(hardwarePackage)) {
+                return false;
+            }
+        }
+        return key.getEncoded() != null;
+    }
+
+    /** Genera en paralelo las contrafirmas de los nodos de un &aacute;rbol de firmas.
+     * @param signerInfosRaiz Nodo ra&iacute;z que contiene todos los signerInfos.
+     * @param leafsOnly <code>true</code> para contrafirmar solo las hojas del &aacute;rbol,
+     *                  <code>false</code> para contrafirmar todos sus nodos.
+     * @param signatureAlgorithm Algoritmo de firma.
+     * @param key Clave privada a usar para firmar.
+     * @param certChain Cadena de certificados del firmante.
+     * @param contentType Tipo de contenido definido por su OID.
+     * @param contentDescription Descripci&oacute;n textual del tipo de contenido firmado.
+     * @param policy Pol&iacute;tica de firma.
+     * @param signingCertificateV2 <code>true</code> si se desea usar la versi&oacute;n 2 del
+     *                             atributo <i>Signing Certificate</i>, <code>false</code> para usar la versi&oacute;n 1.
+     * @return Contrafirmas generadas, indexadas por el valor de la firma que contrafirman.
+     * @throws NoSuchAlgorithmException Si no se soporta el algoritmo de firma.
+     * @throws IOException Si hay errores en la codificaci&oacute;n de los atributos.
+     * @throws CertificateException Si hay problemas con el certificado del firmante.
+     * @throws AOException Si ocurre cualquier problema durante la firma. */
+    static Map<ASN1OctetString, SignerInfo> counterSign(final ASN1Set signerInfosRaiz,
+                                                        final boolean leafsOnly,
+                                                        final String signatureAlgorithm,
+                                                        final PrivateKey key,
+                                                        final java.security.cert.Certificate[] certChain,
+                                                        final String contentType,
+                                                        final String contentDescription,
+                                                        final AdESPolicy policy,
+                                                        final boolean signingCertificateV2) throws NoSuchAlgorithmException,
+                                                                                                   IOException,
+                                                                                                   CertificateException,
+                                                                                                   AOException {
+
+        final List<ASN1OctetString> targets = new ArrayList<ASN1OctetString>();
+        for (int i = 0; i < signerInfosRaiz.size(); i++) {
+            collectTargets(new SignerInfo((ASN1Sequence) signerInfosRaiz.getObjectAt(i)), leafsOnly, targets);
+        }
+
+        final String digestAlgorithm = AOSignConstants.getDigestAlgorithmName(signatureAlgorithm);
+
+        // Obtenemos primero los atributos firmados de todas las contrafirmas
+        final List<ASN1Set> signedAttrs = new ArrayList<ASN1Set>(targets.size());
+        for (final ASN1OctetString target : targets) {
+            signedAttrs.add(
+        		SigUtils.getAttributeSet(
+    				new AttributeTable(
+						CAdESUtils.generateSignerInfo(
+				             (X509Certificate) certChain[0],
+				             digestAlgorithm,
+				             target.getOctets(),
+				             policy,
+				             signingCertificateV2,
+				             null,
+				             new Date(),
+				             false,
+				             contentType,
+				             contentDescription
+				        )
+					)
+				)
+    		);
+        }
+
+        // Los firmamos en paralelo
+        final List<byte[]> signatures = sign(signedAttrs, signatureAlgorithm, key, certChain);
+
+        // Y construimos los SignerInfo
+        final TBSCertificateStructure tbs = TBSCertificateStructure.getInstance(
+    		ASN1Primitive.fromByteArray(((X509Certificate)certChain[0]).getTBSCertificate())
+		);
+        final SignerIdentifier identifier = new SignerIdentifier(
+    		new IssuerAndSerialNumber(X500Name.getInstance(tbs.getIssuer()), tbs.getSerialNumber().getValue())
+		);
+        final AlgorithmIdentifier digAlgId = SigUtils.makeAlgId(AOAlgorithmID.getOID(digestAlgorithm));
+        final AlgorithmIdentifier encAlgId = SigUtils.makeAlgId(AOAlgorithmID.getOID("RSA")); //$NON-NLS-1$
+
+        final Map<ASN1OctetString, SignerInfo> counterSigners = new HashMap<ASN1OctetString, SignerInfo>(targets.size());
+        for (int i = 0; i < targets.size(); i++) {
+            counterSigners.put(
+        		targets.get(i),
+        		new SignerInfo(identifier, digAlgId, signedAttrs.get(i), encAlgId, new DEROctetString(signatures.get(i)), null)
+    		);
+        }
+
+        LOGGER.info("Generadas en paralelo " + counterSigners.size() + " contrafirmas"); //$NON-NLS-1$ //$NON-NLS-2$
+
+        return counterSigners;
+    }
+
+    /** Obtiene los valores de firma de los nodos a contrafirmar, recorriendo el &aacute;rbol en preorden.
+     * @param signerInfo Nodo del &aacute;rbol.
+     * @param leafsOnly <code>true</code> para obtener solo las hojas del &aacute;rbol.
+     * @param targets Lista a la que se a&ntilde;aden los valores de firma de los nodos. */
+    private static void collectTargets(final SignerInfo signerInfo,
+                                       final boolean leafsOnly,
+                                       final List<ASN1OctetString> targets) {
+        boolean isLeaf = true;
+        final int index = targets.size();
+        if (signerInfo.getUnauthenticatedAttributes() != null) {
+            final Enumeration<?> eAtributes = signerInfo.getUnauthenticatedAttributes().getObjects();
+            while (eAtributes.hasMoreElements()) {
+                final Attribute data = Attribute.getInstance(eAtributes.nextElement());
+                if (!data.getAttrType().equals(PKCSObjectIdentifiers.id_aa_signatureTimeStampToken)) {
+                    final Enumeration<?> eAtributesData = data.getAttrValues().getObjects();
+                    while (eAtributesData.hasMoreElements()) {
+                        isLeaf = false;
+                        collectTargets(new SignerInfo((ASN1Sequence) eAtributesData.nextElement()), leafsOnly, targets);
+                    }
+                }
+            }
+        }
+        if (!leafsOnly || isLeaf) {
+            targets.add(index, signerInfo.getEncryptedDigest());
+        }
+    }
+
+    /** Firma en paralelo un conjunto de atributos firmados.
+     * @param signedAttrs Atributos a firmar.
+     * @param signatureAlgorithm Algoritmo de firma.
+     * @param key Clave privada a usar para firmar.
+     * @param certChain Cadena de certificados del firmante.
+     * @return Firmas PKCS#1 de los atributos, en el mismo orden que los de entrada.
+     * @throws IOException Si hay errores en la codificaci&oacute;n de los atributos.
+     * @throws AOException Si ocurre cualquier problema durante la firma. */
+    private static List<byte[]> sign(final List<ASN1Set> signedAttrs,
+                                     final String signatureAlgorithm,
+                                     final PrivateKey key,
+                                     final java.security.cert.Certificate[] certChain) throws IOException, AOException {
+
+        final List<byte[]> ret = new ArrayList<byte[]>(signedAttrs.size());
+        if (signedAttrs.isEmpty()) {
+            return ret;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(
+    		Math.min(Runtime.getRuntime().availableProcessors(), signedAttrs.size())
+		);
+        try {
+            final List<Future<byte[]>> tasks = new ArrayList<Future<byte[]>>(signedAttrs.size());
+            for (final ASN1Set signedAttr : signedAttrs) {
+                final byte[] data = signedAttr.getEncoded(ASN1Encoding.DER);
+                tasks.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws AOException {
+                        return new AOPkcs1Signer().sign(data, signatureAlgorithm, key, certChain, null);
+                    }
+                }));
+            }
+            for (final Future<byte[]> task : tasks) {
+                ret.add(getTaskResult(task));
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return ret;
+    }
+
+    private static byte[] getTaskResult(final Future<byte[]> task) throws AOException {
+        try {
+            return task.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AOException("Se interrumpio la generacion de las contrafirmas", e); //$NON-NLS-1$
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof AOException) {
+                throw (AOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new AOException("Error generando las contrafirmas: " + cause, cause); //$NON-NLS-1$
+        }
+    }
+}
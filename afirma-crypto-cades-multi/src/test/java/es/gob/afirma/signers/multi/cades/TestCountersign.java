@@ -7,8 +7,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.KeyStore;
 import java.security.KeyStore.PrivateKeyEntry;
+import java.util.Enumeration;
 import java.util.Properties;
 
+import junit.framework.Assert;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -16,6 +19,8 @@ import org.junit.Test;
 import es.gob.afirma.core.misc.AOUtil;
 import es.gob.afirma.core.signers.AOSignConstants;
 import es.gob.afirma.core.signers.CounterSignTarget;
+import es.gob.afirma.core.util.tree.AOTreeModel;
+import es.gob.afirma.core.util.tree.AOTreeNode;
 import es.gob.afirma.signers.cades.AOCAdESSigner;
 
 /**
@@ -183,6 +188,102 @@ public class TestCountersign {
 		fos.close();
 	}
 
+	/**
+	 * Prueba de contrafirma en paralelo de todo el &aacute;rbol de firmas de una firma expl&iacute;cita.
+	 * @throws Exception Cuando se produce un error.
+	 */
+	@Test
+	public void prueba_contrafirma_paralela_de_arbol_de_firma_explicita() throws Exception {
+
+		final InputStream is = getClass().getClassLoader().getResourceAsStream(EXPLICIT_SHA1_COUNTERSIGN_FILE);
+		final byte[] sign = AOUtil.getDataFromInputStream(is);
+		is.close();
+
+		final Properties config = new Properties();
+		config.setProperty("parallelCounterSign", Boolean.TRUE.toString()); //$NON-NLS-1$
+
+		final AOCAdESSigner signer = new AOCAdESSigner();
+		final PrivateKeyEntry pke = (PrivateKeyEntry) ks.getEntry(ks.aliases().nextElement(), new KeyStore.PasswordProtection(PASSWORD.toCharArray()));
+		final byte[] countersign = signer.countersign(
+			sign,
+			AOSignConstants.SIGN_ALGORITHM_SHA1WITHRSA,
+			CounterSignTarget.TREE,
+			null,
+			pke.getPrivateKey(),
+			pke.getCertificateChain(),
+			config
+		);
+
+		Assert.assertEquals(
+			2 * countNodes(signer.getSignersStructure(sign, false)),
+			countNodes(signer.getSignersStructure(countersign, false))
+		);
+	}
+
+	/**
+	 * Prueba de contrafirma de varios nodos a la vez sobre un &aacute;rbol de firmas grande,
+	 * comprobando que cada nodo indicado recibe una &uacute;nica contrafirma.
+	 * @throws Exception Cuando se produce un error.
+	 */
+	@Test
+	public void prueba_contrafirma_de_nodos_de_arbol_grande() throws Exception {
+
+		final InputStream is = getClass().getClassLoader().getResourceAsStream(EXPLICIT_SHA1_COUNTERSIGN_FILE);
+		byte[] sign = AOUtil.getDataFromInputStream(is);
+		is.close();
+
+		final Properties config = new Properties();
+
+		final AOCAdESSigner signer = new AOCAdESSigner();
+		final PrivateKeyEntry pke = (PrivateKeyEntry) ks.getEntry(ks.aliases().nextElement(), new KeyStore.PasswordProtection(PASSWORD.toCharArray()));
+
+		// Hacemos crecer el arbol contrafirmandolo completo varias veces
+		for (int i = 0; i < 3; i++) {
+			sign = signer.countersign(
+				sign,
+				AOSignConstants.SIGN_ALGORITHM_SHA1WITHRSA,
+				CounterSignTarget.TREE,
+				null,
+				pke.getPrivateKey(),
+				pke.getCertificateChain(),
+				config
+			);
+		}
+
+		// Contrafirmamos todos los nodos, indicados en orden inverso
+		final int nodesCount = countNodes(signer.getSignersStructure(sign, false));
+		final Object[] targets = new Object[nodesCount];
+		for (int i = 0; i < nodesCount; i++) {
+			targets[i] = Integer.valueOf(nodesCount - 1 - i);
+		}
+
+		final byte[] countersign = signer.countersign(
+			sign,
+			AOSignConstants.SIGN_ALGORITHM_SHA1WITHRSA,
+			CounterSignTarget.NODES,
+			targets,
+			pke.getPrivateKey(),
+			pke.getCertificateChain(),
+			config
+		);
+
+		Assert.assertEquals(2 * nodesCount, countNodes(signer.getSignersStructure(countersign, false)));
+	}
+
+	/** Cuenta los firmantes de un &aacute;rbol de firmas.
+	 * @param tree &Aacute;rbol de firmas.
+	 * @return N&uacute;mero de firmantes. */
+	private static int countNodes(final AOTreeModel tree) {
+		int count = 0;
+		final Enumeration<AOTreeNode> nodes = ((AOTreeNode) tree.getRoot()).preorderEnumeration();
+		while (nodes.hasMoreElements()) {
+			nodes.nextElement();
+			count++;
+		}
+		// La raiz del arbol no es un firmante
+		return count - 1;
+	}
+
 	/** Cierra el flujo de lectura del almac&eacute;n de certificados.
 	 * @throws IOException Cuando ocurre alg&uacute;n problema al cerrar el flujo de datos. */
 	@SuppressWarnings("static-method")
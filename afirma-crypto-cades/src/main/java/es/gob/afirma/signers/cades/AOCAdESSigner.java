@@ -10,16 +10,21 @@
 
 package es.gob.afirma.signers.cades;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
 import java.util.Properties;
 import java.util.logging.Logger;
 
 import es.gob.afirma.core.AOException;
 import es.gob.afirma.core.AOInvalidFormatException;
+import es.gob.afirma.core.misc.AOUtil;
 import es.gob.afirma.core.misc.MimeHelper;
 import es.gob.afirma.core.signers.AOCoSigner;
 import es.gob.afirma.core.signers.AOCounterSigner;
@@ -63,6 +68,10 @@ public final class AOCAdESSigner implements AOSigner {
 
     private static final Logger LOGGER = Logger.getLogger("es.gob.afirma"); //$NON-NLS-1$
 
+    /** N&uacute;mero de octetos iniciales de los datos que se usan para identificar su tipo cuando
+     * se firman desde un flujo. */
+    private static final int MIME_DETECTION_SIZE = 65536;
+
     /** Firma datos en formato CAdES.<br/>
      * @param data Datos que deseamos firmar.
      * @param algorithm Algoritmo a usar para la firma.
@@ -162,16 +171,7 @@ public final class AOCAdESSigner implements AOSigner {
 			}
         }
 
-        boolean signingCertificateV2;
-        if (AOSignConstants.isSHA2SignatureAlgorithm(algorithm)) {
-        	signingCertificateV2 = true;
-        }
-        else if (extraParams.containsKey("signingCertificateV2")) { //$NON-NLS-1$
-       		signingCertificateV2 = Boolean.parseBoolean(extraParams.getProperty("signingCertificateV2")); //$NON-NLS-1$
-        }
-        else {
-        	signingCertificateV2 = !"SHA1".equals(AOSignConstants.getDigestAlgorithmName(algorithm));	 //$NON-NLS-1$
-        }
+        final boolean signingCertificateV2 = isSigningCertificateV2(algorithm, extraParams);
 
         final String mode = extraParams.getProperty("mode", AOSignConstants.DEFAULT_SIGN_MODE); //$NON-NLS-1$
 
@@ -200,6 +200,28 @@ public final class AOCAdESSigner implements AOSigner {
 				}
 			}
 
+            final boolean padesMode = Boolean.parseBoolean(extraParams.getProperty("padesMode", "false")); //$NON-NLS-1$ //$NON-NLS-2$
+
+            // Si la huella se calcula con el algoritmo de la firma reutilizamos el contexto del firmante
+            if (digestAlgoritmName.equals(AOSignConstants.getDigestAlgorithmName(algorithm))) {
+                return GenCAdESEPESSignedData.generateSignedData(
+                    CAdESSigningContext.getInstance(
+                        (X509Certificate[]) certChain,
+                        digestAlgoritmName,
+                        new AdESPolicy(extraParams),
+                        signingCertificateV2
+                    ),
+                    precalculatedDigestAlgorithmName != null ? null : data,
+                    omitContent,
+                    dataDigest,
+                    algorithm,
+                    key,
+                    padesMode,
+                    contentTypeOid,
+                    contentDescription
+                );
+            }
+
 			return GenCAdESEPESSignedData.generateSignedData(
                    csp,
                    omitContent,
@@ -209,7 +231,7 @@ public final class AOCAdESSigner implements AOSigner {
                    certChain,
                    dataDigest,
                    digestAlgoritmName,
-                   Boolean.parseBoolean(extraParams.getProperty("padesMode", "false")), //$NON-NLS-1$ //$NON-NLS-2$
+                   padesMode,
                    contentTypeOid,
                    contentDescription
             );
@@ -219,6 +241,139 @@ public final class AOCAdESSigner implements AOSigner {
         }
     }
 
+    /** Firma en formato CAdES los datos le&iacute;dos de un flujo, escribiendo la firma en un flujo de salida.
+     * <p>En modo impl&iacute;cito los datos se copian en la firma a medida que se leen y se calcula su huella
+     * digital, codificando la firma en BER con longitudes indefinidas, de forma que la memoria usada no depende
+     * del tama&ntilde;o de los datos. En modo expl&iacute;cito &uacute;nicamente se calcula la huella digital
+     * de los datos le&iacute;dos.</p>
+     * <p>El tipo de los datos se identifica a partir de sus primeros octetos.</p>
+     * @param data Flujo de lectura de los datos que deseamos firmar. Se lee hasta el final pero no se cierra.
+     * @param out Flujo en el que se escribe la firma. No se cierra.
+     * @param algorithm Algoritmo a usar para la firma.
+     * @param key Clave privada a usar para firmar.
+     * @param certChain Cadena de certificaci&oacute;n.
+     * @param xParams Par&aacute;metros adicionales para la firma. Se aceptan los mismos que en
+     *                {@link #sign(byte[], String, PrivateKey, Certificate[], Properties)} salvo
+     *                <code>precalculatedHashAlgorithm</code>.
+     * @throws AOException Cuando ocurre cualquier problema durante el proceso */
+    public void sign(final InputStream data,
+                     final OutputStream out,
+                     final String algorithm,
+                     final PrivateKey key,
+                     final Certificate[] certChain,
+                     final Properties xParams) throws AOException {
+
+        if (data == null || out == null) {
+            throw new IllegalArgumentException("Los flujos de datos y de firma no pueden ser nulos"); //$NON-NLS-1$
+        }
+
+        new BCChecker().checkBouncyCastle();
+
+        final Properties extraParams = xParams != null ? xParams : new Properties();
+
+        if (extraParams.getProperty("precalculatedHashAlgorithm") != null) { //$NON-NLS-1$
+            throw new IllegalArgumentException("La firma de flujos de datos no admite huellas digitales precalculadas"); //$NON-NLS-1$
+        }
+
+        final boolean signingCertificateV2 = isSigningCertificateV2(algorithm, extraParams);
+        final String mode = extraParams.getProperty("mode", AOSignConstants.DEFAULT_SIGN_MODE); //$NON-NLS-1$
+        final boolean padesMode = Boolean.parseBoolean(extraParams.getProperty("padesMode", "false")); //$NON-NLS-1$ //$NON-NLS-2$
+
+        try {
+            final BufferedInputStream bis = new BufferedInputStream(data, MIME_DETECTION_SIZE);
+
+            String contentTypeOid = MimeHelper.DEFAULT_CONTENT_OID_DATA;
+            String contentDescription = MimeHelper.DEFAULT_CONTENT_DESCRIPTION;
+            bis.mark(MIME_DETECTION_SIZE);
+            final byte[] head = readHead(bis, MIME_DETECTION_SIZE);
+            bis.reset();
+            if (head.length > 0) {
+                try {
+                    final MimeHelper mimeHelper = new MimeHelper(head);
+                    contentDescription = mimeHelper.getDescription();
+                    contentTypeOid = MimeHelper.transformMimeTypeToOid(mimeHelper.getMimeType());
+                }
+                catch (final Exception e) {
+                    LOGGER.warning("No se han podido cargar las librerias para identificar el tipo de dato firmado: " + e); //$NON-NLS-1$
+                }
+            }
+
+            if (mode.equals(AOSignConstants.SIGN_MODE_EXPLICIT)) {
+                final String digestAlgoritmName = AOSignConstants.getDigestAlgorithmName(algorithm);
+                out.write(
+                    GenCAdESEPESSignedData.generateSignedData(
+                        CAdESSigningContext.getInstance(
+                            (X509Certificate[]) certChain,
+                            digestAlgoritmName,
+                            new AdESPolicy(extraParams),
+                            signingCertificateV2
+                        ),
+                        null,
+                        true,
+                        AOUtil.digestInputStream(MessageDigest.getInstance(digestAlgoritmName), bis),
+                        algorithm,
+                        key,
+                        padesMode,
+                        contentTypeOid,
+                        contentDescription
+                    )
+                );
+            }
+            else {
+                GenCAdESEPESSignedData.generateSignedData(
+                    bis,
+                    out,
+                    algorithm,
+                    new AdESPolicy(extraParams),
+                    signingCertificateV2,
+                    key,
+                    certChain,
+                    padesMode,
+                    contentTypeOid,
+                    contentDescription
+                );
+            }
+            out.flush();
+        }
+        catch (final Exception e) {
+            throw new AOException("Error generando la firma CAdES: " + e, e); //$NON-NLS-1$
+        }
+    }
+
+    /** Indica si debe usarse la versi&oacute;n 2 del atributo <i>SigningCertificate</i>.
+     * @param algorithm Algoritmo de firma.
+     * @param extraParams Par&aacute;metros adicionales de la firma.
+     * @return <code>true</code> si debe usarse la versi&oacute;n 2, <code>false</code> para la versi&oacute;n 1. */
+    static boolean isSigningCertificateV2(final String algorithm, final Properties extraParams) {
+        if (AOSignConstants.isSHA2SignatureAlgorithm(algorithm)) {
+        	return true;
+        }
+        if (extraParams.containsKey("signingCertificateV2")) { //$NON-NLS-1$
+       		return Boolean.parseBoolean(extraParams.getProperty("signingCertificateV2")); //$NON-NLS-1$
+        }
+        return !"SHA1".equals(AOSignConstants.getDigestAlgorithmName(algorithm)); //$NON-NLS-1$
+    }
+
+    /** Lee el principio de un flujo de datos.
+     * @param is Flujo de datos.
+     * @param maxLength N&uacute;mero m&aacute;ximo de octetos a leer.
+     * @return Octetos le&iacute;dos, como mucho <code>maxLength</code>.
+     * @throws IOException Si hay errores leyendo el flujo. */
+    private static byte[] readHead(final InputStream is, final int maxLength) throws IOException {
+        final byte[] buffer = new byte[maxLength];
+        int total = 0;
+        int n;
+        while (total < maxLength && (n = is.read(buffer, total, maxLength - total)) != -1) {
+            total += n;
+        }
+        if (total == maxLength) {
+            return buffer;
+        }
+        final byte[] head = new byte[total];
+        System.arraycopy(buffer, 0, head, 0, total);
+        return head;
+    }
+
     /** Cofirma datos en formato CAdES a&ntilde;adiendo la nueva firma a una CAdES o CMS ya existente. Para realizar la
      * cofirma se necesitan los datos originales (que este m&eacute;todo
      * firmar&aacute; normalmente) y la firma sobre la que se realiza la cofirma
@@ -470,6 +625,13 @@ public final class AOCAdESSigner implements AOSigner {
      *   <dd>
      *    URL que apunta al documento descriptivo de la pol&iacute;tica de firma (normalmente un documento PDF con una descripci&oacute;n textual).
      *   </dd>
+     *  <dt><b><i>parallelCounterSign</i></b></dt>
+     *   <dd>
+     *    Si se establece a {@code true}, al contrafirmar todos los nodos (<code>CounterSignTarget.TREE</code>) o las hojas
+     *    (<code>CounterSignTarget.LEAFS</code>) del &aacute;rbol las firmas se generan en paralelo. Solo se aplica a claves en
+     *    software (por ejemplo, de almacenes PKCS#12); con claves de PKCS#11, CAPI o tarjetas inteligentes las firmas se
+     *    generan siempre secuencialmente. Por defecto, se encuentra a {@code false}.
+     *   </dd>
      * </dl>
      * @return Contrafirma CAdES
      * @throws AOException Cuando ocurre cualquier problema durante el proceso */
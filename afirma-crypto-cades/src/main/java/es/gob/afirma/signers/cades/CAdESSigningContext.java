@@ -0,0 +1,263 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.signers.cades;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.SignerIdentifier;
+import org.bouncycastle.asn1.cms.SignerInfo;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+
+import es.gob.afirma.core.AOException;
+import es.gob.afirma.core.signers.AOSignConstants;
+import es.gob.afirma.core.signers.AdESPolicy;
+
+/** Informaci&oacute;n de un firmante CAdES que no depende de los datos firmados.
+ * <p>Contiene el atributo <i>SigningCertificate</i> (con la huella digital del certificado), el atributo de
+ * pol&iacute;tica de firma, el identificador del firmante y los certificados codificados, de forma que
+ * cuando se firman muchos documentos con la misma clave solo se calculan una vez. Se usa con
+ * {@link CAdESTriPhaseSigner#preSign(CAdESSigningContext, byte[], byte[], Date, boolean, String, String)},
+ * {@link CAdESTriPhaseSigner#postSign(CAdESSigningContext, byte[], byte[], byte[])} y
+ * {@link GenCAdESEPESSignedData}.</p>
+ * <p>Es inmutable y puede compartirse entre varios hilos. Con {@link #getInstance(X509Certificate[], String, AdESPolicy, boolean)}
+ * se reutilizan los contextos ya creados para el mismo firmante.</p> */
+public final class CAdESSigningContext {
+
+    /** N&uacute;mero m&aacute;ximo de contextos que se mantienen en la cach&eacute;. */
+    private static final int MAX_CACHED_CONTEXTS = 32;
+
+    /** Contextos creados, ordenados por antig&uuml;edad de su &uacute;ltimo uso. */
+    private static final Map<ContextKey, CAdESSigningContext> CACHE =
+        new LinkedHashMap<ContextKey, CAdESSigningContext>(MAX_CACHED_CONTEXTS, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<ContextKey, CAdESSigningContext> eldest) {
+                return size() > MAX_CACHED_CONTEXTS;
+            }
+        };
+
+    private final X509Certificate[] signerCertificateChain;
+    private final String digestAlgorithmName;
+    private final AlgorithmIdentifier digestAlgorithmOID;
+    private final Attribute signingCertificateAttribute;
+    private final Attribute sigPolicyIdAttribute;
+    private final SignerIdentifier signerIdentifier;
+    private final AlgorithmIdentifier keyAlgorithmIdentifier;
+    private final ASN1Set certificates;
+
+    /** Crea el contexto de firma de un firmante.
+     * @param signerCertificateChain Cadena de certificados del firmante
+     * @param digestAlgorithmName Algoritmo de huella digital
+     * @param policy Pol&iacute;tica de firma
+     * @param signingCertificateV2 <code>true</code> para usar SigningCertificateV2, <code>false</code> para usar V1
+     * @throws AOException Cuando se produce cualquier error calculando la informaci&oacute;n del firmante. */
+    public CAdESSigningContext(final X509Certificate[] signerCertificateChain,
+                               final String digestAlgorithmName,
+                               final AdESPolicy policy,
+                               final boolean signingCertificateV2) throws AOException {
+
+        if (signerCertificateChain == null || signerCertificateChain.length == 0) {
+            throw new IllegalArgumentException("La cadena de certificados debe contener al menos una entrada"); //$NON-NLS-1$
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("La politica de firma no puede ser nula"); //$NON-NLS-1$
+        }
+
+        this.signerCertificateChain = signerCertificateChain.clone();
+        this.digestAlgorithmName = AOSignConstants.getDigestAlgorithmName(digestAlgorithmName);
+        this.digestAlgorithmOID = CAdESTriPhaseSigner.getDigestAlgorithmIdentifier(this.digestAlgorithmName);
+
+        try {
+            this.signingCertificateAttribute = CAdESUtils.getSigningCertificateAttribute(
+        		this.signerCertificateChain[0],
+        		this.digestAlgorithmName,
+        		this.digestAlgorithmOID,
+        		policy,
+        		signingCertificateV2
+    		);
+            this.sigPolicyIdAttribute = CAdESUtils.getSigPolicyIdAttribute(policy, this.digestAlgorithmOID);
+        }
+        catch (final Exception e) {
+            throw new AOException("Error generando los atributos del firmante: " + e, e); //$NON-NLS-1$
+        }
+
+        this.signerIdentifier = CAdESTriPhaseSigner.createSignerIdentifier(this.signerCertificateChain[0]);
+        this.keyAlgorithmIdentifier = CAdESTriPhaseSigner.createKeyAlgorithmIdentifier();
+        this.certificates = CAdESTriPhaseSigner.createCertificates(this.signerCertificateChain);
+    }
+
+    /** Obtiene el contexto de firma de un firmante, reutilizando el ya creado si se ha usado antes
+     * la misma cadena de certificados con el mismo algoritmo de huella digital, pol&iacute;tica y
+     * versi&oacute;n de <i>SigningCertificate</i>. Se mantienen en memoria los &uacute;ltimos contextos usados.
+     * @param signerCertificateChain Cadena de certificados del firmante
+     * @param digestAlgorithmName Algoritmo de huella digital
+     * @param policy Pol&iacute;tica de firma
+     * @param signingCertificateV2 <code>true</code> para usar SigningCertificateV2, <code>false</code> para usar V1
+     * @return Contexto de firma del firmante.
+     * @throws AOException Cuando se produce cualquier error calculando la informaci&oacute;n del firmante. */
+    public static CAdESSigningContext getInstance(final X509Certificate[] signerCertificateChain,
+                                                  final String digestAlgorithmName,
+                                                  final AdESPolicy policy,
+                                                  final boolean signingCertificateV2) throws AOException {
+
+        if (signerCertificateChain == null || signerCertificateChain.length == 0) {
+            throw new IllegalArgumentException("La cadena de certificados debe contener al menos una entrada"); //$NON-NLS-1$
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("La politica de firma no puede ser nula"); //$NON-NLS-1$
+        }
+
+        final ContextKey key = new ContextKey(
+            signerCertificateChain,
+            AOSignConstants.getDigestAlgorithmName(digestAlgorithmName),
+            policy,
+            signingCertificateV2
+        );
+        synchronized (CACHE) {
+            final CAdESSigningContext context = CACHE.get(key);
+            if (context != null) {
+                return context;
+            }
+        }
+
+        // Creamos el contexto fuera del bloqueo, si dos hilos lo crean a la vez ambos son equivalentes
+        final CAdESSigningContext context = new CAdESSigningContext(
+            signerCertificateChain,
+            digestAlgorithmName,
+            policy,
+            signingCertificateV2
+        );
+        synchronized (CACHE) {
+            CACHE.put(key, context);
+        }
+        return context;
+    }
+
+    /** Obtiene el algoritmo de huella digital de las firmas.
+     * @return Nombre normalizado del algoritmo de huella digital */
+    public String getDigestAlgorithmName() {
+        return this.digestAlgorithmName;
+    }
+
+    /** Obtiene la cadena de certificados del firmante.
+     * @return Cadena de certificados del firmante */
+    public X509Certificate[] getSignerCertificateChain() {
+        return this.signerCertificateChain.clone();
+    }
+
+    AlgorithmIdentifier getDigestAlgorithmIdentifier() {
+        return this.digestAlgorithmOID;
+    }
+
+    ASN1Set getCertificates() {
+        return this.certificates;
+    }
+
+    /** Genera los atributos firmados de una firma, calculando &uacute;nicamente los que dependen de los datos.
+     * @param data Datos firmados
+     * @param dataDigest Huella digital de los datos firmados
+     * @param signDate Fecha de la firma
+     * @param padesMode <code>true</code> para generar una firma CAdES compatible PAdES, <code>false</code> para generar una firma CAdES normal
+     * @param contentType Tipo de contenido definido por su OID.
+     * @param contentDescription Descripci&oacute;n textual del tipo de contenido firmado.
+     * @return Atributos firmados, en el mismo orden que {@link CAdESUtils#generateSignerInfo(X509Certificate, String, byte[], AdESPolicy, boolean, byte[], Date, boolean, String, String)}
+     * @throws NoSuchAlgorithmException Si no se soporta el algoritmo de huella digital. */
+    ASN1EncodableVector generateSignedAttributes(final byte[] data,
+                                                 final byte[] dataDigest,
+                                                 final Date signDate,
+                                                 final boolean padesMode,
+                                                 final String contentType,
+                                                 final String contentDescription) throws NoSuchAlgorithmException {
+
+        final ASN1EncodableVector contexExpecific = CAdESUtils.initContexExpecific(
+    		this.digestAlgorithmName,
+    		data,
+    		PKCSObjectIdentifiers.data.getId(),
+    		dataDigest,
+    		signDate,
+    		padesMode
+		);
+        contexExpecific.add(this.signingCertificateAttribute);
+        if (this.sigPolicyIdAttribute != null) {
+            contexExpecific.add(this.sigPolicyIdAttribute);
+        }
+        CAdESUtils.addContentHints(contexExpecific, padesMode, contentType, contentDescription);
+        return contexExpecific;
+    }
+
+    /** Crea el <i>SignerInfo</i> de una firma.
+     * @param signature Firma PKCS#1 v1.5 de los atributos firmados
+     * @param signedAttributes Atributos firmados (prefirma)
+     * @return <i>SignerInfo</i> de la firma
+     * @throws AOException Si los atributos firmados no son v&aacute;lidos */
+    SignerInfo createSignerInfo(final byte[] signature, final byte[] signedAttributes) throws AOException {
+        return CAdESTriPhaseSigner.createSignerInfo(
+    		this.signerIdentifier,
+    		this.digestAlgorithmOID,
+    		this.keyAlgorithmIdentifier,
+    		signature,
+    		signedAttributes
+		);
+    }
+
+    /** Clave de la cach&eacute; de contextos: cadena de certificados, algoritmo de huella digital,
+     * pol&iacute;tica de firma y versi&oacute;n de <i>SigningCertificate</i>. */
+    private static final class ContextKey {
+
+        private final List<X509Certificate> chain;
+        private final String digestAlgorithmName;
+        private final List<String> policy;
+        private final boolean signingCertificateV2;
+
+        ContextKey(final X509Certificate[] chain,
+                   final String digestAlgorithmName,
+                   final AdESPolicy policy,
+                   final boolean signingCertificateV2) {
+            this.chain = Arrays.asList(chain.clone());
+            this.digestAlgorithmName = digestAlgorithmName;
+            // No se usa AdESPolicy.equals() porque no admite politicas sin identificador
+            this.policy = Arrays.asList(
+                policy.getPolicyIdentifier(),
+                policy.getPolicyIdentifierHash(),
+                policy.getPolicyIdentifierHashAlgorithm(),
+                policy.getPolicyQualifier() != null ? policy.getPolicyQualifier().toExternalForm() : null
+            );
+            this.signingCertificateV2 = signingCertificateV2;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof ContextKey)) {
+                return false;
+            }
+            final ContextKey other = (ContextKey) o;
+            return this.signingCertificateV2 == other.signingCertificateV2 &&
+                   this.digestAlgorithmName.equals(other.digestAlgorithmName) &&
+                   this.policy.equals(other.policy) &&
+                   this.chain.equals(other.chain);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.chain.get(0).hashCode() ^ this.digestAlgorithmName.hashCode();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.signers.cades;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Properties;
+
+import es.gob.afirma.core.AOException;
+import es.gob.afirma.core.misc.Base64;
+import es.gob.afirma.core.misc.MimeHelper;
+import es.gob.afirma.core.signers.AOSignConstants;
+import es.gob.afirma.core.signers.AdESPolicy;
+import es.gob.afirma.core.signers.TriPhaseBatchProcessor;
+
+/** Operaciones de prefirma y postfirma CAdES de los documentos de un lote, para atender las peticiones
+ * del protocolo de firma trif&aacute;sica por lotes con {@link TriPhaseBatchProcessor}.
+ * <p>Genera las firmas con {@link CAdESTriPhaseSigner}. Los par&aacute;metros de la firma son los
+ * mismos que los de {@link AOCAdESSigner}: si se indica <code>mode=implicit</code> los datos se solicitan
+ * de nuevo en la postfirma para incluirlos en la firma, y si se indica <code>precalculatedHashAlgorithm</code>
+ * cada documento del lote es la huella digital de los datos y se genera una firma expl&iacute;cita.</p>
+ * <p>No guarda estado entre la prefirma y la postfirma, por lo que la misma instancia puede atender
+ * peticiones concurrentes.</p> */
+public final class CAdESTriPhaseBatchServerSide implements TriPhaseBatchProcessor.PreSigner, TriPhaseBatchProcessor.PostSigner {
+
+    private static final String PROPERTY_NAME_SIGN_COUNT = "SIGN_COUNT"; //$NON-NLS-1$
+    private static final String PROPERTY_NAME_PRESIGN = "PRE.0"; //$NON-NLS-1$
+    private static final String PROPERTY_NAME_PKCS1_SIGN = "PK1.0"; //$NON-NLS-1$
+    private static final String PROPERTY_NAME_NEED_PRE = "NEED_PRE"; //$NON-NLS-1$
+    private static final String PROPERTY_NAME_NEED_DATA = "NEED_DATA"; //$NON-NLS-1$
+
+    private static final String EXTRA_PARAM_PRECALCULATED_HASH_ALGORITHM = "precalculatedHashAlgorithm"; //$NON-NLS-1$
+    private static final String EXTRA_PARAM_MODE = "mode"; //$NON-NLS-1$
+
+    private final String algorithm;
+
+    /** Crea las operaciones de firma CAdES de un lote.
+     * @param signatureAlgorithm Algoritmo de firma del lote. */
+    public CAdESTriPhaseBatchServerSide(final String signatureAlgorithm) {
+        if (signatureAlgorithm == null) {
+            throw new IllegalArgumentException("El algoritmo de firma no puede ser nulo"); //$NON-NLS-1$
+        }
+        this.algorithm = signatureAlgorithm;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Properties preSign(final byte[] cert, final Properties extraParams, final byte[] doc) throws Exception {
+
+        final X509Certificate[] chain = new X509Certificate[] { toCertificate(cert) };
+        final boolean implicit = isImplicit(extraParams);
+        final String precalculatedHashAlgorithm = extraParams.getProperty(EXTRA_PARAM_PRECALCULATED_HASH_ALGORITHM);
+
+        final String digestAlgorithmName;
+        if (precalculatedHashAlgorithm != null) {
+            if (implicit) {
+                throw new AOException("No se pueden generar firmas implicitas a partir de la huella digital de los datos"); //$NON-NLS-1$
+            }
+            digestAlgorithmName = CAdESTriPhaseSigner.checkDataDigest(precalculatedHashAlgorithm, doc);
+        }
+        else {
+            digestAlgorithmName = AOSignConstants.getDigestAlgorithmName(this.algorithm);
+        }
+
+        // Todos los documentos del lote comparten firmante, por lo que su contexto se reutiliza
+        final byte[] signedAttributes = CAdESTriPhaseSigner.preSign(
+            CAdESSigningContext.getInstance(
+                chain,
+                digestAlgorithmName,
+                new AdESPolicy(extraParams),
+                AOCAdESSigner.isSigningCertificateV2(this.algorithm, extraParams)
+            ),
+            precalculatedHashAlgorithm != null ? null : doc,
+            precalculatedHashAlgorithm != null ? doc : null,
+            new Date(),
+            false,
+            MimeHelper.DEFAULT_CONTENT_OID_DATA,
+            MimeHelper.DEFAULT_CONTENT_DESCRIPTION
+        );
+
+        final Properties session = new Properties();
+        session.setProperty(PROPERTY_NAME_SIGN_COUNT, "1"); //$NON-NLS-1$
+        session.setProperty(PROPERTY_NAME_PRESIGN, Base64.encode(signedAttributes));
+        session.setProperty(PROPERTY_NAME_NEED_PRE, Boolean.TRUE.toString());
+        session.setProperty(PROPERTY_NAME_NEED_DATA, Boolean.toString(implicit));
+        return session;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public byte[] postSign(final byte[] cert, final Properties extraParams, final Properties session, final byte[] doc) throws Exception {
+
+        final boolean implicit = isImplicit(extraParams);
+        if (implicit && doc == null) {
+            throw new AOException("No se han recibido los datos de la firma implicita"); //$NON-NLS-1$
+        }
+
+        final String pkcs1 = session.getProperty(PROPERTY_NAME_PKCS1_SIGN);
+        final String preSign = session.getProperty(PROPERTY_NAME_PRESIGN);
+        if (pkcs1 == null || preSign == null) {
+            throw new AOException("Faltan la prefirma o la firma PKCS#1 en los datos de sesion"); //$NON-NLS-1$
+        }
+
+        return CAdESTriPhaseSigner.postSign(
+            AOSignConstants.getDigestAlgorithmName(
+                extraParams.getProperty(EXTRA_PARAM_PRECALCULATED_HASH_ALGORITHM, this.algorithm)
+            ),
+            implicit ? doc : null,
+            new X509Certificate[] { toCertificate(cert) },
+            Base64.decode(pkcs1),
+            Base64.decode(preSign)
+        );
+    }
+
+    private static boolean isImplicit(final Properties extraParams) {
+        return AOSignConstants.SIGN_MODE_IMPLICIT.equals(
+            extraParams.getProperty(EXTRA_PARAM_MODE, AOSignConstants.DEFAULT_SIGN_MODE)
+        );
+    }
+
+    private static X509Certificate toCertificate(final byte[] cert) throws Exception {
+        return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate( //$NON-NLS-1$
+            new ByteArrayInputStream(cert)
+        );
+    }
+}
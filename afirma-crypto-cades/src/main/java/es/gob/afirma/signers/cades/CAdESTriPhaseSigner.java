@@ -12,6 +12,8 @@ package es.gob.afirma.signers.cades;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Date;
@@ -44,6 +46,8 @@ import org.bouncycastle.cms.CMSProcessableByteArray;
 
 import es.gob.afirma.core.AOException;
 import es.gob.afirma.core.misc.AOUtil;
+import es.gob.afirma.core.misc.MimeHelper;
+import es.gob.afirma.core.signers.AOSignConstants;
 import es.gob.afirma.core.signers.AdESPolicy;
 import es.gob.afirma.signers.pkcs7.AOAlgorithmID;
 import es.gob.afirma.signers.pkcs7.SigUtils;
@@ -173,36 +177,157 @@ public final class CAdESTriPhaseSigner {
         }
 
         // Atributos firmados
-        final ASN1Set signedAttributes;
+        final ASN1EncodableVector signedAttributes;
         try {
-            signedAttributes = SigUtils.getAttributeSet(
-               new AttributeTable(
-                  CAdESUtils.generateSignerInfo(
-                     signerCertificateChain[0],
-                     digestAlgorithmName,
-                     content,
-                     policy,
-                     signingCertificateV2,
-                     dataDigest,
-                     signDate,
-                     padesMode,
-                     contentType,
-                     contentDescription
-                  )
-               )
+            signedAttributes = CAdESUtils.generateSignerInfo(
+                 signerCertificateChain[0],
+                 digestAlgorithmName,
+                 content,
+                 policy,
+                 signingCertificateV2,
+                 dataDigest,
+                 signDate,
+                 padesMode,
+                 contentType,
+                 contentDescription
             );
         }
         catch(final Exception e) {
             throw new AOException("Error obteniendo los atributos a firmar: " + e, e); //$NON-NLS-1$
         }
 
+        return encodeSignedAttributes(signedAttributes);
+
+    }
+
+    /**
+     * Genera los atributos firmados CAdES (prefirma) reutilizando la informaci&oacute;n del firmante ya
+     * calculada en un contexto de firma. Es equivalente a
+     * {@link #preSign(String, byte[], X509Certificate[], AdESPolicy, boolean, byte[], Date, boolean, String, String)}
+     * con el algoritmo, la cadena de certificados, la pol&iacute;tica y la versi&oacute;n de <i>SigningCertificate</i>
+     * del contexto, pero solo calcula los atributos que dependen de los datos.
+     * @param context Contexto de firma del firmante
+     * @param content Datos a firmar (usar <code>null</code> si no se desean a&ntilde;adir a la firma)
+     * @param dataDigest Valor de la huella digital del contenido (usar <code>null</code> si se estableci&oacute; <code>content</code>)
+     * @param signDate Fecha de la firma (debe establecerse externamente para evitar desincronismos en la firma trif&aacute;sica)
+     * @param padesMode <code>true</code> para generar una firma CAdES compatible PAdES, <code>false</code> para generar una firma CAdES normal
+     * @param contentType Tipo de contenido definido por su OID.
+     * @param contentDescription Descripci&oacute;n textual del tipo de contenido firmado.
+     * @return Atributos CAdES a firmar (prefirma) en formato ASN.1
+     * @throws AOException Cuando se produce cualquier error durante el proceso.
+     */
+    public static byte[] preSign(final CAdESSigningContext context,
+                          final byte[] content,
+                          final byte[] dataDigest,
+                          final Date signDate,
+                          final boolean padesMode,
+                          final String contentType,
+                          final String contentDescription) throws AOException {
+
+        if (context == null) {
+            throw new IllegalArgumentException("El contexto de firma no puede ser nulo"); //$NON-NLS-1$
+        }
+
+        final ASN1EncodableVector signedAttributes;
+        try {
+            signedAttributes = context.generateSignedAttributes(
+                 content,
+                 dataDigest,
+                 signDate,
+                 padesMode,
+                 contentType,
+                 contentDescription
+            );
+        }
+        catch(final Exception e) {
+            throw new AOException("Error obteniendo los atributos a firmar: " + e, e); //$NON-NLS-1$
+        }
+
+        return encodeSignedAttributes(signedAttributes);
+    }
+
+    private static byte[] encodeSignedAttributes(final ASN1EncodableVector attributes) throws AOException {
+        final ASN1Set signedAttributes;
+        try {
+            signedAttributes = SigUtils.getAttributeSet(new AttributeTable(attributes));
+        }
+        catch(final Exception e) {
+            throw new AOException("Error obteniendo los atributos a firmar: " + e, e); //$NON-NLS-1$
+        }
+
         try {
             return signedAttributes.getEncoded(ASN1Encoding.DER);
         }
         catch (final Exception ex) {
             throw new AOException("Error al codificar los datos ASN.1 a firmar finalmente", ex); //$NON-NLS-1$
         }
+    }
 
+    /**
+     * Genera los atributos firmados CAdES (prefirma) de una firma expl&iacute;cita a partir &uacute;nicamente de la huella
+     * digital de los datos, calculada previamente por el cliente, de forma que los datos no necesitan llegar al servidor.
+     * La huella debe corresponderse con la que se indicar&iacute;a en el par&aacute;metro <code>data</code> de
+     * {@link AOCAdESSigner#sign(byte[], String, java.security.PrivateKey, java.security.cert.Certificate[], java.util.Properties)}
+     * cuando se establece <code>precalculatedHashAlgorithm</code>.
+     * @param digestAlgorithmName Algoritmo con el que se calcul&oacute; la huella digital
+     * @param dataDigest Huella digital de los datos a firmar
+     * @param signerCertificateChain Cadena de certificados del firmante
+     * @param policy Pol&iacute;tica de firma
+     * @param signingCertificateV2 <code>true</code> para usar SigningCertificateV2, <code>false</code> para usar V1
+     * @param signDate Fecha de la firma (debe establecerse externamente para evitar desincronismos en la firma trif&aacute;sica)
+     * @return Atributos CAdES a firmar (prefirma) en formato ASN.1
+     * @throws AOException Cuando la huella digital no se corresponde con el algoritmo indicado o se produce cualquier
+     *                     error durante el proceso.
+     */
+    public static byte[] preSign(final String digestAlgorithmName,
+                          final byte[] dataDigest,
+                          final X509Certificate[] signerCertificateChain,
+                          final AdESPolicy policy,
+                          final boolean signingCertificateV2,
+                          final Date signDate) throws AOException {
+
+        return preSign(
+    		checkDataDigest(digestAlgorithmName, dataDigest),
+    		null,
+    		signerCertificateChain,
+    		policy,
+    		signingCertificateV2,
+    		dataDigest,
+    		signDate,
+    		false,
+    		MimeHelper.DEFAULT_CONTENT_OID_DATA,
+    		MimeHelper.DEFAULT_CONTENT_DESCRIPTION
+		);
+    }
+
+    /** Comprueba que una huella digital precalculada tenga la longitud del algoritmo indicado.
+     * @param digestAlgorithmName Algoritmo con el que se calcul&oacute; la huella digital
+     * @param dataDigest Huella digital de los datos a firmar
+     * @return Nombre normalizado del algoritmo de huella digital
+     * @throws AOException Cuando la huella digital no se corresponde con el algoritmo indicado. */
+    static String checkDataDigest(final String digestAlgorithmName, final byte[] dataDigest) throws AOException {
+
+        if (dataDigest == null) {
+            throw new IllegalArgumentException("La huella digital de los datos no puede ser nula"); //$NON-NLS-1$
+        }
+
+        // Comprobamos que la huella recibida tenga la longitud del algoritmo indicado
+        final String normalizedDigestAlgorithmName = AOSignConstants.getDigestAlgorithmName(digestAlgorithmName);
+        final int digestLength;
+        try {
+            digestLength = MessageDigest.getInstance(normalizedDigestAlgorithmName).getDigestLength();
+        }
+        catch (final NoSuchAlgorithmException e) {
+            throw new AOException("Algoritmo de huella digital no soportado: " + digestAlgorithmName, e); //$NON-NLS-1$
+        }
+        if (digestLength != 0 && digestLength != dataDigest.length) {
+            throw new AOException(
+        		"La huella digital de los datos no se corresponde con el algoritmo " + digestAlgorithmName + //$NON-NLS-1$
+        		": se esperaban " + digestLength + " octetos y se han recibido " + dataDigest.length //$NON-NLS-1$ //$NON-NLS-2$
+    		);
+        }
+
+        return normalizedDigestAlgorithmName;
     }
 
     /** Realiza una firma CAdES completa.
@@ -225,67 +350,49 @@ public final class CAdESTriPhaseSigner {
             throw new IllegalArgumentException("La cadena de certificados debe contener al menos una entrada"); //$NON-NLS-1$
         }
 
-        final TBSCertificateStructure tbsCertificateStructure;
-        try {
-            tbsCertificateStructure = TBSCertificateStructure.getInstance(
-        		ASN1Primitive.fromByteArray(
-    				signerCertificateChain[0].getTBSCertificate()
-				)
-    		);
-        }
-        catch(final Exception e) {
-            throw new AOException("No se ha podido crear la estructura de certificados", e); //$NON-NLS-1$
-        }
+        return createSignedData(
+    		getDigestAlgorithmIdentifier(digestAlgorithmName),
+    		content,
+    		createCertificates(signerCertificateChain),
+    		createSignerInfo(digestAlgorithmName, signerCertificateChain, signature, signedAttributes)
+		);
+    }
 
-        final SignerIdentifier signerIdentifier = new SignerIdentifier(
-           new IssuerAndSerialNumber(
-    		   X500Name.getInstance(tbsCertificateStructure.getIssuer()),
-    		   tbsCertificateStructure.getSerialNumber().getValue()
-		   )
-        );
+    /** Realiza una firma CAdES completa reutilizando la informaci&oacute;n del firmante ya calculada en
+     * un contexto de firma. Es equivalente a {@link #postSign(String, byte[], X509Certificate[], byte[], byte[])}
+     * con el algoritmo y la cadena de certificados del contexto.
+     * @param context Contexto de firma del firmante
+     * @param content Datos a firmar (usar <code>null</code> si no se desean a&ntilde;adir a la firma)
+     * @param signature Firma PKCS#1 v1.5 de los atributos firmados
+     * @param signedAttributes Atributos firmados (prefirma)
+     * @return Firma CAdES completa
+     * @throws AOException Cuando se produce cualquier error durante el proceso.
+     */
+    public static byte[] postSign(final CAdESSigningContext context,
+                           final byte[] content,
+                           final byte[] signature,
+                           final byte[] signedAttributes) throws AOException {
 
-        // Algoritmo de huella digital
-        final AlgorithmIdentifier digestAlgorithmOID;
-        try {
-            digestAlgorithmOID = SigUtils.makeAlgId(AOAlgorithmID.getOID(digestAlgorithmName));
-        }
-        catch (final Exception e) {
-            throw new AOException("Error obteniendo el OID en ASN.1 del algoritmo de huella digital", e); //$NON-NLS-1$
+        if (context == null) {
+            throw new IllegalArgumentException("El contexto de firma no puede ser nulo"); //$NON-NLS-1$
         }
 
-        // EncryptionAlgorithm
-        final AlgorithmIdentifier keyAlgorithmIdentifier;
-        try {
-            keyAlgorithmIdentifier = SigUtils.makeAlgId(AOAlgorithmID.getOID("RSA")); //$NON-NLS-1$
-        }
-        catch (final Exception e) {
-            throw new AOException("Error al codificar el algoritmo de cifrado", e); //$NON-NLS-1$
-        }
-
-        // Firma PKCS#1 codificada
-        final ASN1OctetString encodedPKCS1Signature = new DEROctetString(signature);
+        return createSignedData(
+    		context.getDigestAlgorithmIdentifier(),
+    		content,
+    		context.getCertificates(),
+    		context.createSignerInfo(signature, signedAttributes)
+		);
+    }
 
-        // Atributos firmados
-        final ASN1Set asn1SignedAttributes;
-        try {
-            asn1SignedAttributes = (ASN1Set) ASN1Primitive.fromByteArray(signedAttributes);
-        }
-        catch (final IOException e) {
-            throw new AOException("Error en la inclusion de la recuperacion de los SignedAttibutes", e); //$NON-NLS-1$
-        }
+    private static byte[] createSignedData(final AlgorithmIdentifier digestAlgorithmOID,
+                                           final byte[] content,
+                                           final ASN1Set certificates,
+                                           final SignerInfo signer) throws AOException {
 
         // SignerInfo
         final ASN1EncodableVector signerInfo = new ASN1EncodableVector();
-        signerInfo.add(
-    		new SignerInfo(
-				signerIdentifier,
-				digestAlgorithmOID,
-				asn1SignedAttributes,
-				keyAlgorithmIdentifier,
-				encodedPKCS1Signature,
-				null
-			)
-		);
+        signerInfo.add(signer);
 
         // ContentInfo
         final ContentInfo contentInfo;
@@ -304,18 +411,6 @@ public final class CAdESTriPhaseSigner {
             contentInfo = new ContentInfo(new ASN1ObjectIdentifier(PKCSObjectIdentifiers.data.getId()), null);
         }
 
-        // Certificados
-        final List<ASN1Encodable> ce = new ArrayList<ASN1Encodable>();
-        for (final X509Certificate cert : signerCertificateChain) {
-            try {
-                ce.add(Certificate.getInstance(ASN1Primitive.fromByteArray(cert.getEncoded())));
-            }
-            catch(final Exception e) {
-                Logger.getLogger("es.gob.afirma").severe("Error insertando el certificado '" + AOUtil.getCN(cert) + "' en la cadena de confianza"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-            }
-        }
-        final ASN1Set certificates = SigUtils.createBerSetFromList(ce);
-
         // Algoritmos de huella digital
         final ASN1EncodableVector digestAlgorithms = new ASN1EncodableVector();
         digestAlgorithms.add(digestAlgorithmOID);
@@ -338,4 +433,126 @@ public final class CAdESTriPhaseSigner {
 
     }
 
+    /** Obtiene el identificador ASN.1 de un algoritmo de huella digital.
+     * @param digestAlgorithmName Algoritmo de huella digital
+     * @return Identificador ASN.1 del algoritmo
+     * @throws AOException Si el algoritmo no est&aacute; soportado */
+    static AlgorithmIdentifier getDigestAlgorithmIdentifier(final String digestAlgorithmName) throws AOException {
+        try {
+            return SigUtils.makeAlgId(AOAlgorithmID.getOID(digestAlgorithmName));
+        }
+        catch (final Exception e) {
+            throw new AOException("Error obteniendo el OID en ASN.1 del algoritmo de huella digital", e); //$NON-NLS-1$
+        }
+    }
+
+    /** Crea el <i>SignerInfo</i> de una firma CAdES a partir de la firma PKCS#1 de sus atributos firmados.
+     * @param digestAlgorithmName Algoritmo de huella digital
+     * @param signerCertificateChain Cadena de certificados del firmante
+     * @param signature Firma PKCS#1 v1.5 de los atributos firmados
+     * @param signedAttributes Atributos firmados (prefirma)
+     * @return <i>SignerInfo</i> de la firma
+     * @throws AOException Cuando se produce cualquier error durante el proceso. */
+    static SignerInfo createSignerInfo(final String digestAlgorithmName,
+                                       final X509Certificate[] signerCertificateChain,
+                                       final byte[] signature,
+                                       final byte[] signedAttributes) throws AOException {
+        return createSignerInfo(
+    		createSignerIdentifier(signerCertificateChain[0]),
+    		getDigestAlgorithmIdentifier(digestAlgorithmName),
+    		createKeyAlgorithmIdentifier(),
+    		signature,
+    		signedAttributes
+		);
+    }
+
+    /** Crea el identificador del firmante (emisor y n&uacute;mero de serie de su certificado).
+     * @param signerCertificate Certificado del firmante
+     * @return Identificador del firmante
+     * @throws AOException Si no se puede analizar el certificado */
+    static SignerIdentifier createSignerIdentifier(final X509Certificate signerCertificate) throws AOException {
+        final TBSCertificateStructure tbsCertificateStructure;
+        try {
+            tbsCertificateStructure = TBSCertificateStructure.getInstance(
+        		ASN1Primitive.fromByteArray(
+    				signerCertificate.getTBSCertificate()
+				)
+    		);
+        }
+        catch(final Exception e) {
+            throw new AOException("No se ha podido crear la estructura de certificados", e); //$NON-NLS-1$
+        }
+
+        return new SignerIdentifier(
+           new IssuerAndSerialNumber(
+    		   X500Name.getInstance(tbsCertificateStructure.getIssuer()),
+    		   tbsCertificateStructure.getSerialNumber().getValue()
+		   )
+        );
+    }
+
+    /** Obtiene el identificador ASN.1 del algoritmo de cifrado de la firma.
+     * @return Identificador ASN.1 del algoritmo RSA
+     * @throws AOException Si no se puede codificar el algoritmo */
+    static AlgorithmIdentifier createKeyAlgorithmIdentifier() throws AOException {
+        try {
+            return SigUtils.makeAlgId(AOAlgorithmID.getOID("RSA")); //$NON-NLS-1$
+        }
+        catch (final Exception e) {
+            throw new AOException("Error al codificar el algoritmo de cifrado", e); //$NON-NLS-1$
+        }
+    }
+
+    /** Crea el <i>SignerInfo</i> de una firma CAdES a partir de sus componentes ya calculados.
+     * @param signerIdentifier Identificador del firmante
+     * @param digestAlgorithmOID Identificador ASN.1 del algoritmo de huella digital
+     * @param keyAlgorithmIdentifier Identificador ASN.1 del algoritmo de cifrado
+     * @param signature Firma PKCS#1 v1.5 de los atributos firmados
+     * @param signedAttributes Atributos firmados (prefirma)
+     * @return <i>SignerInfo</i> de la firma
+     * @throws AOException Si los atributos firmados no son v&aacute;lidos */
+    static SignerInfo createSignerInfo(final SignerIdentifier signerIdentifier,
+                                       final AlgorithmIdentifier digestAlgorithmOID,
+                                       final AlgorithmIdentifier keyAlgorithmIdentifier,
+                                       final byte[] signature,
+                                       final byte[] signedAttributes) throws AOException {
+
+        // Firma PKCS#1 codificada
+        final ASN1OctetString encodedPKCS1Signature = new DEROctetString(signature);
+
+        // Atributos firmados
+        final ASN1Set asn1SignedAttributes;
+        try {
+            asn1SignedAttributes = (ASN1Set) ASN1Primitive.fromByteArray(signedAttributes);
+        }
+        catch (final IOException e) {
+            throw new AOException("Error en la inclusion de la recuperacion de los SignedAttibutes", e); //$NON-NLS-1$
+        }
+
+        return new SignerInfo(
+			signerIdentifier,
+			digestAlgorithmOID,
+			asn1SignedAttributes,
+			keyAlgorithmIdentifier,
+			encodedPKCS1Signature,
+			null
+		);
+    }
+
+    /** Crea el conjunto de certificados de una firma CAdES.
+     * @param signerCertificateChain Cadena de certificados del firmante
+     * @return Conjunto de certificados */
+    static ASN1Set createCertificates(final X509Certificate[] signerCertificateChain) {
+        final List<ASN1Encodable> ce = new ArrayList<ASN1Encodable>();
+        for (final X509Certificate cert : signerCertificateChain) {
+            try {
+                ce.add(Certificate.getInstance(ASN1Primitive.fromByteArray(cert.getEncoded())));
+            }
+            catch(final Exception e) {
+                Logger.getLogger("es.gob.afirma").severe("Error insertando el certificado '" + AOUtil.getCN(cert) + "' en la cadena de confianza"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            }
+        }
+        return SigUtils.createBerSetFromList(ce);
+    }
+
 }
@@ -109,6 +109,38 @@ public final class CAdESUtils {
         // comentar lo de abajo para version del rfc 3852
         // contexExpecific.add(new Attribute(RFC4519Style.serialNumber, new DERSet(new DERPrintableString(cert.getSerialNumber().toString()))));
 
+        contexExpecific.add(
+    		getSigningCertificateAttribute(cert, digestAlgorithmName, digestAlgorithmOID, policy, signingCertificateV2)
+		);
+
+        final Attribute sigPolicyId = getSigPolicyIdAttribute(policy, digestAlgorithmOID);
+        if (sigPolicyId != null) {
+            contexExpecific.add(sigPolicyId);
+        }
+
+        addContentHints(contexExpecific, padesMode, contentType, contentDescription);
+
+        return contexExpecific;
+    }
+
+    /** Genera el atributo <i>SigningCertificate</i> o <i>SigningCertificateV2</i> de un firmante.
+     * @param cert Certificado del firmante
+     * @param digestAlgorithmName Nombre del algoritmo de huella digital a usar
+     * @param digestAlgorithmOID Identificador ASN.1 del algoritmo de huella digital
+     * @param policy Pol&iacute;tica de firma
+     * @param signingCertificateV2 {@code true} para utilizar la versi&oacute;n 2 del campo
+     * signingCertificate, {@code false} para utilizar la versi&oacute;n 1.
+     * @return Atributo con la referencia al certificado del firmante.
+     * @throws java.security.NoSuchAlgorithmException Cuando se introduce un algoritmo no v&aacute;lido.
+     * @throws java.io.IOException Cuando se produce un error de entrada/salida.
+     * @throws CertificateEncodingException Error de codificaci&oacute;n en el certificado. */
+    static Attribute getSigningCertificateAttribute(final X509Certificate cert,
+                                                    final String digestAlgorithmName,
+                                                    final AlgorithmIdentifier digestAlgorithmOID,
+                                                    final AdESPolicy policy,
+                                                    final boolean signingCertificateV2) throws NoSuchAlgorithmException,
+                                                                                               IOException,
+                                                                                               CertificateEncodingException {
         if (signingCertificateV2) {
 
             // INICIO SINGING CERTIFICATE-V2
@@ -155,12 +187,10 @@ public final class CAdESUtils {
             }
 
             // Secuencia con singningCertificate
-            contexExpecific.add(
-        		new Attribute(
-    				PKCSObjectIdentifiers.id_aa_signingCertificateV2,
-    				new DERSet(scv2)
-				)
-    		);
+            return new Attribute(
+    			PKCSObjectIdentifiers.id_aa_signingCertificateV2,
+    			new DERSet(scv2)
+			);
 
             // FIN SINGING CERTIFICATE-V2
 
@@ -218,13 +248,21 @@ public final class CAdESUtils {
              * member-body(2) us(840) rsadsi(113549) pkcs(1) pkcs9(9) smime(16)
              * id-aa(2) 12 } */
             // Secuencia con singningCertificate
-            contexExpecific.add(
-        		new Attribute(
-    				PKCSObjectIdentifiers.id_aa_signingCertificate,
-    				new DERSet(scv)
-				)
-    		);
+            return new Attribute(
+    			PKCSObjectIdentifiers.id_aa_signingCertificate,
+    			new DERSet(scv)
+			);
         }
+    }
+
+    /** Genera el atributo <i>SignaturePolicyIdentifier</i> de la pol&iacute;tica de firma.
+     * @param policy Pol&iacute;tica de firma
+     * @param digestAlgorithmOID Identificador ASN.1 del algoritmo de huella digital de la firma, que se usa si la
+     *                           pol&iacute;tica no indica el algoritmo de su huella digital
+     * @return Atributo con la pol&iacute;tica o <code>null</code> si no se ha indicado pol&iacute;tica.
+     * @throws java.io.IOException Cuando se produce un error de entrada/salida. */
+    static Attribute getSigPolicyIdAttribute(final AdESPolicy policy,
+                                             final AlgorithmIdentifier digestAlgorithmOID) throws IOException {
 
         // INICIO SIGPOLICYID ATTRIBUTE
 
@@ -301,16 +339,27 @@ public final class CAdESUtils {
             final DERSequence ds = new DERSequence(v);
 
             // Secuencia con singningCertificate
-            contexExpecific.add(
-        		new Attribute(
-    				PKCSObjectIdentifiers.id_aa_ets_sigPolicyId,
-    				new DERSet(
-						ds.toASN1Primitive()
-					)
+            return new Attribute(
+    			PKCSObjectIdentifiers.id_aa_ets_sigPolicyId,
+    			new DERSet(
+					ds.toASN1Primitive()
 				)
-    		);
-            // FIN SIGPOLICYID ATTRIBUTE
+			);
         }
+        // FIN SIGPOLICYID ATTRIBUTE
+
+        return null;
+    }
+
+    /** A&ntilde;ade a los atributos firmados el tipo de contenido firmado.
+     * @param contexExpecific Atributos firmados
+     * @param padesMode <code>true</code> para firmas CAdES compatibles PAdES, en las que no se a&ntilde;ade
+     * @param contentType Tipo de contenido definido por su OID.
+     * @param contentDescription Descripci&oacute;n textual del tipo de contenido firmado. */
+    static void addContentHints(final ASN1EncodableVector contexExpecific,
+                                final boolean padesMode,
+                                final String contentType,
+                                final String contentDescription) {
 
         /**
          * Secuencia con el tipo de contenido firmado. No se agrega en firmas PAdES.
@@ -337,8 +386,6 @@ public final class CAdESUtils {
     			)
 			);
         }
-
-        return contexExpecific;
     }
 
     /**
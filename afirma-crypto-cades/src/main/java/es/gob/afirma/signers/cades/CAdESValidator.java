@@ -10,7 +10,9 @@
 
 package es.gob.afirma.signers.cades;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Enumeration;
 import java.util.logging.Logger;
 
@@ -25,13 +27,13 @@ import org.bouncycastle.asn1.DEROctetString;
 import org.bouncycastle.asn1.cms.Attribute;
 import org.bouncycastle.asn1.cms.EncryptedContentInfo;
 import org.bouncycastle.asn1.cms.EnvelopedData;
-import org.bouncycastle.asn1.cms.SignedData;
 import org.bouncycastle.asn1.cms.SignerInfo;
 import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
 
 import es.gob.afirma.core.signers.AOSignConstants;
 import es.gob.afirma.signers.pkcs7.DigestedData;
 import es.gob.afirma.signers.pkcs7.SignedAndEnvelopedData;
+import es.gob.afirma.signers.pkcs7.SignedDataInspector;
 
 /** Agrupa distintos m&eacute;todos de verificaci&oacute;n estructural de datos CAdES. Es importante rese&ntilde;ar que las
  * validaciones son &uacute;nicamente a nivel de estructura, y no a nivel de validez de la propia firma electr&oacute;ca o
@@ -95,40 +97,32 @@ public final class CAdESValidator {
      * <code>false</code> en caso contrario.
      * @throws IOException Si ocurren problemas leyendo los datos */
     public static boolean isCAdESSignedData(final byte[] data) throws IOException {
-        boolean isValid = false;
-        ASN1InputStream is = null;
-        try {
-            is = new ASN1InputStream(data);
-            // LEEMOS EL FICHERO QUE NOS INTRODUCEN
-            final ASN1Sequence dsq = (ASN1Sequence) is.readObject();
-            final Enumeration<?> e = dsq.getObjects();
-            // Elementos que contienen los elementos OID Data
-            final DERObjectIdentifier doi = (DERObjectIdentifier) e.nextElement();
-            if (doi.equals(PKCSObjectIdentifiers.signedData)) {
-                isValid = true;
-            }
-            // Contenido de SignedData
-            final ASN1TaggedObject doj = (ASN1TaggedObject) e.nextElement();
-            final ASN1Sequence datos = (ASN1Sequence) doj.getObject();
-            final SignedData sd = SignedData.getInstance(datos);
-
-            final ASN1Set signerInfosSd = sd.getSignerInfos();
+        if (data == null) {
+            return false;
+        }
+        return isCAdESSignedData(new ByteArrayInputStream(data));
+    }
 
+    /** Verifica si los datos le&iacute;dos de un flujo se corresponden con una estructura de tipo
+     * <i>SignedData</i>. El contenido firmado se recorre sin almacenarlo, por lo que la memoria
+     * usada no depende de su tama&ntilde;o.
+     * @param is Flujo de lectura de los datos PKCS#7/CMS/CAdES. No se cierra.
+     * @return <code>true</code> si los datos proporcionados se corresponden con una estructura de tipo <i>SignedData</i>,
+     * <code>false</code> en caso contrario.
+     * @throws IOException Si ocurren problemas leyendo los datos */
+    public static boolean isCAdESSignedData(final InputStream is) throws IOException {
+        boolean isValid = true;
+        try {
+            final ASN1Set signerInfosSd = SignedDataInspector.inspect(is).getSignerInfos();
             for (int i = 0; i < signerInfosSd.size(); i++) {
                 final SignerInfo si = new SignerInfo((ASN1Sequence) signerInfosSd.getObjectAt(i));
                 isValid = verifySignerInfo(si);
             }
-
         }
         catch (final Exception ex) {
         	LOGGER.info("Los datos proporcionados no son un SignedData de CAdES: " + ex); //$NON-NLS-1$
             return false;
         }
-        finally {
-        	if (is != null) {
-        		is.close();
-        	}
-        }
         return isValid;
     }
 
@@ -11,6 +11,9 @@
 package es.gob.afirma.signers.cades;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
@@ -18,6 +21,14 @@ import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Date;
 
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.BEROctetStringGenerator;
+import org.bouncycastle.asn1.BERSequenceGenerator;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+
 import es.gob.afirma.core.AOException;
 import es.gob.afirma.core.signers.AOPkcs1Signer;
 import es.gob.afirma.core.signers.AOSignConstants;
@@ -54,6 +65,10 @@ import es.gob.afirma.signers.pkcs7.P7ContentSignerParameters;
  */
 public final class GenCAdESEPESSignedData {
 
+    /** Tama&ntilde;o de los bloques en los que se leen los datos y se escribe el contenido
+     * encapsulado en las firmas generadas por flujos. */
+    private static final int BUFFER_SIZE = 65536;
+
     private GenCAdESEPESSignedData() {
         // No permitimos la instanciacion
     }
@@ -149,4 +164,199 @@ public final class GenCAdESEPESSignedData {
 
     }
 
+    /** Genera una firma CAdES impl&iacute;cita escribi&eacute;ndola en un flujo de salida a medida
+     * que se leen los datos a firmar, sin cargarlos en memoria.
+     * <p>La firma se codifica en BER con longitudes indefinidas: el contenido se copia en el
+     * <i>eContent</i> por bloques mientras se calcula su huella digital, y al terminar se
+     * a&ntilde;aden los certificados y el <i>SignerInfo</i>. La memoria usada no depende del
+     * tama&ntilde;o de los datos.</p>
+     * @param content Flujo de lectura de los datos a firmar. Se lee hasta el final pero no se cierra.
+     * @param out Flujo en el que se escribe la firma. No se cierra.
+     * @param signatureAlgorithm Algoritmo de firma.
+     * @param policy Pol&iacute;tica de firma
+     * @param signingCertificateV2
+     *        <code>true</code> si se desea usar la versi&oacute;n 2 del
+     *        atributo <i>SigningCertificate</i> <code>false</code> para
+     *        usar la versi&oacute;n 1
+     * @param key Clave privada para firma.
+     * @param certChain Cadena de certificados del firmante
+     * @param padesMode <code>true</code> para generar una firma CAdES compatible PAdES, <code>false</code> para generar una firma CAdES normal.
+     * @param contentType Tipo de contenido definido por su OID.
+     * @param contentDescription Descripci&oacute;n textual del tipo de contendio.
+     * @throws java.security.NoSuchAlgorithmException
+     *         Si no se soporta alguno de los algoritmos de firma o huella digital indicados
+     * @throws IOException En caso de cualquier problema leyendo o escribiendo los datos
+     * @throws AOException
+     *         Cuando ocurre alg&uacute;n error durante el proceso de codificaci&oacute;n ASN.1 */
+    public static void generateSignedData(final InputStream content,
+                                          final OutputStream out,
+                                          final String signatureAlgorithm,
+                                          final AdESPolicy policy,
+                                          final boolean signingCertificateV2,
+                                          final PrivateKey key,
+                                          final Certificate[] certChain,
+                                          final boolean padesMode,
+                                          final String contentType,
+                                          final String contentDescription) throws NoSuchAlgorithmException, IOException, AOException {
+
+        generateSignedData(
+            CAdESSigningContext.getInstance(
+                (X509Certificate[]) certChain,
+                AOSignConstants.getDigestAlgorithmName(signatureAlgorithm),
+                policy,
+                signingCertificateV2
+            ),
+            content,
+            out,
+            signatureAlgorithm,
+            key,
+            padesMode,
+            contentType,
+            contentDescription
+        );
+    }
+
+    /** Genera una firma digital usando una estructura PKCS#7 SignedData reutilizando la informaci&oacute;n
+     * del firmante ya calculada en un contexto de firma, de forma que al firmar muchos documentos con la
+     * misma clave solo se calculan para cada uno los atributos que dependen de los datos.
+     * @param context Contexto de firma del firmante, con el algoritmo de huella digital de la firma.
+     * @param content Datos a firmar. Si se indica <code>dataDigest</code> solo se usan para incluirlos en la firma.
+     * @param omitContent
+     *        <code>false</code> si en la firma se desea incluir el contenido del
+     *        fichero o <code>true</code> si s&oacute;lo se desea usar una referencia.
+     * @param dataDigest Huella digital de los datos a firmar calculada con el algoritmo del contexto, o
+     *                   <code>null</code> para calcularla a partir de <code>content</code>.
+     * @param signatureAlgorithm Algoritmo de firma. Debe usar el mismo algoritmo de huella digital que el contexto.
+     * @param key Clave privada para firma.
+     * @param padesMode <code>true</code> para generar una firma CAdES compatible PAdES, <code>false</code> para generar una firma CAdES normal.
+     * @param contentType Tipo de contenido definido por su OID.
+     * @param contentDescription Descripci&oacute;n textual del tipo de contendio.
+     * @return La firma generada codificada en ASN.1 binario.
+     * @throws AOException
+     *         Cuando ocurre alg&uacute;n error durante el proceso de firma o de codificaci&oacute;n ASN.1 */
+    public static byte[] generateSignedData(final CAdESSigningContext context,
+                                            final byte[] content,
+                                            final boolean omitContent,
+                                            final byte[] dataDigest,
+                                            final String signatureAlgorithm,
+                                            final PrivateKey key,
+                                            final boolean padesMode,
+                                            final String contentType,
+                                            final String contentDescription) throws AOException {
+
+        checkSignatureAlgorithm(context, signatureAlgorithm);
+
+        // Aunque no se incluyan en la firma, los datos se necesitan si no se proporciona su huella
+        final byte[] signedAttributes = CAdESTriPhaseSigner.preSign(
+            context,
+            content,
+            dataDigest,
+            new Date(),
+            padesMode,
+            contentType,
+            contentDescription
+        );
+
+        final byte[] signature = new AOPkcs1Signer().sign(
+            signedAttributes, signatureAlgorithm, key, context.getSignerCertificateChain(), null
+        );
+
+        return CAdESTriPhaseSigner.postSign(context, omitContent ? null : content, signature, signedAttributes);
+    }
+
+    /** Genera una firma CAdES impl&iacute;cita escribi&eacute;ndola en un flujo de salida a medida
+     * que se leen los datos a firmar, reutilizando la informaci&oacute;n del firmante ya calculada en
+     * un contexto de firma.
+     * @param context Contexto de firma del firmante, con el algoritmo de huella digital de la firma.
+     * @param content Flujo de lectura de los datos a firmar. Se lee hasta el final pero no se cierra.
+     * @param out Flujo en el que se escribe la firma. No se cierra.
+     * @param signatureAlgorithm Algoritmo de firma. Debe usar el mismo algoritmo de huella digital que el contexto.
+     * @param key Clave privada para firma.
+     * @param padesMode <code>true</code> para generar una firma CAdES compatible PAdES, <code>false</code> para generar una firma CAdES normal.
+     * @param contentType Tipo de contenido definido por su OID.
+     * @param contentDescription Descripci&oacute;n textual del tipo de contendio.
+     * @throws java.security.NoSuchAlgorithmException
+     *         Si no se soporta alguno de los algoritmos de firma o huella digital indicados
+     * @throws IOException En caso de cualquier problema leyendo o escribiendo los datos
+     * @throws AOException
+     *         Cuando ocurre alg&uacute;n error durante el proceso de codificaci&oacute;n ASN.1 */
+    public static void generateSignedData(final CAdESSigningContext context,
+                                          final InputStream content,
+                                          final OutputStream out,
+                                          final String signatureAlgorithm,
+                                          final PrivateKey key,
+                                          final boolean padesMode,
+                                          final String contentType,
+                                          final String contentDescription) throws NoSuchAlgorithmException, IOException, AOException {
+
+        if (content == null || out == null) {
+            throw new IllegalArgumentException("Los flujos de datos y de firma no pueden ser nulos"); //$NON-NLS-1$
+        }
+        checkSignatureAlgorithm(context, signatureAlgorithm);
+
+        final MessageDigest md = MessageDigest.getInstance(context.getDigestAlgorithmName());
+
+        // ContentInfo
+        final BERSequenceGenerator contentInfoGen = new BERSequenceGenerator(out);
+        contentInfoGen.addObject(PKCSObjectIdentifiers.signedData);
+
+        // SignedData
+        final BERSequenceGenerator signedDataGen = new BERSequenceGenerator(contentInfoGen.getRawOutputStream(), 0, true);
+        signedDataGen.addObject(new ASN1Integer(1));
+        signedDataGen.addObject(new DERSet(context.getDigestAlgorithmIdentifier()));
+
+        // EncapsulatedContentInfo, con el contenido por bloques
+        final BERSequenceGenerator encapContentInfoGen = new BERSequenceGenerator(signedDataGen.getRawOutputStream());
+        encapContentInfoGen.addObject(PKCSObjectIdentifiers.data);
+        final OutputStream eContent = new BEROctetStringGenerator(encapContentInfoGen.getRawOutputStream(), 0, true)
+            .getOctetOutputStream(new byte[BUFFER_SIZE]);
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = content.read(buffer)) != -1) {
+            md.update(buffer, 0, n);
+            eContent.write(buffer, 0, n);
+        }
+        eContent.close();
+        encapContentInfoGen.close();
+
+        // Con la huella de los datos ya se pueden firmar los atributos
+        final byte[] signedAttributes = CAdESTriPhaseSigner.preSign(
+            context,
+            null,
+            md.digest(),
+            new Date(),
+            padesMode,
+            contentType,
+            contentDescription
+        );
+
+        final byte[] signature = new AOPkcs1Signer().sign(
+            signedAttributes, signatureAlgorithm, key, context.getSignerCertificateChain(), null
+        );
+
+        // Certificados [0] IMPLICIT y SignerInfos
+        final OutputStream signedDataOut = signedDataGen.getRawOutputStream();
+        signedDataOut.write(
+            new DERTaggedObject(false, 0, context.getCertificates()).getEncoded(ASN1Encoding.DER)
+        );
+        signedDataOut.write(
+            new DERSet(context.createSignerInfo(signature, signedAttributes)).getEncoded(ASN1Encoding.DER)
+        );
+
+        signedDataGen.close();
+        contentInfoGen.close();
+    }
+
+    private static void checkSignatureAlgorithm(final CAdESSigningContext context, final String signatureAlgorithm) {
+        if (context == null) {
+            throw new IllegalArgumentException("El contexto de firma no puede ser nulo"); //$NON-NLS-1$
+        }
+        if (!context.getDigestAlgorithmName().equals(AOSignConstants.getDigestAlgorithmName(signatureAlgorithm))) {
+            throw new IllegalArgumentException(
+                "El algoritmo de firma " + signatureAlgorithm + //$NON-NLS-1$
+                " no usa el algoritmo de huella digital del contexto de firma: " + context.getDigestAlgorithmName() //$NON-NLS-1$
+            );
+        }
+    }
+
 }
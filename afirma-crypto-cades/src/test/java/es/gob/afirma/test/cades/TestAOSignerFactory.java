@@ -0,0 +1,82 @@
+package es.gob.afirma.test.cades;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import es.gob.afirma.core.signers.AOSignConstants;
+import es.gob.afirma.core.signers.AOSigner;
+import es.gob.afirma.core.signers.AOSignerFactory;
+import es.gob.afirma.signers.cades.AOCAdESSigner;
+
+/** Pruebas de la obtenci&oacute;n de manejadores de firma de la factor&iacute;a. */
+public final class TestAOSignerFactory {
+
+	private static final int THREADS = 16;
+
+	/** Comprueba que varios hilos que solicitan a la vez el mismo formato obtienen una &uacute;nica
+	 * instancia compartida del manejador.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testConcurrentSignerResolution() throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			final Future<?>[] results = new Future<?>[THREADS];
+			for (int i = 0; i < THREADS; i++) {
+				// La mitad de los hilos usa un nombre alternativo del formato
+				final String format = i % 2 == 0 ? AOSignConstants.SIGN_FORMAT_CADES : AOSignConstants.SIGN_FORMAT_CADES.toUpperCase();
+				results[i] = executor.submit(new Callable<AOSigner>() {
+					@Override
+					public AOSigner call() throws Exception {
+						start.await();
+						return AOSignerFactory.getSigner(format);
+					}
+				});
+			}
+			start.countDown();
+
+			final Object signer = results[0].get(30, TimeUnit.SECONDS);
+			Assert.assertTrue(signer instanceof AOCAdESSigner);
+			for (final Future<?> result : results) {
+				Assert.assertSame(signer, result.get(30, TimeUnit.SECONDS));
+			}
+			Assert.assertSame(signer, AOSignerFactory.getSigner(AOSignConstants.SIGN_FORMAT_CADES));
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/** Comprueba que la precarga devuelve exactamente los formatos cuyo manejador est&aacute;
+	 * disponible y que las peticiones posteriores reutilizan las instancias precargadas.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testPreloadSigners() throws Exception {
+		final List<String> preloaded = Arrays.asList(AOSignerFactory.preloadSigners());
+		Assert.assertTrue(preloaded.contains(AOSignConstants.SIGN_FORMAT_CADES));
+
+		for (final String format : AOSignerFactory.getSupportedFormats()) {
+			final AOSigner signer = AOSignerFactory.getSigner(format);
+			Assert.assertEquals("Formato " + format, Boolean.valueOf(preloaded.contains(format)), Boolean.valueOf(signer != null)); //$NON-NLS-1$
+			if (signer != null) {
+				Assert.assertSame(signer, AOSignerFactory.getSigner(format));
+			}
+		}
+
+		// Una segunda precarga no crea nuevas instancias
+		final AOSigner cadesSigner = AOSignerFactory.getSigner(AOSignConstants.SIGN_FORMAT_CADES);
+		Assert.assertEquals(preloaded, Arrays.asList(AOSignerFactory.preloadSigners()));
+		Assert.assertSame(cadesSigner, AOSignerFactory.getSigner(AOSignConstants.SIGN_FORMAT_CADES));
+	}
+}
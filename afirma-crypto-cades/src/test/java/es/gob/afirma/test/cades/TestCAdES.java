@@ -10,6 +10,8 @@
 
 package es.gob.afirma.test.cades;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -18,6 +20,8 @@ import java.security.KeyStore;
 import java.security.KeyStore.PrivateKeyEntry;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Properties;
 import java.util.logging.Level;
@@ -25,17 +29,30 @@ import java.util.logging.Logger;
 
 import junit.framework.Assert;
 
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
 import org.junit.Ignore;
 import org.junit.Test;
 
 import es.gob.afirma.core.misc.AOUtil;
+import es.gob.afirma.core.misc.MimeHelper;
 import es.gob.afirma.core.signers.AOSignConstants;
 import es.gob.afirma.core.signers.AOSigner;
 import es.gob.afirma.core.signers.AOSimpleSignInfo;
+import es.gob.afirma.core.signers.AdESPolicy;
 import es.gob.afirma.core.util.tree.AOTreeModel;
 import es.gob.afirma.core.util.tree.AOTreeNode;
 import es.gob.afirma.signers.cades.AOCAdESSigner;
+import es.gob.afirma.signers.cades.CAdESSigningContext;
+import es.gob.afirma.signers.cades.CAdESTriPhaseSigner;
 import es.gob.afirma.signers.cades.CAdESValidator;
+import es.gob.afirma.signers.cades.GenCAdESEPESSignedData;
+import es.gob.afirma.signers.pkcs7.SignedDataInspector;
 
 
 /**
@@ -197,6 +214,222 @@ public final class TestCAdES {
 
 	}
 
+	/**
+	 * Prueba de firma de varios documentos reutilizando el mismo contexto de firma, comprobando
+	 * que la prefirma con el contexto es id&eacute;ntica a la prefirma sin &eacute;l.
+	 * @throws Exception en cualquier error
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testSignatureWithSigningContext() throws Exception {
+
+		Logger.getLogger("es.gob.afirma").setLevel(Level.WARNING); //$NON-NLS-1$
+		final PrivateKeyEntry pke = loadKeyEntry(CERT_PATH, CERT_ALIAS, CERT_PASS);
+		final X509Certificate cert = (X509Certificate) pke.getCertificate();
+		final X509Certificate[] chain = new X509Certificate[pke.getCertificateChain().length];
+		for (int i = 0; i < chain.length; i++) {
+			chain[i] = (X509Certificate) pke.getCertificateChain()[i];
+		}
+
+		final AOSigner signer = new AOCAdESSigner();
+		final Date signDate = new Date(1380000000000L);
+
+		for (final Properties extraParams : CADES_MODES) {
+			final CAdESSigningContext context = CAdESSigningContext.getInstance(
+				chain,
+				"SHA-256", //$NON-NLS-1$
+				new AdESPolicy(extraParams),
+				true
+			);
+			Assert.assertSame(
+				context,
+				CAdESSigningContext.getInstance(chain.clone(), "SHA-256", new AdESPolicy(extraParams), true) //$NON-NLS-1$
+			);
+			for (int i = 0; i < DATA_FILES.length; i++) {
+				if (DATA.get(i) == null) {
+					continue;
+				}
+
+				Assert.assertTrue(Arrays.equals(
+					CAdESTriPhaseSigner.preSign(
+						"SHA-256", //$NON-NLS-1$
+						DATA.get(i),
+						chain,
+						new AdESPolicy(extraParams),
+						true,
+						null,
+						signDate,
+						false,
+						MimeHelper.DEFAULT_CONTENT_OID_DATA,
+						MimeHelper.DEFAULT_CONTENT_DESCRIPTION
+					),
+					CAdESTriPhaseSigner.preSign(
+						context,
+						DATA.get(i),
+						null,
+						signDate,
+						false,
+						MimeHelper.DEFAULT_CONTENT_OID_DATA,
+						MimeHelper.DEFAULT_CONTENT_DESCRIPTION
+					)
+				));
+				final byte[] result = GenCAdESEPESSignedData.generateSignedData(
+					context,
+					DATA.get(i),
+					AOSignConstants.SIGN_MODE_EXPLICIT.equals(extraParams.getProperty("mode")), //$NON-NLS-1$
+					null,
+					AOSignConstants.SIGN_ALGORITHM_SHA256WITHRSA,
+					pke.getPrivateKey(),
+					false,
+					MimeHelper.DEFAULT_CONTENT_OID_DATA,
+					MimeHelper.DEFAULT_CONTENT_DESCRIPTION
+				);
+
+				Assert.assertTrue(signer.isSign(result));
+				Assert.assertTrue(CAdESValidator.isCAdESValid(result, AOSignConstants.CMS_CONTENTTYPE_SIGNEDDATA));
+
+				final AOTreeModel tree = signer.getSignersStructure(result, true);
+				final AOSimpleSignInfo simpleSignInfo = (AOSimpleSignInfo) ((AOTreeNode) tree.getRoot()).getChildAt(0).getUserObject();
+				Assert.assertEquals(cert, simpleSignInfo.getCerts()[0]);
+			}
+		}
+	}
+
+	/**
+	 * Prueba de firma impl&iacute;cita de un flujo de datos, con un contenido mayor que el bloque
+	 * de copia para que la firma codificada en BER tenga varios fragmentos.
+	 * @throws Exception en cualquier error
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testStreamSignatureImplicit() throws Exception {
+
+		Logger.getLogger("es.gob.afirma").setLevel(Level.WARNING); //$NON-NLS-1$
+		final PrivateKeyEntry pke = loadKeyEntry(CERT_PATH, CERT_ALIAS, CERT_PASS);
+
+		final byte[] data = createStreamData();
+
+		final Properties extraParams = new Properties();
+		extraParams.setProperty("mode", AOSignConstants.SIGN_MODE_IMPLICIT); //$NON-NLS-1$
+
+		final AOCAdESSigner signer = new AOCAdESSigner();
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		signer.sign(
+			new ByteArrayInputStream(data),
+			baos,
+			AOSignConstants.SIGN_ALGORITHM_SHA512WITHRSA,
+			pke.getPrivateKey(),
+			pke.getCertificateChain(),
+			extraParams
+		);
+		final byte[] result = baos.toByteArray();
+
+		Assert.assertEquals("La firma no usa longitudes indefinidas", (byte) 0x80, result[1]); //$NON-NLS-1$
+		Assert.assertTrue(signer.isSign(result));
+		Assert.assertTrue(CAdESValidator.isCAdESValid(result, AOSignConstants.CMS_CONTENTTYPE_SIGNEDDATA));
+		Assert.assertTrue(CAdESValidator.isCAdESSignedData(new ByteArrayInputStream(result)));
+		Assert.assertTrue(Arrays.equals(data, signer.getData(result)));
+
+		final SignedDataInspector inspector = SignedDataInspector.inspect(new ByteArrayInputStream(result));
+		Assert.assertTrue(inspector.isContentEncapsulated());
+		Assert.assertEquals(data.length, inspector.getContentLength());
+		Assert.assertEquals(pke.getCertificateChain().length, inspector.getCertificates().size());
+		Assert.assertEquals(1, inspector.getSignerInfos().size());
+
+		final AOTreeModel tree = signer.getSignersStructure(result, false);
+		Assert.assertEquals("Datos", ((AOTreeNode) tree.getRoot()).getUserObject()); //$NON-NLS-1$
+		Assert.assertEquals(1, ((AOTreeNode) tree.getRoot()).getChildCount());
+		Assert.assertEquals("ANF Usuario Activo", ((AOTreeNode) tree.getRoot()).getChildAt(0).getUserObject()); //$NON-NLS-1$
+
+		// Comprobamos la firma con BouncyCastle
+		final CMSSignedData cmsSignedData = new CMSSignedData(result);
+		Assert.assertTrue(Arrays.equals(data, (byte[]) cmsSignedData.getSignedContent().getContent()));
+		Assert.assertEquals(1, cmsSignedData.getSignerInfos().size());
+		final SignerInformation signerInfo = (SignerInformation) cmsSignedData.getSignerInfos().getSigners().iterator().next();
+		Assert.assertTrue(signerInfo.verify(
+			new JcaSimpleSignerInfoVerifierBuilder().build(pke.getCertificate().getPublicKey())
+		));
+	}
+
+	/**
+	 * Prueba de firma expl&iacute;cita de un flujo de datos, comprobando que genera los mismos atributos
+	 * firmados (salvo el momento de la firma) que la firma de los datos en memoria.
+	 * @throws Exception en cualquier error
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testStreamSignatureExplicit() throws Exception {
+
+		Logger.getLogger("es.gob.afirma").setLevel(Level.WARNING); //$NON-NLS-1$
+		final PrivateKeyEntry pke = loadKeyEntry(CERT_PATH, CERT_ALIAS, CERT_PASS);
+
+		final byte[] data = createStreamData();
+
+		final Properties extraParams = new Properties();
+		extraParams.setProperty("mode", AOSignConstants.SIGN_MODE_EXPLICIT); //$NON-NLS-1$
+		extraParams.setProperty("policyIdentifier", "urn:oid:2.16.724.1.3.1.1.2.1.8"); //$NON-NLS-1$ //$NON-NLS-2$
+		extraParams.setProperty("policyIdentifierHash", "7SxX3erFuH31TvAw9LZ70N7p1vA="); //$NON-NLS-1$ //$NON-NLS-2$
+		extraParams.setProperty("policyIdentifierHashAlgorithm", "http://www.w3.org/2000/09/xmldsig#sha1"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		final AOCAdESSigner signer = new AOCAdESSigner();
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		signer.sign(
+			new ByteArrayInputStream(data),
+			baos,
+			AOSignConstants.SIGN_ALGORITHM_SHA256WITHRSA,
+			pke.getPrivateKey(),
+			pke.getCertificateChain(),
+			extraParams
+		);
+		final byte[] streamResult = baos.toByteArray();
+		final byte[] bytesResult = signer.sign(
+			data,
+			AOSignConstants.SIGN_ALGORITHM_SHA256WITHRSA,
+			pke.getPrivateKey(),
+			pke.getCertificateChain(),
+			extraParams
+		);
+
+		Assert.assertTrue(signer.isSign(streamResult));
+		Assert.assertNull(new CMSSignedData(streamResult).getSignedContent());
+
+		final SignerInformation streamSignerInfo = getVerifiedSignerInfo(data, streamResult, pke);
+		final SignerInformation bytesSignerInfo = getVerifiedSignerInfo(data, bytesResult, pke);
+		Assert.assertEquals(bytesSignerInfo.getDigestAlgOID(), streamSignerInfo.getDigestAlgOID());
+		Assert.assertTrue(Arrays.equals(
+			getSignedAttributesWithoutSigningTime(bytesSignerInfo),
+			getSignedAttributesWithoutSigningTime(streamSignerInfo)
+		));
+	}
+
+	/** Genera unos datos de prueba mayores que el bloque de copia de la firma de flujos. */
+	private static byte[] createStreamData() throws IOException {
+		final byte[] line = "Texto de prueba de la firma CAdES de flujos de datos\n".getBytes("UTF-8"); //$NON-NLS-1$ //$NON-NLS-2$
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		while (baos.size() < 200000) {
+			baos.write(line);
+		}
+		return baos.toByteArray();
+	}
+
+	/** Comprueba con BouncyCastle una firma de los datos indicados y devuelve su &uacute;nico firmante. */
+	private static SignerInformation getVerifiedSignerInfo(final byte[] data, final byte[] sign, final PrivateKeyEntry pke) throws Exception {
+		final CMSSignedData cmsSignedData = new CMSSignedData(new CMSProcessableByteArray(data), sign);
+		Assert.assertEquals(1, cmsSignedData.getSignerInfos().size());
+		final SignerInformation signerInfo = (SignerInformation) cmsSignedData.getSignerInfos().getSigners().iterator().next();
+		Assert.assertTrue(signerInfo.verify(
+			new JcaSimpleSignerInfoVerifierBuilder().build(pke.getCertificate().getPublicKey())
+		));
+		return signerInfo;
+	}
+
+	/** Obtiene la codificaci&oacute;n de los atributos firmados de un firmante sin el momento de la firma. */
+	private static byte[] getSignedAttributesWithoutSigningTime(final SignerInformation signerInfo) throws IOException {
+		final AttributeTable signedAttributes = signerInfo.getSignedAttributes();
+		Assert.assertNotNull(signedAttributes.get(CMSAttributes.signingTime));
+		return new DERSet(signedAttributes.remove(CMSAttributes.signingTime).toASN1EncodableVector()).getEncoded();
+	}
+
 	/**
 	 * Prueba de cofirma.
 	 * @throws Exception en cualquier error
@@ -1,5 +1,6 @@
 package es.gob.afirma.test.cades;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 
 import junit.framework.Assert;
@@ -36,4 +37,24 @@ public class TestCadesValidator {
 		is.close();
 
 	}
+
+	/**
+	 * Prueba la identificaci&oacute;n de firmas CAdES le&iacute;das de un flujo de datos.
+	 * @throws Exception Cuando se produce cualquier error.
+	 */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testIsCAdESSignedDataStream() throws Exception {
+
+		final InputStream is = ClassLoader.getSystemResourceAsStream(CADES_EXPLICIT_FILE);
+		final byte[] cades = AOUtil.getDataFromInputStream(is);
+		is.close();
+
+		Assert.assertTrue("No se ha reconocido la firma CAdES", //$NON-NLS-1$
+					CAdESValidator.isCAdESSignedData(new ByteArrayInputStream(cades)));
+		Assert.assertTrue(CAdESValidator.isCAdESSignedData(cades));
+
+		Assert.assertFalse("Se han reconocido como firma CAdES datos que no lo son", //$NON-NLS-1$
+					CAdESValidator.isCAdESSignedData(new ByteArrayInputStream("No es una firma".getBytes()))); //$NON-NLS-1$
+	}
 }
@@ -12,22 +12,37 @@ package es.gob.afirma.signers.cadestri.client;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
+import java.util.List;
 import java.util.Properties;
 import java.util.logging.Logger;
 
 import es.gob.afirma.core.AOException;
 import es.gob.afirma.core.AOInvalidFormatException;
+import es.gob.afirma.core.misc.AOUtil;
 import es.gob.afirma.core.misc.Base64;
+import es.gob.afirma.core.misc.BinaryFieldsReader;
+import es.gob.afirma.core.misc.BinaryFieldsWriter;
 import es.gob.afirma.core.misc.UrlHttpManagerImpl;
-import es.gob.afirma.core.signers.AOPkcs1Signer;
+import es.gob.afirma.core.signers.AOSignConstants;
 import es.gob.afirma.core.signers.AOSignInfo;
 import es.gob.afirma.core.signers.AOSigner;
+import es.gob.afirma.core.signers.BatchItemResult;
 import es.gob.afirma.core.signers.CounterSignTarget;
+import es.gob.afirma.core.signers.TriPhaseBatchSigner;
 import es.gob.afirma.core.util.tree.AOTreeModel;
 
 /** Firmador CAdES en tres fases.
@@ -76,18 +91,6 @@ public final class AOCAdESTriPhaseSigner implements AOSigner {
 
 	// Nombres de las propiedades intercambiadas con el servidor como Properties
 
-	/** Prefijo para las propiedades que almacenan prefirmas. */
-	private static final String PROPERTY_NAME_PRESIGN_PREFIX = "PRE."; //$NON-NLS-1$
-
-	/** Nombre de la propiedad que contiene el n&uacute;mero de firmas proporcionadas. */
-	private static final String PROPERTY_NAME_SIGN_COUNT = "SIGN_COUNT"; //$NON-NLS-1$
-
-	/** Firma PKCS#1. */
-	private static final String PROPERTY_NAME_PKCS1_SIGN_PREFIX = "PK1."; //$NON-NLS-1$
-	
-	/** Indica si la postfirma requiere la prefirma. */
-	private static final String PROPERTY_NAME_NEED_PRE = "NEED_PRE"; //$NON-NLS-1$
-
 	/** Indica si la postfirma requiere el identificador o contenido del documento. */
 	private static final String PROPERTY_NAME_NEED_DATA = "NEED_DATA"; //$NON-NLS-1$
 
@@ -97,6 +100,37 @@ public final class AOCAdESTriPhaseSigner implements AOSigner {
 	/** Indicador de finalizaci&oacute;n correcta de proceso. */
 	private static final String SUCCESS = "OK"; //$NON-NLS-1$
 
+	// Protocolo binario
+
+	/** Nombre de la propiedad que activa el protocolo binario de comunicaci&oacute;n con el servidor. */
+	private static final String PROPERTY_NAME_BINARY_PROTOCOL = "binaryProtocol"; //$NON-NLS-1$
+
+	/** Nombre del par&aacute;metro de la URL que indica el protocolo de comunicaci&oacute;n. */
+	private static final String PARAMETER_NAME_PROTOCOL = "proto"; //$NON-NLS-1$
+
+	/** Identificador del protocolo binario. */
+	private static final String PROTOCOL_BINARY = "bin"; //$NON-NLS-1$
+
+	/** Tipo de contenido de los mensajes del protocolo binario. */
+	private static final String BINARY_CONTENT_TYPE = "application/octet-stream"; //$NON-NLS-1$
+
+	/** Nombre del campo de la respuesta binaria con el resultado de la postfirma. */
+	private static final String FIELD_NAME_RESULT = "result"; //$NON-NLS-1$
+
+	/** Nombre del campo de la respuesta binaria con el mensaje de error del servidor. */
+	private static final String FIELD_NAME_ERROR = "error"; //$NON-NLS-1$
+
+	// Firma de huella digital
+
+	/** Nombre de la propiedad que activa el env&iacute;o al servidor &uacute;nicamente de la huella digital de los datos. */
+	private static final String PROPERTY_NAME_HASH_ONLY = "hashOnly"; //$NON-NLS-1$
+
+	/** Nombre de la propiedad con el algoritmo de la huella digital precalculada de los datos. */
+	private static final String PROPERTY_NAME_PRECALCULATED_HASH_ALGORITHM = "precalculatedHashAlgorithm"; //$NON-NLS-1$
+
+	/** Nombre de la propiedad con el modo de firma. */
+	private static final String PROPERTY_NAME_MODE = "mode"; //$NON-NLS-1$
+
 
 	@Override
 	public byte[] sign(final byte[] data,
@@ -104,9 +138,108 @@ public final class AOCAdESTriPhaseSigner implements AOSigner {
 			final PrivateKey key,
 			final Certificate[] certChain,
 			final Properties extraParams) throws AOException, IOException {
+		if (isHashOnly(extraParams)) {
+			return hashOnlySign(data != null ? new ByteArrayInputStream(data) : null, algorithm, key, certChain, extraParams, isBinaryProtocol(extraParams));
+		}
+		if (isBinaryProtocol(extraParams)) {
+			return binaryTriPhaseOperation(CRYPTO_OPERATION_SIGN, data != null ? new ByteArrayInputStream(data) : null, algorithm, key, certChain, extraParams);
+		}
 		return triPhaseOperation(CRYPTO_OPERATION_SIGN, data, algorithm, key, certChain, extraParams);
 	}
 
+	/** Firma en tres fases unos datos le&iacute;dos de un flujo, que se env&iacute;an al servidor
+	 * sin cargarlos en memoria usando el protocolo binario.
+	 * <p>El servidor indica en la respuesta de la prefirma si necesita de nuevo los datos en la
+	 * postfirma, por lo que, hasta recibirla, el cliente debe poder volver a leerlos. Los flujos
+	 * <code>ByteArrayInputStream</code> y <code>FileInputStream</code> se vuelven a leer desde la
+	 * posici&oacute;n inicial. Con cualquier otro flujo, los datos se copian mientras se env&iacute;an
+	 * en un fichero temporal legible solo por el usuario, que se borra en cuanto el servidor indica
+	 * que no los necesita o, si los necesita, al terminar la postfirma. Para no escribir los datos
+	 * en disco, proporcione un <code>FileInputStream</code> o use la firma de huella digital
+	 * (<code>hashOnly</code>).</p>
+	 * @param data Flujo con los datos o el identificador del documento a firmar. No se cierra.
+	 * @param algorithm Algoritmo de firma.
+	 * @param key Clave privada del certificado de firma.
+	 * @param certChain Cadena de certificaci&oacute;n.
+	 * @param extraParams Par&aacute;metros para la configuraci&oacute;n de la operaci&oacute;n.
+	 * @return Resultado de la operaci&oacute;n de firma.
+	 * @throws AOException Cuando se produce un error durante la operaci&oacute;n. */
+	public byte[] sign(final InputStream data,
+			final String algorithm,
+			final PrivateKey key,
+			final Certificate[] certChain,
+			final Properties extraParams) throws AOException {
+		if (isHashOnly(extraParams)) {
+			return hashOnlySign(data, algorithm, key, certChain, extraParams, true);
+		}
+		return binaryTriPhaseOperation(CRYPTO_OPERATION_SIGN, data, algorithm, key, certChain, extraParams);
+	}
+
+	/** Firma en tres fases unos datos enviando al servidor &uacute;nicamente su huella digital, que se
+	 * calcula localmente leyendo los datos por bloques. El servidor genera una firma expl&iacute;cita
+	 * con la misma sem&aacute;ntica que el par&aacute;metro <code>precalculatedHashAlgorithm</code>
+	 * de la firma CAdES monof&aacute;sica, usando el algoritmo de huella digital del algoritmo de firma.
+	 * @param data Flujo con los datos a firmar. No se cierra.
+	 * @param algorithm Algoritmo de firma.
+	 * @param key Clave privada del certificado de firma.
+	 * @param certChain Cadena de certificaci&oacute;n.
+	 * @param extraParams Par&aacute;metros para la configuraci&oacute;n de la operaci&oacute;n.
+	 * @param binary <code>true</code> para comunicarse con el servidor usando el protocolo binario.
+	 * @return Resultado de la operaci&oacute;n de firma.
+	 * @throws AOException Cuando se produce un error durante la operaci&oacute;n. */
+	private static byte[] hashOnlySign(final InputStream data,
+			final String algorithm,
+			final PrivateKey key,
+			final Certificate[] certChain,
+			final Properties extraParams,
+			final boolean binary) throws AOException {
+
+		if (data == null) {
+			throw new IllegalArgumentException("No se han proporcionado los datos a firmar"); //$NON-NLS-1$
+		}
+
+		final String digestAlgorithmName = AOSignConstants.getDigestAlgorithmName(algorithm);
+		final byte[] digest;
+		try {
+			digest = AOUtil.digestInputStream(MessageDigest.getInstance(digestAlgorithmName), data);
+		}
+		catch (final NoSuchAlgorithmException e) {
+			throw new AOException("Algoritmo de huella digital no soportado: " + e, e); //$NON-NLS-1$
+		}
+		catch (final IOException e) {
+			throw new AOException("Error leyendo los datos a firmar: " + e, e); //$NON-NLS-1$
+		}
+
+		// Indicamos al servidor que los datos son la huella digital, sin alterar los parametros de entrada
+		final Properties hashParams = new Properties();
+		hashParams.putAll(extraParams);
+		hashParams.remove(PROPERTY_NAME_HASH_ONLY);
+		hashParams.setProperty(PROPERTY_NAME_PRECALCULATED_HASH_ALGORITHM, digestAlgorithmName);
+		hashParams.setProperty(PROPERTY_NAME_MODE, AOSignConstants.SIGN_MODE_EXPLICIT);
+
+		if (binary) {
+			return binaryTriPhaseOperation(CRYPTO_OPERATION_SIGN, new ByteArrayInputStream(digest), algorithm, key, certChain, hashParams);
+		}
+		return triPhaseOperation(CRYPTO_OPERATION_SIGN, digest, algorithm, key, certChain, hashParams);
+	}
+
+	/** Firma en tres fases un lote de documentos en formato CAdES con el protocolo por lotes de
+	 * {@link TriPhaseBatchSigner}.
+	 * @param data Datos o identificadores de los documentos a firmar.
+	 * @param algorithm Algoritmo de firma.
+	 * @param key Clave privada del certificado de firma.
+	 * @param certChain Cadena de certificaci&oacute;n.
+	 * @param extraParams Par&aacute;metros de la firma, comunes a todo el lote.
+	 * @return Resultado de la firma de cada documento, en el mismo orden.
+	 * @throws AOException Cuando falla la comunicaci&oacute;n con el servidor. */
+	public List<BatchItemResult<byte[]>> signBatch(final List<byte[]> data,
+			final String algorithm,
+			final PrivateKey key,
+			final Certificate[] certChain,
+			final Properties extraParams) throws AOException {
+		return TriPhaseBatchSigner.sign(CADES_FORMAT, CRYPTO_OPERATION_SIGN, data, algorithm, key, certChain, extraParams);
+	}
+
 	@Override
 	public byte[] cosign(final byte[] data,
 			final byte[] sign,
@@ -124,6 +257,9 @@ public final class AOCAdESTriPhaseSigner implements AOSigner {
 			final Certificate[] certChain,
 			final Properties extraParams)
 					throws AOException, IOException {
+		if (isBinaryProtocol(extraParams)) {
+			return binaryTriPhaseOperation(CRYPTO_OPERATION_COSIGN, sign != null ? new ByteArrayInputStream(sign) : null, algorithm, key, certChain, extraParams);
+		}
 		return triPhaseOperation(CRYPTO_OPERATION_COSIGN, sign, algorithm, key, certChain, extraParams);
 	}
 
@@ -148,6 +284,9 @@ public final class AOCAdESTriPhaseSigner implements AOSigner {
 		
 		extraParams.setProperty(PROPERTY_NAME_CS_TARGET, targetType.toString());
 		
+		if (isBinaryProtocol(extraParams)) {
+			return binaryTriPhaseOperation(CRYPTO_OPERATION_COUNTERSIGN, sign != null ? new ByteArrayInputStream(sign) : null, algorithm, key, certChain, extraParams);
+		}
 		return triPhaseOperation(CRYPTO_OPERATION_COUNTERSIGN, sign, algorithm, key, certChain, extraParams);
 	}
 
@@ -209,27 +348,10 @@ public final class AOCAdESTriPhaseSigner implements AOSigner {
 			final Certificate[] certChain,
 			final Properties extraParams) throws AOException {
 
-		if (extraParams == null) {
-			throw new IllegalArgumentException("Se necesitan parametros adicionales"); //$NON-NLS-1$
-		}
-		if (key == null) {
-			throw new IllegalArgumentException("Es necesario proporcionar la clave privada de firma"); //$NON-NLS-1$
-		}
-		if (certChain == null || certChain.length == 0) {
-			throw new IllegalArgumentException("Es necesario proporcionar el certificado de firma"); //$NON-NLS-1$
-		}
-		if (data == null) {
-			throw new IllegalArgumentException("No se ha proporcionado el identificador de documento a firmar"); //$NON-NLS-1$
-		}
+		checkParams(data, key, certChain, extraParams);
 
 		// Comprobamos la direccion del servidor
-		final URL signServerUrl;
-		try {
-			signServerUrl = new URL(extraParams.getProperty(PROPERTY_NAME_SIGN_SERVER_URL));
-		}
-		catch (final Exception e) {
-			throw new IllegalArgumentException("No se ha proporcionado una URL valida para el servidor de firma: " + extraParams.getProperty(PROPERTY_NAME_SIGN_SERVER_URL), e); //$NON-NLS-1$
-		}
+		final URL signServerUrl = getSignServerUrl(extraParams);
 
 		//TODO: Retirar del extraParams la URL del servidor de firma sin mutar el parametros de entrada
 
@@ -294,51 +416,12 @@ public final class AOCAdESTriPhaseSigner implements AOSigner {
 		final String needDataProperty = preSignProperties.getProperty(PROPERTY_NAME_NEED_DATA);
 		final boolean needData = needDataProperty != null && "true".equalsIgnoreCase(needDataProperty); //$NON-NLS-1$
 
-		final String needPreProperty = preSignProperties.getProperty(PROPERTY_NAME_NEED_PRE);
-		final boolean needPre = needPreProperty != null && "true".equalsIgnoreCase(needPreProperty); //$NON-NLS-1$
-
 
 		// ----------
 		// FIRMA
 		// ----------
 
-		// Es posible que se ejecute mas de una firma como resultado de haber proporcionado varios
-		// identificadores de datos o en una operacion de contrafirma.
-		int signCount = 1;
-		if (preSignProperties.containsKey(PROPERTY_NAME_SIGN_COUNT)) {
-			signCount = Integer.parseInt(preSignProperties.getProperty(PROPERTY_NAME_SIGN_COUNT));
-		}
-
-		for (int i = 0; i < signCount; i++) {
-			final String base64PreSign = preSignProperties.getProperty(PROPERTY_NAME_PRESIGN_PREFIX + i);
-			if (base64PreSign == null) {
-				throw new AOException("El servidor no ha devuelto la prefirma numero " + i + ": " + new String(preSignResult)); //$NON-NLS-1$ //$NON-NLS-2$
-			}
-
-			final byte[] preSign;
-			try {
-				preSign = Base64.decode(base64PreSign);
-			}
-			catch (final IOException e) {
-				throw new AOException("Error decodificando la prefirma: " + e, e); //$NON-NLS-1$
-			}
-
-			final byte[] pkcs1sign = new AOPkcs1Signer().sign(
-					preSign,
-					algorithm,
-					key,
-					certChain,
-					null // No hay parametros en PKCS#1
-					);
-
-			// Configuramos la peticion de postfirma indicando las firmas PKCS#1 generadas
-			preSignProperties.setProperty(PROPERTY_NAME_PKCS1_SIGN_PREFIX + i, Base64.encode(pkcs1sign));
-			
-			// Si no es necesaria la prefirma para completar la postfirma, la eliminamos
-			if (!needPre) {
-				preSignProperties.remove(PROPERTY_NAME_PRESIGN_PREFIX + i);
-			}
-		}
+		TriPhaseBatchSigner.signPreSigns(preSignProperties, algorithm, key, certChain);
 
 
 		// ---------
@@ -395,10 +478,338 @@ public final class AOCAdESTriPhaseSigner implements AOSigner {
 		}
 	}
 
-	private static String properties2Base64(final Properties p) throws IOException {
+	/**
+	 * Ejecuta una operaci&oacute;n de firma/multifirma en 3 fases usando el protocolo binario, en
+	 * el que los datos se env&iacute;an al servidor como un flujo de campos binarios en lugar de
+	 * codificados en Base64 dentro de la URL.
+	 * @param cryptoOperation Tipo de operaci&oacute.
+	 * @param data Flujo con los datos o firma sobre la que operar. No se cierra.
+	 * @param algorithm Algoritmo de firma
+	 * @param key Clave privada del certificado de firma.
+	 * @param certChain Cadena de certificaci&oacute;n.
+	 * @param extraParams Par&aacute;metros para la configuraci&oacute;n de la operaci&oacute;n.
+	 * @return Resultado de la operaci&oacute;n de firma.
+	 * @throws AOException Cuando se produce un error durante la operaci&oacute;n.
+	 */
+	private static byte[] binaryTriPhaseOperation(final String cryptoOperation,
+			final InputStream data,
+			final String algorithm,
+			final PrivateKey key,
+			final Certificate[] certChain,
+			final Properties extraParams) throws AOException {
+
+		checkParams(data, key, certChain, extraParams);
+
+		// Comprobamos la direccion del servidor
+		final URL signServerUrl = getSignServerUrl(extraParams);
+
+		// Si los datos no se pueden volver a leer, guardamos una copia en un fichero temporal
+		// al enviarlos, por si el servidor los necesita de nuevo en la postfirma
+		final boolean rereadable = data instanceof ByteArrayInputStream || data instanceof FileInputStream;
+		File spoolFile = null;
+		long dataPosition = -1;
+		try {
+			final byte[] encodedCert;
+			try {
+				encodedCert = certChain[0].getEncoded();
+			}
+			catch (final CertificateEncodingException e) {
+				throw new AOException("Error decodificando el certificado del firmante: " + e, e); //$NON-NLS-1$
+			}
+
+			// ---------
+			// PREFIRMA
+			// ---------
+
+			final Properties preSignProperties;
+			try {
+				final HttpURLConnection conn = UrlHttpManagerImpl.openPostConnection(
+					getBinaryUrl(signServerUrl, OPERATION_PRESIGN, cryptoOperation, algorithm),
+					BINARY_CONTENT_TYPE
+				);
+				try {
+					final OutputStream os = conn.getOutputStream();
+					final BinaryFieldsWriter writer = new BinaryFieldsWriter(os);
+					writer.writeField(PARAMETER_NAME_CERT, encodedCert);
+					if (extraParams.size() > 0) {
+						writer.writeField(PARAMETER_NAME_EXTRA_PARAM, properties2Bytes(extraParams));
+					}
+					if (rereadable) {
+						dataPosition = markData(data);
+						writer.writeField(PARAMETER_NAME_DOCID, data);
+					}
+					else {
+						spoolFile = createSpoolFile();
+						final OutputStream spool = new FileOutputStream(spoolFile);
+						try {
+							writer.writeField(PARAMETER_NAME_DOCID, new SpoolInputStream(data, spool));
+						}
+						finally {
+							spool.close();
+						}
+					}
+					writer.finish();
+					os.close();
+
+					preSignProperties = new Properties();
+					preSignProperties.load(new ByteArrayInputStream(readBinaryResponse(conn, PARAMETER_NAME_SESSION_DATA)));
+				}
+				finally {
+					UrlHttpManagerImpl.releaseConnection(conn);
+				}
+			}
+			catch (final IOException e) {
+				throw new AOException("Error en la llamada de prefirma al servidor: " + e, e); //$NON-NLS-1$
+			}
+
+			final String needDataProperty = preSignProperties.getProperty(PROPERTY_NAME_NEED_DATA);
+			final boolean needData = needDataProperty != null && "true".equalsIgnoreCase(needDataProperty); //$NON-NLS-1$
+
+			// Si el servidor no necesita de nuevo los datos, borramos ya la copia temporal
+			if (!needData && spoolFile != null) {
+				deleteSpoolFile(spoolFile);
+				spoolFile = null;
+			}
+
+
+			// ----------
+			// FIRMA
+			// ----------
+
+			TriPhaseBatchSigner.signPreSigns(preSignProperties, algorithm, key, certChain);
+
+
+			// ---------
+			// POSTFIRMA
+			// ---------
+
+			try {
+				final HttpURLConnection conn = UrlHttpManagerImpl.openPostConnection(
+					getBinaryUrl(signServerUrl, OPERATION_POSTSIGN, cryptoOperation, algorithm),
+					BINARY_CONTENT_TYPE
+				);
+				try {
+					final OutputStream os = conn.getOutputStream();
+					final BinaryFieldsWriter writer = new BinaryFieldsWriter(os);
+					writer.writeField(PARAMETER_NAME_CERT, encodedCert);
+					if (extraParams.size() > 0) {
+						writer.writeField(PARAMETER_NAME_EXTRA_PARAM, properties2Bytes(extraParams));
+					}
+					if (preSignProperties.size() > 0) {
+						writer.writeField(PARAMETER_NAME_SESSION_DATA, properties2Bytes(preSignProperties));
+					}
+					if (needData) {
+						if (rereadable) {
+							resetData(data, dataPosition);
+							writer.writeField(PARAMETER_NAME_DOCID, data);
+						}
+						else {
+							final InputStream spooled = new FileInputStream(spoolFile);
+							try {
+								writer.writeField(PARAMETER_NAME_DOCID, spooled);
+							}
+							finally {
+								spooled.close();
+							}
+						}
+					}
+					writer.finish();
+					os.close();
+
+					// Los datos no se devuelven, se quedan en el servidor
+					return readBinaryResponse(conn, FIELD_NAME_RESULT);
+				}
+				finally {
+					UrlHttpManagerImpl.releaseConnection(conn);
+				}
+			}
+			catch (final IOException e) {
+				throw new AOException("Error en la llamada de postfirma al servidor: " + e, e); //$NON-NLS-1$
+			}
+		}
+		finally {
+			if (spoolFile != null) {
+				deleteSpoolFile(spoolFile);
+			}
+		}
+	}
+
+	/** Marca la posici&oacute;n actual de un flujo de datos que se puede volver a leer.
+	 * @param data Flujo <code>ByteArrayInputStream</code> o <code>FileInputStream</code>.
+	 * @return Posici&oacute;n actual del fichero o -1 si el flujo no es un fichero.
+	 * @throws IOException Si no se puede obtener la posici&oacute;n del fichero. */
+	private static long markData(final InputStream data) throws IOException {
+		if (data instanceof FileInputStream) {
+			return ((FileInputStream) data).getChannel().position();
+		}
+		data.mark(Integer.MAX_VALUE);
+		return -1;
+	}
+
+	/** Vuelve a la posici&oacute;n marcada con {@link #markData(InputStream)}.
+	 * @param data Flujo <code>ByteArrayInputStream</code> o <code>FileInputStream</code>.
+	 * @param position Posici&oacute;n marcada en el fichero.
+	 * @throws IOException Si no se puede volver a la posici&oacute;n marcada. */
+	private static void resetData(final InputStream data, final long position) throws IOException {
+		if (data instanceof FileInputStream) {
+			((FileInputStream) data).getChannel().position(position);
+		}
+		else {
+			data.reset();
+		}
+	}
+
+	/** Crea el fichero temporal para la copia de los datos, legible y modificable solo por el usuario.
+	 * @return Fichero temporal.
+	 * @throws IOException Si no se puede crear el fichero. */
+	private static File createSpoolFile() throws IOException {
+		final File spoolFile = File.createTempFile("afirma", ".tri"); //$NON-NLS-1$ //$NON-NLS-2$
+		if (!(spoolFile.setReadable(false, false) && spoolFile.setReadable(true, true) &&
+				spoolFile.setWritable(false, false) && spoolFile.setWritable(true, true))) {
+			LOGGER.warning("No se han podido restringir los permisos del fichero temporal de la firma trifasica"); //$NON-NLS-1$
+		}
+		return spoolFile;
+	}
+
+	private static void deleteSpoolFile(final File spoolFile) {
+		if (!spoolFile.delete()) {
+			spoolFile.deleteOnExit();
+		}
+	}
+
+	/** Lee la respuesta binaria del servidor de firma y obtiene el contenido de uno de sus campos.
+	 * @param conn Conexi&oacute;n con el servidor.
+	 * @param fieldName Nombre del campo que se desea obtener.
+	 * @return Contenido del campo.
+	 * @throws IOException Si hay errores en la lectura de la respuesta.
+	 * @throws AOException Si el servidor devuelve un error o la respuesta no contiene el campo. */
+	private static byte[] readBinaryResponse(final HttpURLConnection conn, final String fieldName) throws IOException, AOException {
+		final InputStream is = conn.getInputStream();
+		try {
+			final BinaryFieldsReader reader = new BinaryFieldsReader(is);
+			byte[] content = null;
+			String name;
+			while ((name = reader.nextField()) != null) {
+				if (FIELD_NAME_ERROR.equals(name)) {
+					throw new AOException("El servidor de firma devolvio un error: " + new String(reader.readFieldContent(), "UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+				if (fieldName.equals(name)) {
+					// Una firma implicita puede ser tan grande como los datos firmados
+					content = reader.readFieldContent(Integer.MAX_VALUE);
+				}
+			}
+			if (content == null) {
+				throw new AOException("La respuesta del servidor no contiene el campo " + fieldName); //$NON-NLS-1$
+			}
+			return content;
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	private static String getBinaryUrl(final URL signServerUrl,
+			final String operation,
+			final String cryptoOperation,
+			final String algorithm) {
+		final StringBuffer urlBuffer = new StringBuffer();
+		urlBuffer.append(signServerUrl).append(HTTP_CGI).
+		append(PARAMETER_NAME_PROTOCOL).append(HTTP_EQUALS).append(PROTOCOL_BINARY).append(HTTP_AND).
+		append(PARAMETER_NAME_OPERATION).append(HTTP_EQUALS).append(operation).append(HTTP_AND).
+		append(PARAMETER_NAME_CRYPTO_OPERATION).append(HTTP_EQUALS).append(cryptoOperation).append(HTTP_AND).
+		append(PARAMETER_NAME_FORMAT).append(HTTP_EQUALS).append(CADES_FORMAT).append(HTTP_AND).
+		append(PARAMETER_NAME_ALGORITHM).append(HTTP_EQUALS).append(algorithm);
+		return urlBuffer.toString();
+	}
+
+	private static boolean isBinaryProtocol(final Properties extraParams) {
+		return extraParams != null && Boolean.parseBoolean(extraParams.getProperty(PROPERTY_NAME_BINARY_PROTOCOL));
+	}
+
+	/** Indica si se ha pedido enviar al servidor solo la huella digital de los datos. Si ya se
+	 * indica un algoritmo de huella precalculada, los datos proporcionados son ya la huella.
+	 * @param extraParams Par&aacute;metros para la configuraci&oacute;n de la operaci&oacute;n.
+	 * @return <code>true</code> si hay que calcular localmente la huella de los datos. */
+	private static boolean isHashOnly(final Properties extraParams) {
+		return extraParams != null &&
+				Boolean.parseBoolean(extraParams.getProperty(PROPERTY_NAME_HASH_ONLY)) &&
+				extraParams.getProperty(PROPERTY_NAME_PRECALCULATED_HASH_ALGORITHM) == null;
+	}
+
+	private static void checkParams(final Object data,
+			final PrivateKey key,
+			final Certificate[] certChain,
+			final Properties extraParams) {
+		if (extraParams == null) {
+			throw new IllegalArgumentException("Se necesitan parametros adicionales"); //$NON-NLS-1$
+		}
+		if (key == null) {
+			throw new IllegalArgumentException("Es necesario proporcionar la clave privada de firma"); //$NON-NLS-1$
+		}
+		if (certChain == null || certChain.length == 0) {
+			throw new IllegalArgumentException("Es necesario proporcionar el certificado de firma"); //$NON-NLS-1$
+		}
+		if (data == null) {
+			throw new IllegalArgumentException("No se ha proporcionado el identificador de documento a firmar"); //$NON-NLS-1$
+		}
+	}
+
+	private static URL getSignServerUrl(final Properties extraParams) {
+		try {
+			return new URL(extraParams.getProperty(PROPERTY_NAME_SIGN_SERVER_URL));
+		}
+		catch (final Exception e) {
+			throw new IllegalArgumentException("No se ha proporcionado una URL valida para el servidor de firma: " + extraParams.getProperty(PROPERTY_NAME_SIGN_SERVER_URL), e); //$NON-NLS-1$
+		}
+	}
+
+	private static byte[] properties2Bytes(final Properties p) throws IOException {
 		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		p.store(baos, ""); //$NON-NLS-1$
-		return Base64.encodeBytes(baos.toByteArray(), Base64.URL_SAFE);
+		return baos.toByteArray();
+	}
+
+	private static String properties2Base64(final Properties p) throws IOException {
+		return Base64.encodeBytes(properties2Bytes(p), Base64.URL_SAFE);
+	}
+
+	/** Flujo de lectura que guarda una copia de todo lo le&iacute;do en otro flujo. */
+	private static final class SpoolInputStream extends FilterInputStream {
+
+		private final OutputStream spool;
+
+		SpoolInputStream(final InputStream in, final OutputStream copy) {
+			super(in);
+			this.spool = copy;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b != -1) {
+				this.spool.write(b);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			final int n = super.read(b, off, len);
+			if (n > 0) {
+				this.spool.write(b, off, n);
+			}
+			return n;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+			// No cerramos el flujo de origen
+		}
 	}
 
 	private static Properties base642Properties(final String base64) throws IOException {
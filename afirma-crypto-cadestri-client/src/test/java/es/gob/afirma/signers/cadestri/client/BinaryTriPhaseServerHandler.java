@@ -0,0 +1,236 @@
+package es.gob.afirma.signers.cadestri.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import es.gob.afirma.core.misc.AOUtil;
+import es.gob.afirma.core.misc.Base64;
+import es.gob.afirma.core.misc.BinaryFieldsReader;
+import es.gob.afirma.core.misc.BinaryFieldsWriter;
+import es.gob.afirma.core.misc.MimeHelper;
+import es.gob.afirma.core.signers.AOSignConstants;
+import es.gob.afirma.core.signers.AdESPolicy;
+import es.gob.afirma.core.signers.TriPhaseBatchProcessor;
+import es.gob.afirma.core.signers.TriPhaseBatchSigner;
+import es.gob.afirma.signers.cades.CAdESTriPhaseBatchServerSide;
+import es.gob.afirma.signers.cades.CAdESTriPhaseSigner;
+
+/** Manejador de referencia del protocolo binario de firma trif&aacute;sica CAdES, para pruebas locales
+ * con {@link com.sun.net.httpserver.HttpServer}.
+ * <p>Genera firmas CAdES con {@link CAdESTriPhaseSigner}: la prefirma son los atributos firmados
+ * calculados a partir de la huella digital de los datos, que se calcula seg&uacute;n se reciben sin
+ * cargarlos en memoria, y la postfirma compone la firma CAdES con el PKCS#1 del cliente. Los datos
+ * solo se solicitan de nuevo en la postfirma de las firmas impl&iacute;citas, en las que se comprueba
+ * que no han cambiado.</p>
+ * <p>Si los par&aacute;metros de la operaci&oacute;n indican <code>precalculatedHashAlgorithm</code>,
+ * los datos recibidos son ya la huella digital de los datos y se genera una firma expl&iacute;cita con
+ * {@link CAdESTriPhaseSigner#preSign(String, byte[], X509Certificate[], AdESPolicy, boolean, Date)}.</p>
+ * <p>Las peticiones de lote se atienden con {@link TriPhaseBatchProcessor} y las operaciones de
+ * {@link CAdESTriPhaseBatchServerSide}.</p> */
+final class BinaryTriPhaseServerHandler implements HttpHandler {
+
+	private static final String PROPERTY_NAME_DIGEST = "DIGEST"; //$NON-NLS-1$
+
+	@Override
+	public void handle(final HttpExchange exchange) throws IOException {
+		final Map<String, String> params = getQueryParams(exchange.getRequestURI().getRawQuery());
+
+		if (Boolean.parseBoolean(params.get(TriPhaseBatchSigner.PARAMETER_NAME_BATCH))) {
+			handleBatch(exchange, params);
+			return;
+		}
+
+		String fieldName;
+		byte[] fieldContent;
+		try {
+			if (!"bin".equals(params.get("proto"))) { //$NON-NLS-1$ //$NON-NLS-2$
+				throw new IllegalArgumentException("Solo se soporta el protocolo binario"); //$NON-NLS-1$
+			}
+			final boolean pre = "pre".equals(params.get("op")); //$NON-NLS-1$ //$NON-NLS-2$
+			if (!pre && !"post".equals(params.get("op"))) { //$NON-NLS-1$ //$NON-NLS-2$
+				throw new IllegalArgumentException("Operacion no soportada: " + params.get("op")); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+
+			// Leemos la peticion, calculando la huella de los datos segun se reciben
+			X509Certificate cert = null;
+			byte[] content = null;
+			byte[] digest = null;
+			final Properties session = new Properties();
+			final Properties extraParams = new Properties();
+			final BinaryFieldsReader reader = new BinaryFieldsReader(exchange.getRequestBody());
+			String name;
+			while ((name = reader.nextField()) != null) {
+				if ("cert".equals(name)) { //$NON-NLS-1$
+					cert = toCertificate(reader.readFieldContent());
+				}
+				else if ("params".equals(name)) { //$NON-NLS-1$
+					extraParams.load(reader.getFieldContent());
+				}
+				else if ("session".equals(name)) { //$NON-NLS-1$
+					session.load(reader.getFieldContent());
+				}
+				else if ("doc".equals(name)) { //$NON-NLS-1$
+					if (extraParams.getProperty("precalculatedHashAlgorithm") != null) { //$NON-NLS-1$
+						digest = reader.readFieldContent();
+					}
+					else if (pre) {
+						digest = AOUtil.digestInputStream(
+							MessageDigest.getInstance(getDigestAlgorithm(params, extraParams)),
+							reader.getFieldContent()
+						);
+					}
+					else {
+						content = reader.readFieldContent();
+						digest = MessageDigest.getInstance(getDigestAlgorithm(params, extraParams)).digest(content);
+					}
+				}
+			}
+			if (cert == null) {
+				throw new IllegalArgumentException("Falta el certificado del firmante"); //$NON-NLS-1$
+			}
+
+			final boolean implicit = isImplicit(extraParams);
+			final String digestAlgorithm = getDigestAlgorithm(params, extraParams);
+			final X509Certificate[] chain = new X509Certificate[] { cert };
+
+			if (pre) {
+				if (digest == null) {
+					throw new IllegalArgumentException("Faltan los datos a firmar"); //$NON-NLS-1$
+				}
+				final String precalculatedHashAlgorithm = extraParams.getProperty("precalculatedHashAlgorithm"); //$NON-NLS-1$
+				final byte[] signedAttributes;
+				if (precalculatedHashAlgorithm != null) {
+					if (implicit) {
+						throw new IllegalArgumentException("No se pueden generar firmas implicitas a partir de la huella de los datos"); //$NON-NLS-1$
+					}
+					// Firma explicita de la huella calculada por el cliente, que comprueba su longitud
+					signedAttributes = CAdESTriPhaseSigner.preSign(
+						precalculatedHashAlgorithm, digest, chain, new AdESPolicy(extraParams), true, new Date()
+					);
+				}
+				else {
+					signedAttributes = preSign(digestAlgorithm, null, digest, chain, extraParams);
+				}
+				final Properties preSign = new Properties();
+				preSign.setProperty("SIGN_COUNT", "1"); //$NON-NLS-1$ //$NON-NLS-2$
+				preSign.setProperty("PRE.0", Base64.encode(signedAttributes)); //$NON-NLS-1$
+				preSign.setProperty("NEED_PRE", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+				preSign.setProperty("NEED_DATA", Boolean.toString(implicit)); //$NON-NLS-1$
+				preSign.setProperty(PROPERTY_NAME_DIGEST, Base64.encode(digest));
+				final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				preSign.store(baos, ""); //$NON-NLS-1$
+				fieldName = "session"; //$NON-NLS-1$
+				fieldContent = baos.toByteArray();
+			}
+			else {
+				if (implicit) {
+					if (content == null) {
+						throw new IllegalArgumentException("Faltan los datos de la firma implicita"); //$NON-NLS-1$
+					}
+					if (!Arrays.equals(Base64.decode(session.getProperty(PROPERTY_NAME_DIGEST)), digest)) {
+						throw new IllegalArgumentException("Los datos han cambiado entre la prefirma y la postfirma"); //$NON-NLS-1$
+					}
+				}
+				fieldName = "result"; //$NON-NLS-1$
+				fieldContent = CAdESTriPhaseSigner.postSign(
+					digestAlgorithm,
+					implicit ? content : null,
+					chain,
+					Base64.decode(session.getProperty("PK1.0")), //$NON-NLS-1$
+					Base64.decode(session.getProperty("PRE.0")) //$NON-NLS-1$
+				);
+			}
+		}
+		catch (final Exception e) {
+			fieldName = "error"; //$NON-NLS-1$
+			fieldContent = e.toString().getBytes("UTF-8"); //$NON-NLS-1$
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", "application/octet-stream"); //$NON-NLS-1$ //$NON-NLS-2$
+		exchange.sendResponseHeaders(200, 0);
+		final OutputStream os = exchange.getResponseBody();
+		final BinaryFieldsWriter writer = new BinaryFieldsWriter(os);
+		writer.writeField(fieldName, fieldContent);
+		writer.finish();
+		os.close();
+		exchange.close();
+	}
+
+	private static void handleBatch(final HttpExchange exchange, final Map<String, String> params) throws IOException {
+		final CAdESTriPhaseBatchServerSide batchSigner = new CAdESTriPhaseBatchServerSide(params.get("algo")); //$NON-NLS-1$
+		exchange.getResponseHeaders().set("Content-Type", "application/octet-stream"); //$NON-NLS-1$ //$NON-NLS-2$
+		exchange.sendResponseHeaders(200, 0);
+		final OutputStream os = exchange.getResponseBody();
+		if ("pre".equals(params.get("op"))) { //$NON-NLS-1$ //$NON-NLS-2$
+			TriPhaseBatchProcessor.preSign(exchange.getRequestBody(), os, batchSigner);
+		}
+		else {
+			TriPhaseBatchProcessor.postSign(exchange.getRequestBody(), os, batchSigner);
+		}
+		os.close();
+		exchange.close();
+	}
+
+	private static byte[] preSign(final String digestAlgorithm,
+			                      final byte[] content,
+			                      final byte[] digest,
+			                      final X509Certificate[] chain,
+			                      final Properties extraParams) throws Exception {
+		return CAdESTriPhaseSigner.preSign(
+			digestAlgorithm,
+			content,
+			chain,
+			new AdESPolicy(extraParams),
+			true,
+			digest,
+			new Date(),
+			false,
+			MimeHelper.DEFAULT_CONTENT_OID_DATA,
+			MimeHelper.DEFAULT_CONTENT_DESCRIPTION
+		);
+	}
+
+	/** Obtiene el algoritmo de huella de la firma: el de la huella precalculada si se indica o, si no,
+	 * el del algoritmo de firma de la operaci&oacute;n. */
+	private static String getDigestAlgorithm(final Map<String, String> params, final Properties extraParams) {
+		return AOSignConstants.getDigestAlgorithmName(
+			extraParams.getProperty("precalculatedHashAlgorithm", params.get("algo")) //$NON-NLS-1$ //$NON-NLS-2$
+		);
+	}
+
+	private static boolean isImplicit(final Properties extraParams) {
+		return AOSignConstants.SIGN_MODE_IMPLICIT.equals(
+			extraParams.getProperty("mode", AOSignConstants.DEFAULT_SIGN_MODE) //$NON-NLS-1$
+		);
+	}
+
+	private static X509Certificate toCertificate(final byte[] cert) throws Exception {
+		return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(cert)); //$NON-NLS-1$
+	}
+
+	private static Map<String, String> getQueryParams(final String query) {
+		final Map<String, String> params = new HashMap<String, String>();
+		if (query != null) {
+			for (final String param : query.split("&")) { //$NON-NLS-1$
+				final int pos = param.indexOf('=');
+				if (pos > 0) {
+					params.put(param.substring(0, pos), param.substring(pos + 1));
+				}
+			}
+		}
+		return params;
+	}
+}
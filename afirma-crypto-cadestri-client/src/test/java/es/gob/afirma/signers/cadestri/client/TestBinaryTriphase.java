@@ -0,0 +1,356 @@
+package es.gob.afirma.signers.cadestri.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.security.KeyStore.PrivateKeyEntry;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import es.gob.afirma.core.AOException;
+import es.gob.afirma.core.misc.AOUtil;
+import es.gob.afirma.core.signers.BatchItemResult;
+import es.gob.afirma.core.util.tree.AOTreeNode;
+import es.gob.afirma.signers.cades.AOCAdESSigner;
+
+/** Pruebas del protocolo binario de firma trif&aacute;sica contra un servidor CAdES local de referencia. */
+public final class TestBinaryTriphase {
+
+	private static final String PKCS12_KEYSTORE = "ANF_PF_Activo.pfx"; //$NON-NLS-1$
+
+	private static final String PASSWORD = "12341234"; //$NON-NLS-1$
+
+	private static final String ALGORITHM = "SHA512withRSA"; //$NON-NLS-1$
+
+	private static final String SERVICE_PATH = "/SignatureService"; //$NON-NLS-1$
+
+	/** Tama&ntilde;o de los datos de la prueba de firma de un flujo, mayor que un bloque del protocolo. */
+	private static final int LARGE_DATA_SIZE = 5 * 1024 * 1024 + 123;
+
+	private HttpServer server;
+	private PrivateKeyEntry pke;
+
+	/** Arranca el servidor de referencia y carga el almac&eacute;n de certificados.
+	 * @throws Exception Cuando ocurre alg&uacute;n problema al arrancar el servidor o al cargar el almac&eacute;n. */
+	@Before
+	public void arrancaServidor() throws Exception {
+		this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0); //$NON-NLS-1$
+		this.server.createContext(SERVICE_PATH, new BinaryTriPhaseServerHandler());
+		this.server.start();
+
+		final KeyStore ks = KeyStore.getInstance("PKCS12"); //$NON-NLS-1$
+		ks.load(ClassLoader.getSystemResourceAsStream(PKCS12_KEYSTORE), PASSWORD.toCharArray());
+		this.pke = (PrivateKeyEntry) ks.getEntry(ks.aliases().nextElement(), new KeyStore.PasswordProtection(PASSWORD.toCharArray()));
+	}
+
+	/** Detiene el servidor de referencia. */
+	@After
+	public void paraServidor() {
+		this.server.stop(0);
+	}
+
+	/** Prueba de firma de datos en memoria con el protocolo binario.
+	 * @throws Exception Cuando se produce un error. */
+	@Test
+	public void firmaBinaria() throws Exception {
+		final byte[] data = "Hola Mundo".getBytes("UTF-8"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		final Properties config = getConfig();
+		config.setProperty("binaryProtocol", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+		config.setProperty("mode", "implicit"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		final byte[] result = new AOCAdESTriPhaseSigner().sign(
+			data, ALGORITHM, this.pke.getPrivateKey(), this.pke.getCertificateChain(), config
+		);
+
+		checkSignature(data, result, true);
+	}
+
+	/** Prueba de firma impl&iacute;cita de un flujo de datos grande que no se puede volver a leer,
+	 * por lo que el cliente debe conservar una copia temporal para la postfirma.
+	 * @throws Exception Cuando se produce un error. */
+	@Test
+	public void firmaBinariaDeFlujo() throws Exception {
+		final byte[] data = createData(31);
+
+		final Properties config = getConfig();
+		config.setProperty("mode", "implicit"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		// Al no ser un ByteArrayInputStream ni un fichero, el cliente no puede releerlo y debe usar la copia temporal
+		final InputStream is = new BufferedInputStream(new ByteArrayInputStream(data));
+		final byte[] result;
+		try {
+			result = new AOCAdESTriPhaseSigner().sign(
+				is, ALGORITHM, this.pke.getPrivateKey(), this.pke.getCertificateChain(), config
+			);
+		}
+		finally {
+			is.close();
+		}
+
+		checkSignature(data, result, true);
+	}
+
+	/** Prueba de firma de un fichero, que el cliente vuelve a leer desde su posici&oacute;n inicial
+	 * en la postfirma de las firmas impl&iacute;citas, tanto en modo expl&iacute;cito como impl&iacute;cito.
+	 * @throws Exception Cuando se produce un error. */
+	@Test
+	public void firmaBinariaDeFichero() throws Exception {
+		final byte[] data = createData(7);
+		final File file = File.createTempFile("afirma", ".bin"); //$NON-NLS-1$ //$NON-NLS-2$
+		try {
+			final OutputStream fos = new FileOutputStream(file);
+			try {
+				// La firma debe cubrir los datos desde la posicion actual del flujo
+				fos.write(new byte[] { 1, 2, 3 });
+				fos.write(data);
+			}
+			finally {
+				fos.close();
+			}
+
+			for (final String mode : new String[] { "explicit", "implicit" }) { //$NON-NLS-1$ //$NON-NLS-2$
+				final Properties config = getConfig();
+				config.setProperty("mode", mode); //$NON-NLS-1$
+
+				final InputStream is = new FileInputStream(file);
+				final byte[] result;
+				try {
+					Assert.assertEquals(3, is.skip(3));
+					result = new AOCAdESTriPhaseSigner().sign(
+						is, ALGORITHM, this.pke.getPrivateKey(), this.pke.getCertificateChain(), config
+					);
+				}
+				finally {
+					is.close();
+				}
+
+				checkSignature(data, result, "implicit".equals(mode)); //$NON-NLS-1$
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	/** Prueba de firma enviando al servidor &uacute;nicamente la huella digital de los datos. La firma
+	 * debe ser expl&iacute;cita aunque se pida una impl&iacute;cita y su atributo <i>MessageDigest</i> debe
+	 * ser la huella calculada en el cliente.
+	 * @throws Exception Cuando se produce un error. */
+	@Test
+	public void firmaBinariaDeHuella() throws Exception {
+		final byte[] data = createData(17);
+
+		final Properties config = getConfig();
+		config.setProperty("hashOnly", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+		config.setProperty("mode", "implicit"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		final InputStream is = new BufferedInputStream(new ByteArrayInputStream(data));
+		final byte[] result;
+		try {
+			result = new AOCAdESTriPhaseSigner().sign(
+				is, ALGORITHM, this.pke.getPrivateKey(), this.pke.getCertificateChain(), config
+			);
+		}
+		finally {
+			is.close();
+		}
+
+		checkSignature(data, result, false);
+		Assert.assertTrue(
+			"La huella firmada no es la de los datos", //$NON-NLS-1$
+			Arrays.equals(MessageDigest.getInstance("SHA-512").digest(data), getMessageDigest(result)) //$NON-NLS-1$
+		);
+		Assert.assertNull("Se han modificado los parametros de entrada", config.getProperty("precalculatedHashAlgorithm")); //$NON-NLS-1$ //$NON-NLS-2$
+		Assert.assertEquals("Se han modificado los parametros de entrada", "implicit", config.getProperty("mode")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	/** Prueba de firma de una huella digital precalculada, que el servidor debe rechazar si su
+	 * longitud no corresponde al algoritmo indicado.
+	 * @throws Exception Cuando se produce un error. */
+	@Test
+	public void firmaBinariaDeHuellaPrecalculada() throws Exception {
+		final byte[] data = "Hola Mundo".getBytes("UTF-8"); //$NON-NLS-1$ //$NON-NLS-2$
+		final byte[] digest = MessageDigest.getInstance("SHA-512").digest(data); //$NON-NLS-1$
+
+		final Properties config = getConfig();
+		config.setProperty("binaryProtocol", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+		config.setProperty("precalculatedHashAlgorithm", "SHA-512"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		final byte[] result = new AOCAdESTriPhaseSigner().sign(
+			digest, ALGORITHM, this.pke.getPrivateKey(), this.pke.getCertificateChain(), config
+		);
+		checkSignature(data, result, false);
+		Assert.assertTrue("La huella firmada no es la indicada", Arrays.equals(digest, getMessageDigest(result))); //$NON-NLS-1$
+
+		// Una huella SHA-256 no es una huella SHA-512 valida
+		try {
+			new AOCAdESTriPhaseSigner().sign(
+				MessageDigest.getInstance("SHA-256").digest(data), ALGORITHM, this.pke.getPrivateKey(), this.pke.getCertificateChain(), config //$NON-NLS-1$
+			);
+			Assert.fail("Se ha firmado una huella con una longitud que no corresponde a su algoritmo"); //$NON-NLS-1$
+		}
+		catch (final AOException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("no se corresponde con el algoritmo")); //$NON-NLS-1$
+		}
+	}
+
+	/** Prueba de firma expl&iacute;cita de un lote de documentos.
+	 * @throws Exception Cuando se produce un error. */
+	@Test
+	public void firmaDeLote() throws Exception {
+		final List<byte[]> data = new ArrayList<byte[]>();
+		for (int i = 0; i < 20; i++) {
+			data.add(("Documento " + i).getBytes("UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		final List<BatchItemResult<byte[]>> results = new AOCAdESTriPhaseSigner().signBatch(
+			data, ALGORITHM, this.pke.getPrivateKey(), this.pke.getCertificateChain(), getConfig()
+		);
+
+		Assert.assertEquals("No se han devuelto los resultados de todos los documentos", data.size(), results.size()); //$NON-NLS-1$
+		for (int i = 0; i < data.size(); i++) {
+			Assert.assertTrue("No se ha firmado el documento " + i + ": " + results.get(i).getError(), results.get(i).isOk()); //$NON-NLS-1$ //$NON-NLS-2$
+			checkSignature(data.get(i), results.get(i).getResult(), false);
+		}
+	}
+
+	/** Prueba de firma impl&iacute;cita de un lote de documentos, en la que el servidor solicita
+	 * de nuevo los datos en la postfirma.
+	 * @throws Exception Cuando se produce un error. */
+	@Test
+	public void firmaDeLoteImplicita() throws Exception {
+		final List<byte[]> data = new ArrayList<byte[]>();
+		for (int i = 0; i < 3; i++) {
+			data.add(("Documento " + i).getBytes("UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		final Properties config = getConfig();
+		config.setProperty("mode", "implicit"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		final List<BatchItemResult<byte[]>> results = new AOCAdESTriPhaseSigner().signBatch(
+			data, ALGORITHM, this.pke.getPrivateKey(), this.pke.getCertificateChain(), config
+		);
+
+		Assert.assertEquals("No se han devuelto los resultados de todos los documentos", data.size(), results.size()); //$NON-NLS-1$
+		for (int i = 0; i < data.size(); i++) {
+			Assert.assertTrue("No se ha firmado el documento " + i + ": " + results.get(i).getError(), results.get(i).isOk()); //$NON-NLS-1$ //$NON-NLS-2$
+			checkSignature(data.get(i), results.get(i).getResult(), true);
+		}
+	}
+
+	/** Prueba de firma de un lote de huellas digitales precalculadas en el que una de ellas no
+	 * corresponde al algoritmo indicado. Ese documento debe fallar sin impedir la firma del resto.
+	 * @throws Exception Cuando se produce un error. */
+	@Test
+	public void firmaDeLoteConError() throws Exception {
+		final List<byte[]> data = new ArrayList<byte[]>();
+		final List<byte[]> digests = new ArrayList<byte[]>();
+		for (int i = 0; i < 10; i++) {
+			data.add(("Documento " + i).getBytes("UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+			digests.add(MessageDigest.getInstance("SHA-512").digest(data.get(i))); //$NON-NLS-1$
+		}
+		digests.set(7, MessageDigest.getInstance("SHA-256").digest(data.get(7))); //$NON-NLS-1$
+
+		final Properties config = getConfig();
+		config.setProperty("precalculatedHashAlgorithm", "SHA-512"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		final List<BatchItemResult<byte[]>> results = new AOCAdESTriPhaseSigner().signBatch(
+			digests, ALGORITHM, this.pke.getPrivateKey(), this.pke.getCertificateChain(), config
+		);
+
+		Assert.assertEquals("No se han devuelto los resultados de todos los documentos", data.size(), results.size()); //$NON-NLS-1$
+		for (int i = 0; i < data.size(); i++) {
+			if (i == 7) {
+				Assert.assertFalse("Se ha firmado una huella no valida", results.get(i).isOk()); //$NON-NLS-1$
+				Assert.assertTrue(results.get(i).getError(), results.get(i).getError().contains("no se corresponde con el algoritmo")); //$NON-NLS-1$
+			}
+			else {
+				Assert.assertTrue("No se ha firmado el documento " + i + ": " + results.get(i).getError(), results.get(i).isOk()); //$NON-NLS-1$ //$NON-NLS-2$
+				checkSignature(data.get(i), results.get(i).getResult(), false);
+				Assert.assertTrue(
+					"La huella firmada no es la indicada", //$NON-NLS-1$
+					Arrays.equals(digests.get(i), getMessageDigest(results.get(i).getResult()))
+				);
+			}
+		}
+	}
+
+	private Properties getConfig() {
+		final Properties config = new Properties();
+		config.setProperty("serverUrl", "http://localhost:" + this.server.getAddress().getPort() + SERVICE_PATH); //$NON-NLS-1$ //$NON-NLS-2$
+		return config;
+	}
+
+	/** Comprueba que el resultado es una firma CAdES v&aacute;lida de los datos con el certificado de la prueba.
+	 * @param data Datos firmados.
+	 * @param sign Firma CAdES.
+	 * @param implicit <code>true</code> si la firma debe contener los datos, <code>false</code> si es expl&iacute;cita.
+	 * @throws Exception Cuando ocurre alg&uacute;n problema al analizar la firma. */
+	private void checkSignature(final byte[] data, final byte[] sign, final boolean implicit) throws Exception {
+		final AOCAdESSigner signer = new AOCAdESSigner();
+		Assert.assertTrue("El resultado no es una firma CAdES", signer.isSign(sign)); //$NON-NLS-1$
+
+		final AOTreeNode root = (AOTreeNode) signer.getSignersStructure(sign, false).getRoot();
+		Assert.assertEquals("La firma debe tener un unico firmante", 1, root.getChildCount()); //$NON-NLS-1$
+		Assert.assertEquals(AOUtil.getCN((X509Certificate) this.pke.getCertificate()), root.getChildAt(0).getUserObject());
+
+		final CMSSignedData signedData;
+		if (implicit) {
+			Assert.assertTrue("La firma no contiene los datos firmados", Arrays.equals(data, signer.getData(sign))); //$NON-NLS-1$
+			signedData = new CMSSignedData(sign);
+		}
+		else {
+			Assert.assertNull("La firma explicita contiene datos", signer.getData(sign)); //$NON-NLS-1$
+			signedData = new CMSSignedData(new CMSProcessableByteArray(data), sign);
+		}
+		final SignerInformation si = (SignerInformation) signedData.getSignerInfos().getSigners().iterator().next();
+		// Se verifica con la clave publica porque el certificado de pruebas esta caducado
+		Assert.assertTrue(
+			"La firma CAdES no es valida", //$NON-NLS-1$
+			si.verify(new JcaSimpleSignerInfoVerifierBuilder().build(this.pke.getCertificate().getPublicKey()))
+		);
+	}
+
+	/** Obtiene el valor del atributo firmado <i>MessageDigest</i> del primer firmante.
+	 * @param sign Firma CAdES.
+	 * @return Huella digital de los datos firmados.
+	 * @throws Exception Cuando ocurre alg&uacute;n problema al analizar la firma. */
+	private static byte[] getMessageDigest(final byte[] sign) throws Exception {
+		final SignerInformation si = (SignerInformation) new CMSSignedData(sign).getSignerInfos().getSigners().iterator().next();
+		return ASN1OctetString.getInstance(
+			si.getSignedAttributes().get(CMSAttributes.messageDigest).getAttrValues().getObjectAt(0)
+		).getOctets();
+	}
+
+	private static byte[] createData(final int seed) {
+		final byte[] data = new byte[LARGE_DATA_SIZE];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * seed + (i >> 8));
+		}
+		return data;
+	}
+}
@@ -313,7 +313,7 @@ final class CoSigner {
         // si se introduce el contenido o no
         final ContentInfo encInfo = sd.getEncapContentInfo();
 
-        final DEROctetString contenido = (DEROctetString) encInfo.getContent();
+        final ASN1OctetString contenido = (ASN1OctetString) encInfo.getContent();
         byte[] contenidoDatos = null;
         if (contenido != null) {
             contenidoDatos = AOUtil.getDataFromInputStream(contenido.getOctetStream());
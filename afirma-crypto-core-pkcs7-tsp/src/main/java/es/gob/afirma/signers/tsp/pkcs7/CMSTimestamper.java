@@ -14,16 +14,26 @@ import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URLConnection;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.bouncycastle.asn1.ASN1InputStream;
@@ -46,6 +56,8 @@ import org.bouncycastle.tsp.TimeStampToken;
 import es.gob.afirma.core.AOException;
 import es.gob.afirma.core.misc.AOUtil;
 import es.gob.afirma.core.misc.Base64;
+import es.gob.afirma.core.misc.UrlHttpClient;
+import es.gob.afirma.core.signers.AOSignConstants;
 import es.gob.afirma.signers.pkcs7.AOAlgorithmID;
 
 /** Generador local de sellos de tiempo para PKCS#7. */
@@ -103,11 +115,115 @@ public final class CMSTimestamper {
 
     private static final String SIGNATURE_TIMESTAMP_TOKEN_OID = "1.2.840.113549.1.9.16.2.14"; //$NON-NLS-1$
 
+    /** N&uacute;mero m&aacute;ximo de estampadores que se mantienen creados a la vez. */
+    static final int MAX_INSTANCES = 16;
+
+    /** Estampadores ya creados, indexados por una huella digital de su configuraci&oacute;n de TSA
+     * para que las credenciales de la TSA no formen parte de la clave. Si se alcanza el n&uacute;mero
+     * m&aacute;ximo de estampadores se descarta el que lleva m&aacute;s tiempo sin usarse. */
+    private static final Map<String, CMSTimestamper> INSTANCES = new LinkedHashMap<String, CMSTimestamper>(MAX_INSTANCES, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, CMSTimestamper> eldest) {
+            return size() > MAX_INSTANCES;
+        }
+    };
+
     private final TimeStampRequestGenerator tsqGenerator;
     private final URI tsaURL;
     private final String tsaUsername;
     private final String tsaPassword;
 
+    /** Generador de <i>nonces</i>, para que no se repitan aunque se pidan varios sellos a la vez. */
+    private final AtomicLong nonce = new AtomicLong(System.currentTimeMillis());
+
+    /** Cliente HTTP propio de este estampador, que mantiene la confianza SSL por defecto de Java
+     * sin verse afectado por los cambios de configuraci&oacute;n SSL de otras conexiones. */
+    private final UrlHttpClient httpClient = new UrlHttpClient();
+
+    /** Obtiene un estampador de sellos de tiempo para la configuraci&oacute;n de TSA indicada,
+     * reutilizando el ya creado si se ha solicitado antes uno con la misma configuraci&oacute;n.
+     * Los estampadores pueden usarse desde varios hilos a la vez. Solo se conservan los estampadores
+     * de las &uacute;ltimas configuraciones usadas, por lo que las credenciales de una TSA dejan de
+     * mantenerse en memoria cuando su estampador se descarta.
+     * <p>Las conexiones HTTP con la TSA se mantienen abiertas entre peticiones y se reutilizan
+     * (<i>keep-alive</i>), de forma que no es necesario negociar una nueva conexi&oacute;n TCP
+     * (o TLS) por cada sello. El n&uacute;mero de conexiones que se mantienen abiertas con
+     * cada TSA lo determina la propiedad del sistema <code>http.maxConnections</code>
+     * (5 por defecto), que conviene que no sea menor que la concurrencia de sellado usada en
+     * {@link #addTimestamps(List, String, int)}.</p>
+     * @param requireCert <code>true</code> si la TSA requiere certificado, <code>false</code> en caso contrario
+     * @param policy OID de la pol&iacute;tica de sellado de tiempo
+     * @param tsa URL de la autoridad de sellado de tiempo
+     * @param tsaUsr Nombre de usuario si la TSA requiere autenticaci&oacute;n (puede ser <code>null</code> si no se necesita autenticaci&oacute;n)
+     * @param tsaPwd Contrase&ntilde;a del usuario de la TSA (puede ser <code>null</code> si no se necesita autenticaci&oacute;n)
+     * @param extensions Extensiones a a&ntilde;adir a la petici&oacute;n de sello de tiempo
+     * @return Estampador de sellos de tiempo */
+    public static CMSTimestamper getInstance(final boolean requireCert,
+                                             final String policy,
+                                             final URI tsa,
+                                             final String tsaUsr,
+                                             final String tsaPwd,
+                                             final TsaRequestExtension[] extensions) {
+        final String key = getConfigurationKey(requireCert, policy, tsa, tsaUsr, tsaPwd, extensions);
+        synchronized (INSTANCES) {
+            CMSTimestamper timestamper = INSTANCES.get(key);
+            if (timestamper == null) {
+                timestamper = new CMSTimestamper(requireCert, policy, tsa, tsaUsr, tsaPwd, extensions);
+                INSTANCES.put(key, timestamper);
+            }
+            return timestamper;
+        }
+    }
+
+    /** Calcula la clave de un estampador en la cach&eacute;. Es una huella digital SHA-256 de toda
+     * la configuraci&oacute;n de TSA, de forma que no contiene en claro la contrase&ntilde;a.
+     * @return Clave del estampador en la cach&eacute;. */
+    static String getConfigurationKey(final boolean requireCert,
+                                      final String policy,
+                                      final URI tsa,
+                                      final String tsaUsr,
+                                      final String tsaPwd,
+                                      final TsaRequestExtension[] extensions) {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("SHA-256"); //$NON-NLS-1$
+            updateKey(md, Boolean.toString(requireCert));
+            updateKey(md, policy);
+            updateKey(md, tsa != null ? tsa.toString() : null);
+            updateKey(md, tsaUsr);
+            updateKey(md, tsaPwd);
+            if (extensions != null) {
+                for (final TsaRequestExtension ext : extensions) {
+                    updateKey(md, ext.getOid());
+                    updateKey(md, Boolean.toString(ext.isCritical()));
+                    updateKey(md, ext.getValue());
+                }
+            }
+            return AOUtil.hexify(md.digest(), false);
+        }
+        catch (final Exception e) {
+            throw new IllegalStateException("No se ha podido calcular la clave de la configuracion de TSA: " + e, e); //$NON-NLS-1$
+        }
+    }
+
+    private static void updateKey(final MessageDigest md, final String value) throws IOException {
+        updateKey(md, value != null ? value.getBytes("UTF-8") : null); //$NON-NLS-1$
+    }
+
+    /** A&ntilde;ade un valor a la huella de la configuraci&oacute;n precedido de su longitud, para que
+     * dos configuraciones distintas no den la misma secuencia de octetos. */
+    private static void updateKey(final MessageDigest md, final byte[] value) {
+        if (value == null) {
+            md.update((byte) 0);
+            return;
+        }
+        md.update((byte) 1);
+        md.update(new byte[] {
+            (byte) (value.length >>> 24), (byte) (value.length >>> 16), (byte) (value.length >>> 8), (byte) value.length
+        });
+        md.update(value);
+    }
+
     /** Construye un estampador de sellos de tiempo para estructuras CMS y CAdES.
      * @param requireCert <code>true</code> si la TSA requiere certificado, <code>false</code> en caso contrario
      * @param policy OID de la pol&iacute;tica de sellado de tiempo
@@ -167,7 +283,14 @@ public final class CMSTimestamper {
         for (final Object name : ovSigners) {
 
              final SignerInformation si = (SignerInformation) name;
-             final byte[] tsToken = getTimeStampToken(si.getSignature(), hashAlgorithm);
+
+             // Segun RFC 3161 y ETSI TS 101 733, se sella la huella digital del valor de la firma
+             final byte[] tsToken = getTimeStampToken(
+                 MessageDigest.getInstance(
+                     AOSignConstants.getDigestAlgorithmName(hashAlgorithm != null ? hashAlgorithm : "SHA1") //$NON-NLS-1$
+                 ).digest(si.getSignature()),
+                 hashAlgorithm
+             );
 
              final ASN1InputStream is = new ASN1InputStream(new ByteArrayInputStream(tsToken));
              final ASN1Primitive derObj = is.readObject();
@@ -190,11 +313,84 @@ public final class CMSTimestamper {
 
     }
 
+    /** A&ntilde;ade un sello de tiempo a las firmas encontradas dentro de varias estructuras PKCS#7,
+     * solicitando a la TSA varios sellos a la vez.
+     * @param pkcs7s Estructuras que contienen las firmas a estampar un sello de tiempo
+     * @param hashAlgorithm Algoritmo de huella digital a usar en los sellos de tiempo (si se indica <code>null</code> se usa SHA-1)
+     * @param maxConcurrentRequests N&uacute;mero m&aacute;ximo de peticiones simult&aacute;neas a la TSA
+     * @return Nuevas estructuras PKCS#7 con los sellos de tiempo a&ntilde;adidos, en el mismo orden que las de entrada
+     * @throws NoSuchAlgorithmException
+     * @throws AOException
+     * @throws IOException
+     */
+    public List<byte[]> addTimestamps(final List<byte[]> pkcs7s,
+                                      final String hashAlgorithm,
+                                      final int maxConcurrentRequests) throws NoSuchAlgorithmException, AOException, IOException {
+
+        final List<byte[]> ret = new ArrayList<byte[]>(pkcs7s.size());
+
+        if (maxConcurrentRequests <= 1 || pkcs7s.size() <= 1) {
+            for (final byte[] pkcs7 : pkcs7s) {
+                ret.add(addTimestamp(pkcs7, hashAlgorithm));
+            }
+            return ret;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxConcurrentRequests, pkcs7s.size()));
+        try {
+            final List<Future<byte[]>> tasks = new ArrayList<Future<byte[]>>(pkcs7s.size());
+            for (final byte[] pkcs7 : pkcs7s) {
+                tasks.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return addTimestamp(pkcs7, hashAlgorithm);
+                    }
+                }));
+            }
+            for (final Future<byte[]> task : tasks) {
+                ret.add(getTaskResult(task));
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return ret;
+    }
+
+    private static byte[] getTaskResult(final Future<byte[]> task) throws NoSuchAlgorithmException, AOException, IOException {
+        try {
+            return task.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AOException("Se interrumpio la obtencion de los sellos de tiempo", e); //$NON-NLS-1$
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof NoSuchAlgorithmException) {
+                throw (NoSuchAlgorithmException) cause;
+            }
+            if (cause instanceof AOException) {
+                throw (AOException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new AOException("Error obteniendo los sellos de tiempo: " + cause, cause); //$NON-NLS-1$
+        }
+    }
+
     private byte[] getTSAResponse(final byte[] request) throws IOException {
     	if (this.tsaURL.getScheme().equals("socket")) { //$NON-NLS-1$
 			return getTSAResponseSocket(request);
     	}
-    	else if (this.tsaURL.getScheme().equals("http")) { //$NON-NLS-1$
+    	else if (this.tsaURL.getScheme().equals("http") || this.tsaURL.getScheme().equals("https")) { //$NON-NLS-1$ //$NON-NLS-2$
     		return getTSAResponseHttp(request);
     	}
     	else {
@@ -239,40 +435,54 @@ public final class CMSTimestamper {
      * @throws IOException */
     private byte[] getTSAResponseHttp(final byte[] requestBytes) throws IOException {
 
-         final URLConnection tsaConnection = this.tsaURL.toURL().openConnection();
-         tsaConnection.setDoInput(true);
-         tsaConnection.setDoOutput(true);
-         tsaConnection.setUseCaches(false);
-         tsaConnection.setRequestProperty("Content-Type", "application/timestamp-query"); //$NON-NLS-1$ //$NON-NLS-2$
-         tsaConnection.setRequestProperty("Content-Transfer-Encoding", "binary"); //$NON-NLS-1$ //$NON-NLS-2$
-
-         if (this.tsaUsername != null && !"".equals(this.tsaUsername) ) { //$NON-NLS-1$
-             final String userPassword = this.tsaUsername + ":" + this.tsaPassword; //$NON-NLS-1$
-             tsaConnection.setRequestProperty("Authorization", "Basic " + new String(Base64.encode(userPassword.getBytes()))); //$NON-NLS-1$ //$NON-NLS-2$
+         final URLConnection tsaConnection = this.httpClient.openConnection(this.tsaURL.toURL());
+         try {
+             tsaConnection.setDoInput(true);
+             tsaConnection.setDoOutput(true);
+             tsaConnection.setUseCaches(false);
+             tsaConnection.setRequestProperty("Content-Type", "application/timestamp-query"); //$NON-NLS-1$ //$NON-NLS-2$
+             tsaConnection.setRequestProperty("Content-Transfer-Encoding", "binary"); //$NON-NLS-1$ //$NON-NLS-2$
+
+             if (this.tsaUsername != null && !"".equals(this.tsaUsername) ) { //$NON-NLS-1$
+                 final String userPassword = this.tsaUsername + ":" + this.tsaPassword; //$NON-NLS-1$
+                 tsaConnection.setRequestProperty("Authorization", "Basic " + new String(Base64.encode(userPassword.getBytes()))); //$NON-NLS-1$ //$NON-NLS-2$
+             }
+
+             final OutputStream out = tsaConnection.getOutputStream();
+             out.write(requestBytes);
+             out.flush();
+             out.close();
+
+             // Leemos la respuesta completa y cerramos el flujo para que la conexion pueda
+             // reutilizarse en las siguientes peticiones
+             final InputStream in = tsaConnection.getInputStream();
+             final byte[] respBytes;
+             try {
+                 respBytes = AOUtil.getDataFromInputStream(in);
+             }
+             finally {
+                 in.close();
+             }
+
+             final String encoding = tsaConnection.getContentEncoding();
+             if (encoding != null && encoding.equalsIgnoreCase("base64")) { //$NON-NLS-1$
+                 return Base64.decode(new String(respBytes));
+             }
+
+             return respBytes;
          }
-
-         final OutputStream out = tsaConnection.getOutputStream();
-         out.write(requestBytes);
-         out.flush();
-         out.close();
-
-         final byte[] respBytes = AOUtil.getDataFromInputStream(tsaConnection.getInputStream());
-
-         final String encoding = tsaConnection.getContentEncoding();
-         if (encoding != null && encoding.equalsIgnoreCase("base64")) { //$NON-NLS-1$
-             return Base64.decode(new String(respBytes));
+         finally {
+             this.httpClient.releaseConnection(tsaConnection);
          }
 
-         return respBytes;
-
      }
 
-     private byte[] getTimeStampToken(final byte[] imprint, final String hashAlgorithm) throws AOException, IOException {
+     byte[] getTimeStampToken(final byte[] imprint, final String hashAlgorithm) throws AOException, IOException {
 
          final TimeStampRequest request = this.tsqGenerator.generate(
                new ASN1ObjectIdentifier(hashAlgorithm != null ? AOAlgorithmID.getOID(hashAlgorithm) : X509ObjectIdentifiers.id_SHA1.getId()),
                imprint,
-               BigInteger.valueOf(System.currentTimeMillis())
+               BigInteger.valueOf(this.nonce.incrementAndGet())
           );
 
          final byte[] requestBytes = request.getEncoded();
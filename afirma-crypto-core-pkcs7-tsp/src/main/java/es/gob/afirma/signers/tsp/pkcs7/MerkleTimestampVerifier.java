@@ -0,0 +1,105 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.signers.tsp.pkcs7;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bouncycastle.asn1.ASN1Boolean;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.tsp.TimeStampToken;
+
+import es.gob.afirma.core.AOException;
+
+/** Verificador de los sellos de tiempo agregados a&ntilde;adidos por {@link MerkleTimestamper}.
+ * <p>Comprueba que el valor de cada firma est&aacute; incluido en el &aacute;rbol de Merkle cuya
+ * ra&iacute;z se sell&oacute;. La validez del propio sello de tiempo (firma de la TSA y confianza
+ * en su certificado) debe comprobarse aparte sobre los sellos devueltos.</p> */
+public final class MerkleTimestampVerifier {
+
+    private MerkleTimestampVerifier() {
+        // No permitimos la instanciacion
+    }
+
+    /** Verifica los sellos de tiempo agregados de todas las firmas de una estructura PKCS#7.
+     * @param pkcs7 Estructura PKCS#7 con las firmas.
+     * @return Sellos de tiempo de las firmas que tienen sello agregado, en el orden en el que
+     *         aparecen las firmas. Las firmas sin sello agregado se ignoran.
+     * @throws AOException Si alguno de los sellos agregados no se corresponde con su firma o
+     *                     est&aacute; mal formado. */
+    public static List<TimeStampToken> verify(final byte[] pkcs7) throws AOException {
+
+        final CMSSignedData signedData;
+        try {
+            signedData = new CMSSignedData(pkcs7);
+        }
+        catch (final Exception e) {
+            throw new IllegalArgumentException("Los datos de entrada no son un SignedData de CMS: " + e); //$NON-NLS-1$
+        }
+
+        final List<TimeStampToken> tokens = new ArrayList<TimeStampToken>();
+        for (final Object o : signedData.getSignerInfos().getSigners()) {
+            final SignerInformation si = (SignerInformation) o;
+            final AttributeTable unsignedAtts = si.getUnsignedAttributes();
+            if (unsignedAtts == null) {
+                continue;
+            }
+            final Attribute att = unsignedAtts.get(new ASN1ObjectIdentifier(MerkleTimestamper.AGGREGATED_TIMESTAMP_OID));
+            if (att == null) {
+                continue;
+            }
+            tokens.add(verify(si.getSignature(), ASN1Sequence.getInstance(att.getAttrValues().getObjectAt(0))));
+        }
+        return tokens;
+    }
+
+    private static TimeStampToken verify(final byte[] signatureValue, final ASN1Sequence value) throws AOException {
+        try {
+            final String algorithmOid = AlgorithmIdentifier.getInstance(value.getObjectAt(0)).getAlgorithm().getId();
+            final ASN1Sequence path = ASN1Sequence.getInstance(value.getObjectAt(1));
+            final TimeStampToken token = new TimeStampToken(ContentInfo.getInstance(value.getObjectAt(2)));
+
+            // Recorremos el camino desde la hoja de la firma hasta la raiz
+            final MessageDigest md = MessageDigest.getInstance(algorithmOid);
+            byte[] node = MerkleTimestamper.getLeaf(md, signatureValue);
+            for (int i = 0; i < path.size(); i++) {
+                final ASN1Sequence pathNode = ASN1Sequence.getInstance(path.getObjectAt(i));
+                final byte[] sibling = ASN1OctetString.getInstance(pathNode.getObjectAt(1)).getOctets();
+                node = ASN1Boolean.getInstance(pathNode.getObjectAt(0)).isTrue() ?
+                    MerkleTimestamper.getNode(md, sibling, node) :
+                        MerkleTimestamper.getNode(md, node, sibling);
+            }
+
+            // La raiz debe ser exactamente lo que se sello
+            if (!algorithmOid.equals(token.getTimeStampInfo().getMessageImprintAlgOID().getId()) ||
+                !Arrays.equals(node, token.getTimeStampInfo().getMessageImprintDigest())) {
+                    throw new AOException("El sello de tiempo agregado no corresponde a la firma"); //$NON-NLS-1$
+            }
+            return token;
+        }
+        catch (final AOException e) {
+            throw e;
+        }
+        catch (final Exception e) {
+            throw new AOException("El sello de tiempo agregado esta mal formado: " + e, e); //$NON-NLS-1$
+        }
+    }
+}
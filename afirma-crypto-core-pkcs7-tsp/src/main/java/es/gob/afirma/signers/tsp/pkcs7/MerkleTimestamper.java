@@ -0,0 +1,205 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.signers.tsp.pkcs7;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.asn1.ASN1Boolean;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.SignerInformationStore;
+
+import es.gob.afirma.core.AOException;
+import es.gob.afirma.core.signers.AOSignConstants;
+import es.gob.afirma.signers.pkcs7.AOAlgorithmID;
+
+/** Estampador de sellos de tiempo agregados para lotes de firmas CMS y CAdES.
+ * <p>En lugar de solicitar un sello de tiempo por cada firma, se construye un &aacute;rbol de
+ * Merkle con las huellas digitales de los valores de todas las firmas del lote y se solicita
+ * un &uacute;nico sello de tiempo sobre su ra&iacute;z. A cada firma se le a&ntilde;ade como
+ * atributo no firmado el sello de tiempo junto con el camino de inclusi&oacute;n de su firma
+ * en el &aacute;rbol, con la siguiente estructura:</p>
+ * <pre>
+ * AggregatedTimeStamp ::= SEQUENCE {
+ *   digestAlgorithm  AlgorithmIdentifier,
+ *   path             SEQUENCE OF PathNode,
+ *   timeStampToken   ContentInfo }
+ *
+ * PathNode ::= SEQUENCE {
+ *   left             BOOLEAN,
+ *   hash             OCTET STRING }
+ * </pre>
+ * <p>Las hojas del &aacute;rbol son <code>H(0x00 || H(valor de la firma))</code> y los nodos
+ * internos <code>H(0x01 || izquierdo || derecho)</code>. Si un nivel tiene un n&uacute;mero impar
+ * de nodos, el &uacute;ltimo pasa sin cambios al nivel superior.</p>
+ * <p>Este atributo no est&aacute; definido por ninguna norma, por lo que las firmas resultantes
+ * solo pueden validarse con {@link MerkleTimestampVerifier}.</p> */
+public final class MerkleTimestamper {
+
+    /** OID del atributo no firmado con el sello de tiempo agregado (OID derivado de UUID, seg&uacute;n ITU-T X.667). */
+    public static final String AGGREGATED_TIMESTAMP_OID = "2.25.263822380653318834503226439355793180110"; //$NON-NLS-1$
+
+    static final byte LEAF_PREFIX = 0x00;
+
+    static final byte NODE_PREFIX = 0x01;
+
+    private final CMSTimestamper timestamper;
+    private final String digestAlgorithm;
+
+    /** Construye un estampador de sellos de tiempo agregados.
+     * @param tsp Estampador con el que se solicitan los sellos de tiempo a la TSA.
+     * @param hashAlgorithm Algoritmo de huella digital del &aacute;rbol y del sello de tiempo. */
+    public MerkleTimestamper(final CMSTimestamper tsp, final String hashAlgorithm) {
+        if (tsp == null) {
+            throw new IllegalArgumentException("Es obligatorio indicar el estampador de sellos de tiempo"); //$NON-NLS-1$
+        }
+        this.timestamper = tsp;
+        this.digestAlgorithm = AOSignConstants.getDigestAlgorithmName(hashAlgorithm != null ? hashAlgorithm : "SHA-256"); //$NON-NLS-1$
+    }
+
+    /** A&ntilde;ade un sello de tiempo agregado a todas las firmas encontradas en un lote de
+     * estructuras PKCS#7, solicitando un &uacute;nico sello de tiempo a la TSA.
+     * @param pkcs7s Estructuras que contienen las firmas a estampar un sello de tiempo.
+     * @return Nuevas estructuras PKCS#7 con los sellos de tiempo a&ntilde;adidos, en el mismo orden que las de entrada.
+     * @throws NoSuchAlgorithmException Si no se soporta el algoritmo de huella digital.
+     * @throws AOException Si hay problemas obteniendo el sello de tiempo.
+     * @throws IOException Si hay problemas en la comunicaci&oacute;n con la TSA o en la codificaci&oacute;n de las firmas. */
+    public List<byte[]> addTimestamp(final List<byte[]> pkcs7s) throws NoSuchAlgorithmException, AOException, IOException {
+
+        if (pkcs7s == null || pkcs7s.isEmpty()) {
+            return new ArrayList<byte[]>();
+        }
+
+        final MessageDigest md = MessageDigest.getInstance(this.digestAlgorithm);
+
+        // Obtenemos las hojas del arbol a partir de los valores de todas las firmas
+        final List<CMSSignedData> signedDatas = new ArrayList<CMSSignedData>(pkcs7s.size());
+        final List<byte[]> leaves = new ArrayList<byte[]>();
+        for (final byte[] pkcs7 : pkcs7s) {
+            final CMSSignedData signedData;
+            try {
+                signedData = new CMSSignedData(pkcs7);
+            }
+            catch (final Exception e) {
+                throw new IllegalArgumentException("Los datos de entrada no son un SignedData de CMS: " + e); //$NON-NLS-1$
+            }
+            signedDatas.add(signedData);
+            for (final Object si : signedData.getSignerInfos().getSigners()) {
+                leaves.add(getLeaf(md, ((SignerInformation) si).getSignature()));
+            }
+        }
+
+        // Construimos el arbol, guardando todos sus niveles para obtener despues los caminos
+        final List<byte[][]> levels = new ArrayList<byte[][]>();
+        byte[][] level = leaves.toArray(new byte[leaves.size()][]);
+        levels.add(level);
+        while (level.length > 1) {
+            final byte[][] upper = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < upper.length; i++) {
+                upper[i] = 2 * i + 1 < level.length ?
+                    getNode(md, level[2 * i], level[2 * i + 1]) :
+                        level[2 * i];
+            }
+            levels.add(upper);
+            level = upper;
+        }
+
+        // Sellamos la raiz
+        final ASN1Primitive token = ASN1Primitive.fromByteArray(
+            this.timestamper.getTimeStampToken(level[0], this.digestAlgorithm)
+        );
+        final AlgorithmIdentifier algorithmId = new AlgorithmIdentifier(
+            new ASN1ObjectIdentifier(AOAlgorithmID.getOID(this.digestAlgorithm))
+        );
+
+        // Anadimos a cada firma el sello y su camino de inclusion en el arbol
+        final List<byte[]> ret = new ArrayList<byte[]>(signedDatas.size());
+        int leafIndex = 0;
+        for (final CMSSignedData signedData : signedDatas) {
+            final List<SignerInformation> newSigners = new ArrayList<SignerInformation>();
+            for (final Object o : signedData.getSignerInfos().getSigners()) {
+                final SignerInformation si = (SignerInformation) o;
+                final ASN1Encodable value = new DERSequence(new ASN1Encodable[] {
+                    algorithmId,
+                    getPath(levels, leafIndex++),
+                    token
+                });
+                final AttributeTable currentAtts = si.getUnsignedAttributes();
+                final ASN1EncodableVector atts = currentAtts != null ? currentAtts.toASN1EncodableVector() : new ASN1EncodableVector();
+                atts.add(new Attribute(new ASN1ObjectIdentifier(AGGREGATED_TIMESTAMP_OID), new DERSet(value)));
+                newSigners.add(SignerInformation.replaceUnsignedAttributes(si, new AttributeTable(atts)));
+            }
+            ret.add(CMSSignedData.replaceSigners(signedData, new SignerInformationStore(newSigners)).getEncoded());
+        }
+
+        return ret;
+    }
+
+    /** A&ntilde;ade un sello de tiempo individual (atributo <i>signature-time-stamp</i> de CAdES-T)
+     * a las firmas de una estructura PKCS#7, usando la misma TSA y algoritmo de huella digital
+     * que los sellos agregados. Permite sellar las firmas de un lote de una en una cuando no
+     * se puede obtener su sello agregado.
+     * @param pkcs7 Estructura que contiene las firmas a estampar un sello de tiempo.
+     * @return Nueva estructura PKCS#7 con los sellos de tiempo a&ntilde;adidos.
+     * @throws NoSuchAlgorithmException Si no se soporta el algoritmo de huella digital.
+     * @throws AOException Si hay problemas obteniendo el sello de tiempo.
+     * @throws IOException Si hay problemas en la comunicaci&oacute;n con la TSA. */
+    public byte[] addIndividualTimestamp(final byte[] pkcs7) throws NoSuchAlgorithmException, AOException, IOException {
+        return this.timestamper.addTimestamp(pkcs7, this.digestAlgorithm);
+    }
+
+    /** Obtiene el camino de inclusi&oacute;n de una hoja en el &aacute;rbol.
+     * @param levels Niveles del &aacute;rbol, empezando por las hojas.
+     * @param leafIndex &Iacute;ndice de la hoja.
+     * @return Secuencia de nodos hermanos desde la hoja hasta la ra&iacute;z. */
+    private static DERSequence getPath(final List<byte[][]> levels, final int leafIndex) {
+        final ASN1EncodableVector path = new ASN1EncodableVector();
+        int index = leafIndex;
+        for (int i = 0; i < levels.size() - 1; i++) {
+            final byte[][] level = levels.get(i);
+            final int sibling = index ^ 1;
+            if (sibling < level.length) {
+                path.add(new DERSequence(new ASN1Encodable[] {
+                    ASN1Boolean.getInstance(sibling < index),
+                    new DEROctetString(level[sibling])
+                }));
+            }
+            index >>= 1;
+        }
+        return new DERSequence(path);
+    }
+
+    static byte[] getLeaf(final MessageDigest md, final byte[] signatureValue) {
+        final byte[] signatureDigest = md.digest(signatureValue);
+        md.update(LEAF_PREFIX);
+        return md.digest(signatureDigest);
+    }
+
+    static byte[] getNode(final MessageDigest md, final byte[] left, final byte[] right) {
+        md.update(NODE_PREFIX);
+        md.update(left);
+        return md.digest(right);
+    }
+}
@@ -0,0 +1,191 @@
+package es.gob.afirma.signers.tsp.pkcs7;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.x509.X509Extension;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampResponseGenerator;
+import org.bouncycastle.tsp.TimeStampTokenGenerator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import es.gob.afirma.core.misc.AOUtil;
+
+/** TSA local seg&uacute;n RFC 3161 sobre HTTP para las pruebas de sellado de tiempo, con un
+ * certificado de sellado de tiempo generado al vuelo. */
+final class LocalTsa implements HttpHandler {
+
+	/** Pol&iacute;tica de sellado de tiempo de la TSA. */
+	static final String POLICY = "1.2.3.4.5"; //$NON-NLS-1$
+
+	private static final String PATH = "/tsa"; //$NON-NLS-1$
+
+	private final HttpServer server;
+	private final X509Certificate certificate;
+	private final TimeStampResponseGenerator responseGenerator;
+	private final List<String> authorizations = Collections.synchronizedList(new ArrayList<String>());
+	private final List<byte[]> imprints = Collections.synchronizedList(new ArrayList<byte[]>());
+	private long serial = 0;
+	private int failures = 0;
+
+	/** Crea y arranca la TSA local.
+	 * @throws Exception Cuando ocurre alg&uacute;n problema al generar el certificado o al arrancar el servidor. */
+	LocalTsa() throws Exception {
+		final KeyPair keys = generateKeyPair();
+		this.certificate = createCertificate("CN=TSA de prueba", keys, true); //$NON-NLS-1$
+
+		final DigestCalculator sha1 = new JcaDigestCalculatorProviderBuilder().build().get(
+			new AlgorithmIdentifier(OIWObjectIdentifiers.idSHA1)
+		);
+		final TimeStampTokenGenerator tokenGenerator = new TimeStampTokenGenerator(
+			new JcaSimpleSignerInfoGeneratorBuilder().build("SHA256withRSA", keys.getPrivate(), this.certificate), //$NON-NLS-1$
+			sha1,
+			new ASN1ObjectIdentifier(POLICY)
+		);
+		tokenGenerator.addCertificates(new JcaCertStore(Collections.singletonList(this.certificate)));
+		this.responseGenerator = new TimeStampResponseGenerator(tokenGenerator, TSPAlgorithms.ALLOWED);
+
+		this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0); //$NON-NLS-1$
+		this.server.createContext(PATH, this);
+		this.server.start();
+	}
+
+	@Override
+	public void handle(final HttpExchange exchange) throws IOException {
+		try {
+			this.authorizations.add(exchange.getRequestHeaders().getFirst("Authorization")); //$NON-NLS-1$
+			final TimeStampRequest request = new TimeStampRequest(AOUtil.getDataFromInputStream(exchange.getRequestBody()));
+			final byte[] response;
+			synchronized (this) {
+				if (this.failures > 0) {
+					this.failures--;
+					exchange.sendResponseHeaders(503, -1);
+					return;
+				}
+				this.imprints.add(request.getMessageImprintDigest());
+				response = this.responseGenerator.generate(request, BigInteger.valueOf(++this.serial), new Date()).getEncoded();
+			}
+			exchange.getResponseHeaders().add("Content-Type", "application/timestamp-reply"); //$NON-NLS-1$ //$NON-NLS-2$
+			exchange.sendResponseHeaders(200, response.length);
+			final OutputStream os = exchange.getResponseBody();
+			os.write(response);
+			os.close();
+		}
+		catch (final Exception e) {
+			exchange.sendResponseHeaders(500, -1);
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/** Hace que la TSA rechace las siguientes peticiones.
+	 * @param count N&uacute;mero de peticiones a rechazar. */
+	synchronized void failNextRequests(final int count) {
+		this.failures = count;
+	}
+
+	/** Detiene la TSA local. */
+	void stop() {
+		this.server.stop(0);
+	}
+
+	URI getUri() {
+		return URI.create("http://localhost:" + this.server.getAddress().getPort() + PATH); //$NON-NLS-1$
+	}
+
+	X509Certificate getCertificate() {
+		return this.certificate;
+	}
+
+	/** Obtiene las cabeceras de autenticaci&oacute;n recibidas, en orden.
+	 * @return Cabeceras de autenticaci&oacute;n (<code>null</code> en las peticiones sin autenticaci&oacute;n). */
+	List<String> getAuthorizations() {
+		return this.authorizations;
+	}
+
+	/** Obtiene las huellas digitales selladas, en orden.
+	 * @return Huellas digitales de las peticiones atendidas. */
+	List<byte[]> getImprints() {
+		return this.imprints;
+	}
+
+	static KeyPair generateKeyPair() throws Exception {
+		final KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA"); //$NON-NLS-1$
+		kpg.initialize(1024);
+		return kpg.generateKeyPair();
+	}
+
+	static X509Certificate createCertificate(final String dn,
+	                                         final KeyPair keys,
+	                                         final boolean timestamping) throws Exception {
+		final X500Name name = new X500Name(dn);
+		final X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+			name,
+			BigInteger.valueOf(System.nanoTime()),
+			new Date(System.currentTimeMillis() - 3600000L),
+			new Date(System.currentTimeMillis() + 3600000L),
+			name,
+			keys.getPublic()
+		);
+		if (timestamping) {
+			builder.addExtension(X509Extension.extendedKeyUsage, true, new ExtendedKeyUsage(KeyPurposeId.id_kp_timeStamping));
+		}
+		return new JcaX509CertificateConverter().getCertificate(
+			builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(keys.getPrivate())) //$NON-NLS-1$
+		);
+	}
+
+	/** Crea una firma CMS impl&iacute;cita de los datos con uno o varios firmantes.
+	 * @param data Datos a firmar.
+	 * @param signers Claves de los firmantes.
+	 * @param certs Certificados de los firmantes, en el mismo orden que las claves.
+	 * @return Firma CMS codificada.
+	 * @throws Exception Cuando ocurre alg&uacute;n problema al firmar. */
+	static byte[] createSignature(final byte[] data, final KeyPair[] signers, final X509Certificate[] certs) throws Exception {
+		final CMSSignedDataGenerator gen = new CMSSignedDataGenerator();
+		for (int i = 0; i < signers.length; i++) {
+			gen.addSignerInfoGenerator(
+				new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build()).build(
+					new JcaContentSignerBuilder("SHA256withRSA").build(signers[i].getPrivate()), //$NON-NLS-1$
+					certs[i]
+				)
+			);
+		}
+		final List<X509Certificate> certList = new ArrayList<X509Certificate>();
+		Collections.addAll(certList, certs);
+		gen.addCertificates(new JcaCertStore(certList));
+		return gen.generate(new CMSProcessableByteArray(data), true).getEncoded();
+	}
+}
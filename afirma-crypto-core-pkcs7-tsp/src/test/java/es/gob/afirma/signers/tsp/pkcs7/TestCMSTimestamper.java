@@ -0,0 +1,140 @@
+package es.gob.afirma.signers.tsp.pkcs7;
+
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import es.gob.afirma.core.misc.AOUtil;
+import es.gob.afirma.core.misc.Base64;
+
+/** Pruebas del estampador de sellos de tiempo contra una TSA local. */
+public final class TestCMSTimestamper {
+
+	private static final String TSA_USER = "usuario"; //$NON-NLS-1$
+
+	private static final String TSA_PASSWORD = "secreto-de-la-tsa"; //$NON-NLS-1$
+
+	private static final String SIGNATURE_TIMESTAMP_TOKEN_OID = "1.2.840.113549.1.9.16.2.14"; //$NON-NLS-1$
+
+	private LocalTsa tsa;
+	private KeyPair signerKeys;
+	private X509Certificate signerCert;
+
+	/** Arranca una TSA local y genera el certificado del firmante.
+	 * @throws Exception Cuando ocurre alg&uacute;n problema al generar los certificados o al arrancar la TSA. */
+	@Before
+	public void arrancaTsa() throws Exception {
+		this.tsa = new LocalTsa();
+		this.signerKeys = LocalTsa.generateKeyPair();
+		this.signerCert = LocalTsa.createCertificate("CN=Firmante de prueba", this.signerKeys, false); //$NON-NLS-1$
+	}
+
+	/** Detiene la TSA local. */
+	@After
+	public void paraTsa() {
+		this.tsa.stop();
+	}
+
+	/** Comprueba que se a&ntilde;ade a la firma un sello de tiempo v&aacute;lido sobre la huella de su valor de firma.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@Test
+	public void testAddTimestamp() throws Exception {
+		final byte[] pkcs7 = createSignature("Datos de prueba".getBytes()); //$NON-NLS-1$
+
+		final CMSTimestamper timestamper = new CMSTimestamper(true, LocalTsa.POLICY, this.tsa.getUri(), TSA_USER, TSA_PASSWORD, null);
+		final byte[] stamped = timestamper.addTimestamp(pkcs7, "SHA-256"); //$NON-NLS-1$
+
+		checkTimestamp(pkcs7, stamped, "SHA-256"); //$NON-NLS-1$
+
+		Assert.assertEquals(1, this.tsa.getAuthorizations().size());
+		Assert.assertEquals(
+			"Basic " + Base64.encode((TSA_USER + ":" + TSA_PASSWORD).getBytes()), //$NON-NLS-1$ //$NON-NLS-2$
+			this.tsa.getAuthorizations().get(0)
+		);
+	}
+
+	/** Comprueba que el sellado concurrente sella todas las firmas y conserva su orden.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@Test
+	public void testAddTimestamps() throws Exception {
+		final List<byte[]> pkcs7s = new ArrayList<byte[]>();
+		for (int i = 0; i < 12; i++) {
+			pkcs7s.add(createSignature(("Documento " + i).getBytes())); //$NON-NLS-1$
+		}
+
+		final CMSTimestamper timestamper = new CMSTimestamper(true, LocalTsa.POLICY, this.tsa.getUri(), null, null, null);
+		final List<byte[]> stamped = timestamper.addTimestamps(pkcs7s, "2.16.840.1.101.3.4.2.1", 4); //$NON-NLS-1$
+
+		Assert.assertEquals(pkcs7s.size(), stamped.size());
+		for (int i = 0; i < pkcs7s.size(); i++) {
+			checkTimestamp(pkcs7s.get(i), stamped.get(i), "SHA-256"); //$NON-NLS-1$
+		}
+		Assert.assertEquals(pkcs7s.size(), this.tsa.getAuthorizations().size());
+		Assert.assertNull(this.tsa.getAuthorizations().get(0));
+	}
+
+	/** Comprueba la reutilizaci&oacute;n y el descarte de estampadores, y que la clave de la cach&eacute;
+	 * no contiene la contrase&ntilde;a de la TSA. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testInstanceCache() {
+		final URI uri = URI.create("http://localhost/tsa"); //$NON-NLS-1$
+
+		final CMSTimestamper first = CMSTimestamper.getInstance(true, LocalTsa.POLICY, uri, TSA_USER, TSA_PASSWORD, null);
+		Assert.assertSame(first, CMSTimestamper.getInstance(true, LocalTsa.POLICY, uri, TSA_USER, TSA_PASSWORD, null));
+		Assert.assertNotSame(first, CMSTimestamper.getInstance(true, LocalTsa.POLICY, uri, TSA_USER, TSA_PASSWORD + "2", null)); //$NON-NLS-1$
+
+		final String key = CMSTimestamper.getConfigurationKey(true, LocalTsa.POLICY, uri, TSA_USER, TSA_PASSWORD, null);
+		Assert.assertFalse(key.contains(TSA_PASSWORD));
+		Assert.assertFalse(key.contains(AOUtil.hexify(TSA_PASSWORD.getBytes(), false)));
+
+		// Los valores se delimitan en la clave, de forma que desplazar caracteres entre campos cambia la clave
+		Assert.assertFalse(key.equals(
+			CMSTimestamper.getConfigurationKey(true, LocalTsa.POLICY, uri, TSA_USER + "s", TSA_PASSWORD.substring(1), null) //$NON-NLS-1$
+		));
+
+		for (int i = 0; i < CMSTimestamper.MAX_INSTANCES; i++) {
+			CMSTimestamper.getInstance(true, LocalTsa.POLICY, uri, TSA_USER + i, TSA_PASSWORD, null);
+		}
+		Assert.assertNotSame(first, CMSTimestamper.getInstance(true, LocalTsa.POLICY, uri, TSA_USER, TSA_PASSWORD, null));
+	}
+
+	private void checkTimestamp(final byte[] original, final byte[] stamped, final String digestAlgorithm) throws Exception {
+		final SignerInformation originalSigner = (SignerInformation) new CMSSignedData(original).getSignerInfos().getSigners().iterator().next();
+		final SignerInformation signer = (SignerInformation) new CMSSignedData(stamped).getSignerInfos().getSigners().iterator().next();
+		Assert.assertTrue(Arrays.equals(originalSigner.getSignature(), signer.getSignature()));
+		Assert.assertNotNull(signer.getUnsignedAttributes());
+
+		final Attribute attr = signer.getUnsignedAttributes().get(new ASN1ObjectIdentifier(SIGNATURE_TIMESTAMP_TOKEN_OID));
+		Assert.assertNotNull("No se ha encontrado el sello de tiempo en la firma", attr); //$NON-NLS-1$
+
+		final TimeStampToken token = new TimeStampToken(
+			new CMSSignedData(attr.getAttrValues().getObjectAt(0).toASN1Primitive().getEncoded())
+		);
+		token.validate(new JcaSimpleSignerInfoVerifierBuilder().build(this.tsa.getCertificate()));
+		Assert.assertEquals(LocalTsa.POLICY, token.getTimeStampInfo().getPolicy().getId());
+		Assert.assertTrue(Arrays.equals(
+			MessageDigest.getInstance(digestAlgorithm).digest(signer.getSignature()),
+			token.getTimeStampInfo().getMessageImprintDigest()
+		));
+	}
+
+	private byte[] createSignature(final byte[] data) throws Exception {
+		return LocalTsa.createSignature(data, new KeyPair[] { this.signerKeys }, new X509Certificate[] { this.signerCert });
+	}
+}
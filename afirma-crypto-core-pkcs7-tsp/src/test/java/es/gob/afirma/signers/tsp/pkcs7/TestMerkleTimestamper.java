@@ -0,0 +1,287 @@
+package es.gob.afirma.signers.tsp.pkcs7;
+
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.SignerInformationStore;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import es.gob.afirma.core.AOException;
+
+/** Pruebas del sellado de tiempo agregado mediante &aacute;rboles de Merkle. */
+public final class TestMerkleTimestamper {
+
+	private static final String DIGEST_ALGORITHM = "SHA-256"; //$NON-NLS-1$
+
+	private LocalTsa tsa;
+	private KeyPair signerKeys;
+	private X509Certificate signerCert;
+	private MerkleTimestamper timestamper;
+
+	/** Arranca una TSA local y genera el certificado del firmante.
+	 * @throws Exception Cuando ocurre alg&uacute;n problema al generar los certificados o al arrancar la TSA. */
+	@Before
+	public void arrancaTsa() throws Exception {
+		this.tsa = new LocalTsa();
+		this.signerKeys = LocalTsa.generateKeyPair();
+		this.signerCert = LocalTsa.createCertificate("CN=Firmante de prueba", this.signerKeys, false); //$NON-NLS-1$
+		this.timestamper = new MerkleTimestamper(
+			new CMSTimestamper(true, LocalTsa.POLICY, this.tsa.getUri(), null, null, null),
+			DIGEST_ALGORITHM
+		);
+	}
+
+	/** Detiene la TSA local. */
+	@After
+	public void paraTsa() {
+		this.tsa.stop();
+	}
+
+	/** Comprueba que, para lotes de distintos tama&ntilde;os (incluidos los impares), se solicita un
+	 * &uacute;nico sello sobre la ra&iacute;z del &aacute;rbol, los caminos tienen la longitud esperada
+	 * y todas las firmas se verifican.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@Test
+	public void testPathsAndVerification() throws Exception {
+		for (int size = 1; size <= 9; size++) {
+			final List<byte[]> pkcs7s = createSignatures(size);
+			final int requests = this.tsa.getImprints().size();
+
+			final List<byte[]> stamped = this.timestamper.addTimestamp(pkcs7s);
+
+			Assert.assertEquals(size, stamped.size());
+			Assert.assertEquals(requests + 1, this.tsa.getImprints().size());
+			final byte[] root = this.tsa.getImprints().get(requests);
+			Assert.assertTrue("Raiz incorrecta para " + size + " hojas", Arrays.equals(getRoot(getLeaves(pkcs7s)), root)); //$NON-NLS-1$ //$NON-NLS-2$
+
+			for (int i = 0; i < size; i++) {
+				Assert.assertTrue(Arrays.equals(getSignature(pkcs7s.get(i), 0), getSignature(stamped.get(i), 0)));
+				Assert.assertEquals(
+					"Longitud del camino de la hoja " + i + " de " + size, //$NON-NLS-1$ //$NON-NLS-2$
+					getExpectedPathLength(i, size),
+					getPath(stamped.get(i), 0).size()
+				);
+				final List<TimeStampToken> tokens = MerkleTimestampVerifier.verify(stamped.get(i));
+				Assert.assertEquals(1, tokens.size());
+				tokens.get(0).validate(new JcaSimpleSignerInfoVerifierBuilder().build(this.tsa.getCertificate()));
+				Assert.assertTrue(Arrays.equals(root, tokens.get(0).getTimeStampInfo().getMessageImprintDigest()));
+			}
+		}
+	}
+
+	/** Comprueba que cada firmante de una estructura con varias firmas es una hoja distinta del &aacute;rbol.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@Test
+	public void testSeveralSignersPerStructure() throws Exception {
+		final KeyPair otherKeys = LocalTsa.generateKeyPair();
+		final X509Certificate otherCert = LocalTsa.createCertificate("CN=Cofirmante de prueba", otherKeys, false); //$NON-NLS-1$
+		final List<byte[]> pkcs7s = new ArrayList<byte[]>();
+		pkcs7s.add(LocalTsa.createSignature(
+			"Documento cofirmado".getBytes(), //$NON-NLS-1$
+			new KeyPair[] { this.signerKeys, otherKeys },
+			new X509Certificate[] { this.signerCert, otherCert }
+		));
+		pkcs7s.addAll(createSignatures(2));
+
+		final List<byte[]> stamped = this.timestamper.addTimestamp(pkcs7s);
+
+		Assert.assertTrue(Arrays.equals(getRoot(getLeaves(pkcs7s)), this.tsa.getImprints().get(0)));
+		Assert.assertEquals(2, MerkleTimestampVerifier.verify(stamped.get(0)).size());
+		Assert.assertEquals(1, MerkleTimestampVerifier.verify(stamped.get(1)).size());
+		Assert.assertEquals(1, MerkleTimestampVerifier.verify(stamped.get(2)).size());
+	}
+
+	/** Comprueba que se detectan los sellos agregados que no corresponden a su firma.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@Test
+	public void testTamperedPath() throws Exception {
+		final List<byte[]> stamped = this.timestamper.addTimestamp(createSignatures(5));
+
+		// Sello y camino de otra firma del lote
+		final Attribute foreign = getAggregatedAttribute(stamped.get(1), 0);
+		assertVerificationFails(replaceAggregatedAttribute(stamped.get(0), foreign));
+
+		// Camino con un nodo alterado
+		final ASN1Sequence value = ASN1Sequence.getInstance(getAggregatedAttribute(stamped.get(4), 0).getAttrValues().getObjectAt(0));
+		final ASN1Sequence path = ASN1Sequence.getInstance(value.getObjectAt(1));
+		final ASN1Sequence node = ASN1Sequence.getInstance(path.getObjectAt(0));
+		final byte[] hash = ASN1OctetString.getInstance(node.getObjectAt(1)).getOctets().clone();
+		hash[0] ^= 0x01;
+		final ASN1EncodableVector newNode = new ASN1EncodableVector();
+		newNode.add(node.getObjectAt(0));
+		newNode.add(new DEROctetString(hash));
+		final ASN1EncodableVector newPath = new ASN1EncodableVector();
+		newPath.add(new DERSequence(newNode));
+		for (int i = 1; i < path.size(); i++) {
+			newPath.add(path.getObjectAt(i));
+		}
+		final ASN1EncodableVector newValue = new ASN1EncodableVector();
+		newValue.add(value.getObjectAt(0));
+		newValue.add(new DERSequence(newPath));
+		newValue.add(value.getObjectAt(2));
+		assertVerificationFails(replaceAggregatedAttribute(
+			stamped.get(4),
+			new Attribute(new ASN1ObjectIdentifier(MerkleTimestamper.AGGREGATED_TIMESTAMP_OID), new DERSet(new DERSequence(newValue)))
+		));
+	}
+
+	/** Comprueba que las firmas sin sello agregado no devuelven sellos.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@Test
+	public void testUnstampedSignature() throws Exception {
+		Assert.assertTrue(MerkleTimestampVerifier.verify(createSignatures(1).get(0)).isEmpty());
+		Assert.assertTrue(this.timestamper.addTimestamp(new ArrayList<byte[]>()).isEmpty());
+		Assert.assertTrue(this.tsa.getImprints().isEmpty());
+	}
+
+	/** Comprueba el sellado individual usado cuando no se puede obtener el sello agregado.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@Test
+	public void testIndividualTimestamp() throws Exception {
+		final byte[] pkcs7 = createSignatures(1).get(0);
+
+		this.tsa.failNextRequests(1);
+		try {
+			this.timestamper.addTimestamp(Collections.singletonList(pkcs7));
+			Assert.fail("La TSA deberia haber rechazado la peticion"); //$NON-NLS-1$
+		}
+		catch (final Exception e) {
+			// Esperado
+		}
+
+		final byte[] stamped = this.timestamper.addIndividualTimestamp(pkcs7);
+		Assert.assertTrue(MerkleTimestampVerifier.verify(stamped).isEmpty());
+		Assert.assertTrue(Arrays.equals(
+			MessageDigest.getInstance(DIGEST_ALGORITHM).digest(getSignature(pkcs7, 0)),
+			this.tsa.getImprints().get(0)
+		));
+	}
+
+	private List<byte[]> createSignatures(final int count) throws Exception {
+		final List<byte[]> pkcs7s = new ArrayList<byte[]>(count);
+		for (int i = 0; i < count; i++) {
+			pkcs7s.add(LocalTsa.createSignature(
+				("Documento " + i).getBytes(), //$NON-NLS-1$
+				new KeyPair[] { this.signerKeys },
+				new X509Certificate[] { this.signerCert }
+			));
+		}
+		return pkcs7s;
+	}
+
+	/** Calcula las hojas del &aacute;rbol de un lote de firmas de forma independiente al estampador.
+	 * @param pkcs7s Lote de firmas.
+	 * @return Hojas del &aacute;rbol. */
+	private static List<byte[]> getLeaves(final List<byte[]> pkcs7s) throws Exception {
+		final List<byte[]> leaves = new ArrayList<byte[]>();
+		for (final byte[] pkcs7 : pkcs7s) {
+			for (final Object si : new CMSSignedData(pkcs7).getSignerInfos().getSigners()) {
+				final byte[] signatureDigest = sha256(((SignerInformation) si).getSignature());
+				leaves.add(sha256(new byte[] { 0x00 }, signatureDigest));
+			}
+		}
+		return leaves;
+	}
+
+	/** Calcula recursivamente la ra&iacute;z del &aacute;rbol: el sub&aacute;rbol izquierdo tiene
+	 * tantas hojas como la mayor potencia de dos menor que el n&uacute;mero de hojas, lo que equivale
+	 * a promocionar sin cambios el &uacute;ltimo nodo de los niveles impares.
+	 * @param leaves Hojas del &aacute;rbol.
+	 * @return Ra&iacute;z del &aacute;rbol. */
+	private static byte[] getRoot(final List<byte[]> leaves) throws Exception {
+		if (leaves.size() == 1) {
+			return leaves.get(0);
+		}
+		int split = 1;
+		while (split * 2 < leaves.size()) {
+			split *= 2;
+		}
+		return sha256(
+			new byte[] { 0x01 },
+			getRoot(leaves.subList(0, split)),
+			getRoot(leaves.subList(split, leaves.size()))
+		);
+	}
+
+	private static int getExpectedPathLength(final int leafIndex, final int leafCount) {
+		int length = 0;
+		int index = leafIndex;
+		int count = leafCount;
+		while (count > 1) {
+			if ((index ^ 1) < count) {
+				length++;
+			}
+			index >>= 1;
+			count = (count + 1) / 2;
+		}
+		return length;
+	}
+
+	private static byte[] sha256(final byte[]... parts) throws Exception {
+		final MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+		for (final byte[] part : parts) {
+			md.update(part);
+		}
+		return md.digest();
+	}
+
+	private static SignerInformation getSigner(final byte[] pkcs7, final int index) throws Exception {
+		return (SignerInformation) new ArrayList<Object>(new CMSSignedData(pkcs7).getSignerInfos().getSigners()).get(index);
+	}
+
+	private static byte[] getSignature(final byte[] pkcs7, final int index) throws Exception {
+		return getSigner(pkcs7, index).getSignature();
+	}
+
+	private static Attribute getAggregatedAttribute(final byte[] pkcs7, final int index) throws Exception {
+		return getSigner(pkcs7, index).getUnsignedAttributes().get(new ASN1ObjectIdentifier(MerkleTimestamper.AGGREGATED_TIMESTAMP_OID));
+	}
+
+	private static ASN1Sequence getPath(final byte[] pkcs7, final int index) throws Exception {
+		return ASN1Sequence.getInstance(
+			ASN1Sequence.getInstance(getAggregatedAttribute(pkcs7, index).getAttrValues().getObjectAt(0)).getObjectAt(1)
+		);
+	}
+
+	private static byte[] replaceAggregatedAttribute(final byte[] pkcs7, final Attribute attribute) throws Exception {
+		final CMSSignedData signedData = new CMSSignedData(pkcs7);
+		final SignerInformation si = (SignerInformation) signedData.getSignerInfos().getSigners().iterator().next();
+		final ASN1EncodableVector atts = new ASN1EncodableVector();
+		atts.add(attribute);
+		return CMSSignedData.replaceSigners(
+			signedData,
+			new SignerInformationStore(Arrays.asList(SignerInformation.replaceUnsignedAttributes(si, new AttributeTable(atts))))
+		).getEncoded();
+	}
+
+	private static void assertVerificationFails(final byte[] pkcs7) {
+		try {
+			MerkleTimestampVerifier.verify(pkcs7);
+			Assert.fail("Se ha aceptado un sello agregado que no corresponde a la firma"); //$NON-NLS-1$
+		}
+		catch (final AOException e) {
+			// Esperado
+		}
+	}
+}
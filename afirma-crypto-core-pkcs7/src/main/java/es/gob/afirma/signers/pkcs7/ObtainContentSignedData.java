@@ -15,6 +15,7 @@ import java.util.Enumeration;
 import java.util.logging.Logger;
 
 import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1OctetString;
 import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.ASN1Set;
 import org.bouncycastle.asn1.ASN1TaggedObject;
@@ -65,7 +66,7 @@ public final class ObtainContentSignedData {
 			final ContentInfo ci = sd.getEncapContentInfo();
 			// obtenemos el contenido si lo tiene.
 			if (ci.getContent() != null) {
-				contenido = ((DEROctetString) ci.getContent()).getOctets();
+				contenido = ((ASN1OctetString) ci.getContent()).getOctets();
 			}
 			else {
 				LOGGER.warning("No existe contenido en esta firma."); //$NON-NLS-1$
@@ -90,26 +91,17 @@ public final class ObtainContentSignedData {
 	 * @throws IOException Si no se pueden leer los datos */
 	public static byte[] obtainMessageDigest(final byte[] signature, final String digestAlgorithm) throws IOException {
 
-		// LEEMOS EL FICHERO QUE NOS INTRODUCEN
-		final ASN1InputStream is = new ASN1InputStream(signature);
-		final ASN1Sequence dsq  = (ASN1Sequence) is.readObject();
-		is.close();
-
-		final Enumeration<?> e = dsq.getObjects();
-
-		// Elementos que contienen los elementos OID Data
-		final DERObjectIdentifier doi = (DERObjectIdentifier) e.nextElement();
-
-		// Comprobamos que sea una firma
-		if (!doi.equals(PKCSObjectIdentifiers.signedData)) {
-			LOGGER.warning("No se puede obtener el contenido de esta firma."); //$NON-NLS-1$
+		// Leemos la estructura de la firma sin cargar el contenido firmado
+		final SignedDataInspector signedData;
+		try {
+			signedData = SignedDataInspector.inspect(signature);
+		}
+		catch (final IOException e) {
+			// Comprobamos que sea una firma
+			LOGGER.warning("No se puede obtener el contenido de esta firma: " + e); //$NON-NLS-1$
 			return null;
 		}
-
-		// Contenido a obtener informacion
-		final ASN1TaggedObject doj = (ASN1TaggedObject) e.nextElement();
-		final SignedData sd = SignedData.getInstance(doj.getObject());
-		final ASN1Set signerInfosSd = sd.getSignerInfos();
+		final ASN1Set signerInfosSd = signedData.getSignerInfos();
 
 		byte[] messageDigest = null;
 
@@ -12,6 +12,8 @@ package es.gob.afirma.signers.pkcs7;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.text.ParseException;
@@ -19,19 +21,19 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
-import org.bouncycastle.asn1.ASN1InputStream;
+import javax.security.auth.x500.X500Principal;
+
 import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.ASN1Set;
-import org.bouncycastle.asn1.ASN1TaggedObject;
-import org.bouncycastle.asn1.DERInteger;
 import org.bouncycastle.asn1.DERUTCTime;
 import org.bouncycastle.asn1.cms.Attribute;
 import org.bouncycastle.asn1.cms.CMSAttributes;
 import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
-import org.bouncycastle.asn1.cms.SignedData;
 import org.bouncycastle.asn1.cms.SignerInfo;
 import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
 
@@ -80,32 +82,33 @@ public final class ReadNodesTree {
      *         Si ocurre alg&uacute;n problema leyendo o escribiendo los
      *         datos */
     public AOTreeModel readNodesTree(final byte[] data, final boolean asSimpleSignInfo) throws IOException {
+        // Leemos la estructura de la firma sin cargar el contenido firmado
+        return readNodesTree(SignedDataInspector.inspect(data), asSimpleSignInfo);
+    }
 
-        // LEEMOS EL FICHERO QUE NOS INTRODUCEN
-    	final ASN1InputStream is = new ASN1InputStream(data);
-        final ASN1Sequence dsq = (ASN1Sequence) is.readObject();
-        is.close();
-        final Enumeration<?> contentsData = dsq.getObjects();
-
-        // Elementos que contienen los elementos OID SignedData
-        contentsData.nextElement();
+    /** Genera el &aacute;rbol que representa las firmas leyendo la firma de un flujo de datos.
+     * El contenido firmado se recorre sin almacenarlo, por lo que la memoria usada no depende
+     * de su tama&ntilde;o.
+     * @param sign
+     *        Flujo de lectura de la firma. No se cierra.
+     * @param asSimpleSignInfo
+     *        Indica si deben extraerse informacion b&aacute;sica de la
+     *        firma o solo los nombres.
+     * @return Un modelo de &aacute;rbol.
+     * @throws java.io.IOException
+     *         Si ocurre alg&uacute;n problema leyendo los datos */
+    public AOTreeModel readNodesTree(final InputStream sign, final boolean asSimpleSignInfo) throws IOException {
+        return readNodesTree(SignedDataInspector.inspect(sign), asSimpleSignInfo);
+    }
 
-        // Contenido de SignedData
-        final ASN1TaggedObject doj = (ASN1TaggedObject) contentsData.nextElement();
-        final ASN1Sequence contentSignedData = (ASN1Sequence) doj.getObject();
+    private AOTreeModel readNodesTree(final SignedDataInspector signedData, final boolean asSimpleSignInfo) {
 
-        // Raiz de la secuencia de SignerInfo
         // Obtenemos los signerInfos del SignedData
-        ASN1Set signerInfosSd = null;
-        ASN1Set certificates = null;
-        try {
-            final SignedData sd = SignedData.getInstance(contentSignedData);
-            signerInfosSd = sd.getSignerInfos();
-            certificates = sd.getCertificates();
-        }
-        catch (final Exception e) {
-            LOGGER.severe("Error obteniendo los SignerInfos del SignedData: " + e); //$NON-NLS-1$
-        }
+        final ASN1Set signerInfosSd = signedData.getSignerInfos();
+        final ASN1Set certificates = signedData.getCertificates();
+
+        // Decodificamos una unica vez los certificados, que se buscaran para cada firmante
+        final Map<IssuerSerial, X509Certificate> certIndex = indexCertificates(certificates);
 
         // Para la creacion del arbol
         final AOTreeNode raiz = new AOTreeNode("Datos"); //$NON-NLS-1$
@@ -116,14 +119,14 @@ public final class ReadNodesTree {
             for (int i = 0; i < signerInfosSd.size(); i++) {
                 final ASN1Sequence atribute = (ASN1Sequence) signerInfosSd.getObjectAt(i);
                 final IssuerAndSerialNumber issuerSerial = new IssuerAndSerialNumber((ASN1Sequence) atribute.getObjectAt(1));
-                final X509Certificate[] nameSigner = searchCert(certificates, issuerSerial.getSerialNumber());
+                final X509Certificate[] nameSigner = searchCert(certIndex, issuerSerial);
                 final SignerInfo si = new SignerInfo(atribute);
                 final Date signingTime = getSigningTime(si);
                 final AOSimpleSignInfo aossi = new AOSimpleSignInfo(nameSigner, signingTime);
                 aossi.setPkcs1(si.getEncryptedDigest().getOctets());
                 this.rama = new AOTreeNode(aossi);
                 this.listaCert.add(nameSigner);
-                getUnsignedAtributesWithCertificates(si.getUnauthenticatedAttributes(), this.rama, certificates);
+                getUnsignedAtributesWithCertificates(si.getUnauthenticatedAttributes(), this.rama, certIndex);
 
                 raiz.add(this.rama);
             }
@@ -132,11 +135,11 @@ public final class ReadNodesTree {
             for (int i = 0; i < signerInfosSd.size(); i++) {
                 final ASN1Sequence atribute = (ASN1Sequence) signerInfosSd.getObjectAt(i);
                 final IssuerAndSerialNumber issuerSerial = new IssuerAndSerialNumber((ASN1Sequence) atribute.getObjectAt(1));
-                final String nameSigner = searchName(certificates, issuerSerial.getSerialNumber());
+                final String nameSigner = searchName(certIndex, issuerSerial);
                 final SignerInfo si = new SignerInfo(atribute);
                 this.rama = new AOTreeNode(nameSigner);
                 this.lista.add(nameSigner);
-                getUnsignedAtributes(si.getUnauthenticatedAttributes(), this.rama, certificates);
+                getUnsignedAtributes(si.getUnauthenticatedAttributes(), this.rama, certIndex);
 
                 raiz.add(this.rama);
             }
@@ -150,9 +153,11 @@ public final class ReadNodesTree {
      *        Atributos en los que puede estar la contrafirma.
      * @param ramahija
      *        Rama hija donde buscar los siguientes nodos.
-     * @param certificates
-     *        Certificados. */
-    private void getUnsignedAtributesWithCertificates(final ASN1Set signerInfouAtrib, final AOTreeNode ramahija, final ASN1Set certificates) {
+     * @param certIndex
+     *        Certificados indexados por emisor y n&uacute;mero de serie. */
+    private void getUnsignedAtributesWithCertificates(final ASN1Set signerInfouAtrib,
+                                                      final AOTreeNode ramahija,
+                                                      final Map<IssuerSerial, X509Certificate> certIndex) {
 
         if (signerInfouAtrib != null) {
             final Enumeration<?> eAtributes = signerInfouAtrib.getObjects();
@@ -167,14 +172,14 @@ public final class ReadNodesTree {
                             final ASN1Sequence atrib = (ASN1Sequence) obj;
                             final IssuerAndSerialNumber issuerSerial = new IssuerAndSerialNumber((ASN1Sequence) atrib.getObjectAt(1));
                             final SignerInfo si = new SignerInfo(atrib);
-                            final X509Certificate[] nameSigner = searchCert(certificates, issuerSerial.getSerialNumber());
+                            final X509Certificate[] nameSigner = searchCert(certIndex, issuerSerial);
                             final Date signingTime = getSigningTime(si);
                             final AOSimpleSignInfo aossi = new AOSimpleSignInfo(nameSigner, signingTime);
                             aossi.setPkcs1(si.getEncryptedDigest().getOctets());
                             this.rama2 = new AOTreeNode(aossi);
                             this.listaCert.add(nameSigner);
                             ramahija.add(this.rama2);
-                            getUnsignedAtributesWithCertificates(si.getUnauthenticatedAttributes(), this.rama2, certificates);
+                            getUnsignedAtributesWithCertificates(si.getUnauthenticatedAttributes(), this.rama2, certIndex);
                         }
                     }
                 }
@@ -188,9 +193,11 @@ public final class ReadNodesTree {
      *        Atributos en los que puede estar la contrafirma.
      * @param ramahija
      *        Rama hija donde buscar los siguientes nodos.
-     * @param certificates
-     *        Certificados. */
-    private void getUnsignedAtributes(final ASN1Set signerInfouAtrib, final AOTreeNode ramahija, final ASN1Set certificates) {
+     * @param certIndex
+     *        Certificados indexados por emisor y n&uacute;mero de serie. */
+    private void getUnsignedAtributes(final ASN1Set signerInfouAtrib,
+                                      final AOTreeNode ramahija,
+                                      final Map<IssuerSerial, X509Certificate> certIndex) {
 
         if (signerInfouAtrib != null) {
             final Enumeration<?> eAtributes = signerInfouAtrib.getObjects();
@@ -205,11 +212,11 @@ public final class ReadNodesTree {
                             final ASN1Sequence atrib = (ASN1Sequence) obj;
                             final IssuerAndSerialNumber issuerSerial = new IssuerAndSerialNumber((ASN1Sequence) atrib.getObjectAt(1));
                             final SignerInfo si = new SignerInfo(atrib);
-                            final String nameSigner = searchName(certificates, issuerSerial.getSerialNumber());
+                            final String nameSigner = searchName(certIndex, issuerSerial);
                             this.rama2 = new AOTreeNode(nameSigner);
                             this.lista.add(nameSigner);
                             ramahija.add(this.rama2);
-                            getUnsignedAtributes(si.getUnauthenticatedAttributes(), this.rama2, certificates);
+                            getUnsignedAtributes(si.getUnauthenticatedAttributes(), this.rama2, certIndex);
                         }
                     }
                 }
@@ -272,55 +279,93 @@ public final class ReadNodesTree {
         return simplificado;
     }
 
-    /** M&eacute;todo que, apartir de un numero de serie de un certificado,
-     * devuelve su nombre com&uacute;n (CN). De no existir el CN,
-     * devolver&aacute; el nombre de la unidad organizativa.
+    /** Decodifica una &uacute;nica vez los certificados de una firma y los indexa por emisor y
+     * n&uacute;mero de serie.
      * @param certificates
      *        Certificados de los firmantes.
-     * @param serialNumber
-     *        N&uacute;mero de serie del certificado a firmar.
-     * @return El nombre com&uacute;n. */
-    private static String searchName(final ASN1Set certificates, final DERInteger serialNumber) {
+     * @return &Iacute;ndice de certificados. */
+    private static Map<IssuerSerial, X509Certificate> indexCertificates(final ASN1Set certificates) {
+        final Map<IssuerSerial, X509Certificate> index = new HashMap<IssuerSerial, X509Certificate>();
+        if (certificates == null) {
+            return index;
+        }
+        final CertificateFactory cf;
+        try {
+            cf = CertificateFactory.getInstance("X.509"); //$NON-NLS-1$
+        }
+        catch (final Exception e) {
+            LOGGER.severe("No se ha podido obtener la factoria de certificados X.509: " + e); //$NON-NLS-1$
+            return index;
+        }
         final Enumeration<?> certSet = certificates.getObjects();
         while (certSet.hasMoreElements()) {
             final X509Certificate c;
             try {
-                c = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(((ASN1Sequence) certSet.nextElement()).getEncoded())); //$NON-NLS-1$
+                c = (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(((ASN1Sequence) certSet.nextElement()).getEncoded()));
             }
             catch(final Exception e) {
                 LOGGER.severe("Error extrayendo los certificados del Set ASN.1, puede que se haya omitido un elemento valido" + e); //$NON-NLS-1$
                 continue;
             }
-            if (c.getSerialNumber().equals(serialNumber.getValue())) {
-                return AOUtil.getCN(c);
+            final IssuerSerial key = new IssuerSerial(c.getIssuerX500Principal(), c.getSerialNumber());
+            // Si hay certificados repetidos nos quedamos con el primero, como en la busqueda secuencial
+            if (!index.containsKey(key)) {
+                index.put(key, c);
             }
         }
+        return index;
+    }
+
+    /** Busca en el &iacute;ndice de certificados el de un firmante.
+     * @param certIndex
+     *        Certificados indexados por emisor y n&uacute;mero de serie.
+     * @param issuerSerial
+     *        Emisor y n&uacute;mero de serie del certificado del firmante.
+     * @return Certificado del firmante o <code>null</code> si no se encuentra. */
+    private static X509Certificate findCert(final Map<IssuerSerial, X509Certificate> certIndex,
+                                            final IssuerAndSerialNumber issuerSerial) {
+        final X500Principal issuer;
+        try {
+            issuer = new X500Principal(issuerSerial.getName().getEncoded());
+        }
+        catch (final Exception e) {
+            LOGGER.severe("No se ha podido obtener el emisor del certificado del firmante: " + e); //$NON-NLS-1$
+            return null;
+        }
+        return certIndex.get(new IssuerSerial(issuer, issuerSerial.getSerialNumber().getValue()));
+    }
+
+    /** M&eacute;todo que, a partir del emisor y el n&uacute;mero de serie de un certificado,
+     * devuelve su nombre com&uacute;n (CN). De no existir el CN,
+     * devolver&aacute; el nombre de la unidad organizativa.
+     * @param certIndex
+     *        Certificados de los firmantes indexados por emisor y n&uacute;mero de serie.
+     * @param issuerSerial
+     *        Emisor y n&uacute;mero de serie del certificado a firmar.
+     * @return El nombre com&uacute;n. */
+    private static String searchName(final Map<IssuerSerial, X509Certificate> certIndex,
+                                     final IssuerAndSerialNumber issuerSerial) {
+        final X509Certificate c = findCert(certIndex, issuerSerial);
+        if (c != null) {
+            return AOUtil.getCN(c);
+        }
         LOGGER.info("No se ha encontrado el certificado indicado, se devolvera una cadena vacia"); //$NON-NLS-1$
         return ""; //$NON-NLS-1$
     }
 
-    /** A partir de un numero de serie de un certificado, devuelve un array con
+    /** A partir del emisor y el n&uacute;mero de serie de un certificado, devuelve un array con
      * el certificado y su cadena de confianza.
-     * @param certificates
-     *        Certificados de los firmantes.
-     * @param serialNumber
-     *        N&uacute;mero de serie del certificado a firmar.
+     * @param certIndex
+     *        Certificados de los firmantes indexados por emisor y n&uacute;mero de serie.
+     * @param issuerSerial
+     *        Emisor y n&uacute;mero de serie del certificado a firmar.
      * @return El certificado (en la posici&oacute;n 0 y su cadena de confianza
      *         en orden). */
-    private static X509Certificate[] searchCert(final ASN1Set certificates, final DERInteger serialNumber) {
-        final Enumeration<?> certSet = certificates.getObjects();
-        while (certSet.hasMoreElements()) {
-            final X509Certificate c;
-            try {
-                c = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(((ASN1Sequence) certSet.nextElement()).getEncoded())); //$NON-NLS-1$
-            }
-            catch(final Exception e) {
-                LOGGER.severe("Error extrayendo los certificados del Set ASN.1, puede que se haya omitido un elemento valido" + e); //$NON-NLS-1$
-                continue;
-            }
-            if (c.getSerialNumber().equals(serialNumber.getValue())) {
-                return new X509Certificate[] { c };
-            }
+    private static X509Certificate[] searchCert(final Map<IssuerSerial, X509Certificate> certIndex,
+                                                final IssuerAndSerialNumber issuerSerial) {
+        final X509Certificate c = findCert(certIndex, issuerSerial);
+        if (c != null) {
+            return new X509Certificate[] { c };
         }
         LOGGER.severe("El certificados pedido no estaba en la lista, se devolvera un array vacio"); //$NON-NLS-1$
         return new X509Certificate[0];
@@ -348,4 +393,31 @@ public final class ReadNodesTree {
 
         return returnDate;
     }
+
+    /** Emisor y n&uacute;mero de serie de un certificado, que lo identifican de forma un&iacute;voca.
+     * Los emisores se comparan en su forma can&oacute;nica. */
+    private static final class IssuerSerial {
+
+        private final X500Principal issuer;
+        private final BigInteger serial;
+
+        IssuerSerial(final X500Principal issuer, final BigInteger serial) {
+            this.issuer = issuer;
+            this.serial = serial;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof IssuerSerial)) {
+                return false;
+            }
+            final IssuerSerial other = (IssuerSerial) o;
+            return this.serial.equals(other.serial) && this.issuer.equals(other.issuer);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.issuer.hashCode() + this.serial.hashCode();
+        }
+    }
 }
@@ -0,0 +1,212 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.signers.pkcs7;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1OctetStringParser;
+import org.bouncycastle.asn1.ASN1SequenceParser;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.ASN1SetParser;
+import org.bouncycastle.asn1.ASN1StreamParser;
+import org.bouncycastle.asn1.BERSet;
+import org.bouncycastle.asn1.BERTags;
+import org.bouncycastle.asn1.cms.ContentInfoParser;
+import org.bouncycastle.asn1.cms.SignedDataParser;
+import org.bouncycastle.asn1.cms.SignerInfo;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+
+/** Lector secuencial de la estructura de una firma CMS/CAdES <i>SignedData</i>.
+ * <p>A diferencia de cargar la firma completa con <code>ASN1InputStream</code>, el contenido
+ * encapsulado (<i>eContent</i>) se recorre sin almacenarlo, de forma que la memoria usada
+ * depende &uacute;nicamente del tama&ntilde;o de los certificados y los <i>SignerInfo</i>, y no
+ * del de los datos firmados. Esto permite inspeccionar firmas impl&iacute;citas de gran tama&ntilde;o
+ * directamente desde un fichero o un flujo de datos.</p>
+ * <p>No se calcula ninguna huella digital del contenido ni se comprueban las firmas.</p> */
+public final class SignedDataInspector {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final ASN1ObjectIdentifier contentType;
+    private final boolean contentEncapsulated;
+    private final long contentLength;
+    private final ASN1Set certificates;
+    private final ASN1Set signerInfos;
+
+    private SignedDataInspector(final ASN1ObjectIdentifier contentType,
+                                final boolean contentEncapsulated,
+                                final long contentLength,
+                                final ASN1Set certificates,
+                                final ASN1Set signerInfos) {
+        this.contentType = contentType;
+        this.contentEncapsulated = contentEncapsulated;
+        this.contentLength = contentLength;
+        this.certificates = certificates;
+        this.signerInfos = signerInfos;
+    }
+
+    /** Lee la estructura de una firma <i>SignedData</i>.
+     * @param data Firma <i>SignedData</i>.
+     * @return Estructura de la firma.
+     * @throws IOException Si los datos no son una firma <i>SignedData</i> o no se pueden leer. */
+    public static SignedDataInspector inspect(final byte[] data) throws IOException {
+        if (data == null) {
+            throw new IllegalArgumentException("Los datos de firma no pueden ser nulos"); //$NON-NLS-1$
+        }
+        return inspect(new ByteArrayInputStream(data));
+    }
+
+    /** Lee la estructura de una firma <i>SignedData</i> almacenada en un fichero.
+     * @param file Fichero con la firma <i>SignedData</i>.
+     * @return Estructura de la firma.
+     * @throws IOException Si los datos no son una firma <i>SignedData</i> o no se pueden leer. */
+    public static SignedDataInspector inspect(final File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("El fichero de firma no puede ser nulo"); //$NON-NLS-1$
+        }
+        final InputStream is = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            return inspect(is);
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    /** Lee la estructura de una firma <i>SignedData</i> de un flujo de datos. El flujo se consume
+     * hasta el final de la firma pero no se cierra.
+     * @param is Flujo de lectura de la firma <i>SignedData</i>.
+     * @return Estructura de la firma.
+     * @throws IOException Si los datos no son una firma <i>SignedData</i> o no se pueden leer. */
+    public static SignedDataInspector inspect(final InputStream is) throws IOException {
+        if (is == null) {
+            throw new IllegalArgumentException("El flujo de la firma no puede ser nulo"); //$NON-NLS-1$
+        }
+        try {
+            return parse(new ASN1StreamParser(is));
+        }
+        catch (final IOException e) {
+            throw e;
+        }
+        catch (final Exception e) {
+            // Errores de conversion de tipos ASN.1 por estructuras no validas
+            throw new IOException("Los datos no son una firma SignedData valida: " + e, e); //$NON-NLS-1$
+        }
+    }
+
+    private static SignedDataInspector parse(final ASN1StreamParser parser) throws IOException {
+
+        final ContentInfoParser contentInfo = new ContentInfoParser((ASN1SequenceParser) parser.readObject());
+        if (!PKCSObjectIdentifiers.signedData.equals(contentInfo.getContentType())) {
+            throw new IOException("Los datos no son de tipo SignedData: " + contentInfo.getContentType()); //$NON-NLS-1$
+        }
+        final SignedDataParser signedData = SignedDataParser.getInstance(contentInfo.getContent(BERTags.SEQUENCE));
+
+        // Hay que consumir cada elemento antes de pasar al siguiente
+        signedData.getVersion();
+        readSet(signedData.getDigestAlgorithms());
+
+        final ContentInfoParser encapContentInfo = signedData.getEncapContentInfo();
+        final ASN1ObjectIdentifier eContentType = encapContentInfo.getContentType();
+        final ASN1Encodable eContent = encapContentInfo.getContent(BERTags.OCTET_STRING);
+        long eContentLength = 0;
+        if (eContent instanceof ASN1OctetStringParser) {
+            eContentLength = skip(((ASN1OctetStringParser) eContent).getOctetStream());
+        }
+        else if (eContent != null) {
+            // Contenidos PKCS#7 que no son OCTET STRING, los cargamos
+            eContentLength = eContent.toASN1Primitive().getEncoded().length;
+        }
+
+        final ASN1Set certs = readSet(signedData.getCertificates());
+        readSet(signedData.getCrls());
+        final ASN1Set signers = readSet(signedData.getSignerInfos());
+
+        return new SignedDataInspector(
+            eContentType,
+            eContent != null,
+            eContentLength,
+            certs,
+            signers != null ? signers : new BERSet()
+        );
+    }
+
+    /** Carga todos los elementos de un conjunto ASN.1 conservando su orden.
+     * @param setParser Conjunto ASN.1 en lectura.
+     * @return Conjunto cargado o <code>null</code> si no se proporcion&oacute; ninguno. */
+    private static ASN1Set readSet(final ASN1SetParser setParser) throws IOException {
+        if (setParser == null) {
+            return null;
+        }
+        final ASN1EncodableVector v = new ASN1EncodableVector();
+        ASN1Encodable o;
+        while ((o = setParser.readObject()) != null) {
+            v.add(o.toASN1Primitive());
+        }
+        return new BERSet(v);
+    }
+
+    private static long skip(final InputStream is) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+            total += n;
+        }
+        return total;
+    }
+
+    /** Obtiene el tipo del contenido firmado (<i>eContentType</i>).
+     * @return Tipo del contenido firmado. */
+    public ASN1ObjectIdentifier getContentType() {
+        return this.contentType;
+    }
+
+    /** Indica si la firma contiene los datos firmados (firma impl&iacute;cita).
+     * @return <code>true</code> si la firma contiene los datos, <code>false</code> en caso contrario. */
+    public boolean isContentEncapsulated() {
+        return this.contentEncapsulated;
+    }
+
+    /** Obtiene el tama&ntilde;o del contenido firmado encapsulado en la firma.
+     * @return Tama&ntilde;o en octetos del contenido, o <code>0</code> si la firma no lo contiene. */
+    public long getContentLength() {
+        return this.contentLength;
+    }
+
+    /** Obtiene los certificados de la firma.
+     * @return Certificados de la firma o <code>null</code> si no contiene ninguno. */
+    public ASN1Set getCertificates() {
+        return this.certificates;
+    }
+
+    /** Obtiene los <i>SignerInfo</i> de la firma, con sus atributos firmados y no firmados
+     * (incluidas las contrafirmas).
+     * @return Conjunto de <i>SignerInfo</i>. */
+    public ASN1Set getSignerInfos() {
+        return this.signerInfos;
+    }
+
+    /** Obtiene el <i>SignerInfo</i> indicado de la firma.
+     * @param index Posici&oacute;n del <i>SignerInfo</i>.
+     * @return <i>SignerInfo</i> de la firma. */
+    public SignerInfo getSignerInfo(final int index) {
+        return SignerInfo.getInstance(this.signerInfos.getObjectAt(index));
+    }
+}
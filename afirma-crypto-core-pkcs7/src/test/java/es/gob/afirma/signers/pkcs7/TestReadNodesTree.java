@@ -0,0 +1,237 @@
+package es.gob.afirma.signers.pkcs7;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.SignedData;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.SignerInformationStore;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import es.gob.afirma.core.misc.AOUtil;
+import es.gob.afirma.core.signers.AOSimpleSignInfo;
+import es.gob.afirma.core.util.tree.AOTreeNode;
+
+/** Pruebas de la obtenci&oacute;n del &aacute;rbol de firmantes de una firma <i>SignedData</i>
+ * con varios firmantes, contrafirmas y certificados. */
+public final class TestReadNodesTree {
+
+	private static final String SIGNATURE_ALGORITHM = "SHA256withRSA"; //$NON-NLS-1$
+
+	private static final byte[] DATA = "Datos de prueba".getBytes(); //$NON-NLS-1$
+
+	private static KeyPair keyPair;
+
+	private static X509Certificate certA;
+	private static X509Certificate certB;
+	private static X509Certificate certC;
+	private static X509Certificate certD;
+
+	/** Certificado con el mismo n&uacute;mero de serie que <code>certA</code> pero de otro emisor. */
+	private static X509Certificate certE;
+
+	/** Genera los certificados de los firmantes de las firmas de prueba.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@BeforeClass
+	public static void createCertificates() throws Exception {
+		final KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA"); //$NON-NLS-1$
+		kpg.initialize(1024);
+		keyPair = kpg.generateKeyPair();
+
+		certA = createCertificate("CN=CA Uno", 1, "CN=Firmante A"); //$NON-NLS-1$ //$NON-NLS-2$
+		certB = createCertificate("CN=CA Dos", 2, "CN=Firmante B"); //$NON-NLS-1$ //$NON-NLS-2$
+		certC = createCertificate("CN=CA Uno", 3, "CN=Firmante C"); //$NON-NLS-1$ //$NON-NLS-2$
+		certD = createCertificate("CN=CA Dos", 4, "CN=Firmante D"); //$NON-NLS-1$ //$NON-NLS-2$
+		certE = createCertificate("CN=CA Dos", 1, "CN=Firmante E"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/** Comprueba que los nombres y certificados de los firmantes y contrafirmantes son los mismos
+	 * que se obtienen decodificando secuencialmente los certificados de la firma para cada firmante.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testSameResultAsLinearSearch() throws Exception {
+
+		// A y B firman, C contrafirma a A y D contrafirma a C. Se incluye un certificado sin firmante
+		final CMSSignedData signedData = createSignature(
+			new X509Certificate[] { certA, certB },
+			new X509Certificate[] { certD, certB, certA, certC, createCertificate("CN=CA Tres", 5, "CN=Sin firma") } //$NON-NLS-1$ //$NON-NLS-2$
+		);
+		final SignerInformation signerA = getSigner(signedData, certA);
+		final SignerInformation signerC = countersign(signerA, certC);
+		final SignerInformation countersignedC = SignerInformation.addCounterSigners(
+			signerC,
+			new SignerInformationStore(Arrays.asList(countersign(signerC, certD)))
+		);
+		final SignerInformation countersignedA = SignerInformation.addCounterSigners(
+			signerA,
+			new SignerInformationStore(Arrays.asList(countersignedC))
+		);
+		final List<SignerInformation> signers = new ArrayList<SignerInformation>();
+		for (final Object si : signedData.getSignerInfos().getSigners()) {
+			signers.add(si == signerA ? countersignedA : (SignerInformation) si);
+		}
+		final byte[] sign = CMSSignedData.replaceSigners(signedData, new SignerInformationStore(signers)).getEncoded();
+
+		final ASN1Set certificates = SignedData.getInstance(ContentInfo.getInstance(sign).getContent()).getCertificates();
+
+		// Arbol esperado, en preorden, a partir de la busqueda secuencial
+		final List<X509Certificate> expected = new ArrayList<X509Certificate>();
+		final List<SignerInformation> pending = new ArrayList<SignerInformation>(signers);
+		while (!pending.isEmpty()) {
+			final SignerInformation si = pending.remove(0);
+			expected.add(linearSearch(certificates, si.getSID().getSerialNumber()));
+			@SuppressWarnings("unchecked")
+			final List<SignerInformation> counterSigners = new ArrayList<SignerInformation>(si.getCounterSignatures().getSigners());
+			pending.addAll(0, counterSigners);
+		}
+		Assert.assertEquals(4, expected.size());
+
+		final List<AOTreeNode> nameNodes = preorder((AOTreeNode) new ReadNodesTree().readNodesTree(sign, false).getRoot());
+		final List<AOTreeNode> certNodes = preorder((AOTreeNode) new ReadNodesTree().readNodesTree(sign, true).getRoot());
+		Assert.assertEquals(expected.size(), nameNodes.size());
+		Assert.assertEquals(expected.size(), certNodes.size());
+		for (int i = 0; i < expected.size(); i++) {
+			Assert.assertEquals(AOUtil.getCN(expected.get(i)), nameNodes.get(i).getUserObject());
+			final X509Certificate[] chain = ((AOSimpleSignInfo) certNodes.get(i).getUserObject()).getCerts();
+			Assert.assertEquals(1, chain.length);
+			Assert.assertEquals(expected.get(i), chain[0]);
+		}
+
+		// Estructura del arbol: A con C contrafirmado por D, y B
+		final AOTreeNode root = (AOTreeNode) new ReadNodesTree().readNodesTree(sign, false).getRoot();
+		Assert.assertEquals(2, root.getChildCount());
+		final AOTreeNode nodeA = root.getChildAt(signers.indexOf(countersignedA));
+		Assert.assertEquals("Firmante A", nodeA.getUserObject()); //$NON-NLS-1$
+		Assert.assertEquals("Firmante C", nodeA.getChildAt(0).getUserObject()); //$NON-NLS-1$
+		Assert.assertEquals("Firmante D", nodeA.getChildAt(0).getChildAt(0).getUserObject()); //$NON-NLS-1$
+
+		final int[] nodes = new ReadNodesTree().readNodesFromSigners(new String[] { "Firmante C", "Firmante B" }, sign); //$NON-NLS-1$ //$NON-NLS-2$
+		Assert.assertEquals(2, nodes.length);
+		for (final int node : nodes) {
+			Assert.assertTrue(
+				"Firmante C".equals(nameNodes.get(node).getUserObject()) || "Firmante B".equals(nameNodes.get(node).getUserObject()) //$NON-NLS-1$ //$NON-NLS-2$
+			);
+		}
+	}
+
+	/** Comprueba que dos certificados de distintos emisores con el mismo n&uacute;mero de serie no se
+	 * confunden, al contrario que con la antigua b&uacute;squeda secuencial por n&uacute;mero de serie.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testSameSerialDifferentIssuer() throws Exception {
+		final byte[] sign = createSignature(
+			new X509Certificate[] { certA, certE },
+			new X509Certificate[] { certA, certE }
+		).getEncoded();
+
+		final AOTreeNode root = (AOTreeNode) new ReadNodesTree().readNodesTree(sign, true).getRoot();
+		Assert.assertEquals(2, root.getChildCount());
+		final List<X509Certificate> found = new ArrayList<X509Certificate>();
+		for (int i = 0; i < root.getChildCount(); i++) {
+			found.add(((AOSimpleSignInfo) root.getChildAt(i).getUserObject()).getCerts()[0]);
+		}
+		Assert.assertTrue(found.contains(certA));
+		Assert.assertTrue(found.contains(certE));
+	}
+
+	/** B&uacute;squeda secuencial del certificado de un firmante por su n&uacute;mero de serie,
+	 * decodificando los certificados en cada b&uacute;squeda. */
+	private static X509Certificate linearSearch(final ASN1Set certificates, final BigInteger serialNumber) throws Exception {
+		final Enumeration<?> certSet = certificates.getObjects();
+		while (certSet.hasMoreElements()) {
+			final X509Certificate c = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate( //$NON-NLS-1$
+				new ByteArrayInputStream(((ASN1Sequence) certSet.nextElement()).getEncoded())
+			);
+			if (c.getSerialNumber().equals(serialNumber)) {
+				return c;
+			}
+		}
+		return null;
+	}
+
+	private static List<AOTreeNode> preorder(final AOTreeNode root) {
+		final List<AOTreeNode> nodes = new ArrayList<AOTreeNode>();
+		final Enumeration<AOTreeNode> e = root.preorderEnumeration();
+		// La raiz no es un firmante
+		e.nextElement();
+		while (e.hasMoreElements()) {
+			nodes.add(e.nextElement());
+		}
+		return nodes;
+	}
+
+	private static SignerInformation getSigner(final CMSSignedData signedData, final X509Certificate cert) {
+		for (final Object o : signedData.getSignerInfos().getSigners()) {
+			final SignerInformation si = (SignerInformation) o;
+			if (cert.getSerialNumber().equals(si.getSID().getSerialNumber())) {
+				return si;
+			}
+		}
+		throw new IllegalStateException("No se ha encontrado el firmante"); //$NON-NLS-1$
+	}
+
+	private static SignerInformation countersign(final SignerInformation signer, final X509Certificate cert) throws Exception {
+		final CMSSignedDataGenerator gen = new CMSSignedDataGenerator();
+		gen.addSignerInfoGenerator(
+			new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build()).build(
+				new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(keyPair.getPrivate()),
+				cert
+			)
+		);
+		return (SignerInformation) gen.generateCounterSigners(signer).getSigners().iterator().next();
+	}
+
+	private static CMSSignedData createSignature(final X509Certificate[] signerCerts, final X509Certificate[] certs) throws Exception {
+		final CMSSignedDataGenerator gen = new CMSSignedDataGenerator();
+		for (final X509Certificate cert : signerCerts) {
+			gen.addSignerInfoGenerator(
+				new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build()).build(
+					new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(keyPair.getPrivate()),
+					cert
+				)
+			);
+		}
+		gen.addCertificates(new JcaCertStore(Arrays.asList(certs)));
+		return gen.generate(new CMSProcessableByteArray(DATA), true);
+	}
+
+	private static X509Certificate createCertificate(final String issuer, final int serial, final String subject) throws Exception {
+		final long now = System.currentTimeMillis();
+		return new JcaX509CertificateConverter().getCertificate(
+			new JcaX509v3CertificateBuilder(
+				new X500Name(issuer),
+				BigInteger.valueOf(serial),
+				new Date(now - 3600000),
+				new Date(now + 3600000),
+				new X500Name(subject),
+				keyPair.getPublic()
+			).build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(keyPair.getPrivate()))
+		);
+	}
+}
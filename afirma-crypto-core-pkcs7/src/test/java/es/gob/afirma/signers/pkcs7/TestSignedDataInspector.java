@@ -0,0 +1,215 @@
+package es.gob.afirma.signers.pkcs7;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.Certificate;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.CMSSignedDataStreamGenerator;
+import org.bouncycastle.cms.SignerInfoGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import es.gob.afirma.core.signers.AOSimpleSignInfo;
+import es.gob.afirma.core.util.tree.AOTreeModel;
+import es.gob.afirma.core.util.tree.AOTreeNode;
+
+/** Pruebas del lector secuencial de firmas <i>SignedData</i>. */
+public final class TestSignedDataInspector {
+
+	private static final String SIGNER_CN = "Firmante de prueba"; //$NON-NLS-1$
+	private static final String SIGNATURE_ALGORITHM = "SHA256withRSA"; //$NON-NLS-1$
+
+	/** Datos de prueba, mayores que el bloque de lectura del contenido. */
+	private static final byte[] DATA = new byte[150000];
+	static {
+		for (int i = 0; i < DATA.length; i++) {
+			DATA[i] = (byte) ('a' + i % 26);
+		}
+	}
+
+	private static KeyPair keyPair;
+	private static X509Certificate cert;
+
+	/** Genera la clave y el certificado autofirmado con los que se crean las firmas de prueba.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@BeforeClass
+	public static void createSigner() throws Exception {
+		final KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA"); //$NON-NLS-1$
+		kpg.initialize(1024);
+		keyPair = kpg.generateKeyPair();
+
+		final X500Name name = new X500Name("CN=" + SIGNER_CN); //$NON-NLS-1$
+		final long now = System.currentTimeMillis();
+		cert = new JcaX509CertificateConverter().getCertificate(
+			new JcaX509v3CertificateBuilder(
+				name,
+				BigInteger.ONE,
+				new Date(now - 3600000),
+				new Date(now + 3600000),
+				name,
+				keyPair.getPublic()
+			).build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(keyPair.getPrivate()))
+		);
+	}
+
+	/** Prueba la lectura de una firma impl&iacute;cita codificada en DER.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testDer() throws Exception {
+		final byte[] sign = createSignature(true).toASN1Structure().getEncoded(ASN1Encoding.DER);
+		Assert.assertFalse("La firma usa longitudes indefinidas", sign[1] == (byte) 0x80); //$NON-NLS-1$
+		checkSignature(SignedDataInspector.inspect(sign), true);
+	}
+
+	/** Prueba la lectura de una firma impl&iacute;cita codificada en BER con longitudes indefinidas,
+	 * tanto en memoria como desde un flujo y desde un fichero.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testBerIndefiniteLength() throws Exception {
+		final byte[] sign = createStreamSignature();
+		Assert.assertEquals("La firma no usa longitudes indefinidas", (byte) 0x80, sign[1]); //$NON-NLS-1$
+
+		checkSignature(SignedDataInspector.inspect(sign), true);
+		checkSignature(SignedDataInspector.inspect(new ByteArrayInputStream(sign)), true);
+
+		final File file = File.createTempFile("afirma", ".p7s"); //$NON-NLS-1$ //$NON-NLS-2$
+		try {
+			final OutputStream fos = new FileOutputStream(file);
+			try {
+				fos.write(sign);
+			}
+			finally {
+				fos.close();
+			}
+			checkSignature(SignedDataInspector.inspect(file), true);
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	/** Prueba la lectura de una firma expl&iacute;cita.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testDetached() throws Exception {
+		final byte[] sign = createSignature(false).getEncoded();
+		checkSignature(SignedDataInspector.inspect(sign), false);
+	}
+
+	/** Comprueba que se rechazan los datos que no son una firma <i>SignedData</i>.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testNotSignedData() throws Exception {
+		final byte[] data = new ContentInfo(PKCSObjectIdentifiers.data, new DEROctetString(DATA)).getEncoded();
+		try {
+			SignedDataInspector.inspect(data);
+			Assert.fail("Se ha aceptado un ContentInfo que no es SignedData"); //$NON-NLS-1$
+		}
+		catch (final IOException e) {
+			// Se esperaba
+		}
+		try {
+			SignedDataInspector.inspect(new ByteArrayInputStream(DATA));
+			Assert.fail("Se han aceptado datos que no son ASN.1"); //$NON-NLS-1$
+		}
+		catch (final IOException e) {
+			// Se esperaba
+		}
+	}
+
+	/** Comprueba que el &aacute;rbol de firmantes le&iacute;do de un flujo es el mismo que el le&iacute;do
+	 * de la firma en memoria.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testReadNodesTreeFromStream() throws Exception {
+		final byte[] sign = createStreamSignature();
+
+		final AOTreeNode root = (AOTreeNode) new ReadNodesTree().readNodesTree(new ByteArrayInputStream(sign), false).getRoot();
+		Assert.assertEquals("Datos", root.getUserObject()); //$NON-NLS-1$
+		Assert.assertEquals(1, root.getChildCount());
+		Assert.assertEquals(SIGNER_CN, root.getChildAt(0).getUserObject());
+		Assert.assertEquals(
+			((AOTreeNode) new ReadNodesTree().readNodesTree(sign, false).getRoot()).getChildAt(0).getUserObject(),
+			root.getChildAt(0).getUserObject()
+		);
+
+		final AOTreeModel tree = new ReadNodesTree().readNodesTree(new ByteArrayInputStream(sign), true);
+		final AOSimpleSignInfo signInfo = (AOSimpleSignInfo) ((AOTreeNode) tree.getRoot()).getChildAt(0).getUserObject();
+		Assert.assertEquals(cert, signInfo.getCerts()[0]);
+		Assert.assertNotNull(signInfo.getPkcs1());
+	}
+
+	private static void checkSignature(final SignedDataInspector inspector, final boolean implicit) throws Exception {
+		Assert.assertEquals(PKCSObjectIdentifiers.data, inspector.getContentType());
+		Assert.assertEquals(implicit, inspector.isContentEncapsulated());
+		Assert.assertEquals(implicit ? DATA.length : 0, inspector.getContentLength());
+
+		Assert.assertEquals(1, inspector.getCertificates().size());
+		Assert.assertTrue(Arrays.equals(
+			cert.getEncoded(),
+			Certificate.getInstance(inspector.getCertificates().getObjectAt(0)).getEncoded()
+		));
+
+		Assert.assertEquals(1, inspector.getSignerInfos().size());
+		final IssuerAndSerialNumber sid = IssuerAndSerialNumber.getInstance(inspector.getSignerInfo(0).getSID().getId());
+		Assert.assertEquals(cert.getSerialNumber(), sid.getSerialNumber().getValue());
+	}
+
+	private static CMSSignedData createSignature(final boolean implicit) throws Exception {
+		final CMSSignedDataGenerator gen = new CMSSignedDataGenerator();
+		gen.addSignerInfoGenerator(createSignerInfoGenerator());
+		gen.addCertificates(new JcaCertStore(Collections.singletonList(cert)));
+		return gen.generate(new CMSProcessableByteArray(DATA), implicit);
+	}
+
+	/** Genera una firma impl&iacute;cita codificada en BER con longitudes indefinidas. */
+	private static byte[] createStreamSignature() throws Exception {
+		final CMSSignedDataStreamGenerator gen = new CMSSignedDataStreamGenerator();
+		gen.addSignerInfoGenerator(createSignerInfoGenerator());
+		gen.addCertificates(new JcaCertStore(Collections.singletonList(cert)));
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final OutputStream os = gen.open(baos, true);
+		os.write(DATA);
+		os.close();
+		return baos.toByteArray();
+	}
+
+	private static SignerInfoGenerator createSignerInfoGenerator() throws Exception {
+		return new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build()).build(
+			new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(keyPair.getPrivate()),
+			cert
+		);
+	}
+}
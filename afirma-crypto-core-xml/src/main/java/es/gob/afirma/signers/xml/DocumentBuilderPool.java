@@ -0,0 +1,112 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.signers.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/** Conjunto de analizadores DOM con soporte de espacios de nombres (necesario para XML) que se
+ * reutilizan entre llamadas y pueden usarse desde varios hilos a la vez.
+ * <p>Ni <code>DocumentBuilderFactory</code> ni <code>DocumentBuilder</code> son seguros entre hilos,
+ * as&iacute; que cada analizador se presta en exclusiva durante una operaci&oacute;n y se reinicia
+ * antes de devolverlo al conjunto. Se conservan como mucho {@link #MAX_IDLE_BUILDERS} analizadores
+ * libres.</p> */
+public final class DocumentBuilderPool {
+
+    /** N&uacute;mero m&aacute;ximo de analizadores libres que se conservan para su reutilizaci&oacute;n. */
+    public static final int MAX_IDLE_BUILDERS = 16;
+
+    private static final DocumentBuilderFactory FACTORY = DocumentBuilderFactory.newInstance();
+    static {
+        FACTORY.setNamespaceAware(true);
+    }
+
+    private static final Queue<DocumentBuilder> IDLE_BUILDERS = new ConcurrentLinkedQueue<DocumentBuilder>();
+
+    /** N&uacute;mero de analizadores en {@link #IDLE_BUILDERS}, ya que obtener el tama&ntilde;o de la cola
+     * requiere recorrerla. */
+    private static final AtomicInteger IDLE_COUNT = new AtomicInteger(0);
+
+    private DocumentBuilderPool() {
+        // No permitimos la instanciacion
+    }
+
+    /** Analiza un documento XML.
+     * @param xml Documento XML.
+     * @return &Aacute;rbol DOM del documento.
+     * @throws SAXException Si el documento no es un XML bien formado.
+     * @throws IOException Si hay errores leyendo el documento.
+     * @throws ParserConfigurationException Si no se puede crear el analizador XML. */
+    public static Document parse(final byte[] xml) throws SAXException, IOException, ParserConfigurationException {
+        return parse(new ByteArrayInputStream(xml));
+    }
+
+    /** Analiza un documento XML.
+     * @param is Flujo de lectura del documento XML. No se cierra.
+     * @return &Aacute;rbol DOM del documento.
+     * @throws SAXException Si el documento no es un XML bien formado.
+     * @throws IOException Si hay errores leyendo el documento.
+     * @throws ParserConfigurationException Si no se puede crear el analizador XML. */
+    public static Document parse(final InputStream is) throws SAXException, IOException, ParserConfigurationException {
+        final DocumentBuilder db = borrow();
+        try {
+            return db.parse(is);
+        }
+        finally {
+            release(db);
+        }
+    }
+
+    /** Crea un documento XML vac&iacute;o.
+     * @return Nuevo documento.
+     * @throws ParserConfigurationException Si no se puede crear el analizador XML. */
+    public static Document newDocument() throws ParserConfigurationException {
+        final DocumentBuilder db = borrow();
+        try {
+            return db.newDocument();
+        }
+        finally {
+            release(db);
+        }
+    }
+
+    private static DocumentBuilder borrow() throws ParserConfigurationException {
+        final DocumentBuilder db = IDLE_BUILDERS.poll();
+        if (db != null) {
+            IDLE_COUNT.decrementAndGet();
+            return db;
+        }
+        synchronized (FACTORY) {
+            return FACTORY.newDocumentBuilder();
+        }
+    }
+
+    private static void release(final DocumentBuilder db) {
+        db.reset();
+        if (IDLE_COUNT.incrementAndGet() <= MAX_IDLE_BUILDERS) {
+            IDLE_BUILDERS.offer(db);
+        }
+        else {
+            IDLE_COUNT.decrementAndGet();
+        }
+    }
+}
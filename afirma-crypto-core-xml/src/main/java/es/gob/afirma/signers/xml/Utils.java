@@ -20,14 +20,17 @@ import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URI;
 import java.security.InvalidAlgorithmParameterException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
+import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
@@ -61,12 +64,56 @@ import es.gob.afirma.core.misc.Base64;
 import es.gob.afirma.core.signers.AOSignConstants;
 import es.gob.afirma.core.signers.AOSimpleSignInfo;
 import es.gob.afirma.core.ui.AOUIFactory;
+import es.gob.afirma.core.util.tree.AOTreeNode;
 
 /** Utilidades para las firmas XML. */
 public final class Utils {
 
     private static final Logger LOGGER = Logger.getLogger("es.gob.afirma"); //$NON-NLS-1$
 
+    /** Proveedor del XMLSec instalado, o <code>null</code> si no hay ninguno y se usa el del JRE.
+     * Se busca una &uacute;nica vez, ya que cargarlo (o fallar al hacerlo) es costoso. */
+    private static final Provider XMLSEC_PROVIDER = getXMLSecProvider();
+
+    /** Factor&iacute;a de firmas XML de cada hilo. Las factor&iacute;as no son seguras entre hilos, pero
+     * s&iacute; pueden reutilizarse entre operaciones consecutivas de un mismo hilo. */
+    private static final ThreadLocal<XMLSignatureFactory> DOM_FACTORY = new ThreadLocal<XMLSignatureFactory>() {
+        @Override
+        protected XMLSignatureFactory initialValue() {
+            if (XMLSEC_PROVIDER != null) {
+                try {
+                    return XMLSignatureFactory.getInstance("DOM", XMLSEC_PROVIDER); //$NON-NLS-1$
+                }
+                catch (final Exception e) {
+                    LOGGER.warning("No se ha podido obtener la factoria XML del XMLSec instalado, se usara la del JRE: " + e); //$NON-NLS-1$
+                }
+            }
+            return XMLSignatureFactory.getInstance("DOM"); //$NON-NLS-1$
+        }
+    };
+
+    /** Factor&iacute;a de certificados X.509 de cada hilo. */
+    private static final ThreadLocal<CertificateFactory> CERT_FACTORY = new ThreadLocal<CertificateFactory>() {
+        @Override
+        protected CertificateFactory initialValue() {
+            try {
+                return CertificateFactory.getInstance("X.509"); //$NON-NLS-1$
+            }
+            catch (final CertificateException e) {
+                throw new IllegalStateException("No se ha podido obtener la factoria de certificados X.509: " + e, e); //$NON-NLS-1$
+            }
+        }
+    };
+
+    /** Huellas digitales de cada hilo, indexadas por nombre de algoritmo. No se usan directamente,
+     * sino como prototipos de los que se obtienen copias. */
+    private static final ThreadLocal<Map<String, MessageDigest>> MESSAGE_DIGESTS = new ThreadLocal<Map<String, MessageDigest>>() {
+        @Override
+        protected Map<String, MessageDigest> initialValue() {
+            return new HashMap<String, MessageDigest>();
+        }
+    };
+
     private Utils() {
         // No permitimos la instanciacion
     }
@@ -802,8 +849,14 @@ public final class Utils {
         // Ahora escribimos el XML usando XALAN
         writeXMLwithXALAN(writer, node, xmlEncoding);
 
+        // Sin hoja de estilo no hay cabecera que insertar, asi que no es necesario
+        // recargar el XML para comprobarlo
+        if (styleHref == null) {
+            return baos.toByteArray();
+        }
+
         try {
-            DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(baos.toByteArray()));
+            DocumentBuilderPool.parse(baos.toByteArray());
         }
         catch (final Exception e) {
             LOGGER.severe("No se ha podido recargar el XML para insertar los atributos de la cabecera, quizas la codificacion se vea afectada: " + e); //$NON-NLS-1$
@@ -898,9 +951,7 @@ public final class Utils {
      *        Listado con todos los SignatureValue del documento de firma.
      * @return Identificador de la firma (Signature) referenciada. */
     public static String getCounterSignerReferenceId(final Element signature, final NodeList signatureValues) {
-        // Tomamos la URI de la primera referencia (la del objeto firmado),
-        // evitando el primer caracter de la URI que sera la almohadilla (#)
-        final String uri = ((Element) signature.getElementsByTagNameNS(XMLConstants.DSIGNNS, "Reference").item(0)).getAttribute("URI").substring(1); //$NON-NLS-1$ //$NON-NLS-2$
+        final String uri = getSignedReferenceId(signature);
         String signatureId = ""; //$NON-NLS-1$
         for (int j = 0; j < signatureValues.getLength(); j++) {
             final Element signatureValue = (Element) signatureValues.item(j);
@@ -912,6 +963,72 @@ public final class Utils {
         return signatureId;
     }
 
+    /** Recupera el identificador (id) de la firma sobre la que se ha realizado
+     * una contrafirma usando un &iacute;ndice de los SignatureValue del documento
+     * obtenido con {@link #getSignatureValuesIndex(NodeList)}. Si no se encuentra
+     * la firma a la que se referencia se devuelve cadena vac&iacute;a.
+     * @param signature
+     *        Nodo de la contrafirma.
+     * @param signatureValuesIndex
+     *        &Iacute;ndice de los SignatureValue del documento de firma.
+     * @return Identificador de la firma (Signature) referenciada. */
+    public static String getCounterSignerReferenceId(final Element signature, final Map<String, String> signatureValuesIndex) {
+        final String signatureId = signatureValuesIndex.get(getSignedReferenceId(signature));
+        return signatureId != null ? signatureId : ""; //$NON-NLS-1$
+    }
+
+    /** Obtiene un &iacute;ndice con el identificador de la firma (Signature) a la que pertenece
+     * cada SignatureValue del documento, de forma que las referencias de las contrafirmas se
+     * resuelvan sin recorrer todos los SignatureValue por cada una de ellas.
+     * @param signatureValues
+     *        Listado con todos los SignatureValue del documento de firma.
+     * @return Identificadores de firma por identificador de SignatureValue. */
+    public static Map<String, String> getSignatureValuesIndex(final NodeList signatureValues) {
+        final Map<String, String> index = new HashMap<String, String>(signatureValues.getLength() * 2);
+        for (int j = 0; j < signatureValues.getLength(); j++) {
+            final Element signatureValue = (Element) signatureValues.item(j);
+            final String id = signatureValue.getAttribute("Id"); //$NON-NLS-1$
+            // Como en la busqueda lineal, prevalece el primero en orden de documento
+            if (!index.containsKey(id)) {
+                index.put(id, ((Element) signatureValue.getParentNode()).getAttribute("Id")); //$NON-NLS-1$
+            }
+        }
+        return index;
+    }
+
+    /** Toma la URI de la primera referencia (la del objeto firmado) de una firma,
+     * evitando el primer caracter de la URI que sera la almohadilla (#). */
+    private static String getSignedReferenceId(final Element signature) {
+        return ((Element) signature.getElementsByTagNameNS(XMLConstants.DSIGNNS, "Reference").item(0)).getAttribute("URI").substring(1); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /** Compone el &aacute;rbol de firmantes de un documento de firma en un &uacute;nico recorrido
+     * de sus firmas. Cada contrafirma se a&ntilde;ade como hija de la firma que referencia, que la
+     * precede en el documento, y el resto de firmas cuelgan directamente del nodo ra&iacute;z. Los
+     * hijos de cada nodo quedan en el orden en que aparecen en el documento.
+     * @param treeRoot
+     *        Nodo ra&iacute;z del &aacute;rbol.
+     * @param nodes
+     *        Nodos de cada una de las firmas, en orden de documento.
+     * @param ids
+     *        Identificador de cada una de las firmas.
+     * @param refs
+     *        Identificador de la firma referenciada por cada una de las firmas, o cadena
+     *        vac&iacute;a si no es una contrafirma. */
+    public static void composeSignersTree(final AOTreeNode treeRoot,
+                                          final List<AOTreeNode> nodes,
+                                          final List<String> ids,
+                                          final List<String> refs) {
+        final Map<String, AOTreeNode> signers = new HashMap<String, AOTreeNode>(nodes.size() * 2);
+        for (int i = 0; i < nodes.size(); i++) {
+            final AOTreeNode parent = "".equals(refs.get(i)) ? null : signers.get(refs.get(i)); //$NON-NLS-1$
+            (parent != null ? parent : treeRoot).add(nodes.get(i));
+            if (!"".equals(ids.get(i))) { //$NON-NLS-1$
+                signers.put(ids.get(i), nodes.get(i));
+            }
+        }
+    }
+
     /** Crea un X509Certificate a partir de un certificado en Base64.
      * @param b64Cert
      *        Certificado en Base64. No debe incluir <i>Bag Attributes</i>
@@ -924,7 +1041,7 @@ public final class Utils {
         final X509Certificate cert;
         try {
             final InputStream isCert = new ByteArrayInputStream(Base64.decode(b64Cert));
-            cert = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(isCert); //$NON-NLS-1$
+            cert = (X509Certificate) CERT_FACTORY.get().generateCertificate(isCert);
             try {
                 isCert.close();
             }
@@ -940,21 +1057,61 @@ public final class Utils {
     }
 
     /** Recupera la factor&iacute;a de firmas XML preferente.
+     * <p>La factor&iacute;a es propia del hilo que la solicita, por lo que no debe compartirse con
+     * otros hilos.</p>
      * @return Factor&iacute;a de firmas XML */
     public static XMLSignatureFactory getDOMFactory() {
-		final XMLSignatureFactory fac;
-		try {
-			// Primero comprobamos si hay una version nueva de XMLSec accesible, en cuyo caso, podria
-			// provocar un error el no usarla. Normalmente, ClassCastException al recuperar la factoria.
-			fac =  XMLSignatureFactory.getInstance(
-				"DOM", //$NON-NLS-1$
-				(Provider) Class.forName("org.apache.jcp.xml.dsig.internal.dom.XMLDSigRI").newInstance() //$NON-NLS-1$
-			);
-			LOGGER.info("Se usara la factoria XML del XMLSec instalado"); //$NON-NLS-1$
-		}
-		catch (final Exception e) {
-			return XMLSignatureFactory.getInstance("DOM"); //$NON-NLS-1$
-		}
-		return fac;
+        return DOM_FACTORY.get();
+    }
+
+    /** Recupera una huella digital nueva del algoritmo indicado.
+     * <p>Se obtiene como copia de una huella del hilo actual que se usa como prototipo, lo que evita
+     * buscar el proveedor del algoritmo en cada llamada. Cada llamada devuelve una instancia distinta,
+     * por lo que pueden usarse varias a la vez, incluso del mismo algoritmo.</p>
+     * @param algorithm Nombre del algoritmo de huella digital.
+     * @return Huella digital.
+     * @throws NoSuchAlgorithmException Si el algoritmo no est&aacute; soportado. */
+    public static MessageDigest getMessageDigest(final String algorithm) throws NoSuchAlgorithmException {
+        final Map<String, MessageDigest> digests = MESSAGE_DIGESTS.get();
+        MessageDigest prototype = digests.get(algorithm);
+        if (prototype == null) {
+            prototype = MessageDigest.getInstance(algorithm);
+            digests.put(algorithm, prototype);
+        }
+        try {
+            return (MessageDigest) prototype.clone();
+        }
+        catch (final CloneNotSupportedException e) {
+            // Proveedores que no permiten copiar sus huellas
+            return MessageDigest.getInstance(algorithm);
+        }
+    }
+
+    /** Libera la factor&iacute;a de firmas XML, la factor&iacute;a de certificados y las huellas digitales
+     * que se reutilizan en el hilo actual.
+     * <p>Los servidores que firman desde hilos reutilizados (por ejemplo, los de un contenedor de
+     * <i>servlets</i>) deben llamarlo cuando termine el ciclo de vida de esos hilos o de la
+     * aplicaci&oacute;n, y no en cada petici&oacute;n, ya que estos objetos mantienen referencias a sus
+     * proveedores y, mientras el hilo siga vivo, impedir&iacute;an descargar la aplicaci&oacute;n al
+     * redesplegarla. Las siguientes operaciones del hilo vuelven a crearlos.</p> */
+    public static void clearThreadCaches() {
+        DOM_FACTORY.remove();
+        CERT_FACTORY.remove();
+        MESSAGE_DIGESTS.remove();
+    }
+
+    /** Busca el proveedor de un XMLSec instalado. Si hay una versi&oacute;n nueva de XMLSec accesible
+     * podr&iacute;a provocar un error el no usarla (normalmente, <code>ClassCastException</code> al
+     * recuperar la factor&iacute;a).
+     * @return Proveedor del XMLSec instalado o <code>null</code> si no lo hay. */
+    private static Provider getXMLSecProvider() {
+        try {
+            final Provider provider = (Provider) Class.forName("org.apache.jcp.xml.dsig.internal.dom.XMLDSigRI").newInstance(); //$NON-NLS-1$
+            LOGGER.info("Se usara la factoria XML del XMLSec instalado"); //$NON-NLS-1$
+            return provider;
+        }
+        catch (final Exception e) {
+            return null;
+        }
     }
 }
@@ -0,0 +1,76 @@
+package es.gob.afirma.signers.xml;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Pruebas de los objetos XML que se reutilizan en cada hilo. */
+public final class TestUtils {
+
+	/** Libera los objetos del hilo de pruebas para no afectar a otras pruebas. */
+	@SuppressWarnings("static-method")
+	@After
+	public void clearCaches() {
+		Utils.clearThreadCaches();
+	}
+
+	/** Comprueba que la factor&iacute;a XML se reutiliza en el mismo hilo, que cada hilo tiene la suya
+	 * y que se descarta al liberar los objetos del hilo.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testDOMFactoryReuse() throws Exception {
+		final XMLSignatureFactory factory = Utils.getDOMFactory();
+		Assert.assertNotNull(factory);
+		Assert.assertSame(factory, Utils.getDOMFactory());
+
+		final XMLSignatureFactory[] otherThreadFactory = new XMLSignatureFactory[1];
+		final Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				otherThreadFactory[0] = Utils.getDOMFactory();
+			}
+		});
+		t.start();
+		t.join();
+		Assert.assertNotNull(otherThreadFactory[0]);
+		Assert.assertNotSame(factory, otherThreadFactory[0]);
+
+		Utils.clearThreadCaches();
+		final XMLSignatureFactory newFactory = Utils.getDOMFactory();
+		Assert.assertNotSame(factory, newFactory);
+		Assert.assertSame(newFactory, Utils.getDOMFactory());
+	}
+
+	/** Comprueba que las huellas digitales obtenidas son independientes, de forma que usar una segunda
+	 * huella del mismo algoritmo no altera la primera, tambi&eacute;n tras liberar los objetos del hilo.
+	 * @throws Exception Cuando ocurre cualquier problema. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testMessageDigestIsReentrant() throws Exception {
+		final byte[] outerData = "Datos externos".getBytes("UTF-8"); //$NON-NLS-1$ //$NON-NLS-2$
+		final byte[] innerData = "Datos internos".getBytes("UTF-8"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		for (int i = 0; i < 2; i++) {
+			final MessageDigest outer = Utils.getMessageDigest("SHA-256"); //$NON-NLS-1$
+			outer.update(outerData, 0, 5);
+
+			final MessageDigest inner = Utils.getMessageDigest("SHA-256"); //$NON-NLS-1$
+			Assert.assertNotSame(outer, inner);
+			Assert.assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256").digest(innerData), inner.digest(innerData))); //$NON-NLS-1$
+
+			outer.update(outerData, 5, outerData.length - 5);
+			Assert.assertTrue(
+				"La huella externa se ha visto alterada", //$NON-NLS-1$
+				Arrays.equals(MessageDigest.getInstance("SHA-256").digest(outerData), outer.digest()) //$NON-NLS-1$
+			);
+
+			Utils.clearThreadCaches();
+		}
+	}
+}
@@ -17,6 +17,7 @@ import java.net.URL;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
+import java.util.List;
 import java.util.Locale;
 import java.util.Properties;
 import java.util.logging.Logger;
@@ -25,11 +26,12 @@ import es.gob.afirma.core.AOException;
 import es.gob.afirma.core.AOInvalidFormatException;
 import es.gob.afirma.core.misc.Base64;
 import es.gob.afirma.core.misc.UrlHttpManagerImpl;
-import es.gob.afirma.core.signers.AOPkcs1Signer;
 import es.gob.afirma.core.signers.AOSignConstants;
 import es.gob.afirma.core.signers.AOSignInfo;
 import es.gob.afirma.core.signers.AOSigner;
+import es.gob.afirma.core.signers.BatchItemResult;
 import es.gob.afirma.core.signers.CounterSignTarget;
+import es.gob.afirma.core.signers.TriPhaseBatchSigner;
 import es.gob.afirma.core.util.tree.AOTreeModel;
 
 /** Firmador PAdES en tres fases.
@@ -73,18 +75,6 @@ public final class AOPDFTriPhaseSigner implements AOSigner {
 
 	// Nombres de las propiedades intercambiadas con el servidor como Properties
 	
-	/** Nombre de la propiedad que contiene el n&uacute;mero de firmas proporcionadas. */
-	private static final String PROPERTY_NAME_SIGN_COUNT = "SIGN_COUNT"; //$NON-NLS-1$
-
-	/** Prefijo para las propiedades que almacenan prefirmas. */
-	private static final String PROPERTY_NAME_PRESIGN_PREFIX = "PRE."; //$NON-NLS-1$
-	
-	/** Firma PKCS#1. */
-	private static final String PROPERTY_NAME_PKCS1_SIGN_PREFIX = "PK1."; //$NON-NLS-1$
-	
-	/** Indica si la postfirma requiere la prefirma. */
-	private static final String PROPERTY_NAME_NEED_PRE = "NEED_PRE"; //$NON-NLS-1$
-	
 	/** Indica si la postfirma requiere el identificador o contenido del documento. */
 	private static final String PROPERTY_NAME_NEED_DATA = "NEED_DATA"; //$NON-NLS-1$
 
@@ -186,51 +176,12 @@ public final class AOPDFTriPhaseSigner implements AOSigner {
 		final String needDataProperty = preSignProperties.getProperty(PROPERTY_NAME_NEED_DATA);
 		final boolean needData = needDataProperty != null && "true".equalsIgnoreCase(needDataProperty); //$NON-NLS-1$
 
-		final String needPreProperty = preSignProperties.getProperty(PROPERTY_NAME_NEED_PRE);
-		final boolean needPre = needPreProperty != null && "true".equalsIgnoreCase(needPreProperty); //$NON-NLS-1$
-
 
 		// ----------
 		// FIRMA
 		// ----------
 
-		// Es posible que se ejecute mas de una firma como resultado de haber proporcionado varios
-		// identificadores de datos o en una operacion de contrafirma.
-		int signCount = 1;
-		if (preSignProperties.containsKey(PROPERTY_NAME_SIGN_COUNT)) {
-			signCount = Integer.parseInt(preSignProperties.getProperty(PROPERTY_NAME_SIGN_COUNT));
-		}
-
-		for (int i = 0; i < signCount; i++) {
-			final String base64PreSign = preSignProperties.getProperty(PROPERTY_NAME_PRESIGN_PREFIX + i);
-			if (base64PreSign == null) {
-				throw new AOException("El servidor no ha devuelto la prefirma numero " + i + ": " + new String(preSignResult)); //$NON-NLS-1$ //$NON-NLS-2$
-			}
-
-			final byte[] preSign;
-			try {
-				preSign = Base64.decode(base64PreSign);
-			}
-			catch (final IOException e) {
-				throw new AOException("Error decodificando la prefirma: " + e, e); //$NON-NLS-1$
-			}
-
-			final byte[] pkcs1sign = new AOPkcs1Signer().sign(
-					preSign,
-					algorithm,
-					key,
-					certChain,
-					null // No hay parametros en PKCS#1
-					);
-
-			// Configuramos la peticion de postfirma indicando las firmas PKCS#1 generadas
-			preSignProperties.setProperty(PROPERTY_NAME_PKCS1_SIGN_PREFIX + i, Base64.encode(pkcs1sign));
-			
-			// Si no es necesaria la prefirma para completar la postfirma, la eliminamos
-			if (!needPre) {
-				preSignProperties.remove(PROPERTY_NAME_PRESIGN_PREFIX + i);
-			}
-		}
+		TriPhaseBatchSigner.signPreSigns(preSignProperties, algorithm, key, certChain);
 
 
 		// ---------
@@ -287,6 +238,23 @@ public final class AOPDFTriPhaseSigner implements AOSigner {
 		}
 	}
 
+	/** Firma en tres fases un lote de documentos en formato PAdES con el protocolo por lotes de
+	 * {@link TriPhaseBatchSigner}.
+	 * @param data Datos o identificadores de los documentos a firmar.
+	 * @param algorithm Algoritmo de firma.
+	 * @param key Clave privada del certificado de firma.
+	 * @param certChain Cadena de certificaci&oacute;n.
+	 * @param extraParams Par&aacute;metros de la firma, comunes a todo el lote.
+	 * @return Resultado de la firma de cada documento, en el mismo orden.
+	 * @throws AOException Cuando falla la comunicaci&oacute;n con el servidor. */
+	public List<BatchItemResult<byte[]>> signBatch(final List<byte[]> data,
+			final String algorithm,
+			final PrivateKey key,
+			final Certificate[] certChain,
+			final Properties extraParams) throws AOException {
+		return TriPhaseBatchSigner.sign(PADES_FORMAT, CRYPTO_OPERATION_SIGN, data, algorithm, key, certChain, extraParams);
+	}
+
 	private static String properties2Base64(final Properties p) throws IOException {
 		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		p.store(baos, ""); //$NON-NLS-1$
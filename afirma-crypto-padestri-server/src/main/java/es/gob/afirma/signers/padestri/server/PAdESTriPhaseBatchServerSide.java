@@ -0,0 +1,116 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.signers.padestri.server;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Calendar;
+import java.util.Properties;
+
+import es.gob.afirma.core.AOException;
+import es.gob.afirma.core.misc.Base64;
+import es.gob.afirma.core.signers.AOSignConstants;
+import es.gob.afirma.core.signers.TriPhaseBatchProcessor;
+import es.gob.afirma.signers.padestri.server.PAdESTriPhaseSignerServerSide.PdfPreSignResult;
+
+/** Operaciones de prefirma y postfirma PAdES de los documentos de un lote, para atender las peticiones
+ * del protocolo de firma trif&aacute;sica por lotes con {@link TriPhaseBatchProcessor}.
+ * <p>Genera las firmas con {@link PAdESTriPhaseSignerServerSide}. El <i>FILE_ID</i> y el momento de la
+ * firma de cada documento viajan en sus datos de sesi&oacute;n, y el PDF se solicita de nuevo en la
+ * postfirma (salvo que est&eacute; en la {@link PdfSessionCache}). El resultado de la postfirma de cada
+ * documento es el PDF firmado.</p>
+ * <p>No guarda estado entre la prefirma y la postfirma, por lo que la misma instancia puede atender
+ * peticiones concurrentes.</p> */
+public final class PAdESTriPhaseBatchServerSide implements TriPhaseBatchProcessor.PreSigner, TriPhaseBatchProcessor.PostSigner {
+
+	private static final String PROPERTY_NAME_SIGN_COUNT = "SIGN_COUNT"; //$NON-NLS-1$
+	private static final String PROPERTY_NAME_PRESIGN = "PRE.0"; //$NON-NLS-1$
+	private static final String PROPERTY_NAME_PKCS1_SIGN = "PK1.0"; //$NON-NLS-1$
+	private static final String PROPERTY_NAME_NEED_PRE = "NEED_PRE"; //$NON-NLS-1$
+	private static final String PROPERTY_NAME_NEED_DATA = "NEED_DATA"; //$NON-NLS-1$
+	private static final String PROPERTY_NAME_FILE_ID = "FILEID"; //$NON-NLS-1$
+	private static final String PROPERTY_NAME_SIGN_TIME = "TIME"; //$NON-NLS-1$
+
+	private final String digestAlgorithm;
+
+	/** Crea las operaciones de firma PAdES de un lote.
+	 * @param signatureAlgorithm Algoritmo de firma del lote. */
+	public PAdESTriPhaseBatchServerSide(final String signatureAlgorithm) {
+		if (signatureAlgorithm == null) {
+			throw new IllegalArgumentException("El algoritmo de firma no puede ser nulo"); //$NON-NLS-1$
+		}
+		this.digestAlgorithm = AOSignConstants.getDigestAlgorithmName(signatureAlgorithm);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Properties preSign(final byte[] cert, final Properties extraParams, final byte[] doc) throws Exception {
+
+		final Calendar signTime = Calendar.getInstance();
+
+		final PdfPreSignResult preSign = PAdESTriPhaseSignerServerSide.preSign(
+			this.digestAlgorithm,
+			doc,
+			new X509Certificate[] { toCertificate(cert) },
+			signTime,
+			extraParams
+		);
+
+		final Properties session = new Properties();
+		session.setProperty(PROPERTY_NAME_SIGN_COUNT, "1"); //$NON-NLS-1$
+		session.setProperty(PROPERTY_NAME_PRESIGN, Base64.encode(preSign.getPreSign()));
+		session.setProperty(PROPERTY_NAME_FILE_ID, preSign.getFileID());
+		session.setProperty(PROPERTY_NAME_SIGN_TIME, Long.toString(signTime.getTimeInMillis()));
+		session.setProperty(PROPERTY_NAME_NEED_PRE, Boolean.TRUE.toString());
+		session.setProperty(PROPERTY_NAME_NEED_DATA, Boolean.TRUE.toString());
+		return session;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public byte[] postSign(final byte[] cert, final Properties extraParams, final Properties session, final byte[] doc) throws Exception {
+
+		if (doc == null) {
+			throw new AOException("No se ha recibido el PDF a firmar"); //$NON-NLS-1$
+		}
+
+		final String pkcs1 = session.getProperty(PROPERTY_NAME_PKCS1_SIGN);
+		final String preSign = session.getProperty(PROPERTY_NAME_PRESIGN);
+		final String fileId = session.getProperty(PROPERTY_NAME_FILE_ID);
+		final String signTimeMillis = session.getProperty(PROPERTY_NAME_SIGN_TIME);
+		if (pkcs1 == null || preSign == null || fileId == null || signTimeMillis == null) {
+			throw new AOException("Faltan datos de la prefirma en los datos de sesion"); //$NON-NLS-1$
+		}
+
+		final Calendar signTime = Calendar.getInstance();
+		signTime.setTimeInMillis(Long.parseLong(signTimeMillis));
+
+		return PAdESTriPhaseSignerServerSide.postSign(
+			this.digestAlgorithm,
+			doc,
+			new X509Certificate[] { toCertificate(cert) },
+			extraParams,
+			Base64.decode(pkcs1),
+			Base64.decode(preSign),
+			fileId,
+			signTime,
+			null,
+			null
+		);
+	}
+
+	private static X509Certificate toCertificate(final byte[] cert) throws Exception {
+		return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate( //$NON-NLS-1$
+			new ByteArrayInputStream(cert)
+		);
+	}
+}
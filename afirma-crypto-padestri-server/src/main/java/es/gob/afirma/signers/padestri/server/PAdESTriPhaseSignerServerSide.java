@@ -14,9 +14,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.URI;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Properties;
@@ -43,6 +46,7 @@ import es.gob.afirma.core.misc.AOUtil;
 import es.gob.afirma.core.misc.Base64;
 import es.gob.afirma.core.signers.AOSignConstants;
 import es.gob.afirma.core.signers.AdESPolicy;
+import es.gob.afirma.signers.cades.CAdESSigningContext;
 import es.gob.afirma.signers.cades.CAdESTriPhaseSigner;
 import es.gob.afirma.signers.pkcs7.AOAlgorithmID;
 import es.gob.afirma.signers.tsp.pkcs7.CMSTimestamper;
@@ -165,6 +169,14 @@ public final class PAdESTriPhaseSignerServerSide {
 
     private static final int CSIZE = 27000;
 
+    private static final byte[] HEX_CHARS = "0123456789abcdef".getBytes(); //$NON-NLS-1$
+
+    private static final byte[] BYTE_RANGE = "/ByteRange".getBytes(); //$NON-NLS-1$
+
+    /** Algoritmo de huella digital con el que se comprueba que la post-firma usa el mismo PDF
+     * que la pre-firma cuya sesi&oacute;n se reutiliza. */
+    private static final String SESSION_DIGEST_ALGORITHM = "SHA-256"; //$NON-NLS-1$
+
     /** Obtiene la pre-firma PAdES/CAdES de un PDF (atributos CAdES a firmar)
      * @param digestAlgorithmName Nombre del algoritmo de huella digital usado para la firma. Debe usarse exactamente el mismo valor en la post-firma.
      * <p>Se aceptan los siguientes algoritmos en el par&aacute;metro <code>digestAlgorithmName</code>:</p>
@@ -329,8 +341,6 @@ public final class PAdESTriPhaseSignerServerSide {
 
         final PdfTriPhaseSession ptps = getSessionData(inPDF, signerCertificateChain, signTime, extraParams);
 
-        final byte[] original = AOUtil.getDataFromInputStream(ptps.getSAP().getRangeStream());
-
         // Calculamos el MessageDigest
         final MessageDigest md;
         try {
@@ -339,18 +349,37 @@ public final class PAdESTriPhaseSignerServerSide {
         catch (final NoSuchAlgorithmException e) {
             throw new AOException("El algoritmo de huella digital no es valido", e); //$NON-NLS-1$
         }
-        md.update(original);
+
+        final byte[] digest;
+
+        // Si la cache de sesiones esta activa, guardamos el PDF preparado para no tener
+        // que volver a generarlo en la post-firma, calculando la huella digital a la vez
+        // que se copia. Si no, calculamos la huella digital directamente sobre el flujo
+        // del rango firmado, sin cargarlo en memoria
+        if (PdfSessionCache.isEnabled()) {
+            final byte[] original = AOUtil.getDataFromInputStream(
+        		new DigestInputStream(ptps.getSAP().getRangeStream(), md)
+    		);
+            digest = md.digest();
+            storeSession(ptps.getFileID(), original, inPDF, signerCertificateChain, signTime);
+        }
+        else {
+            digest = AOUtil.digestInputStream(md, ptps.getSAP().getRangeStream());
+        }
 
         // pre-firma CAdES
         return new PdfPreSignResult(
             ptps.getFileID(),
             CAdESTriPhaseSigner.preSign(
-                digestAlgorithmName, // Algoritmo de huella digital
+                // Informacion del firmante, reutilizada si ya ha firmado antes con los mismos parametros
+                CAdESSigningContext.getInstance(
+                    signerCertificateChain, // Cadena de certificados del firmante
+                    digestAlgorithmName, // Algoritmo de huella digital
+                    new AdESPolicy(extraParams), // Politica de firma
+                    true // signingCertificateV2
+                ),
                 null, // Datos a firmar (null por ser explicita))
-                signerCertificateChain, // Cadena de certificados del firmante
-                new AdESPolicy(extraParams), // Politica de firma
-                true, // signingCertificateV2
-                md.digest(), // Valor de la huella digital del contenido
+                digest, // Valor de la huella digital del contenido
                 signTime.getTime(), // Fecha de la firma (debe establecerse externamente para evitar desincronismos en la firma trifasica)
                 true, // Modo PAdES
                 PDF_OID,
@@ -557,7 +586,7 @@ public final class PAdESTriPhaseSignerServerSide {
                 }
                 else {
                     final String tsaHashAlgorithm = extraParams.getProperty("tsaHashAlgorithm"); //$NON-NLS-1$
-                    completeCAdESSignature = new CMSTimestamper(
+                    completeCAdESSignature = CMSTimestamper.getInstance(
                          !Boolean.FALSE.toString().equalsIgnoreCase(extraParams.getProperty("tsaRequireCert")),  //$NON-NLS-1$
                          tsaPolicy,
                          tsaURL,
@@ -587,8 +616,15 @@ public final class PAdESTriPhaseSignerServerSide {
 			);
         }
 
-        final PdfDictionary dic2 = new PdfDictionary();
         System.arraycopy(completeCAdESSignature, 0, outc, 0, completeCAdESSignature.length);
+
+        // Si tenemos el PDF preparado en la pre-firma, solo hay que insertar la firma
+        final byte[] sessionPdf = buildFromSession(fileID, inPDF, signerCertificateChain, signTime, outc);
+        if (sessionPdf != null) {
+            return sessionPdf;
+        }
+
+        final PdfDictionary dic2 = new PdfDictionary();
         dic2.put(PdfName.CONTENTS, new PdfString(outc).setHexWriting(true));
 
         final PdfTriPhaseSession pts = getSessionData(inPDF, signerCertificateChain, signTime, extraParams);
@@ -881,6 +917,154 @@ public final class PAdESTriPhaseSignerServerSide {
         return new PdfTriPhaseSession(sap, baos, new String(pdfObject.getBytes()));
     }
 
+    /** Guarda en la cach&eacute; de sesiones el PDF preparado en la pre-firma.
+     * @param fileID FileID del PDF preparado.
+     * @param rangeBytes Octetos del PDF preparado excluyendo el hueco reservado para la firma.
+     * @param inPDF PDF original.
+     * @param chain Cadena de certificados del firmante.
+     * @param signTime Momento de la firma. */
+    private static void storeSession(final String fileID,
+                                     final byte[] rangeBytes,
+                                     final byte[] inPDF,
+                                     final X509Certificate[] chain,
+                                     final Calendar signTime) {
+        final int contentsOffset = getContentsOffset(rangeBytes);
+        if (contentsOffset < 0) {
+            LOGGER.warning("No se ha encontrado el hueco reservado para la firma, no se guardara la sesion PDF"); //$NON-NLS-1$
+            return;
+        }
+        final byte[] encodedCert;
+        try {
+            encodedCert = chain[0].getEncoded();
+        }
+        catch (final CertificateEncodingException e) {
+            LOGGER.warning("No se ha podido codificar el certificado del firmante, no se guardara la sesion PDF: " + e); //$NON-NLS-1$
+            return;
+        }
+        final byte[] inPdfDigest;
+        try {
+            inPdfDigest = MessageDigest.getInstance(SESSION_DIGEST_ALGORITHM).digest(inPDF);
+        }
+        catch (final NoSuchAlgorithmException e) {
+            LOGGER.warning("No se ha podido calcular la huella digital del PDF, no se guardara la sesion PDF: " + e); //$NON-NLS-1$
+            return;
+        }
+        PdfSessionCache.put(
+    		fileID,
+    		new PdfSessionCache.PdfSession(
+				rangeBytes,
+				contentsOffset,
+				CSIZE * 2 + 2,
+				inPdfDigest,
+				signTime.getTimeInMillis(),
+				encodedCert
+			)
+		);
+    }
+
+    /** Compone el PDF firmado a partir de la sesi&oacute;n guardada en la pre-firma, insertando
+     * la firma en el hueco reservado. Como el PDF es exactamente el de la pre-firma, su FileID
+     * ya es el correcto y no es necesario sustituirlo. La sesi&oacute;n solo se usa si el PDF
+     * original tiene la misma huella digital que el de la pre-firma y coinciden el momento de
+     * la firma y el certificado del firmante.
+     * @param fileID FileID del PDF generado en la pre-firma.
+     * @param inPDF PDF original.
+     * @param chain Cadena de certificados del firmante.
+     * @param signTime Momento de la firma.
+     * @param contents Firma a insertar, ya ajustada al tama&ntilde;o reservado.
+     * @return PDF firmado o {@code null} si no hay una sesi&oacute;n v&aacute;lida para la firma. */
+    private static byte[] buildFromSession(final String fileID,
+                                           final byte[] inPDF,
+                                           final X509Certificate[] chain,
+                                           final Calendar signTime,
+                                           final byte[] contents) {
+        final PdfSessionCache.PdfSession session = PdfSessionCache.take(fileID);
+        if (session == null) {
+            return null;
+        }
+        try {
+            if (inPDF == null ||
+                signTime.getTimeInMillis() != session.getSignTime() ||
+                !Arrays.equals(chain[0].getEncoded(), session.getSignerCertificate()) ||
+                !MessageDigest.isEqual(MessageDigest.getInstance(SESSION_DIGEST_ALGORITHM).digest(inPDF), session.getInPdfDigest())) {
+                    LOGGER.warning("Los datos de la post-firma no coinciden con los de la pre-firma, se regenerara el PDF"); //$NON-NLS-1$
+                    return null;
+            }
+        }
+        catch (final CertificateEncodingException e) {
+            return null;
+        }
+        catch (final NoSuchAlgorithmException e) {
+            return null;
+        }
+
+        final int length = session.getContentsLength();
+        if (contents.length * 2 + 2 > length) {
+            return null;
+        }
+
+        final byte[] range = session.getRangeBytes();
+        final int offset = session.getContentsOffset();
+        final byte[] ret = new byte[range.length + length];
+        System.arraycopy(range, 0, ret, 0, offset);
+        int pos = offset;
+        ret[pos++] = '<';
+        for (final byte b : contents) {
+            ret[pos++] = HEX_CHARS[b >> 4 & 0x0f];
+            ret[pos++] = HEX_CHARS[b & 0x0f];
+        }
+        ret[pos++] = '>';
+        while (pos < offset + length) {
+            ret[pos++] = ' ';
+        }
+        System.arraycopy(range, offset, ret, offset + length, range.length - offset);
+        return ret;
+    }
+
+    /** Obtiene la posici&oacute;n del hueco reservado para la firma a partir del
+     * <i>/ByteRange</i> del diccionario de firma del PDF preparado.
+     * @param rangeBytes Octetos del PDF preparado excluyendo el hueco reservado para la firma.
+     * @return Posici&oacute;n del hueco o <code>-1</code> si no se encuentra o no es coherente
+     *         con el tama&ntilde;o reservado. */
+    private static int getContentsOffset(final byte[] rangeBytes) {
+        // La firma que acabamos de preparar es siempre la ultima del documento
+        int idx = -1;
+        for (int i = rangeBytes.length - BYTE_RANGE.length; i >= 0 && idx < 0; i--) {
+            int j = 0;
+            while (j < BYTE_RANGE.length && rangeBytes[i + j] == BYTE_RANGE[j]) {
+                j++;
+            }
+            if (j == BYTE_RANGE.length) {
+                idx = i + j;
+            }
+        }
+        if (idx < 0) {
+            return -1;
+        }
+        while (idx < rangeBytes.length && rangeBytes[idx] != '[') {
+            idx++;
+        }
+        final long[] range = new long[4];
+        idx++;
+        for (int n = 0; n < range.length; n++) {
+            while (idx < rangeBytes.length && rangeBytes[idx] == ' ') {
+                idx++;
+            }
+            if (idx >= rangeBytes.length || rangeBytes[idx] < '0' || rangeBytes[idx] > '9') {
+                return -1;
+            }
+            while (idx < rangeBytes.length && rangeBytes[idx] >= '0' && rangeBytes[idx] <= '9') {
+                range[n] = range[n] * 10 + rangeBytes[idx++] - '0';
+            }
+        }
+        if (range[0] != 0 ||
+            range[2] - range[1] != CSIZE * 2 + 2 ||
+            range[1] + range[3] != rangeBytes.length) {
+                return -1;
+        }
+        return (int) range[1];
+    }
+
     /** Devuelve la posici&oacute;n de la p&aacute;gina en donde debe agregarse
      * la firma. La medida de posicionamiento es el p&iacute;xel y se cuenta en
      * el eje horizontal de izquierda a derecha y en el vertical de abajo a
@@ -0,0 +1,252 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.signers.padestri.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Cach&eacute; de sesiones de firma PDF trif&aacute;sica.
+ * <p>Guarda entre la prefirma y la postfirma el PDF ya preparado por <i>iText</i> (sin el
+ * espacio reservado para la firma), de forma que la postfirma solo tiene que insertar
+ * la firma en el hueco reservado en vez de volver a procesar el PDF completo.</p>
+ * <p>La cach&eacute; est&aacute; desactivada por defecto. Las entradas caducan pasado el
+ * tiempo configurado y, si se alcanza el n&uacute;mero m&aacute;ximo de entradas o el
+ * tama&ntilde;o total m&aacute;ximo de los PDF almacenados, se descartan las m&aacute;s
+ * antiguas. Las sesiones que por s&iacute; solas superan el tama&ntilde;o m&aacute;ximo no se
+ * almacenan. Si una postfirma no encuentra su sesi&oacute;n en la cach&eacute; se regenera
+ * el PDF igual que si la cach&eacute; estuviese desactivada.</p> */
+public final class PdfSessionCache {
+
+	/** N&uacute;mero m&aacute;ximo de sesiones por defecto. */
+	public static final int DEFAULT_MAX_ENTRIES = 100;
+
+	/** Tama&ntilde;o total m&aacute;ximo por defecto de los PDF almacenados (64 MB). */
+	public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024L;
+
+	/** Tiempo de vida por defecto de las sesiones (5 minutos). */
+	public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000L;
+
+	private static final Object LOCK = new Object();
+
+	private static volatile boolean enabled = false;
+
+	private static int maxEntries = DEFAULT_MAX_ENTRIES;
+
+	private static long maxBytes = DEFAULT_MAX_BYTES;
+
+	private static long ttlMillis = DEFAULT_TTL_MILLIS;
+
+	/** Tama&ntilde;o total de los PDF almacenados. */
+	private static long totalBytes = 0;
+
+	/** Sesiones ordenadas por antig&uuml;edad. */
+	private static final Map<String, PdfSession> SESSIONS = new LinkedHashMap<String, PdfSession>();
+
+	private PdfSessionCache() {
+		// No permitimos la instanciacion
+	}
+
+	/** Activa la cach&eacute; de sesiones con la configuraci&oacute;n por defecto. */
+	public static void enable() {
+		enable(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, DEFAULT_TTL_MILLIS);
+	}
+
+	/** Activa la cach&eacute; de sesiones con el tama&ntilde;o total m&aacute;ximo por defecto.
+	 * @param maxSessions N&uacute;mero m&aacute;ximo de sesiones que se mantienen a la vez.
+	 * @param ttl Tiempo en milisegundos que se mantiene cada sesi&oacute;n. */
+	public static void enable(final int maxSessions, final long ttl) {
+		enable(maxSessions, DEFAULT_MAX_BYTES, ttl);
+	}
+
+	/** Activa la cach&eacute; de sesiones.
+	 * @param maxSessions N&uacute;mero m&aacute;ximo de sesiones que se mantienen a la vez.
+	 * @param maxSize Tama&ntilde;o total m&aacute;ximo en octetos de los PDF almacenados.
+	 * @param ttl Tiempo en milisegundos que se mantiene cada sesi&oacute;n. */
+	public static void enable(final int maxSessions, final long maxSize, final long ttl) {
+		if (maxSessions < 1) {
+			throw new IllegalArgumentException("El numero maximo de sesiones debe ser mayor que cero"); //$NON-NLS-1$
+		}
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("El tamano maximo de la cache debe ser mayor que cero"); //$NON-NLS-1$
+		}
+		if (ttl < 1) {
+			throw new IllegalArgumentException("El tiempo de vida de las sesiones debe ser mayor que cero"); //$NON-NLS-1$
+		}
+		synchronized (LOCK) {
+			maxEntries = maxSessions;
+			maxBytes = maxSize;
+			ttlMillis = ttl;
+			enabled = true;
+			purge(System.currentTimeMillis());
+		}
+	}
+
+	/** Desactiva la cach&eacute; de sesiones y descarta las sesiones almacenadas. */
+	public static void disable() {
+		synchronized (LOCK) {
+			enabled = false;
+			SESSIONS.clear();
+			totalBytes = 0;
+		}
+	}
+
+	/** Indica si la cach&eacute; de sesiones est&aacute; activa.
+	 * @return {@code true} si la cach&eacute; est&aacute; activa, {@code false} en caso contrario. */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Obtiene el n&uacute;mero de sesiones almacenadas actualmente.
+	 * @return N&uacute;mero de sesiones almacenadas. */
+	public static int size() {
+		synchronized (LOCK) {
+			purge(System.currentTimeMillis());
+			return SESSIONS.size();
+		}
+	}
+
+	/** Obtiene el tama&ntilde;o total de los PDF almacenados actualmente.
+	 * @return Tama&ntilde;o en octetos de los PDF almacenados. */
+	public static long byteSize() {
+		synchronized (LOCK) {
+			purge(System.currentTimeMillis());
+			return totalBytes;
+		}
+	}
+
+	static void put(final String fileID, final PdfSession session) {
+		if (!enabled) {
+			return;
+		}
+		synchronized (LOCK) {
+			final PdfSession old = SESSIONS.remove(fileID);
+			if (old != null) {
+				totalBytes -= old.getSize();
+			}
+			if (session.getSize() > maxBytes) {
+				return;
+			}
+			SESSIONS.put(fileID, session);
+			totalBytes += session.getSize();
+			purge(System.currentTimeMillis());
+		}
+	}
+
+	/** Obtiene y retira de la cach&eacute; la sesi&oacute;n asociada a un FileID. Cada
+	 * sesi&oacute;n solo puede usarse en una postfirma.
+	 * @param fileID FileID del PDF generado en la prefirma.
+	 * @return Sesi&oacute;n o {@code null} si no se encuentra o ha caducado. */
+	static PdfSession take(final String fileID) {
+		if (!enabled || fileID == null) {
+			return null;
+		}
+		synchronized (LOCK) {
+			final PdfSession session = SESSIONS.remove(fileID);
+			if (session == null) {
+				return null;
+			}
+			totalBytes -= session.getSize();
+			final long now = System.currentTimeMillis();
+			purge(now);
+			return isExpired(session, now) ? null : session;
+		}
+	}
+
+	/** Descarta las sesiones caducadas y, despu&eacute;s, las m&aacute;s antiguas hasta que
+	 * no se superen el n&uacute;mero ni el tama&ntilde;o m&aacute;ximos. Debe llamarse con el
+	 * bloqueo adquirido.
+	 * @param now Momento actual en milisegundos. */
+	private static void purge(final long now) {
+		final Iterator<PdfSession> it = SESSIONS.values().iterator();
+		while (it.hasNext()) {
+			// Las sesiones estan ordenadas por antiguedad
+			final PdfSession session = it.next();
+			if (!isExpired(session, now) && SESSIONS.size() <= maxEntries && totalBytes <= maxBytes) {
+				break;
+			}
+			it.remove();
+			totalBytes -= session.getSize();
+		}
+	}
+
+	private static boolean isExpired(final PdfSession session, final long now) {
+		return now - session.getCreationTime() > ttlMillis;
+	}
+
+	/** Datos de una sesi&oacute;n de firma PDF trif&aacute;sica. */
+	static final class PdfSession {
+
+		private final byte[] rangeBytes;
+		private final int contentsOffset;
+		private final int contentsLength;
+		private final byte[] inPdfDigest;
+		private final long signTime;
+		private final byte[] signerCertificate;
+		private final long creationTime;
+
+		/** Crea los datos de sesi&oacute;n.
+		 * @param range Octetos del PDF preparado excluyendo el hueco reservado para la firma.
+		 * @param offset Posici&oacute;n en el PDF del hueco reservado para la firma.
+		 * @param length Longitud del hueco reservado para la firma.
+		 * @param pdfDigest Huella digital del PDF original.
+		 * @param time Momento de la firma en milisegundos.
+		 * @param cert Codificaci&oacute;n del certificado del firmante. */
+		PdfSession(final byte[] range,
+				   final int offset,
+				   final int length,
+				   final byte[] pdfDigest,
+				   final long time,
+				   final byte[] cert) {
+			this.rangeBytes = range;
+			this.contentsOffset = offset;
+			this.contentsLength = length;
+			this.inPdfDigest = pdfDigest;
+			this.signTime = time;
+			this.signerCertificate = cert;
+			this.creationTime = System.currentTimeMillis();
+		}
+
+		byte[] getRangeBytes() {
+			return this.rangeBytes;
+		}
+
+		int getContentsOffset() {
+			return this.contentsOffset;
+		}
+
+		int getContentsLength() {
+			return this.contentsLength;
+		}
+
+		byte[] getInPdfDigest() {
+			return this.inPdfDigest;
+		}
+
+		long getSignTime() {
+			return this.signTime;
+		}
+
+		byte[] getSignerCertificate() {
+			return this.signerCertificate;
+		}
+
+		long getCreationTime() {
+			return this.creationTime;
+		}
+
+		/** Obtiene la memoria aproximada que ocupa la sesi&oacute;n.
+		 * @return Tama&ntilde;o en octetos del PDF preparado y del certificado. */
+		long getSize() {
+			return (long) this.rangeBytes.length + (this.signerCertificate != null ? this.signerCertificate.length : 0);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package es.gob.afirma.test.padestri;
+
+import java.security.KeyStore;
+import java.security.KeyStore.PrivateKeyEntry;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Calendar;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lowagie.text.pdf.AcroFields;
+import com.lowagie.text.pdf.PdfPKCS7;
+import com.lowagie.text.pdf.PdfReader;
+
+import es.gob.afirma.core.misc.AOUtil;
+import es.gob.afirma.signers.padestri.server.PAdESTriPhaseSignerServerSide;
+import es.gob.afirma.signers.padestri.server.PAdESTriPhaseSignerServerSide.PdfPreSignResult;
+import es.gob.afirma.signers.padestri.server.PdfSessionCache;
+
+/** Pruebas de la reutilizaci&oacute;n en la postfirma PAdES trif&aacute;sica del PDF preparado
+ * en la prefirma. Comprueban que el PDF compuesto a partir de la sesi&oacute;n es id&eacute;ntico
+ * al regenerado sin ella y que, si la sesi&oacute;n no existe o no corresponde a la postfirma,
+ * se regenera el PDF. */
+public final class TestPdfSessionCache {
+
+	private static final String CERT_PATH = "ANF_PF_Activo.pfx"; //$NON-NLS-1$
+	private static final String CERT_PASS = "12341234"; //$NON-NLS-1$
+	private static final String CERT_ALIAS = "anf usuario activo"; //$NON-NLS-1$
+
+	private static final String TEST_FILE = "TEST_PDF.pdf"; //$NON-NLS-1$
+
+	private static final String DIGEST_ALGORITHM = "SHA-256"; //$NON-NLS-1$
+	private static final String SIGN_ALGORITHM = "SHA256withRSA"; //$NON-NLS-1$
+
+	private PrivateKeyEntry pke;
+	private X509Certificate[] chain;
+	private byte[] pdf;
+
+	/** Carga la clave de firma y el PDF de prueba.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@Before
+	public void setUp() throws Exception {
+		Logger.getLogger("es.gob.afirma").setLevel(Level.WARNING); //$NON-NLS-1$
+		final KeyStore ks = KeyStore.getInstance("PKCS12"); //$NON-NLS-1$
+		ks.load(ClassLoader.getSystemResourceAsStream(CERT_PATH), CERT_PASS.toCharArray());
+		this.pke = (PrivateKeyEntry) ks.getEntry(CERT_ALIAS, new KeyStore.PasswordProtection(CERT_PASS.toCharArray()));
+		this.chain = (X509Certificate[]) this.pke.getCertificateChain();
+		this.pdf = AOUtil.getDataFromInputStream(ClassLoader.getSystemResourceAsStream(TEST_FILE));
+	}
+
+	/** Desactiva la cach&eacute; de sesiones, que es compartida por todas las pruebas. */
+	@After
+	public void tearDown() {
+		PdfSessionCache.disable();
+	}
+
+	/** Comprueba que la postfirma con la sesi&oacute;n guardada en la prefirma obtiene
+	 * exactamente el mismo PDF que la postfirma que lo regenera, y que su firma es v&aacute;lida.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@Test
+	public void testSessionMatchesRegeneratedPdf() throws Exception {
+		PdfSessionCache.enable();
+		final Calendar signTime = Calendar.getInstance();
+		final PdfPreSignResult pre = PAdESTriPhaseSignerServerSide.preSign(DIGEST_ALGORITHM, this.pdf, this.chain, signTime, null);
+		Assert.assertEquals(1, PdfSessionCache.size());
+
+		final byte[] pkcs1 = sign(pre.getPreSign());
+		final byte[] fromSession = postSign(this.pdf, pre, pkcs1, signTime);
+		// Cada sesion solo se usa en una postfirma
+		Assert.assertEquals(0, PdfSessionCache.size());
+
+		PdfSessionCache.disable();
+		final byte[] regenerated = postSign(this.pdf, pre, pkcs1, signTime);
+
+		Assert.assertArrayEquals(regenerated, fromSession);
+		assertValidSignature(fromSession);
+	}
+
+	/** Comprueba que la postfirma regenera el PDF cuando la sesi&oacute;n ha caducado.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@Test
+	public void testExpiredSessionFallsBack() throws Exception {
+		PdfSessionCache.enable(PdfSessionCache.DEFAULT_MAX_ENTRIES, 1);
+		final Calendar signTime = Calendar.getInstance();
+		final PdfPreSignResult pre = PAdESTriPhaseSignerServerSide.preSign(DIGEST_ALGORITHM, this.pdf, this.chain, signTime, null);
+		Thread.sleep(50);
+		Assert.assertEquals(0, PdfSessionCache.size());
+
+		assertValidSignature(postSign(this.pdf, pre, sign(pre.getPreSign()), signTime));
+	}
+
+	/** Comprueba que la postfirma regenera el PDF cuando su sesi&oacute;n se ha descartado
+	 * para dejar sitio a otra m&aacute;s reciente.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@Test
+	public void testEvictedSessionFallsBack() throws Exception {
+		PdfSessionCache.enable(1, PdfSessionCache.DEFAULT_TTL_MILLIS);
+		final Calendar signTime = Calendar.getInstance();
+		final PdfPreSignResult evicted = PAdESTriPhaseSignerServerSide.preSign(DIGEST_ALGORITHM, this.pdf, this.chain, signTime, null);
+		final PdfPreSignResult kept = PAdESTriPhaseSignerServerSide.preSign(DIGEST_ALGORITHM, this.pdf, this.chain, signTime, null);
+		Assert.assertEquals(1, PdfSessionCache.size());
+
+		assertValidSignature(postSign(this.pdf, evicted, sign(evicted.getPreSign()), signTime));
+		// La sesion restante no se ha usado en la postfirma anterior
+		Assert.assertEquals(1, PdfSessionCache.size());
+		assertValidSignature(postSign(this.pdf, kept, sign(kept.getPreSign()), signTime));
+		Assert.assertEquals(0, PdfSessionCache.size());
+	}
+
+	/** Comprueba que la sesi&oacute;n no se usa si la postfirma recibe un PDF distinto al de
+	 * la prefirma, aunque tenga el mismo tama&ntilde;o.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@Test
+	public void testDifferentPdfDoesNotUseSession() throws Exception {
+		final byte[] otherPdf = this.pdf.clone();
+		final int pos = new String(otherPdf, "ISO-8859-1").indexOf("/Author(Tomas"); //$NON-NLS-1$ //$NON-NLS-2$
+		Assert.assertTrue(pos > 0);
+		otherPdf[pos + "/Author(T".length()] = 'a'; //$NON-NLS-1$
+
+		PdfSessionCache.enable();
+		final Calendar signTime = Calendar.getInstance();
+		final PdfPreSignResult pre = PAdESTriPhaseSignerServerSide.preSign(DIGEST_ALGORITHM, this.pdf, this.chain, signTime, null);
+		final byte[] pkcs1 = sign(pre.getPreSign());
+		final byte[] signed = postSign(otherPdf, pre, pkcs1, signTime);
+		Assert.assertEquals(0, PdfSessionCache.size());
+
+		PdfSessionCache.disable();
+		Assert.assertArrayEquals(postSign(otherPdf, pre, pkcs1, signTime), signed);
+	}
+
+	private byte[] sign(final byte[] preSign) throws Exception {
+		final Signature signature = Signature.getInstance(SIGN_ALGORITHM);
+		signature.initSign(this.pke.getPrivateKey());
+		signature.update(preSign);
+		return signature.sign();
+	}
+
+	private byte[] postSign(final byte[] inPdf,
+			                final PdfPreSignResult pre,
+			                final byte[] pkcs1,
+			                final Calendar signTime) throws Exception {
+		return PAdESTriPhaseSignerServerSide.postSign(
+			DIGEST_ALGORITHM,
+			inPdf,
+			this.chain,
+			null,
+			pkcs1,
+			pre.getPreSign(),
+			pre.getFileID(),
+			signTime,
+			null,
+			null
+		);
+	}
+
+	private static void assertValidSignature(final byte[] signedPdf) throws Exception {
+		final AcroFields af = new PdfReader(signedPdf).getAcroFields();
+		final List<?> names = af.getSignatureNames();
+		Assert.assertEquals(1, names.size());
+		final String name = names.get(0).toString();
+		Assert.assertTrue(af.signatureCoversWholeDocument(name));
+		final PdfPKCS7 pkcs7 = af.verifySignature(name);
+		Assert.assertTrue(pkcs7.verify());
+	}
+}
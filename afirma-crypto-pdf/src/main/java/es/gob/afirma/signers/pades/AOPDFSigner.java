@@ -11,7 +11,9 @@
 package es.gob.afirma.signers.pades;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -305,6 +307,13 @@ public final class AOPDFSigner implements AOSigner {
      *  <dt><b><i>signingCertificateV2</i></b></dt>
      *   <dd>Si se indica a {@code true} se utilizar SigningCertificateV2, si se indica cualquier otra cosa SigningCertificateV1.
      *   Si no se indica nada, se utilizar&aacute; V1 para las firmas SHA1 y V2 para el resto.</dd>
+     *  <dt><b><i>useTempFile</i></b></dt>
+     *   <dd>
+     *    Si se establece a <code>true</code> el PDF firmado se compone en un fichero temporal en vez de en memoria. Para documentos muy
+     *    grandes es preferible usar el m&eacute;todo <code>signFile(...)</code>, que tampoco carga en memoria el documento de entrada.
+     *   </dd>
+     *  <dt><b><i>tempDirectory</i></b></dt>
+     *   <dd>Directorio en el que crear los ficheros temporales (si no se indica se usa el directorio temporal del sistema).</dd>
      * </dl>
      * @return Documento PDF firmado en formato PAdES
      * @throws AOException Cuando ocurre cualquier problema durante el proceso */
@@ -350,6 +359,98 @@ public final class AOPDFSigner implements AOSigner {
         }
     }
 
+    /** Firma un fichero PDF en formato PAdES escribiendo el resultado en un flujo de salida.
+     * El documento de entrada se lee mediante acceso aleatorio y el PDF firmado se compone en
+     * un fichero temporal, de forma que el consumo de memoria no depende del tama&ntilde;o
+     * del documento. El flujo de salida no se cierra.
+     * @param inPdf Fichero con el documento PDF a firmar.
+     * @param out Flujo en el que escribir el PDF firmado.
+     * @param algorithm Algoritmo a usar para la firma (admite los mismos que <code>sign(...)</code>).
+     * @param key Clave privada a usar para firmar.
+     * @param certChain Cadena de certificados del firmante.
+     * @param xParams Par&aacute;metros adicionales para la firma (admite los mismos que <code>sign(...)</code>).
+     * @throws AOException Cuando ocurre cualquier problema durante el proceso.
+     * @throws IOException Cuando hay errores de lectura o escritura. */
+    public void signFile(final File inPdf,
+                         final OutputStream out,
+                         final String algorithm,
+                         final PrivateKey key,
+                         final java.security.cert.Certificate[] certChain,
+                         final Properties xParams) throws AOException, IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("El flujo de salida no puede ser nulo"); //$NON-NLS-1$
+        }
+        signFile(inPdf, out, null, algorithm, key, certChain, xParams);
+    }
+
+    /** Firma un fichero PDF en formato PAdES escribiendo el resultado en otro fichero.
+     * El documento de entrada se lee mediante acceso aleatorio y el PDF firmado se compone
+     * en un fichero temporal del directorio de salida, de forma que el consumo de memoria no
+     * depende del tama&ntilde;o del documento. El temporal solo se renombra como fichero de
+     * salida cuando la firma termina correctamente, por lo que un error no deja un fichero de
+     * salida incompleto.
+     * @param inPdf Fichero con el documento PDF a firmar.
+     * @param outPdf Fichero en el que escribir el PDF firmado (debe ser distinto del de entrada).
+     * @param algorithm Algoritmo a usar para la firma (admite los mismos que <code>sign(...)</code>).
+     * @param key Clave privada a usar para firmar.
+     * @param certChain Cadena de certificados del firmante.
+     * @param xParams Par&aacute;metros adicionales para la firma (admite los mismos que <code>sign(...)</code>).
+     * @throws AOException Cuando ocurre cualquier problema durante el proceso.
+     * @throws IOException Cuando hay errores de lectura o escritura. */
+    public void signFile(final File inPdf,
+                         final File outPdf,
+                         final String algorithm,
+                         final PrivateKey key,
+                         final java.security.cert.Certificate[] certChain,
+                         final Properties xParams) throws AOException, IOException {
+        if (outPdf == null) {
+            throw new IllegalArgumentException("El fichero de salida no puede ser nulo"); //$NON-NLS-1$
+        }
+        if (outPdf.getCanonicalFile().equals(inPdf.getCanonicalFile())) {
+            throw new IllegalArgumentException("El fichero de salida debe ser distinto del de entrada"); //$NON-NLS-1$
+        }
+        signFile(inPdf, null, outPdf, algorithm, key, certChain, xParams);
+    }
+
+    private void signFile(final File inPdf,
+                          final OutputStream out,
+                          final File outPdf,
+                          final String algorithm,
+                          final PrivateKey key,
+                          final java.security.cert.Certificate[] certChain,
+                          final Properties xParams) throws AOException, IOException {
+        if (inPdf == null || !inPdf.isFile() || !inPdf.canRead()) {
+            throw new IOException("No se puede leer el fichero PDF de entrada: " + inPdf); //$NON-NLS-1$
+        }
+
+        final Properties extraParams = xParams != null ? xParams : new Properties();
+
+        checkIText();
+
+        try {
+            PAdESSigner.signPDF(key, certChain, inPdf, out, outPdf, extraParams, algorithm);
+        }
+        catch (final  com.lowagie.text.exceptions.InvalidPdfException e) {
+        	throw new InvalidPdfException(e);
+        }
+        catch (final CertificateException e) {
+            throw new AOException("Error en el certificado de firma: " + e, e); //$NON-NLS-1$
+        }
+        catch (final NoSuchAlgorithmException e) {
+        	throw new AOException("Error el en algoritmo de firma: " + e, e); //$NON-NLS-1$
+		}
+        catch (final DocumentException e) {
+        	throw new AOException("Error en el tratamiento del PDF: " + e, e); //$NON-NLS-1$
+		}
+        catch(final PdfIsPasswordProtectedException e) {
+            if (Boolean.TRUE.toString().equalsIgnoreCase(extraParams.getProperty("headLess"))) { //$NON-NLS-1$
+                throw new BadPdfPasswordException(e);
+            }
+        	extraParams.put("userPassword", new String(AOUIFactory.getPassword(PDFMessages.getString("AOPDFSigner.0"), null))); //$NON-NLS-1$ //$NON-NLS-2$)
+        	signFile(inPdf, out, outPdf, algorithm, key, certChain, extraParams);
+        }
+    }
+
     /** A&ntilde;ade una firma PAdES a un documento PDF. El comportamiento es exactamente el mismo que una llamada al m&eacute;todo <code>sign(...)</code>
      * puesto que las multifirmas en los ficheros PDF se limitan a firmas independientes "en serie", pero no implementando los mecanismos de
      * cofirma o contrafirma de CAdES.
@@ -11,7 +11,9 @@
 package es.gob.afirma.signers.pades;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -39,6 +41,7 @@ import com.lowagie.text.pdf.PdfSignatureAppearance;
 import com.lowagie.text.pdf.PdfStamper;
 import com.lowagie.text.pdf.PdfString;
 import com.lowagie.text.pdf.PdfWriter;
+import com.lowagie.text.pdf.RandomAccessFileOrArray;
 
 import es.gob.afirma.core.AOCancelledOperationException;
 import es.gob.afirma.core.AOException;
@@ -49,9 +52,9 @@ import es.gob.afirma.core.misc.Platform.OS;
 import es.gob.afirma.core.signers.AOSignConstants;
 import es.gob.afirma.core.signers.AdESPolicy;
 import es.gob.afirma.core.ui.AOUIFactory;
+import es.gob.afirma.signers.cades.CAdESSigningContext;
 import es.gob.afirma.signers.cades.GenCAdESEPESSignedData;
 import es.gob.afirma.signers.pkcs7.AOAlgorithmID;
-import es.gob.afirma.signers.pkcs7.P7ContentSignerParameters;
 import es.gob.afirma.signers.tsp.pkcs7.CMSTimestamper;
 import es.gob.afirma.signers.tsp.pkcs7.CMSTimestamper.TsaRequestExtension;
 
@@ -121,7 +124,6 @@ final class PAdESSigner {
 		}
     }
 
-	@SuppressWarnings("boxing")
 	static byte[] signPDF(final PrivateKey key,
 						  final java.security.cert.Certificate[] certChain,
 	                      final byte[] inPDF,
@@ -131,6 +133,186 @@ final class PAdESSigner {
 	                                                     DocumentException,
 	                                                     NoSuchAlgorithmException,
 	                                                     CertificateException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		signPDF(
+			key,
+			certChain,
+			inPDF,
+			null,
+			baos,
+			Boolean.parseBoolean(extraParams.getProperty("useTempFile")) ? getTempDirectory(extraParams) : null, //$NON-NLS-1$
+			extraParams,
+			algorithm
+		);
+		return baos.toByteArray();
+	}
+
+	/** Firma un documento PDF leyendo la entrada y escribiendo la salida directamente sobre
+	 * ficheros, de forma que el consumo de memoria no depende del tama&ntilde;o del documento.
+	 * @param key Clave privada de firma.
+	 * @param certChain Cadena de certificados del firmante.
+	 * @param inPDF Fichero con el documento PDF a firmar.
+	 * @param out Flujo en el que escribir el PDF firmado o {@code null} para dejarlo en
+	 *            <code>outPDF</code>.
+	 * @param outPDF Fichero en el que escribir el PDF firmado si no se indica flujo de salida.
+	 * @param extraParams Par&aacute;metros adicionales de la firma.
+	 * @param algorithm Algoritmo de firma.
+	 * @throws IOException Cuando hay errores de entrada / salida.
+	 * @throws AOException Cuando ocurre cualquier problema durante la firma.
+	 * @throws DocumentException Cuando hay errores en el tratamiento del PDF.
+	 * @throws NoSuchAlgorithmException Si no se soporta el algoritmo de firma.
+	 * @throws CertificateException Cuando hay problemas con el certificado de firma. */
+	static void signPDF(final PrivateKey key,
+						final java.security.cert.Certificate[] certChain,
+	                    final File inPDF,
+	                    final OutputStream out,
+	                    final File outPDF,
+	                    final Properties extraParams,
+	                    final String algorithm) throws IOException,
+	                                                   AOException,
+	                                                   DocumentException,
+	                                                   NoSuchAlgorithmException,
+	                                                   CertificateException {
+		if (out != null) {
+			signPDF(key, certChain, null, inPDF, out, getTempDirectory(extraParams), extraParams, algorithm);
+			return;
+		}
+
+		// Si no hay flujo de salida, el PDF firmado se compone en un temporal del mismo directorio
+		// que el fichero de salida y solo se renombra cuando la firma ha terminado, de forma
+		// que un error no deje un fichero de salida incompleto
+		final File tempFile = File.createTempFile("afirma", ".pdf", outPDF.getAbsoluteFile().getParentFile()); //$NON-NLS-1$ //$NON-NLS-2$
+		boolean done = false;
+		try {
+			signPDF(key, certChain, null, inPDF, null, tempFile, extraParams, algorithm);
+			if (outPDF.exists() && !outPDF.delete() || !tempFile.renameTo(outPDF)) {
+				throw new IOException("No se ha podido escribir el fichero de salida: " + outPDF); //$NON-NLS-1$
+			}
+			done = true;
+		}
+		finally {
+			if (!done && !tempFile.delete()) {
+				LOGGER.warning("No se ha podido borrar el fichero temporal de la firma: " + tempFile); //$NON-NLS-1$
+			}
+		}
+	}
+
+	/** Obtiene el directorio en el que crear los ficheros temporales de la firma.
+	 * @param extraParams Par&aacute;metros adicionales de la firma.
+	 * @return Directorio para los ficheros temporales. */
+	private static File getTempDirectory(final Properties extraParams) {
+		final String tempDirectory = extraParams.getProperty("tempDirectory"); //$NON-NLS-1$
+		if (tempDirectory != null) {
+			final File dir = new File(tempDirectory);
+			if (dir.isDirectory() && dir.canWrite()) {
+				return dir;
+			}
+			LOGGER.warning("No se puede escribir en el directorio temporal indicado, se usara el del sistema: " + tempDirectory); //$NON-NLS-1$
+		}
+		return new File(System.getProperty("java.io.tmpdir")); //$NON-NLS-1$
+	}
+
+	/** Crea el lector del documento PDF. Si el documento se proporciona como fichero, se
+	 * lee mediante acceso aleatorio sin cargarlo completo en memoria y el fichero permanece
+	 * abierto hasta que se cierra el lector.
+	 * @param inPDF Documento PDF o {@code null} si se proporciona como fichero.
+	 * @param inFile Fichero con el documento PDF o {@code null} si se proporciona en memoria.
+	 * @param password Contrase&ntilde;a del PDF o {@code null} si no tiene.
+	 * @return Lector del documento PDF.
+	 * @throws IOException Cuando no se puede leer el documento. */
+	private static PdfReader createPdfReader(final byte[] inPDF,
+			                                 final File inFile,
+			                                 final String password) throws IOException {
+		if (inFile != null) {
+			final RandomAccessFileOrArray raf = new RandomAccessFileOrArray(inFile.getAbsolutePath());
+			try {
+				return new PdfReader(raf, password != null ? password.getBytes() : null);
+			}
+			catch (final IOException e) {
+				// Si no se llega a crear el lector (por ejemplo, por contrasena incorrecta) hay que
+				// liberar el fichero antes de volver a intentarlo
+				raf.close();
+				throw e;
+			}
+		}
+		if (password != null) {
+			return new PdfReader(inPDF, password.getBytes());
+		}
+		return new PdfReader(inPDF);
+	}
+
+	private static void signPDF(final PrivateKey key,
+						        final java.security.cert.Certificate[] certChain,
+	                            final byte[] inPDF,
+	                            final File inFile,
+	                            final OutputStream out,
+	                            final File tempFile,
+	                            final Properties extraParams,
+	                            final String algorithm) throws IOException,
+	                                                           AOException,
+	                                                           DocumentException,
+	                                                           NoSuchAlgorithmException,
+	                                                           CertificateException {
+
+	    // Contrasena del propietario del PDF
+	    String ownerPassword = extraParams.getProperty("ownerPassword"); //$NON-NLS-1$
+
+	    // Contrasena del usuario del PDF
+	    final String userPassword =  extraParams.getProperty("userPassword"); //$NON-NLS-1$
+
+	    PdfReader pdfReader;
+	    try {
+	        pdfReader = createPdfReader(inPDF, inFile, ownerPassword != null ? ownerPassword : userPassword);
+	    }
+	    catch (final BadPasswordException e) {
+	        // Comprobamos que el signer esta en modo interactivo, y si no lo
+	        // esta no pedimos contrasena por dialogo, principalmente para no interrumpir un firmado por lotes
+	        // desatendido
+	        if (Boolean.TRUE.toString().equalsIgnoreCase(extraParams.getProperty("headLess"))) { //$NON-NLS-1$
+	            throw new BadPdfPasswordException(e);
+	        }
+	        // La contrasena que nos han proporcionada no es buena o no nos
+	        // proporcionaron ninguna
+	        ownerPassword = new String(
+	    		AOUIFactory.getPassword(
+					ownerPassword == null ? PDFMessages.getString("AOPDFSigner.0") : PDFMessages.getString("AOPDFSigner.1"), //$NON-NLS-1$ //$NON-NLS-2$
+					null
+				)
+			);
+	        try {
+	            pdfReader = createPdfReader(inPDF, inFile, ownerPassword);
+	        }
+	        catch (final BadPasswordException e2) {
+	            throw new BadPdfPasswordException(e2);
+	        }
+	    }
+	    catch (final IOException e) {
+	    	throw new InvalidPdfException(e);
+		}
+
+	    // Si el PDF se lee de un fichero, el lector lo mantiene abierto hasta que se cierra
+	    try {
+	    	signPDF(pdfReader, key, certChain, out, tempFile, extraParams, algorithm, ownerPassword, userPassword);
+	    }
+	    finally {
+	    	pdfReader.close();
+	    }
+	}
+
+	@SuppressWarnings("boxing")
+	private static void signPDF(final PdfReader pdfReader,
+			                    final PrivateKey key,
+						        final java.security.cert.Certificate[] certChain,
+	                            final OutputStream out,
+	                            final File tempFile,
+	                            final Properties extraParams,
+	                            final String algorithm,
+	                            final String ownerPassword,
+	                            final String userPassword) throws IOException,
+	                                                              AOException,
+	                                                              DocumentException,
+	                                                              NoSuchAlgorithmException,
+	                                                              CertificateException {
 
 		// *********************************************************************************************************************
 		// **************** LECTURA PARAMETROS ADICIONALES *********************************************************************
@@ -240,54 +422,10 @@ final class PAdESSigner {
 	    // ** Fin texto firma visible **
 	    // *****************************
 
-	    // Contrasena del propietario del PDF
-	    String ownerPassword = extraParams.getProperty("ownerPassword"); //$NON-NLS-1$
-
-	    // Contrasena del usuario del PDF
-	    final String userPassword =  extraParams.getProperty("userPassword"); //$NON-NLS-1$
-
 		// *********************************************************************************************************************
 		// **************** FIN LECTURA PARAMETROS ADICIONALES *****************************************************************
 		// *********************************************************************************************************************
 
-	    PdfReader pdfReader;
-	    try {
-	        if (ownerPassword != null) {
-	        	pdfReader = new PdfReader(inPDF, ownerPassword.getBytes());
-	        }
-	        else if (userPassword != null) {
-	        	pdfReader = new PdfReader(inPDF, userPassword.getBytes());
-	        }
-	        else {
-	        	pdfReader = new PdfReader(inPDF);
-	        }
-	    }
-	    catch (final BadPasswordException e) {
-	        // Comprobamos que el signer esta en modo interactivo, y si no lo
-	        // esta no pedimos contrasena por dialogo, principalmente para no interrumpir un firmado por lotes
-	        // desatendido
-	        if (Boolean.TRUE.toString().equalsIgnoreCase(extraParams.getProperty("headLess"))) { //$NON-NLS-1$
-	            throw new BadPdfPasswordException(e);
-	        }
-	        // La contrasena que nos han proporcionada no es buena o no nos
-	        // proporcionaron ninguna
-	        ownerPassword = new String(
-	    		AOUIFactory.getPassword(
-					ownerPassword == null ? PDFMessages.getString("AOPDFSigner.0") : PDFMessages.getString("AOPDFSigner.1"), //$NON-NLS-1$ //$NON-NLS-2$
-					null
-				)
-			);
-	        try {
-	            pdfReader = new PdfReader(inPDF, ownerPassword.getBytes());
-	        }
-	        catch (final BadPasswordException e2) {
-	            throw new BadPdfPasswordException(e2);
-	        }
-	    }
-	    catch (final IOException e) {
-	    	throw new InvalidPdfException(e);
-		}
-
 	    if (pdfReader.getCertificationLevel() == PdfSignatureAppearance.CERTIFIED_NO_CHANGES_ALLOWED && !Boolean.parseBoolean(extraParams.getProperty("allowSigningCertifiedPdfs"))) { //$NON-NLS-1$
 	    	// Si no permitimos dialogos graficos o directamente hemos indicado que no permitimos firmar PDF certificados lanzamos
 	    	// una excepcion
@@ -310,8 +448,6 @@ final class PAdESSigner {
 	    // es mejor quitarlos
 	    pdfReader.removeUsageRights();
 
-	    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
 	    // Activar el atributo de "agregar firma" (cuarto parametro del metodo
 	    // "PdfStamper.createSignature") hace que se cree una nueva revision del
 	    // documento y evita que las firmas previas queden invalidadas. Sin embargo, este
@@ -323,9 +459,9 @@ final class PAdESSigner {
 	    try {
 	        stp = PdfStamper.createSignature(
 	              pdfReader, // PDF de entrada
-	              baos, // Salida
+	              out, // Salida (si es nula el resultado queda en el temporal)
 	              '\0', // Mantener version
-	              null, // No crear temporal
+	              tempFile, // Temporal (si es nulo se trabaja en memoria)
 	              pdfReader.getAcroFields().getSignatureNames().size() > 0 // Si hay mas firmas, creo una revision
 	        );
 	    }
@@ -596,14 +732,19 @@ final class PAdESSigner {
 	    }
 
 		byte[] completeCAdESSignature = GenCAdESEPESSignedData.generateSignedData(
-	        new P7ContentSignerParameters(inPDF, algorithm),
+	        // Se reutiliza la informacion del firmante si ya ha firmado antes con los mismos parametros
+	        CAdESSigningContext.getInstance(
+	            (X509Certificate[]) certChain,
+	            AOSignConstants.getDigestAlgorithmName(algorithm),
+	            new AdESPolicy(extraParams),
+	            signingCertificateV2
+	        ),
+	        // Los datos no se incluyen en la firma, asi que no es necesario copiar el PDF
+	        null,
 	        true, // omitContent
-	        new AdESPolicy(extraParams),
-	        signingCertificateV2,
+	        AOUtil.digestInputStream(MessageDigest.getInstance(AOSignConstants.getDigestAlgorithmName(algorithm)), sap.getRangeStream()),
+	        algorithm,
 	        key,
-	        certChain,
-	        MessageDigest.getInstance(AOSignConstants.getDigestAlgorithmName(algorithm)).digest(AOUtil.getDataFromInputStream(sap.getRangeStream())),
-	        AOSignConstants.getDigestAlgorithmName(algorithm),
 	        true, // Modo PAdES
 	        PDF_OID,
 	        extraParams.getProperty("contentDescription") != null ? extraParams.getProperty("contentDescription") : PDF_DESC //$NON-NLS-1$ //$NON-NLS-2$
@@ -627,7 +768,7 @@ final class PAdESSigner {
 	            }
 	            else {
 	                final String tsaHashAlgorithm = extraParams.getProperty("tsaHashAlgorithm"); //$NON-NLS-1$
-	                completeCAdESSignature = new CMSTimestamper(
+	                completeCAdESSignature = CMSTimestamper.getInstance(
 	                     !Boolean.FALSE.toString().equalsIgnoreCase(extraParams.getProperty("tsaRequireCert")),  //$NON-NLS-1$
 	                     tsaPolicy,
 	                     tsaURL,
@@ -665,8 +806,6 @@ final class PAdESSigner {
 	    dic2.put(PdfName.CONTENTS, new PdfString(outc).setHexWriting(true));
 
 	    sap.close(dic2);
-
-	    return baos.toByteArray();
 	}
 
 }
@@ -10,7 +10,6 @@
 
 package es.gob.afirma.signers.xades;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.security.PrivateKey;
 import java.security.Provider;
@@ -18,12 +17,12 @@ import java.security.Security;
 import java.security.cert.Certificate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Logger;
 
 import javax.xml.crypto.dsig.DigestMethod;
 import javax.xml.crypto.dsig.Transform;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
 import net.java.xades.security.xml.XAdES.SignaturePolicyIdentifier;
@@ -46,6 +45,7 @@ import es.gob.afirma.core.signers.AOSigner;
 import es.gob.afirma.core.signers.CounterSignTarget;
 import es.gob.afirma.core.util.tree.AOTreeModel;
 import es.gob.afirma.core.util.tree.AOTreeNode;
+import es.gob.afirma.signers.xml.DocumentBuilderPool;
 import es.gob.afirma.signers.xml.Utils;
 import es.gob.afirma.signers.xml.XMLConstants;
 
@@ -652,22 +652,19 @@ public final class AOXAdESSigner implements AOSigner {
     /** {@inheritDoc} */
     @Override
 	public byte[] getData(final byte[] sign) throws AOInvalidFormatException {
-        // nueva instancia de DocumentBuilderFactory que permita espacio de
-        // nombres (necesario para XML)
-        final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        dbf.setNamespaceAware(true);
 
         final Element rootSig;
         Element elementRes = null;
         try {
 
             // comprueba que sea una documento de firma valido
-            if (!isSign(sign)) {
+            final Document signDoc = parseSign(sign);
+            if (!isSign(signDoc)) {
                 throw new AOInvalidFormatException("El documento no es un documento de firmas valido."); //$NON-NLS-1$
             }
 
             // obtiene la raiz del documento de firmas
-            rootSig = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(sign)).getDocumentElement();
+            rootSig = signDoc.getDocumentElement();
 
             // si es detached
             if (AOXAdESSigner.isDetached(rootSig)) {
@@ -1044,11 +1041,12 @@ public final class AOXAdESSigner implements AOSigner {
                          final Certificate[] certChain,
                          final Properties extraParams) throws AOException {
 
-    	if (!isSign(sign)) {
+    	final Document signDoc = parseSign(sign);
+    	if (!isSign(signDoc)) {
     		throw new AOInvalidFormatException("No se ha indicado una firma XAdES para cofirmar"); //$NON-NLS-1$
     	}
 
-    	return XAdESCoSigner.cosign(sign, algorithm, key, certChain, extraParams);
+    	return XAdESCoSigner.cosign(signDoc, algorithm, key, certChain, extraParams);
     }
 
     /** Contrafirma firmas en formato XAdES.
@@ -1142,12 +1140,13 @@ public final class AOXAdESSigner implements AOSigner {
                               final PrivateKey key,
                               final Certificate[] certChain,
                               final Properties xParams) throws AOException {
-    	if (!isSign(sign)) {
+    	final Document signDoc = parseSign(sign);
+    	if (!isSign(signDoc)) {
     		throw new AOInvalidFormatException("No se ha indicado una firma XAdES para contrafirmar"); //$NON-NLS-1$
     	}
 
     	return XAdESCounterSigner.countersign(
-			sign,
+			signDoc,
 			algorithm,
 			targetType,
 			targets,
@@ -1161,25 +1160,22 @@ public final class AOXAdESSigner implements AOSigner {
     @Override
 	public AOTreeModel getSignersStructure(final byte[] sign, final boolean asSimpleSignInfo) throws AOInvalidFormatException {
 
-    	if (!isSign(sign)) {
+        // Obtenemos el arbol del documento
+    	final Document signDoc = parseSign(sign);
+    	if (!isSign(signDoc)) {
     		throw new AOInvalidFormatException("Los datos indicados no son una firma XAdES compatible"); //$NON-NLS-1$
     	}
 
-        // Obtenemos el arbol del documento
-        final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        dbf.setNamespaceAware(true);
-        final Document signDoc;
-        try {
-            signDoc = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(sign));
-        }
-        catch (final Exception e) {
-            LOGGER.warning("Se ha producido un error al obtener la estructura de firmas: " + e); //$NON-NLS-1$
-            return null;
-        }
-
         // Obtenemos todas las firmas del documento y el SignatureValue de cada
         // una de ellas
         final NodeList signatures = signDoc.getElementsByTagNameNS(XMLConstants.DSIGNNS, SIGNATURE_TAG);
+        final Map<String, String> signatureValues = Utils.getSignatureValuesIndex(
+    		signDoc.getElementsByTagNameNS(XMLConstants.DSIGNNS, "SignatureValue") //$NON-NLS-1$
+		);
+
+        // El espacio de nombres de XAdES se deduce del documento completo, asi que
+        // basta con hacerlo una vez
+        final String xadesNamespace = asSimpleSignInfo ? Utils.guessXAdESNamespaceURL(signDoc.getDocumentElement()) : null;
 
         // Mantendremos 3 listas: la de identificadores de firma, la de
         // identificadores a las
@@ -1198,13 +1194,12 @@ public final class AOXAdESSigner implements AOSigner {
             arrayIds.add(signature.getAttribute("Id")); //$NON-NLS-1$
 
             // Recogemos los objetos que identificaran a los nodos de firma
-            arrayNodes.add(new AOTreeNode(asSimpleSignInfo ? Utils.getSimpleSignInfoNode(Utils.guessXAdESNamespaceURL(signDoc.getDocumentElement()),
-                                                                                       signature) : Utils.getStringInfoNode(signature)));
+            arrayNodes.add(new AOTreeNode(asSimpleSignInfo ? Utils.getSimpleSignInfoNode(xadesNamespace, signature) : Utils.getStringInfoNode(signature)));
 
             // Recogemos el identificador de la firma a la que se referencia (si
             // no es contrafirma sera cadena vacia)
             if (signature.getParentNode().getNodeName().equals(XADES_SIGNATURE_PREFIX + ":CounterSignature")) { //$NON-NLS-1$
-                arrayRef.add(Utils.getCounterSignerReferenceId(signature, signDoc.getElementsByTagNameNS(XMLConstants.DSIGNNS, "SignatureValue"))); //$NON-NLS-1$
+                arrayRef.add(Utils.getCounterSignerReferenceId(signature, signatureValues));
             }
             else {
                 arrayRef.add(""); //$NON-NLS-1$
@@ -1214,51 +1209,11 @@ public final class AOXAdESSigner implements AOSigner {
         // Se crea el que sera el nodo raiz del arbol
         final AOTreeNode treeRoot = new AOTreeNode("Datos"); //$NON-NLS-1$
 
-        // Se crea el arbol componiendo las subrama de cada firma directa de los
-        // datos
-        for (int i = 0; i < arrayRef.size(); i++) {
-            if (arrayRef.get(i).equals("")) { //$NON-NLS-1$
-                treeRoot.add(generateSignsTree(i, signatures.getLength() - 1, arrayNodes, arrayIds, arrayRef)[i]);
-            }
-        }
-        return new AOTreeModel(treeRoot, signatures.getLength());
-    }
-
-    /** M&eacute;todo recursivo para la obtenci&oacute;n de la estructura de
-     * &aacute;rbol
-     * @param i Inicio de lectura del array de identificadores
-     * @param j Inicio de lectura inversa del array de referencias
-     * @param arrayNodes Array de objetos <code>TreeNode</code>
-     * @param arrayIds Array de identificadores
-     * @param arrayRef Array de referencias
-     * @return Array de objetos <code>TreeNode</code> */
-    private AOTreeNode[] generateSignsTree(final int i,
-                                         final int j,
-                                         final List<AOTreeNode> arrayNodes,
-                                         final List<String> arrayIds,
-                                         final List<String> arrayRef) {
-
-        final int max = arrayIds.size();
-
-        if (i < max && j > 0) {
-            if (arrayIds.get(i).equals(arrayRef.get(j))) {
-                generateSignsTree(i + 1, j - 1, arrayNodes, arrayIds, arrayRef);
-            }
-
-            if (i < j) {
-                generateSignsTree(i, j - 1, arrayNodes, arrayIds, arrayRef);
-            }
-
-            if (!arrayIds.get(i).equals(arrayRef.get(j))) {
-                return arrayNodes.toArray(new AOTreeNode[0]);
-            }
-
-            generateSignsTree(j, max - 1, arrayNodes, arrayIds, arrayRef);
-
-            arrayNodes.get(i).add(arrayNodes.get(j));
-        }
+        // Se crea el arbol colgando cada contrafirma de la firma a la que referencia
+        // y las firmas directas de los datos del nodo raiz
+        Utils.composeSignersTree(treeRoot, arrayNodes, arrayIds, arrayRef);
 
-        return arrayNodes.toArray(new AOTreeNode[0]);
+        return new AOTreeModel(treeRoot, signatures.getLength());
     }
 
     /** {@inheritDoc} */
@@ -1270,17 +1225,42 @@ public final class AOXAdESSigner implements AOSigner {
             return false;
         }
 
+        return isSign(parseSign(sign));
+    }
+
+    /** Analiza un documento de firma para que su &aacute;rbol DOM se compruebe con
+     * {@link #isSign(Document)} y se use despu&eacute;s en la operaci&oacute;n solicitada,
+     * sin necesidad de volver a analizarlo.
+     * @param sign Documento de firma.
+     * @return &Aacute;rbol DOM del documento o <code>null</code> si no es un XML v&aacute;lido. */
+    private static Document parseSign(final byte[] sign) {
+        if (sign == null) {
+            return null;
+        }
         try {
-            // Carga el documento a validar
-            final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            dbf.setNamespaceAware(true);
+            return DocumentBuilderPool.parse(sign);
+        }
+        catch (final Exception e) {
+            return null;
+        }
+    }
+
+    /** Indica si un documento XML ya analizado es una firma XAdES.
+     * @param signDoc &Aacute;rbol DOM del documento o <code>null</code> si no se pudo analizar.
+     * @return <code>true</code> si el documento es una firma XAdES, <code>false</code> en caso contrario. */
+    private static boolean isSign(final Document signDoc) {
+
+        if (signDoc == null) {
+            return false;
+        }
 
+        try {
             // JXades no captura un nodo de firma si se pasa este como raiz del
             // arbol de firmas, asi
             // que nos vemos obligados a crear un nodo padre, del que colgara
             // todo el arbol de firmas,
             // para que lo detecte correctamente
-            final Element rootNode = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(sign)).getDocumentElement();
+            final Element rootNode = signDoc.getDocumentElement();
 
             final List<Node> signNodes = new ArrayList<Node>();
             if (rootNode.getNodeName().equals(SIGNATURE_NODE_NAME)) {
@@ -1293,7 +1273,7 @@ public final class AOXAdESSigner implements AOSigner {
             }
 
             // Si no se encuentran firmas, no es un documento de firma
-            if (signNodes.size() == 0 || !checkSignNodes(signNodes)) {
+            if (signNodes.size() == 0 || !checkSignNodes(signNodes, Utils.guessXAdESNamespaceURL(rootNode))) {
                 return false;
             }
         }
@@ -1306,13 +1286,16 @@ public final class AOXAdESSigner implements AOSigner {
     /** Comprueba que los nodos de firma proporcionados sean firmas en formato XAdES.
      * @param signNodes
      *        Listado de nodos de firma.
+     * @param documentNamespace
+     *        Espacio de nombres de XAdES deducido del documento completo. S&oacute;lo
+     *        se deduce el de cada firma por separado (lo que requiere serializarla)
+     *        cuando no se encuentran sus propiedades en este.
      * @return Devuelve {@code true} cuando todos los nodos sean firmas en este
      *         formato. */
-    private static boolean checkSignNodes(final List<Node> signNodes) {
-        String xadesNamespace;
+    private static boolean checkSignNodes(final List<Node> signNodes, final String documentNamespace) {
         for (final Node signNode : signNodes) {
-            xadesNamespace = Utils.guessXAdESNamespaceURL(signNode);
-            if (((Element) signNode).getElementsByTagNameNS(xadesNamespace, "QualifyingProperties").getLength() == 0) { //$NON-NLS-1$
+            if (((Element) signNode).getElementsByTagNameNS(documentNamespace, "QualifyingProperties").item(0) == null && //$NON-NLS-1$
+        		((Element) signNode).getElementsByTagNameNS(Utils.guessXAdESNamespaceURL(signNode), "QualifyingProperties").item(0) == null) { //$NON-NLS-1$
                 return false;
             }
         }
@@ -1344,13 +1327,8 @@ public final class AOXAdESSigner implements AOSigner {
      */
     static Document insertarNodoAfirma(final Document docu) throws ParserConfigurationException {
 
-        // Nueva instancia de DocumentBuilderFactory que permita espacio de
-        // nombres (necesario para XML)
-        final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        dbf.setNamespaceAware(true);
-
         // Crea un nuevo documento con la raiz "AFIRMA"
-        final Document docAfirma = dbf.newDocumentBuilder().newDocument();
+        final Document docAfirma = DocumentBuilderPool.newDocument();
         final Element rootAfirma = docAfirma.createElement(AFIRMA);
 
         // Inserta el documento pasado por parametro en el nuevo documento
@@ -1367,7 +1345,8 @@ public final class AOXAdESSigner implements AOSigner {
             throw new IllegalArgumentException("No se han introducido datos para analizar"); //$NON-NLS-1$
         }
 
-        if (!isSign(sign)) {
+        final Document signDoc = parseSign(sign);
+        if (!isSign(signDoc)) {
             throw new AOInvalidFormatException("Los datos introducidos no se corresponden con un objeto de firma"); //$NON-NLS-1$
         }
 
@@ -1376,28 +1355,17 @@ public final class AOXAdESSigner implements AOSigner {
         // Analizamos mas en profundidad la firma para obtener el resto de datos
 
         // Tomamos la raiz del documento
-        final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        dbf.setNamespaceAware(true);
-        Element rootSig = null;
-        try {
-            rootSig = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(sign)).getDocumentElement();
-        }
-        catch (final Exception e) {
-            LOGGER.warning("Error al analizar la firma: " + e); //$NON-NLS-1$
-            rootSig = null;
-        }
+        final Element rootSig = signDoc.getDocumentElement();
 
         // Establecemos la variante de firma
-        if (rootSig != null) {
-            if (isDetached(rootSig)) {
-                signInfo.setVariant(AOSignConstants.SIGN_FORMAT_XADES_DETACHED);
-            }
-            else if (isEnveloped(rootSig)) {
-                signInfo.setVariant(AOSignConstants.SIGN_FORMAT_XADES_ENVELOPED);
-            }
-            else if (isEnveloping(rootSig)) {
-                signInfo.setVariant(AOSignConstants.SIGN_FORMAT_XADES_ENVELOPING);
-            }
+        if (isDetached(rootSig)) {
+            signInfo.setVariant(AOSignConstants.SIGN_FORMAT_XADES_DETACHED);
+        }
+        else if (isEnveloped(rootSig)) {
+            signInfo.setVariant(AOSignConstants.SIGN_FORMAT_XADES_ENVELOPED);
+        }
+        else if (isEnveloping(rootSig)) {
+            signInfo.setVariant(AOSignConstants.SIGN_FORMAT_XADES_ENVELOPING);
         }
 
         // Aqui vendria el analisis de la firma buscando alguno de los otros
@@ -21,7 +21,6 @@ import static es.gob.afirma.signers.xades.AOXAdESSigner.XADES_SIGNATURE_PREFIX;
 import static es.gob.afirma.signers.xades.AOXAdESSigner.XADES_SIGNED_PROPERTIES_TYPE;
 import static es.gob.afirma.signers.xades.AOXAdESSigner.XML_SIGNATURE_PREFIX;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
@@ -45,7 +44,6 @@ import javax.xml.crypto.dsig.Reference;
 import javax.xml.crypto.dsig.Transform;
 import javax.xml.crypto.dsig.XMLObject;
 import javax.xml.crypto.dsig.XMLSignatureFactory;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 import net.java.xades.security.xml.XAdES.DataObjectFormat;
 import net.java.xades.security.xml.XAdES.DataObjectFormatImpl;
@@ -65,6 +63,7 @@ import org.w3c.dom.NodeList;
 
 import es.gob.afirma.core.AOException;
 import es.gob.afirma.core.misc.MimeHelper;
+import es.gob.afirma.signers.xml.DocumentBuilderPool;
 import es.gob.afirma.signers.xml.Utils;
 import es.gob.afirma.signers.xml.XMLConstants;
 
@@ -168,6 +167,29 @@ public final class XAdESCoSigner {
 			final PrivateKey pk,
 			final Certificate[] certChain,
 			final Properties xParams) throws AOException {
+		final Document signDoc;
+		try {
+			signDoc = DocumentBuilderPool.parse(sign);
+		}
+		catch (final Exception e) {
+			throw new AOException("No se ha podido leer el documento XML de firmas", e); //$NON-NLS-1$
+		}
+		return cosign(signDoc, algorithm, pk, certChain, xParams);
+	}
+
+	/** Cofirma en formato XAdES un documento de firmas ya analizado, que se modifica durante el proceso.
+	 * @param signDoc &Aacute;rbol DOM del documento con las firmas iniciales.
+	 * @param algorithm Algoritmo a usar para la firma.
+	 * @param pk Clave privada a usar para firmar.
+	 * @param certChain Cadena de certificados del firmante.
+	 * @param xParams Par&aacute;metros adicionales para la firma, como en {@link #cosign(byte[], String, PrivateKey, Certificate[], Properties)}.
+	 * @return Cofirma en formato XAdES
+	 * @throws AOException Cuando ocurre cualquier problema durante el proceso */
+	static byte[] cosign(final Document signDoc,
+			final String algorithm,
+			final PrivateKey pk,
+			final Certificate[] certChain,
+			final Properties xParams) throws AOException {
 		final String algoUri = XMLConstants.SIGN_ALGOS_URI.get(algorithm);
 		if (algoUri == null) {
 			throw new UnsupportedOperationException("Los formatos de firma XML no soportan el algoritmo de firma '" + algorithm + "'"); //$NON-NLS-1$ //$NON-NLS-2$
@@ -189,19 +211,14 @@ public final class XAdESCoSigner {
 
 		ObjectIdentifierImpl objectIdentifier = null;
 
-		// nueva instancia de DocumentBuilderFactory que permita espacio de
-		// nombres (necesario para XML)
-		final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-
 		// Propiedades del documento XML original
 		final Map<String, String> originalXMLProperties = new Hashtable<String, String>();
 
-		// carga el documento XML de firmas y su raiz
+		// toma el documento XML de firmas y su raiz
 		Document docSig;
 		Element rootSig;
 		try {
-			docSig = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(sign));
+			docSig = signDoc;
 			rootSig = docSig.getDocumentElement();
 
 			// Si el documento contiene una firma simple se inserta como raiz el
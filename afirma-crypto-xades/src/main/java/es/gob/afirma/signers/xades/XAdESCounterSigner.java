@@ -10,7 +10,6 @@
 
 package es.gob.afirma.signers.xades;
 
-import java.io.ByteArrayInputStream;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
@@ -32,7 +31,6 @@ import javax.xml.crypto.dsig.Reference;
 import javax.xml.crypto.dsig.Transform;
 import javax.xml.crypto.dsig.XMLSignatureFactory;
 import javax.xml.crypto.dsig.spec.TransformParameterSpec;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.OutputKeys;
 
 import net.java.xades.security.xml.XAdES.DataObjectFormat;
@@ -55,6 +53,7 @@ import org.w3c.dom.NodeList;
 import es.gob.afirma.core.AOException;
 import es.gob.afirma.core.misc.AOUtil;
 import es.gob.afirma.core.signers.CounterSignTarget;
+import es.gob.afirma.signers.xml.DocumentBuilderPool;
 import es.gob.afirma.signers.xml.Utils;
 import es.gob.afirma.signers.xml.XMLConstants;
 
@@ -188,6 +187,53 @@ public final class XAdESCounterSigner {
 			                  final Certificate[] certChain,
 			                  final Properties xParams) throws AOException {
 
+		if (sign == null) {
+			throw new IllegalArgumentException(
+					"El objeto de firma no puede ser nulo"); //$NON-NLS-1$
+		}
+
+		final Document signDoc;
+		try {
+			signDoc = DocumentBuilderPool.parse(sign);
+		}
+		catch (final Exception e) {
+			throw new AOException("No se ha podido realizar la contrafirma", e); //$NON-NLS-1$
+		}
+
+		return countersign(signDoc, algorithm, targetType, targets, key, certChain, xParams);
+	}
+
+	/** Contrafirma en formato XAdES un documento de firmas ya analizado, que se modifica
+	 * durante el proceso.
+	 * @param signDoc
+	 *            &Aacute;rbol DOM del documento con las firmas iniciales.
+	 * @param algorithm
+	 *            Algoritmo a usar para la firma.
+	 * @param targetType
+	 *            Mecanismo de selecci&oacute;n de los nodos de firma que se
+	 *            deben contrafirmar.
+	 * @param targets
+	 *            Listado de nodos o firmantes que se deben contrafirmar
+	 *            seg&uacute;n el {@code targetType} seleccionado.
+	 * @param key
+	 *            Clave privada a usar para firmar.
+	 * @param certChain
+	 *            Cadena de certificados del firmante.
+	 * @param xParams
+	 *            Par&aacute;metros adicionales para la firma, como en
+	 *            {@link #countersign(byte[], String, CounterSignTarget, Object[], PrivateKey, Certificate[], Properties)}.
+	 * @return Contrafirma en formato XAdES.
+	 * @throws AOException
+	 *             Cuando ocurre cualquier problema durante el proceso
+	 */
+	static byte[] countersign(final Document signDoc,
+			                  final String algorithm,
+			                  final CounterSignTarget targetType,
+			                  final Object[] targets,
+			                  final PrivateKey key,
+			                  final Certificate[] certChain,
+			                  final Properties xParams) throws AOException {
+
 		final Properties extraParams = xParams != null ? xParams
 				: new Properties();
 
@@ -196,22 +242,12 @@ public final class XAdESCounterSigner {
 			encoding = XMLConstants.BASE64_ENCODING;
 		}
 
-		if (sign == null) {
-			throw new IllegalArgumentException(
-					"El objeto de firma no puede ser nulo"); //$NON-NLS-1$
-		}
-
 		final String algoUri = XMLConstants.SIGN_ALGOS_URI.get(algorithm);
 		if (algoUri == null) {
 			throw new UnsupportedOperationException(
 					"Los formatos de firma XML no soportan el algoritmo de firma '" + algorithm + "'"); //$NON-NLS-1$ //$NON-NLS-2$
 		}
 
-		// nueva instancia de DocumentBuilderFactory que permita espacio de
-		// nombres (necesario para XML)
-		final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-
 		// flag que indica si el documento tiene una firma simple o esta
 		// cofirmado
 		// por defecto se considera que es un documento cofirmado
@@ -222,8 +258,7 @@ public final class XAdESCounterSigner {
 		Element root;
 		Document doc;
 		try {
-			doc = dbf.newDocumentBuilder()
-					.parse(new ByteArrayInputStream(sign));
+			doc = signDoc;
 
 			if (encoding == null) {
 				encoding = doc.getXmlEncoding();
@@ -316,7 +351,7 @@ public final class XAdESCounterSigner {
 		// y se vuelve a dejar como raiz el nodo Signature original
 		if (esFirmaSimple) {
 			try {
-				final Document newdoc = dbf.newDocumentBuilder().newDocument();
+				final Document newdoc = DocumentBuilderPool.newDocument();
 				newdoc.appendChild(
 					newdoc.adoptNode(
 						doc.getElementsByTagNameNS(
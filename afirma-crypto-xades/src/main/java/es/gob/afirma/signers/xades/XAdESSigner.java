@@ -12,7 +12,6 @@ package es.gob.afirma.signers.xades;
 
 import java.io.ByteArrayInputStream;
 import java.net.URI;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
@@ -39,7 +38,6 @@ import javax.xml.crypto.dsig.XMLSignature;
 import javax.xml.crypto.dsig.XMLSignatureFactory;
 import javax.xml.crypto.dsig.spec.TransformParameterSpec;
 import javax.xml.crypto.dsig.spec.XPathFilterParameterSpec;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamSource;
@@ -63,6 +61,7 @@ import es.gob.afirma.core.misc.AOUtil;
 import es.gob.afirma.core.misc.Base64;
 import es.gob.afirma.core.misc.MimeHelper;
 import es.gob.afirma.core.signers.AOSignConstants;
+import es.gob.afirma.signers.xml.DocumentBuilderPool;
 import es.gob.afirma.signers.xml.InvalidXMLException;
 import es.gob.afirma.signers.xml.Utils;
 import es.gob.afirma.signers.xml.Utils.CannotDereferenceException;
@@ -248,6 +247,15 @@ public final class XAdESSigner {
 	 *            <dt><b><i>precalculatedHashAlgorithm</i></b></dt>
 	 *            <dd>Algoritmo de huella digital cuando esta se proporciona
 	 *            precalculada.</dd>
+	 *            <dt><b><i>explicitHashAlgorithm</i></b></dt>
+	 *            <dd>Algoritmo de huella digital con el que se calcula la huella de los
+	 *            datos en el modo expl&iacute;cito cuando no se proporciona precalculada.
+	 *            Por defecto, <i>SHA1</i>.</dd>
+	 *            <dt><b><i>useMemoryMappedFile</i></b></dt>
+	 *            <dd>Si se establece a <code>true</code> y los datos se indican mediante una
+	 *            URI de tipo <code>file</code>, el fichero se proyecta en memoria para calcular
+	 *            su huella digital en lugar de leerlo mediante un flujo. En ning&uacute;n caso
+	 *            se carga el fichero completo en memoria. Por defecto, <code>false</code>.</dd>
 	 *            <dt><b><i>signatureProductionCity</i></b></dt>
 	 *            <dd>Ciudad en la que se realiza la firma.</dd>
 	 *            <dt><b><i>signatureProductionProvince</i></b></dt>
@@ -425,6 +433,10 @@ public final class XAdESSigner {
 				"headLess", Boolean.TRUE.toString())); //$NON-NLS-1$
 		final String precalculatedHashAlgorithm = extraParams.getProperty(
 				"precalculatedHashAlgorithm"); //$NON-NLS-1$
+		final String explicitHashAlgorithm = AOSignConstants.getDigestAlgorithmName(extraParams.getProperty(
+				"explicitHashAlgorithm", "SHA1")); //$NON-NLS-1$ //$NON-NLS-2$
+		final boolean useMemoryMappedFile = Boolean.parseBoolean(extraParams.getProperty(
+				"useMemoryMappedFile", Boolean.FALSE.toString())); //$NON-NLS-1$
 		final boolean facturaeSign = Boolean.parseBoolean(extraParams.getProperty(
 				"facturaeSign", Boolean.FALSE.toString())); //$NON-NLS-1$
 		String mimeType = extraParams.getProperty(
@@ -454,10 +466,6 @@ public final class XAdESSigner {
 		// Propiedades del documento XML original
 		final Map<String, String> originalXMLProperties = new Hashtable<String, String>();
 
-		// carga el documento xml
-		final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-
 		// Elemento de datos
 		Element dataElement;
 
@@ -478,9 +486,7 @@ public final class XAdESSigner {
 			try {
 
 				// Obtenemos el objeto XML
-				final Document docum = dbf.newDocumentBuilder().parse(
-					new ByteArrayInputStream(data)
-				);
+				final Document docum = DocumentBuilderPool.parse(data);
 
 				if (nodeToSign != null && XAdESUtil.getElementById(docum, nodeToSign) == null) {
 					throw new InvalidXMLException(
@@ -648,7 +654,7 @@ public final class XAdESSigner {
 
 				try {
 					// Crea un nuevo nodo XML para contener los datos en base 64
-					final Document docFile = dbf.newDocumentBuilder().newDocument();
+					final Document docFile = DocumentBuilderPool.newDocument();
 					dataElement = docFile.createElement(AOXAdESSigner.DETACHED_CONTENT_ELEMENT_NAME);
 					uri = null;
 					if (mimeType == null) {
@@ -723,27 +729,21 @@ public final class XAdESSigner {
 			// ESTE BLOQUE CONTIENE EL PROCESO A SEGUIR EN EL MODO EXPLICITO,
 			// ESTO ES, NO FIRMAMOS LOS DATOS SINO SU HASH
 			byte[] digestValue = null;
-			// Si la URI no es nula recogemos los datos de fuera
+			// Si la URI no es nula calculamos la huella de los datos de fuera
+			// leyendolos por bloques, sin cargarlos completos en memoria
 			if (uri != null) {
-
-				final byte[] tmpData;
 				try {
-					tmpData = AOUtil.getDataFromInputStream(AOUtil.loadFile(uri));
+					digestValue = AOUtil.digestUri(
+						Utils.getMessageDigest(explicitHashAlgorithm),
+						uri,
+						useMemoryMappedFile
+					);
 				}
 				catch (final Exception e) {
 					throw new AOException(
-						"No se han podido obtener los datos de la URI externa '" + uri + "'", e //$NON-NLS-1$ //$NON-NLS-2$
+						"No se ha podido obtener la huella " + explicitHashAlgorithm + " de los datos de la URI externa '" + uri + "'", e //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
 					);
 				}
-				// Vemos si hemos obtenido bien los datos de la URI
-				if (tmpData != null && tmpData.length > 0) {
-					try {
-						digestValue = MessageDigest.getInstance("SHA1").digest(tmpData); //$NON-NLS-1$
-					}
-					catch (final Exception e) {
-						throw new AOException("No se ha podido obtener el SHA1 de los datos de la URI externa", e); //$NON-NLS-1$
-					}
-				}
 			}
 			// Si se nos ha introducido el messageDigest, firmamos este como si
 			// fuesen los datos
@@ -751,27 +751,27 @@ public final class XAdESSigner {
 				digestValue = data;
 			}
 			// El hash de los datos, ni una URI a traves de la que calcularlos,entonces lo calculamos
-			// a traves de los datos introducidos (Siempre se calcula el SHA-1 de los datos)
+			// a traves de los datos introducidos
 			else {
 				try {
-					digestValue = MessageDigest.getInstance("SHA1").digest(data); //$NON-NLS-1$
+					digestValue = Utils.getMessageDigest(explicitHashAlgorithm).digest(data);
 				}
 				catch (final Exception e) {
 					throw new AOException(
-						"No se ha podido obtener el SHA1 de los datos proporcionados", e //$NON-NLS-1$
+						"No se ha podido obtener la huella " + explicitHashAlgorithm + " de los datos proporcionados", e //$NON-NLS-1$ //$NON-NLS-2$
 					);
 				}
 			}
 
 			if (digestValue == null || digestValue.length < 1) {
 				throw new AOException(
-					"Error al obtener la huella SHA1 de los datos" //$NON-NLS-1$
+					"Error al obtener la huella " + explicitHashAlgorithm + " de los datos" //$NON-NLS-1$ //$NON-NLS-2$
 				);
 			}
 
 			final Document docFile;
 			try {
-				docFile = dbf.newDocumentBuilder().newDocument();
+				docFile = DocumentBuilderPool.newDocument();
 			}
 			catch (final Exception e) {
 				throw new AOException(
@@ -784,7 +784,8 @@ public final class XAdESSigner {
 			// En el caso de la firma explicita, se firma el Hash de los datos en lugar de los propios datos.
 			// En este caso, los indicaremos a traves del MimeType en donde establecemos un tipo especial
 			// que designa al hash. Independientemente del algoritmo de firma utilizado, el Hash de las firmas
-			// explicitas de datos siempre sera SHA1, salvo que el hash se haya establecido desde fuera.
+			// explicitas de datos sera el configurado (SHA1 por defecto), salvo que el hash se haya
+			// establecido desde fuera.
 			String hashAlgoUri;
 			if (precalculatedHashAlgorithm != null) {
 				mimeType = "hash/" + precalculatedHashAlgorithm.toLowerCase(); //$NON-NLS-1$
@@ -793,8 +794,10 @@ public final class XAdESSigner {
 				);
 			}
 			else {
-				mimeType = "hash/sha1"; //$NON-NLS-1$
-				hashAlgoUri = XMLConstants.MESSAGEDIGEST_ALGOS_URI.get("sha1"); //$NON-NLS-1$
+				mimeType = "hash/" + explicitHashAlgorithm.toLowerCase(); //$NON-NLS-1$
+				hashAlgoUri = XMLConstants.MESSAGEDIGEST_ALGOS_URI.get(
+					explicitHashAlgorithm.toLowerCase()
+				);
 			}
 
 			dataElement.setAttributeNS(null, "Id", contentId); //$NON-NLS-1$
@@ -820,7 +823,7 @@ public final class XAdESSigner {
 		// Crea el nuevo documento de firma
 		Document docSignature = null;
 		try {
-			docSignature = dbf.newDocumentBuilder().newDocument();
+			docSignature = DocumentBuilderPool.newDocument();
 			if (format.equals(AOSignConstants.SIGN_FORMAT_XADES_ENVELOPED)) {
 				docSignature.appendChild(docSignature.adoptNode(dataElement));
 			}
@@ -1131,12 +1134,12 @@ public final class XAdESSigner {
 							null,
 							null,
 							referenceId,
-							MessageDigest.getInstance(
-								AOSignConstants.getDigestAlgorithmName(digestMethodAlgorithm)
-							).digest(
-								AOUtil.getDataFromInputStream(
-									AOUtil.loadFile(uri)
-								)
+							AOUtil.digestUri(
+								Utils.getMessageDigest(
+									AOSignConstants.getDigestAlgorithmName(digestMethodAlgorithm)
+								),
+								uri,
+								useMemoryMappedFile
 							)
 						);
 					}
@@ -1491,7 +1494,7 @@ public final class XAdESSigner {
 					try {
 						if (docSignature.getElementsByTagNameNS(XMLConstants.DSIGNNS,
 								AOXAdESSigner.SIGNATURE_TAG).getLength() == 1) {
-							final Document newdoc = dbf.newDocumentBuilder().newDocument();
+							final Document newdoc = DocumentBuilderPool.newDocument();
 							newdoc.appendChild(
 								newdoc.adoptNode(
 									docSignature.getElementsByTagNameNS(
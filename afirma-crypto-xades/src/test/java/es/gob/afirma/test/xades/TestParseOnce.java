@@ -0,0 +1,293 @@
+package es.gob.afirma.test.xades;
+
+import java.security.KeyStore;
+import java.security.KeyStore.PrivateKeyEntry;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import es.gob.afirma.core.AOInvalidFormatException;
+import es.gob.afirma.core.misc.AOUtil;
+import es.gob.afirma.core.misc.Base64;
+import es.gob.afirma.core.signers.AOSignConstants;
+import es.gob.afirma.core.signers.AOSignInfo;
+import es.gob.afirma.core.signers.AOSimpleSignInfo;
+import es.gob.afirma.core.signers.CounterSignTarget;
+import es.gob.afirma.core.util.tree.AOTreeModel;
+import es.gob.afirma.core.util.tree.AOTreeNode;
+import es.gob.afirma.signers.xades.AOXAdESSigner;
+import es.gob.afirma.signers.xml.DocumentBuilderPool;
+
+/** Pruebas de las operaciones de an&aacute;lisis de firmas XAdES que analizan el documento una
+ * sola vez con los analizadores DOM compartidos. Comprueban que {@link AOXAdESSigner#getSignersStructure(byte[], boolean)},
+ * {@link AOXAdESSigner#getSignInfo(byte[])} y {@link AOXAdESSigner#getData(byte[])} devuelven lo que
+ * se firm&oacute; y que su resultado no depende de los analizadores que se reutilicen en cada llamada
+ * ni de las llamadas simult&aacute;neas desde otros hilos. */
+public final class TestParseOnce {
+
+    private static final String CERT_PATH = "ANF_PF_Activo.pfx"; //$NON-NLS-1$
+    private static final String CERT_PASS = "12341234"; //$NON-NLS-1$
+    private static final String CERT_ALIAS = "anf usuario activo"; //$NON-NLS-1$
+
+    /** Fichero binario que se firma en las pruebas. */
+    private static final String DATA_FILE = "ANF_PF_Activo.pfx"; //$NON-NLS-1$
+
+    private static final String[] SIGNATURE_FILES = new String[] {
+        "XAdES-Detached-SHA1withRSA-B64.xml", //$NON-NLS-1$
+        "XAdES-Detached-SHA1withRSA-XML.xml", //$NON-NLS-1$
+        "XAdES-Enveloped-SHA1withRSA-XML.xml", //$NON-NLS-1$
+        "XAdES-Enveloping-SHA1withRSA-B64.xml", //$NON-NLS-1$
+        "XAdES-Enveloping-SHA1withRSA-XML.xml" //$NON-NLS-1$
+    };
+
+    private static final String[] SIGNATURE_VARIANTS = new String[] {
+        AOSignConstants.SIGN_FORMAT_XADES_DETACHED,
+        AOSignConstants.SIGN_FORMAT_XADES_DETACHED,
+        AOSignConstants.SIGN_FORMAT_XADES_ENVELOPED,
+        AOSignConstants.SIGN_FORMAT_XADES_ENVELOPING,
+        AOSignConstants.SIGN_FORMAT_XADES_ENVELOPING
+    };
+
+    /** Hilos de la prueba de llamadas simult&aacute;neas, m&aacute;s que analizadores libres se conservan. */
+    private static final int THREADS = DocumentBuilderPool.MAX_IDLE_BUILDERS + 4;
+
+    private static final int ITERATIONS = 5;
+
+    private static final Logger LOGGER = Logger.getLogger("es.gob.afirma"); //$NON-NLS-1$
+
+    private Level previousLevel;
+
+    /** Reduce los mensajes del registro durante las pruebas. */
+    @Before
+    public void reduceLogging() {
+        this.previousLevel = LOGGER.getLevel();
+        LOGGER.setLevel(Level.WARNING);
+    }
+
+    /** Restablece el nivel del registro anterior a la prueba. */
+    @After
+    public void restoreLogging() {
+        LOGGER.setLevel(this.previousLevel);
+    }
+
+    /** Comprueba que los datos, la informaci&oacute;n y el &aacute;rbol de firmantes de firmas nuevas,
+     * cofirmas y contrafirmas corresponden a lo firmado.
+     * @throws Exception Cuando ocurre cualquier error. */
+    @SuppressWarnings("static-method")
+    @Test
+    public void testResultsMatchSignedContent() throws Exception {
+        final KeyStore ks = KeyStore.getInstance("PKCS12"); //$NON-NLS-1$
+        ks.load(ClassLoader.getSystemResourceAsStream(CERT_PATH), CERT_PASS.toCharArray());
+        final PrivateKeyEntry pke = (PrivateKeyEntry) ks.getEntry(CERT_ALIAS, new KeyStore.PasswordProtection(CERT_PASS.toCharArray()));
+        final X509Certificate cert = (X509Certificate) pke.getCertificate();
+
+        final byte[] data = AOUtil.getDataFromInputStream(ClassLoader.getSystemResourceAsStream(DATA_FILE));
+        final AOXAdESSigner signer = new AOXAdESSigner();
+
+        final String[] formats = new String[] {
+            AOSignConstants.SIGN_FORMAT_XADES_DETACHED,
+            AOSignConstants.SIGN_FORMAT_XADES_ENVELOPING
+        };
+        for (final String format : formats) {
+            final Properties p = new Properties();
+            p.setProperty("format", format); //$NON-NLS-1$
+            p.setProperty("mode", AOSignConstants.SIGN_MODE_IMPLICIT); //$NON-NLS-1$
+
+            final byte[] sign = signer.sign(data, AOSignConstants.SIGN_ALGORITHM_SHA256WITHRSA, pke.getPrivateKey(), pke.getCertificateChain(), p);
+            Assert.assertTrue(format, Arrays.equals(data, signer.getData(sign)));
+            assertSignInfo(signer.getSignInfo(sign), format);
+            assertSigners(signer.getSignersStructure(sign, true), cert, 0, 0);
+
+            final byte[] cosign = signer.cosign(sign, AOSignConstants.SIGN_ALGORITHM_SHA256WITHRSA, pke.getPrivateKey(), pke.getCertificateChain(), p);
+            assertSigners(signer.getSignersStructure(cosign, true), cert, 1, 0);
+
+            final byte[] countersign = signer.countersign(
+                cosign,
+                AOSignConstants.SIGN_ALGORITHM_SHA256WITHRSA,
+                CounterSignTarget.LEAFS,
+                null,
+                pke.getPrivateKey(),
+                pke.getCertificateChain(),
+                p
+            );
+            assertSigners(signer.getSignersStructure(countersign, true), cert, 1, 1);
+
+            // Los datos de las firmas separadas estan fuera de las firmas, por lo que las cofirmas
+            // y las contrafirmas no cambian ni la variante ni los datos
+            if (AOSignConstants.SIGN_FORMAT_XADES_DETACHED.equals(format)) {
+                assertSignInfo(signer.getSignInfo(cosign), format);
+                assertSignInfo(signer.getSignInfo(countersign), format);
+                Assert.assertTrue(format, Arrays.equals(data, signer.getData(cosign)));
+                Assert.assertTrue(format, Arrays.equals(data, signer.getData(countersign)));
+            }
+        }
+    }
+
+    /** Comprueba que los resultados de las operaciones sobre las firmas de ejemplo no cambian
+     * cuando se reutilizan analizadores con los que antes se han analizado otros documentos,
+     * incluidos documentos que no son XML o que no son firmas.
+     * @throws Exception Cuando ocurre cualquier error. */
+    @SuppressWarnings("static-method")
+    @Test
+    public void testResultsDoNotDependOnReusedParsers() throws Exception {
+        final AOXAdESSigner signer = new AOXAdESSigner();
+        final byte[][] signs = loadSignatures();
+        final String[] expected = new String[signs.length];
+        for (int i = 0; i < signs.length; i++) {
+            expected[i] = describe(signer, signs[i]);
+            Assert.assertTrue(SIGNATURE_FILES[i], expected[i].startsWith(AOSignConstants.SIGN_FORMAT_XADES + '/' + SIGNATURE_VARIANTS[i] + '\n'));
+        }
+
+        final byte[] notXml = "Esto no es XML".getBytes(); //$NON-NLS-1$
+        final byte[] notSign = AOUtil.getDataFromInputStream(ClassLoader.getSystemResourceAsStream("sample-internal-dtd.xml")); //$NON-NLS-1$
+        for (int j = 0; j < ITERATIONS; j++) {
+            for (int i = 0; i < signs.length; i++) {
+                Assert.assertFalse(signer.isSign(notXml));
+                Assert.assertFalse(signer.isSign(notSign));
+                try {
+                    signer.getData(notSign);
+                    Assert.fail("Se han extraido los datos de un XML que no es una firma"); //$NON-NLS-1$
+                }
+                catch (final AOInvalidFormatException e) {
+                    // Se esperaba
+                }
+                Assert.assertEquals(SIGNATURE_FILES[i], expected[i], describe(signer, signs[i]));
+            }
+        }
+    }
+
+    /** Comprueba que las operaciones lanzadas a la vez desde m&aacute;s hilos que analizadores
+     * libres se conservan obtienen los mismos resultados que de forma secuencial.
+     * @throws Exception Cuando ocurre cualquier error. */
+    @SuppressWarnings("static-method")
+    @Test
+    public void testConcurrentResultsMatchSequential() throws Exception {
+        final AOXAdESSigner signer = new AOXAdESSigner();
+        final byte[][] signs = loadSignatures();
+        final String[] expected = new String[signs.length];
+        for (int i = 0; i < signs.length; i++) {
+            expected[i] = describe(signer, signs[i]);
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final Future<?>[] results = new Future<?>[THREADS];
+            for (int t = 0; t < THREADS; t++) {
+                final int first = t;
+                results[t] = executor.submit(new Callable<String[]>() {
+                    @Override
+                    public String[] call() throws Exception {
+                        start.await();
+                        final String[] descriptions = new String[signs.length * ITERATIONS];
+                        for (int n = 0; n < descriptions.length; n++) {
+                            // Cada hilo recorre las firmas desde una distinta para mezclar los documentos
+                            final int i = (first + n) % signs.length;
+                            descriptions[n] = describe(signer, signs[i]);
+                        }
+                        return descriptions;
+                    }
+                });
+            }
+            start.countDown();
+            for (int t = 0; t < THREADS; t++) {
+                final String[] descriptions = (String[]) results[t].get(300, TimeUnit.SECONDS);
+                for (int n = 0; n < descriptions.length; n++) {
+                    final int i = (t + n) % signs.length;
+                    Assert.assertEquals(SIGNATURE_FILES[i], expected[i], descriptions[n]);
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[][] loadSignatures() throws Exception {
+        final byte[][] signs = new byte[SIGNATURE_FILES.length][];
+        for (int i = 0; i < SIGNATURE_FILES.length; i++) {
+            signs[i] = AOUtil.getDataFromInputStream(ClassLoader.getSystemResourceAsStream(SIGNATURE_FILES[i]));
+        }
+        return signs;
+    }
+
+    /** Resume en un texto el resultado de las operaciones de an&aacute;lisis sobre una firma: formato
+     * y variante, &aacute;rboles de firmantes simple y completo, y datos firmados.
+     * @param signer Firmador XAdES.
+     * @param sign Firma a analizar.
+     * @return Resumen de los resultados.
+     * @throws Exception Cuando ocurre cualquier error. */
+    static String describe(final AOXAdESSigner signer, final byte[] sign) throws Exception {
+        final AOSignInfo info = signer.getSignInfo(sign);
+        final StringBuilder sb = new StringBuilder(info.getFormat()).append('/').append(info.getVariant()).append('\n');
+        appendTree(sb, (AOTreeNode) signer.getSignersStructure(sign, false).getRoot(), 0);
+        appendTree(sb, (AOTreeNode) signer.getSignersStructure(sign, true).getRoot(), 0);
+        final byte[] data = signer.getData(sign);
+        return sb.append(data == null ? "null" : Base64.encode(data)).toString(); //$NON-NLS-1$
+    }
+
+    private static void appendTree(final StringBuilder sb, final AOTreeNode node, final int depth) {
+        for (int i = 0; i < depth; i++) {
+            sb.append(' ');
+        }
+        final Object userObject = node.getUserObject();
+        if (userObject instanceof AOSimpleSignInfo) {
+            final AOSimpleSignInfo ssi = (AOSimpleSignInfo) userObject;
+            final Date signingTime = ssi.getSigningTime();
+            sb.append(ssi.getCerts()[0].getSerialNumber())
+              .append('@')
+              .append(signingTime == null ? "-" : Long.toString(signingTime.getTime())); //$NON-NLS-1$
+        }
+        else {
+            sb.append(userObject);
+        }
+        sb.append('\n');
+        for (int i = 0; i < node.getChildCount(); i++) {
+            appendTree(sb, node.getChildAt(i), depth + 1);
+        }
+    }
+
+    private static void assertSignInfo(final AOSignInfo info, final String variant) {
+        Assert.assertEquals(AOSignConstants.SIGN_FORMAT_XADES, info.getFormat());
+        Assert.assertEquals(variant, info.getVariant());
+    }
+
+    /** Comprueba el &aacute;rbol de firmantes de una firma con cofirmas y contrafirmas de un mismo firmante.
+     * @param tree &Aacute;rbol de firmantes.
+     * @param cert Certificado del firmante.
+     * @param cosigners N&uacute;mero de cofirmas a&ntilde;adidas a la firma original.
+     * @param countersigners N&uacute;mero de contrafirmas de cada firma. */
+    private static void assertSigners(final AOTreeModel tree,
+                                      final X509Certificate cert,
+                                      final int cosigners,
+                                      final int countersigners) {
+        final AOTreeNode root = (AOTreeNode) tree.getRoot();
+        Assert.assertEquals(1 + cosigners, root.getChildCount());
+        for (int i = 0; i < root.getChildCount(); i++) {
+            final AOTreeNode signerNode = root.getChildAt(i);
+            final AOSimpleSignInfo ssi = (AOSimpleSignInfo) signerNode.getUserObject();
+            Assert.assertEquals(cert, ssi.getCerts()[0]);
+            Assert.assertNotNull(ssi.getSigningTime());
+            Assert.assertEquals(countersigners, signerNode.getChildCount());
+            for (int j = 0; j < countersigners; j++) {
+                Assert.assertEquals(cert, ((AOSimpleSignInfo) signerNode.getChildAt(j).getUserObject()).getCerts()[0]);
+                Assert.assertEquals(0, signerNode.getChildAt(j).getChildCount());
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package es.gob.afirma.test.xades;
+
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import es.gob.afirma.core.misc.Base64;
+import es.gob.afirma.core.util.tree.AOTreeModel;
+import es.gob.afirma.core.util.tree.AOTreeNode;
+import es.gob.afirma.signers.xades.AOXAdESSigner;
+
+/** Pruebas de la obtenci&oacute;n del &aacute;rbol de firmantes sobre
+ * documentos sint&eacute;ticos con muchas contrafirmas, tanto anidadas (&aacute;rbol
+ * profundo) como sobre una misma firma (&aacute;rbol ancho). */
+public final class TestSignersStructure {
+
+    private static final String CERT_PATH = "ANF_PF_Activo.pfx"; //$NON-NLS-1$
+    private static final String CERT_PASS = "12341234"; //$NON-NLS-1$
+
+    /** Niveles de anidamiento de contrafirmas del &aacute;rbol profundo. */
+    private static final int DEEP_TREE_LEVELS = 200;
+
+    /** N&uacute;mero de contrafirmas de la firma del &aacute;rbol ancho. */
+    private static final int WIDE_TREE_COUNTERSIGNATURES = 3000;
+
+    private static final String DSIGNNS = "http://www.w3.org/2000/09/xmldsig#"; //$NON-NLS-1$
+    private static final String XADESNS = "http://uri.etsi.org/01903/v1.3.2#"; //$NON-NLS-1$
+
+    private static final Logger LOGGER = Logger.getLogger("es.gob.afirma"); //$NON-NLS-1$
+
+    private Level previousLevel;
+
+    /** Reduce los mensajes del registro durante las pruebas. */
+    @Before
+    public void reduceLogging() {
+        this.previousLevel = LOGGER.getLevel();
+        LOGGER.setLevel(Level.WARNING);
+    }
+
+    /** Restablece el nivel del registro anterior a la prueba. */
+    @After
+    public void restoreLogging() {
+        LOGGER.setLevel(this.previousLevel);
+    }
+
+    /** Obtiene la estructura de un &aacute;rbol de contrafirmas anidadas unas dentro de otras.
+     * @throws Exception Cuando ocurre cualquier error. */
+    @Test
+    public void estructuraDeArbolProfundo() throws Exception {
+        final String cert = getCertificateB64();
+        final StringBuilder xml = new StringBuilder("<AFIRMA>"); //$NON-NLS-1$
+        for (int i = 0; i < DEEP_TREE_LEVELS; i++) {
+            openSignature(xml, i, i == 0 ? null : Integer.valueOf(i - 1), cert);
+            if (i < DEEP_TREE_LEVELS - 1) {
+                xml.append("<xades:CounterSignature>"); //$NON-NLS-1$
+            }
+        }
+        for (int i = DEEP_TREE_LEVELS - 1; i >= 0; i--) {
+            closeSignature(xml);
+            if (i > 0) {
+                xml.append("</xades:CounterSignature>"); //$NON-NLS-1$
+            }
+        }
+        xml.append("</AFIRMA>"); //$NON-NLS-1$
+
+        final AOTreeModel tree = new AOXAdESSigner().getSignersStructure(xml.toString().getBytes("UTF-8"), false); //$NON-NLS-1$
+
+        AOTreeNode node = (AOTreeNode) tree.getRoot();
+        Assert.assertEquals(1, node.getChildCount());
+        for (int i = 0; i < DEEP_TREE_LEVELS; i++) {
+            Assert.assertEquals(1, node.getChildCount());
+            node = node.getChildAt(0);
+        }
+        Assert.assertEquals(0, node.getChildCount());
+    }
+
+    /** Obtiene la estructura de un &aacute;rbol con muchas contrafirmas sobre la misma firma.
+     * @throws Exception Cuando ocurre cualquier error. */
+    @Test
+    public void estructuraDeArbolAncho() throws Exception {
+        final String cert = getCertificateB64();
+        final StringBuilder xml = new StringBuilder("<AFIRMA>"); //$NON-NLS-1$
+        openSignature(xml, 0, null, cert);
+        for (int i = 1; i <= WIDE_TREE_COUNTERSIGNATURES; i++) {
+            xml.append("<xades:CounterSignature>"); //$NON-NLS-1$
+            openSignature(xml, i, Integer.valueOf(0), cert);
+            closeSignature(xml);
+            xml.append("</xades:CounterSignature>"); //$NON-NLS-1$
+        }
+        closeSignature(xml);
+        xml.append("</AFIRMA>"); //$NON-NLS-1$
+
+        final AOTreeModel tree = new AOXAdESSigner().getSignersStructure(xml.toString().getBytes("UTF-8"), false); //$NON-NLS-1$
+
+        final AOTreeNode root = (AOTreeNode) tree.getRoot();
+        Assert.assertEquals(1, root.getChildCount());
+        Assert.assertEquals(WIDE_TREE_COUNTERSIGNATURES, root.getChildAt(0).getChildCount());
+        for (int i = 0; i < WIDE_TREE_COUNTERSIGNATURES; i++) {
+            Assert.assertEquals(0, root.getChildAt(0).getChildAt(i).getChildCount());
+        }
+    }
+
+    private static String getCertificateB64() throws Exception {
+        final KeyStore ks = KeyStore.getInstance("PKCS12"); //$NON-NLS-1$
+        ks.load(ClassLoader.getSystemResourceAsStream(CERT_PATH), CERT_PASS.toCharArray());
+        final Certificate cert = ks.getCertificate(ks.aliases().nextElement());
+        return Base64.encode(cert.getEncoded());
+    }
+
+    /** Abre un nodo de firma, dejando abierto el nodo de sus propiedades no firmadas para
+     * poder a&ntilde;adir contrafirmas.
+     * @param xml XML al que se a&ntilde;ade la firma.
+     * @param index &Iacute;ndice de la firma, usado en sus identificadores.
+     * @param countersigned &Iacute;ndice de la firma contrafirmada o <code>null</code> si no es contrafirma.
+     * @param cert Certificado del firmante en Base64. */
+    private static void openSignature(final StringBuilder xml, final int index, final Integer countersigned, final String cert) {
+        xml.append("<ds:Signature xmlns:ds=\"").append(DSIGNNS).append("\" Id=\"Signature-").append(index).append("\">") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+           .append("<ds:SignedInfo><ds:SignatureMethod Algorithm=\"http://www.w3.org/2000/09/xmldsig#rsa-sha1\"/>") //$NON-NLS-1$
+           .append("<ds:Reference URI=\"#") //$NON-NLS-1$
+           .append(countersigned != null ? "SignatureValue-" + countersigned : "CONTENT") //$NON-NLS-1$ //$NON-NLS-2$
+           .append("\"/></ds:SignedInfo>") //$NON-NLS-1$
+           .append("<ds:SignatureValue Id=\"SignatureValue-").append(index).append("\">AAAA</ds:SignatureValue>") //$NON-NLS-1$ //$NON-NLS-2$
+           .append("<ds:KeyInfo><ds:X509Data><ds:X509Certificate>").append(cert).append("</ds:X509Certificate></ds:X509Data></ds:KeyInfo>") //$NON-NLS-1$ //$NON-NLS-2$
+           .append("<ds:Object><xades:QualifyingProperties xmlns:xades=\"").append(XADESNS).append("\">") //$NON-NLS-1$ //$NON-NLS-2$
+           .append("<xades:UnsignedProperties><xades:UnsignedSignatureProperties>"); //$NON-NLS-1$
+    }
+
+    private static void closeSignature(final StringBuilder xml) {
+        xml.append("</xades:UnsignedSignatureProperties></xades:UnsignedProperties>") //$NON-NLS-1$
+           .append("</xades:QualifyingProperties></ds:Object></ds:Signature>"); //$NON-NLS-1$
+    }
+}
@@ -0,0 +1,212 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.signers.xadestri.server;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/** Almac&eacute;n de los pares de claves RSA impostados con los que se generan las prefirmas XAdES.
+ * Estas claves solo se usan para generar un PKCS#1 provisional que despu&eacute;s se sustituye por el
+ * real y nunca salen del servidor, por lo que se genera una &uacute;nica clave por tama&ntilde;o de
+ * m&oacute;dulo y se comparte entre todas las peticiones, evitando el coste de generar claves RSA
+ * en cada prefirma.
+ * Cada tama&ntilde;o se genera una sola vez aunque se solicite desde varios hilos a la vez, sin
+ * que la generaci&oacute;n de un tama&ntilde;o bloquee las peticiones de claves de otros tama&ntilde;os. */
+public final class DummyKeyPairCache {
+
+	private static final Logger LOGGER = Logger.getLogger("es.gob.afirma"); //$NON-NLS-1$
+
+	/** Generaciones de claves, terminadas o en curso, por tama&ntilde;o de m&oacute;dulo. */
+	private static final ConcurrentMap<Integer, FutureTask<KeyPair>> KEY_PAIRS = new ConcurrentHashMap<Integer, FutureTask<KeyPair>>();
+
+	private static final AtomicLong HITS = new AtomicLong();
+
+	private static final AtomicLong MISSES = new AtomicLong();
+
+	/** Ejecutor de las generaciones de claves en segundo plano, con un &uacute;nico hilo de tipo demonio. */
+	private static final ExecutorService PRELOADER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			final Thread t = new Thread(r, "DummyKeyPairCache-preload"); //$NON-NLS-1$
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private DummyKeyPairCache() {
+		// No permitimos la instanciacion
+	}
+
+	/** Obtiene el par de claves RSA impostado para el tama&ntilde;o de m&oacute;dulo indicado,
+	 * gener&aacute;ndolo si es la primera vez que se solicita. Si otro hilo lo est&aacute; generando,
+	 * se espera a que termine.
+	 * @param keySize Tama&ntilde;o en bits del m&oacute;dulo de las claves.
+	 * @return Par de claves RSA.
+	 * @throws NoSuchAlgorithmException Si no se soporta la generaci&oacute;n de claves RSA. */
+	public static KeyPair getKeyPair(final int keySize) throws NoSuchAlgorithmException {
+		final Integer key = Integer.valueOf(keySize);
+		FutureTask<KeyPair> task = KEY_PAIRS.get(key);
+		if (task == null) {
+			final FutureTask<KeyPair> newTask = createTask(key, keySize);
+			task = KEY_PAIRS.putIfAbsent(key, newTask);
+			if (task == null) {
+				MISSES.incrementAndGet();
+				task = newTask;
+				task.run();
+			}
+			else {
+				HITS.incrementAndGet();
+			}
+		}
+		else {
+			HITS.incrementAndGet();
+		}
+		return getResult(key, task);
+	}
+
+	/** Genera por adelantado los pares de claves para los tama&ntilde;os de m&oacute;dulo indicados.
+	 * @param keySizes Tama&ntilde;os en bits de los m&oacute;dulos de las claves.
+	 * @throws NoSuchAlgorithmException Si no se soporta la generaci&oacute;n de claves RSA. */
+	public static void preload(final int... keySizes) throws NoSuchAlgorithmException {
+		for (final int keySize : keySizes) {
+			final Integer key = Integer.valueOf(keySize);
+			getResult(key, startTask(key, keySize, false));
+		}
+	}
+
+	/** Genera en segundo plano los pares de claves para los tama&ntilde;os de m&oacute;dulo indicados,
+	 * de forma que las primeras prefirmas no tengan que esperar a su generaci&oacute;n. Las prefirmas
+	 * que soliciten una clave que se est&aacute; generando esperan a que termine en lugar de generar otra.
+	 * @param keySizes Tama&ntilde;os en bits de los m&oacute;dulos de las claves.
+	 * @return Generaciones de las claves, en el orden de los tama&ntilde;os indicados, para que el
+	 * llamante pueda esperar a que terminen. */
+	public static List<Future<KeyPair>> preloadInBackground(final int... keySizes) {
+		final List<Future<KeyPair>> tasks = new ArrayList<Future<KeyPair>>(keySizes.length);
+		for (final int keySize : keySizes) {
+			tasks.add(startTask(Integer.valueOf(keySize), keySize, true));
+		}
+		return tasks;
+	}
+
+	/** Obtiene el n&uacute;mero de solicitudes de claves que se han atendido con una clave ya generada
+	 * o en generaci&oacute;n.
+	 * @return N&uacute;mero de aciertos. */
+	public static long getHits() {
+		return HITS.get();
+	}
+
+	/** Obtiene el n&uacute;mero de solicitudes de claves que han requerido generar una nueva clave.
+	 * @return N&uacute;mero de fallos. */
+	public static long getMisses() {
+		return MISSES.get();
+	}
+
+	/** Registra la generaci&oacute;n de un par de claves si no hay otra registrada para su
+	 * tama&ntilde;o y, en ese caso, la inicia. Las precargas no cuentan como aciertos ni fallos.
+	 * @param key Clave del tama&ntilde;o en el almac&eacute;n.
+	 * @param keySize Tama&ntilde;o en bits del m&oacute;dulo de las claves.
+	 * @param background <code>true</code> para generar las claves en el hilo de precarga,
+	 * <code>false</code> para generarlas en el hilo actual.
+	 * @return Generaci&oacute;n registrada para el tama&ntilde;o indicado. */
+	private static FutureTask<KeyPair> startTask(final Integer key, final int keySize, final boolean background) {
+		final FutureTask<KeyPair> newTask = createTask(key, keySize);
+		final FutureTask<KeyPair> task = KEY_PAIRS.putIfAbsent(key, newTask);
+		if (task != null) {
+			return task;
+		}
+		if (background) {
+			PRELOADER.execute(newTask);
+		}
+		else {
+			newTask.run();
+		}
+		return newTask;
+	}
+
+	/** Espera al resultado de una generaci&oacute;n de claves. Si la generaci&oacute;n ha fallado,
+	 * se elimina del almac&eacute;n para que la siguiente petici&oacute;n vuelva a intentarlo.
+	 * @param key Clave del tama&ntilde;o en el almac&eacute;n.
+	 * @param task Generaci&oacute;n de claves.
+	 * @return Par de claves RSA.
+	 * @throws NoSuchAlgorithmException Si no se soporta la generaci&oacute;n de claves RSA. */
+	private static KeyPair getResult(final Integer key, final FutureTask<KeyPair> task) throws NoSuchAlgorithmException {
+		try {
+			return task.get();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Se ha interrumpido la espera de la generacion de claves: " + e, e); //$NON-NLS-1$
+		}
+		catch (final ExecutionException e) {
+			KEY_PAIRS.remove(key, task);
+			final Throwable cause = e.getCause();
+			LOGGER.warning("No se han podido generar las claves RSA de " + key + " bits: " + cause); //$NON-NLS-1$ //$NON-NLS-2$
+			if (cause instanceof NoSuchAlgorithmException) {
+				throw (NoSuchAlgorithmException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException("Error generando las claves RSA: " + cause, cause); //$NON-NLS-1$
+		}
+	}
+
+	/** Crea la generaci&oacute;n de un par de claves, que se elimina del almac&eacute;n al terminar si
+	 * falla, aunque nadie est&eacute; esperando su resultado.
+	 * @param key Clave del tama&ntilde;o en el almac&eacute;n.
+	 * @param keySize Tama&ntilde;o en bits del m&oacute;dulo de las claves.
+	 * @return Generaci&oacute;n del par de claves, sin iniciar. */
+	private static FutureTask<KeyPair> createTask(final Integer key, final int keySize) {
+		return new FutureTask<KeyPair>(new Callable<KeyPair>() {
+			@Override
+			public KeyPair call() throws NoSuchAlgorithmException {
+				return generateKeyPair(keySize);
+			}
+		}) {
+			@Override
+			protected void done() {
+				try {
+					get();
+				}
+				catch (final Exception e) {
+					KEY_PAIRS.remove(key, this);
+				}
+			}
+		};
+	}
+
+	/** Genera un par de claves RSA.
+	 * @param keySize Tama&ntilde;o de las claves a generar
+	 * @return Par de claves RSA
+	 * @throws NoSuchAlgorithmException Si no se soporta la generaci&oacute;n de claves RSA */
+	private static KeyPair generateKeyPair(final int keySize) throws NoSuchAlgorithmException {
+		final KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA"); //$NON-NLS-1$
+		keyGen.initialize(keySize);
+		return keyGen.generateKeyPair();
+	}
+}
@@ -0,0 +1,118 @@
+/* Copyright (C) 2011 [Gobierno de Espana]
+ * This file is part of "Cliente @Firma".
+ * "Cliente @Firma" is free software; you can redistribute it and/or modify it under the terms of:
+ *   - the GNU General Public License as published by the Free Software Foundation;
+ *     either version 2 of the License, or (at your option) any later version.
+ *   - or The European Software License; either version 1.1 or (at your option) any later version.
+ * Date: 11/01/11
+ * You may contact the copyright holder at: soporte.afirma5@mpt.es
+ */
+
+package es.gob.afirma.signers.xadestri.server;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.List;
+import java.util.Properties;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+
+import es.gob.afirma.core.AOException;
+import es.gob.afirma.core.misc.Base64;
+import es.gob.afirma.core.signers.TriPhaseBatchProcessor;
+import es.gob.afirma.signers.xadestri.server.XAdESTriPhaseSignerServerSide.Op;
+
+/** Operaciones de prefirma y postfirma XAdES de los documentos de un lote, para atender las peticiones
+ * del protocolo de firma trif&aacute;sica por lotes con {@link TriPhaseBatchProcessor}.
+ * <p>La prefirma genera con {@link XAdESTriPhaseSignerServerSide} el XML firmado con los valores de firma
+ * sustituidos por {@link XAdESTriPhaseSignerServerSide#REPLACEMENT_STRING}, que viaja en los datos de
+ * sesi&oacute;n junto con los <i>SignedInfo</i> a firmar. La postfirma sustituye en ese XML cada marca por
+ * su firma PKCS#1, por lo que no necesita de nuevo los datos. El resultado de la postfirma de cada
+ * documento es el XML firmado.</p>
+ * <p>No guarda estado entre la prefirma y la postfirma, por lo que la misma instancia puede atender
+ * peticiones concurrentes.</p> */
+public final class XAdESTriPhaseBatchServerSide implements TriPhaseBatchProcessor.PreSigner, TriPhaseBatchProcessor.PostSigner {
+
+	private static final String PROPERTY_NAME_SIGN_COUNT = "SIGN_COUNT"; //$NON-NLS-1$
+	private static final String PROPERTY_NAME_PRESIGN_PREFIX = "PRE."; //$NON-NLS-1$
+	private static final String PROPERTY_NAME_PKCS1_SIGN_PREFIX = "PK1."; //$NON-NLS-1$
+	private static final String PROPERTY_NAME_NEED_PRE = "NEED_PRE"; //$NON-NLS-1$
+	private static final String PROPERTY_NAME_NEED_DATA = "NEED_DATA"; //$NON-NLS-1$
+	private static final String PROPERTY_NAME_BASE = "BASE"; //$NON-NLS-1$
+
+	private static final String XML_DEFAULT_ENCODING = "UTF-8"; //$NON-NLS-1$
+
+	private final String algorithm;
+	private final Op op;
+
+	/** Crea las operaciones de firma XAdES de un lote.
+	 * @param signatureAlgorithm Algoritmo de firma del lote.
+	 * @param operation Operaci&oacute;n a realizar sobre cada documento (firma, cofirma o contrafirma). */
+	public XAdESTriPhaseBatchServerSide(final String signatureAlgorithm, final Op operation) {
+		if (signatureAlgorithm == null || operation == null) {
+			throw new IllegalArgumentException("El algoritmo de firma y la operacion no pueden ser nulos"); //$NON-NLS-1$
+		}
+		this.algorithm = signatureAlgorithm;
+		this.op = operation;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Properties preSign(final byte[] cert, final Properties extraParams, final byte[] doc) throws Exception {
+
+		final XmlPreSignResult preSign = XAdESTriPhaseSignerServerSide.preSign(
+			doc,
+			this.algorithm,
+			new Certificate[] { CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(cert)) }, //$NON-NLS-1$
+			extraParams,
+			this.op
+		);
+
+		final List<byte[]> signedInfos = preSign.getSignedInfos();
+		final Properties session = new Properties();
+		session.setProperty(PROPERTY_NAME_SIGN_COUNT, Integer.toString(signedInfos.size()));
+		for (int i = 0; i < signedInfos.size(); i++) {
+			session.setProperty(PROPERTY_NAME_PRESIGN_PREFIX + i, Base64.encode(signedInfos.get(i)));
+		}
+		session.setProperty(PROPERTY_NAME_BASE, Base64.encode(preSign.getXmlSign()));
+		session.setProperty(PROPERTY_NAME_NEED_PRE, Boolean.FALSE.toString());
+		session.setProperty(PROPERTY_NAME_NEED_DATA, Boolean.FALSE.toString());
+		return session;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public byte[] postSign(final byte[] cert, final Properties extraParams, final Properties session, final byte[] doc) throws Exception {
+
+		final String base = session.getProperty(PROPERTY_NAME_BASE);
+		final String signCount = session.getProperty(PROPERTY_NAME_SIGN_COUNT);
+		if (base == null || signCount == null) {
+			throw new AOException("Faltan datos de la prefirma en los datos de sesion"); //$NON-NLS-1$
+		}
+
+		final byte[] xml = Base64.decode(base);
+		final String xmlEncoding = getXmlEncoding(xml);
+
+		// Sustituimos cada marca del XML por su firma PKCS#1
+		String signedXml = new String(xml, xmlEncoding);
+		for (int i = 0; i < Integer.parseInt(signCount); i++) {
+			final String pkcs1 = session.getProperty(PROPERTY_NAME_PKCS1_SIGN_PREFIX + i);
+			if (pkcs1 == null) {
+				throw new AOException("No se ha recibido la firma PKCS#1 numero " + i); //$NON-NLS-1$
+			}
+			signedXml = signedXml.replace(
+				XAdESTriPhaseSignerServerSide.REPLACEMENT_STRING.replace(XAdESTriPhaseSignerServerSide.REPLACEMENT_CODE, Integer.toString(i)),
+				pkcs1
+			);
+		}
+		return signedXml.getBytes(xmlEncoding);
+	}
+
+	private static String getXmlEncoding(final byte[] xml) throws Exception {
+		final Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+		return doc.getXmlEncoding() != null ? doc.getXmlEncoding() : XML_DEFAULT_ENCODING;
+	}
+}
@@ -4,8 +4,6 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.Key;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
@@ -78,6 +76,10 @@ public final class XAdESTriPhaseSignerServerSide {
 	private static final int NUM_CHARACTERS_TO_COMPARE = 60;
 
 	/** Prefirma (firma simple) en formato XAdES.
+	 * <p>Las factor&iacute;as y huellas digitales XML se reutilizan entre las peticiones que atiende
+	 * un mismo hilo. El servidor debe liberarlas con {@link Utils#clearThreadCaches()} cuando termine
+	 * el ciclo de vida de sus hilos (por ejemplo, al detener la aplicaci&oacute;n), para que estos no
+	 * la retengan tras redesplegarla.</p>
 	 * @param data Datos a prefirmar
 	 * @param algorithm Algoritmo de firma
 	 * @param certChain Cadena de certificados del firmante
@@ -174,8 +176,8 @@ public final class XAdESTriPhaseSignerServerSide {
 			}
 		}
 
-		// Generamos un par de claves para hacer la firma temporal, que despues sustituiremos por la real
-		final RSAPrivateKey prk = (RSAPrivateKey) generateKeyPair(
+		// Obtenemos un par de claves para hacer la firma temporal, que despues sustituiremos por la real
+		final RSAPrivateKey prk = (RSAPrivateKey) DummyKeyPairCache.getKeyPair(
 				((RSAPublicKey)((X509Certificate)certChain[0]).getPublicKey()).getModulus().bitLength()
 				).getPrivate();
 
@@ -360,14 +362,4 @@ public final class XAdESTriPhaseSignerServerSide {
 		public Key getKey() { return this.pk; }
 	}
 
-	/** Genera un par de claves RSA.
-	 * @param keySize Tama&ntilde;o de las claves a generar
-	 * @return Par de claves RSA
-	 * @throws NoSuchAlgorithmException Si no se soporta la generaci&oacute;n de claves RSA */
-	private static KeyPair generateKeyPair(final int keySize) throws NoSuchAlgorithmException {
-		final KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA"); //$NON-NLS-1$
-		keyGen.initialize(keySize);
-		return keyGen.generateKeyPair();
-	}
-
 }
@@ -0,0 +1,119 @@
+package es.gob.afirma.test.xadestri;
+
+import java.security.KeyPair;
+import java.security.interfaces.RSAPublicKey;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import es.gob.afirma.signers.xadestri.server.DummyKeyPairCache;
+
+/** Pruebas del almac&eacute;n de claves impostadas de las prefirmas XAdES. Como el almac&eacute;n
+ * es compartido, cada prueba usa sus propios tama&ntilde;os de clave y comprueba la variaci&oacute;n
+ * de los contadores de aciertos y fallos. */
+public final class TestDummyKeyPairCache {
+
+	private static final int THREADS = 8;
+
+	/** Comprueba que la primera petici&oacute;n de un tama&ntilde;o genera la clave y las siguientes
+	 * la reutilizan.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testHitsAndMisses() throws Exception {
+		final long hits = DummyKeyPairCache.getHits();
+		final long misses = DummyKeyPairCache.getMisses();
+
+		final KeyPair keyPair = DummyKeyPairCache.getKeyPair(512);
+		Assert.assertEquals(512, ((RSAPublicKey) keyPair.getPublic()).getModulus().bitLength());
+		Assert.assertEquals(misses + 1, DummyKeyPairCache.getMisses());
+		Assert.assertEquals(hits, DummyKeyPairCache.getHits());
+
+		Assert.assertSame(keyPair, DummyKeyPairCache.getKeyPair(512));
+		Assert.assertEquals(misses + 1, DummyKeyPairCache.getMisses());
+		Assert.assertEquals(hits + 1, DummyKeyPairCache.getHits());
+	}
+
+	/** Comprueba que varios hilos que piden a la vez un tama&ntilde;o nuevo generan una &uacute;nica clave.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testConcurrentRequests() throws Exception {
+		final long hits = DummyKeyPairCache.getHits();
+		final long misses = DummyKeyPairCache.getMisses();
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			final Future<?>[] results = new Future<?>[THREADS];
+			for (int i = 0; i < THREADS; i++) {
+				results[i] = executor.submit(new Callable<KeyPair>() {
+					@Override
+					public KeyPair call() throws Exception {
+						start.await();
+						return DummyKeyPairCache.getKeyPair(576);
+					}
+				});
+			}
+			start.countDown();
+			final Object keyPair = results[0].get(60, TimeUnit.SECONDS);
+			for (final Future<?> result : results) {
+				Assert.assertSame(keyPair, result.get(60, TimeUnit.SECONDS));
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		Assert.assertEquals(misses + 1, DummyKeyPairCache.getMisses());
+		Assert.assertEquals(hits + THREADS - 1, DummyKeyPairCache.getHits());
+	}
+
+	/** Comprueba que las claves precargadas en segundo plano se reutilizan en las peticiones.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testPreload() throws Exception {
+		final List<Future<KeyPair>> preloads = DummyKeyPairCache.preloadInBackground(640, 704);
+		Assert.assertEquals(2, preloads.size());
+
+		final long hits = DummyKeyPairCache.getHits();
+		final long misses = DummyKeyPairCache.getMisses();
+
+		// La peticion espera a la precarga en curso en lugar de generar otra clave
+		final KeyPair keyPair = DummyKeyPairCache.getKeyPair(640);
+		Assert.assertSame(preloads.get(0).get(60, TimeUnit.SECONDS), keyPair);
+		Assert.assertSame(preloads.get(1).get(60, TimeUnit.SECONDS), DummyKeyPairCache.getKeyPair(704));
+		Assert.assertEquals(misses, DummyKeyPairCache.getMisses());
+		Assert.assertEquals(hits + 2, DummyKeyPairCache.getHits());
+
+		// La precarga de claves ya generadas no las sustituye
+		DummyKeyPairCache.preload(640);
+		Assert.assertSame(keyPair, DummyKeyPairCache.getKeyPair(640));
+	}
+
+	/** Comprueba que no se recuerdan las generaciones de claves fallidas.
+	 * @throws Exception Cuando ocurre cualquier error. */
+	@SuppressWarnings("static-method")
+	@Test
+	public void testFailedGenerationIsRetried() throws Exception {
+		final long misses = DummyKeyPairCache.getMisses();
+		for (int i = 0; i < 2; i++) {
+			try {
+				DummyKeyPairCache.getKeyPair(-1);
+				Assert.fail("Se ha generado una clave de tamano negativo"); //$NON-NLS-1$
+			}
+			catch (final RuntimeException e) {
+				// Se esperaba
+			}
+		}
+		Assert.assertEquals(misses + 2, DummyKeyPairCache.getMisses());
+	}
+}
@@ -19,7 +19,6 @@ import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.net.URI;
 import java.security.InvalidAlgorithmParameterException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.Provider;
@@ -554,23 +553,14 @@ public final class AOXMLDSigSigner implements AOSigner {
             // ESTE BLOQUE CONTIENE EL PROCESO A SEGUIR EN EL MODO EXPLICITO,
             // ESTO ES, NO FIRMAMOS LOS DATOS SINO SU HASH
             byte[] digestValue = null;
-            // Si la URI no es nula recogemos los datos de fuera
+            // Si la URI no es nula calculamos la huella de los datos de fuera
+            // leyendolos por bloques, sin cargarlos completos en memoria
             if (uri != null) {
-                byte[] tmpData = null;
                 try {
-                    tmpData = AOUtil.getDataFromInputStream(AOUtil.loadFile(uri));
+                    digestValue = AOUtil.digestUri(Utils.getMessageDigest("SHA1"), uri, false); //$NON-NLS-1$
                 }
                 catch (final Exception e) {
-                    throw new AOException("No se han podido obtener los datos de la URI externa", e); //$NON-NLS-1$
-                }
-                // Vemos si hemos obtenido bien los datos de la URI
-                if (tmpData != null && tmpData.length > 0) {
-                    try {
-                        digestValue = MessageDigest.getInstance("SHA1").digest(tmpData); //$NON-NLS-1$
-                    }
-                    catch (final Exception e) {
-                        throw new AOException("No se ha podido obtener el SHA1 de los datos de la URI externa", e); //$NON-NLS-1$
-                    }
+                    throw new AOException("No se ha podido obtener el SHA1 de los datos de la URI externa", e); //$NON-NLS-1$
                 }
             }
             // Si no tenemos URI y se nos inserto directamente el hash de los
@@ -581,7 +571,7 @@ public final class AOXMLDSigSigner implements AOSigner {
             // Si solo tenemos los datos
             else {
                 try {
-                    digestValue = MessageDigest.getInstance("SHA1").digest(data); //$NON-NLS-1$
+                    digestValue = Utils.getMessageDigest("SHA1").digest(data); //$NON-NLS-1$
                 }
                 catch (final Exception e) {
                     throw new AOException("No se ha podido obtener el SHA1 de los datos proporcionados", e); //$NON-NLS-1$
@@ -847,8 +837,9 @@ public final class AOXMLDSigSigner implements AOSigner {
                                                  null,
                                                  null,
                                                  referenceId,
-                                                 MessageDigest.getInstance(AOSignConstants.getDigestAlgorithmName(digestMethodAlgorithm))
-                                                              .digest(AOUtil.getDataFromInputStream(AOUtil.loadFile(uri))));
+                                                 AOUtil.digestUri(Utils.getMessageDigest(AOSignConstants.getDigestAlgorithmName(digestMethodAlgorithm)),
+                                                                  uri,
+                                                                  false));
                     }
                     catch (final Exception e) {
                         throw new AOException("No se ha podido crear la referencia XML a partir de la URI local (" + uri.toASCIIString() + ")", e); //$NON-NLS-1$ //$NON-NLS-2$
@@ -2024,68 +2015,40 @@ public final class AOXMLDSigSigner implements AOSigner {
 
         // Obtenemos todas las firmas y los signature value
         final NodeList signatures = root.getElementsByTagName(completePrefix + SIGNATURE_STR);
-        final NodeList signatureValues = root.getElementsByTagName(completePrefix + "SignatureValue"); //$NON-NLS-1$
+        final Map<String, String> signatureValues = Utils.getSignatureValuesIndex(
+    		root.getElementsByTagName(completePrefix + "SignatureValue") //$NON-NLS-1$
+		);
 
         final int numSignatures = signatures.getLength();
-        final String[] arrayIds = new String[numSignatures];
-        final String[] arrayRef = new String[numSignatures];
-        final AOTreeNode[] arrayNodes = new AOTreeNode[numSignatures];
+        final List<String> arrayIds = new ArrayList<String>(numSignatures);
+        final List<String> arrayRef = new ArrayList<String>(numSignatures);
+        final List<AOTreeNode> arrayNodes = new ArrayList<AOTreeNode>(numSignatures);
 
         for (int i = 0; i < numSignatures; i++) {
 
             final Element signature = (Element) signatures.item(i);
 
-            arrayIds[i] = signature.getAttribute("Id"); //$NON-NLS-1$
+            arrayIds.add(signature.getAttribute("Id")); //$NON-NLS-1$
 
-            arrayNodes[i] = new AOTreeNode(asSimpleSignInfo ? Utils.getSimpleSignInfoNode(XADESNS, signature) : Utils.getStringInfoNode(signature));
+            arrayNodes.add(new AOTreeNode(asSimpleSignInfo ? Utils.getSimpleSignInfoNode(XADESNS, signature) : Utils.getStringInfoNode(signature)));
 
             // Recogemos el identificador de la firma a la que se referencia (si
             // no es contrafirma sera cadena vacia)
             final String typeReference = ((Element) signature.getElementsByTagNameNS(XMLConstants.DSIGNNS, REFERENCE_STR).item(0)).getAttribute("Type"); //$NON-NLS-1$
             if (typeReference.equals(CSURI)) {
-                arrayRef[i] = Utils.getCounterSignerReferenceId(signature, signatureValues);
+                arrayRef.add(Utils.getCounterSignerReferenceId(signature, signatureValues));
             }
             else {
-                arrayRef[i] = ""; //$NON-NLS-1$
+                arrayRef.add(""); //$NON-NLS-1$
             }
         }
 
-        // Se buscan las contrafirmas de cada firma o cofirma
-        for (int i = 0; i < numSignatures; i++) {
-            if ("".equals(arrayRef[i])) { //$NON-NLS-1$
-                tree.add(generaArbol(i, numSignatures - 1, arrayNodes, arrayIds, arrayRef)[i]);
-            }
-        }
+        // Se cuelga cada contrafirma de la firma o cofirma a la que referencia
+        Utils.composeSignersTree(tree, arrayNodes, arrayIds, arrayRef);
 
         return new AOTreeModel(tree, numSignatures);
     }
 
-    /** M&eacute;todo recursivo para la obtenci&oacute;n de la estructura de
-     * &aacute;rbol.
-     * @param i Inicio de lectura del array de identificadores
-     * @param j Inicio de lectura inversa del array de referencias
-     * @param arrayNodes Array de objetos AOTreeNode
-     * @param arrayIds Array de identificadores
-     * @param arrayRef Array de referencias
-     * @return Array de objetos AOTreeNode */
-    private AOTreeNode[] generaArbol(final int i, final int j, final AOTreeNode arrayNodes[], final String arrayIds[], final String arrayRef[]) {
-        final int max = arrayIds.length;
-        if (i < max && j > 0) {
-            if (arrayIds[i].equals(arrayRef[j])) {
-                generaArbol(i + 1, j - 1, arrayNodes, arrayIds, arrayRef);
-            }
-            if (i < j) {
-                generaArbol(i, j - 1, arrayNodes, arrayIds, arrayRef);
-            }
-            if (!arrayIds[i].equals(arrayRef[j])) {
-                return arrayNodes;
-            }
-            generaArbol(j, max - 1, arrayNodes, arrayIds, arrayRef);
-            arrayNodes[i].add(arrayNodes[j]);
-        }
-        return arrayNodes;
-    }
-
     /** {@inheritDoc} */
     @Override
 	public boolean isSign(final byte[] sign) {